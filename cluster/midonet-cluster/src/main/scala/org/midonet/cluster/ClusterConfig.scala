@@ -22,6 +22,7 @@ import com.typesafe.config.{ConfigFactory, Config}
 import org.midonet.cluster.services.{ScheduledMinionConfig, MinionConfig}
 import org.midonet.cluster.services.c3po.C3POMinion
 import org.midonet.cluster.services.conf.ConfMinion
+import org.midonet.cluster.services.flowhistory.FlowHistoryCollector
 import org.midonet.cluster.services.heartbeat.Heartbeat
 import org.midonet.cluster.services.topology.TopologyApiService
 import org.midonet.cluster.services.vxgw.VxlanGatewayService
@@ -62,6 +63,7 @@ class ClusterConfig(_conf: Config) {
     val snoopy = new TopologySnoopyConfig(conf)
     val confApi = new ConfApiConfig(conf)
     val restApi = new RestApiConfig(conf)
+    val flowHistory = new FlowHistoryConfig(conf)
 }
 
 class EmbeddedClusterNodeConfig(conf: Config) {
@@ -79,6 +81,9 @@ class C3POConfig(val conf: Config) extends ScheduledMinionConfig[C3POMinion] {
     def jdbcDriver = conf.getString(s"$PREFIX.jdbc_driver_class")
     def user = conf.getString(s"$PREFIX.user")
     def password = conf.getString(s"$PREFIX.password")
+    def pageSize = conf.getInt(s"$PREFIX.page_size")
+    def parserThreads = conf.getInt(s"$PREFIX.parser_threads")
+    def deleteProcessedTasks = conf.getBoolean(s"$PREFIX.delete_processed_tasks")
 }
 
 class HeartbeatConfig(val conf: Config) extends ScheduledMinionConfig[Heartbeat] {
@@ -127,3 +132,16 @@ class RestApiConfig(val conf: Config) extends MinionConfig[ConfMinion] {
     def httpPort = conf.getInt("cluster.rest_api.http_port")
     def rootUri = conf.getString("cluster.rest_api.root_uri")
 }
+
+class FlowHistoryConfig(val conf: Config) extends MinionConfig[FlowHistoryCollector] {
+    val PREFIX = "cluster.flow_history"
+
+    override def isEnabled = conf.getBoolean(s"$PREFIX.enabled")
+
+    def udpPort = conf.getInt(s"$PREFIX.udp_port")
+    def httpPort = conf.getInt(s"$PREFIX.http_port")
+    def dataDirectory = conf.getString(s"$PREFIX.data_dir")
+    def segmentSize = conf.getBytes(s"$PREFIX.segment_size").toInt
+    def partitionMs = conf.getDuration(s"$PREFIX.partition", TimeUnit.MILLISECONDS)
+    def retentionMs = conf.getDuration(s"$PREFIX.retention", TimeUnit.MILLISECONDS)
+}
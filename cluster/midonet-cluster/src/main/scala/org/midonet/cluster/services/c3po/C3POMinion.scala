@@ -17,8 +17,11 @@
 package org.midonet.cluster.services.c3po
 
 import java.sql.Driver
+import java.util.concurrent.{ExecutorService, Executors, TimeUnit}
 import javax.sql.DataSource
 
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
 import scala.util.control.NonFatal
 
 import com.google.inject.Inject
@@ -37,6 +40,7 @@ import org.midonet.cluster.storage.MidonetBackendConfig
 import org.midonet.cluster.util.UUIDUtil
 import org.midonet.cluster.{C3POConfig, ClusterConfig, ClusterNode}
 import org.midonet.midolman.state.PathBuilder
+import org.midonet.util.concurrent.NamedThreadFactory
 
 /** The service that translates and imports neutron models into the MidoNet
   * backend storage.
@@ -65,6 +69,17 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
     private val neutronImporter = new SqlNeutronImporter(dataSrc)
     private val dataStateUpdater = new DataStateUpdater(dataSrc)
 
+    /* Reads the next page of tasks while the current one is imported. */
+    private val readerExecutor = Executors.newSingleThreadExecutor(
+        new NamedThreadFactory("neutron-task-reader"))
+    private val readerEc = ExecutionContext.fromExecutor(readerExecutor)
+
+    /* Deserializes the Neutron models of the tasks in a page. */
+    private val parserExecutor = Executors.newFixedThreadPool(
+        config.c3po.parserThreads,
+        new NamedThreadFactory("neutron-task-parser"))
+    private val parserEc = ExecutionContext.fromExecutor(parserExecutor)
+
     private val LEADER_LATCH_PATH = "/leader-latch"
     private val leaderLatch = new LeaderLatch(curator, LEADER_LATCH_PATH,
                                               nodeContext.nodeId.toString)
@@ -82,9 +97,17 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
             log.info("Non leader shutting down, removing myself from pool")
         }
         leaderLatch.close()
+        shutdown(readerExecutor)
+        shutdown(parserExecutor)
         super.doStop()
     }
 
+    private def shutdown(executor: ExecutorService): Unit = {
+        executor.shutdown()
+        if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+            executor.shutdownNow()
+    }
+
     // Delegates to a static method to enable testing without creating a
     // C3POMinion instance.
     override protected def validateConfig(): Unit =
@@ -102,29 +125,70 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
             val lastTaskId = dataMgr.lastProcessedTaskId
             log.debug(".. last processed task ID: {}.", lastTaskId)
 
-            val txns = neutronImporter.getTasksSince(lastTaskId)
+            importTasksSince(lastTaskId)
+
+            val newLastTaskId = dataMgr.lastProcessedTaskId
+            log.debug(".. updating last processed task ID: {}.", newLastTaskId)
+            if (C3POState.NO_TASKS_PROCESSED != newLastTaskId)
+                dataStateUpdater.updateLastProcessedId(newLastTaskId)
+        } catch {
+            case NonFatal(t) =>
+                log.error("Unexpected exception in NeutronDB polling thread", t)
+        }
+    }
+
+    /** Imports the tasks after the given task ID, one page at a time. The
+      * next page is read, and the models of the tasks in the current page
+      * are deserialized in parallel, while the tasks of the current page are
+      * translated and written to the backend. Translators read the objects
+      * written by earlier tasks, hence this happens strictly in task order.
+      * Pages only contain whole transactions, each written with one multi.
+      */
+    private def importTasksSince(taskId: Int): Unit = {
+        val pageSize = config.c3po.pageSize
+        var lastTaskId = taskId
+        var page = readPage(lastTaskId, pageSize)
+
+        while (page ne null) {
+            val txns = Await.result(page, Duration.Inf)
             log.debug(".. {} transaction(s) to import: {}", txns.size, txns)
+            if (txns.isEmpty)
+                return
 
-            for (txn <- txns) {
+            // A full page means there may be more tasks.
+            page = if (txns.map(_.tasks.size).sum < pageSize) null
+                   else readPage(txns.last.lastTaskId, pageSize)
+
+            val neutronTxns = for (txn <- txns) yield {
+                if (txn.isFlushTxn) null
+                else Future(translateTxn(txn))(parserEc)
+            }
+
+            for ((txn, neutronTxn) <- txns zip neutronTxns) {
                 if (txn.isFlushTxn) {
                     log.info(".. flushing storage")
                     dataMgr.flushTopology()
                     neutronImporter.deleteTask(txn.lastTaskId)
                 } else {
-                    dataMgr.interpretAndExecTxn(translateTxn(txn))
+                    dataMgr.interpretAndExecTxn(
+                        Await.result(neutronTxn, Duration.Inf))
                 }
             }
 
-            val newLastTaskId = dataMgr.lastProcessedTaskId
-            log.debug(".. updating last processed task ID: {}.", newLastTaskId)
-            if (C3POState.NO_TASKS_PROCESSED != newLastTaskId)
-                dataStateUpdater.updateLastProcessedId(newLastTaskId)
-        } catch {
-            case NonFatal(t) =>
-                log.error("Unexpected exception in NeutronDB polling thread", t)
+            if (config.c3po.deleteProcessedTasks) {
+                log.debug(".. deleting imported tasks up to {}",
+                          txns.last.lastTaskId)
+                neutronImporter.deleteTasks(lastTaskId + 1,
+                                            txns.last.lastTaskId)
+            }
+            lastTaskId = txns.last.lastTaskId
         }
     }
 
+    private def readPage(taskId: Int, pageSize: Int)
+    : Future[List[importer.Transaction]] =
+        Future(neutronImporter.getTasksSince(taskId, pageSize))(readerEc)
+
     private def translateTxn(txn: importer.Transaction) =
         neutron.Transaction(txn.id, txn.tasks.map(translateTask))
 
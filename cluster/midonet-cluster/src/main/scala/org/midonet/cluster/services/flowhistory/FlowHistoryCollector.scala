@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.flowhistory
+
+import java.io.File
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.{ClosedChannelException, DatagramChannel}
+import java.util.concurrent.TimeUnit
+import java.util.{Collections, List => JList, UUID}
+import javax.servlet.http.{HttpServlet, HttpServletRequest, HttpServletResponse}
+
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+import com.google.inject.Inject
+import org.eclipse.jetty.server.Server
+import org.eclipse.jetty.server.nio.BlockingChannelConnector
+import org.eclipse.jetty.servlet.{ServletContextHandler, ServletHolder}
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.flowhistory.{BinarySerialization, FlowRecord, JsonSerialization}
+import org.midonet.cluster.services.flowhistory.FlowHistoryStore.FiveTuple
+import org.midonet.cluster.services.{ClusterService, Minion}
+import org.midonet.cluster.{ClusterConfig, ClusterNode}
+import org.midonet.packets.IPAddr
+
+/**
+ * Collects the flow history sent by the agents over UDP, in either the
+ * binary or the JSON encoding, and stores it in a FlowHistoryStore. The
+ * stored records are exposed through an HTTP API:
+ *
+ *  GET /flow_history/devices/<id>?minutes=N
+ *      The flows that traversed a device in the last N minutes.
+ *  GET /flow_history/ports/<id>?minutes=N
+ *      The flows that ingressed or egressed a port in the last N minutes.
+ *  GET /flow_history/flows?src=..&dst=..&proto=..&src_port=..&dst_port=..&minutes=N
+ *      The flows with the given five-tuple in the last N minutes.
+ *
+ * Each query returns a JSON array of records, in the format of the JSON
+ * encoding.
+ */
+@ClusterService(name = "flow_history")
+class FlowHistoryCollector @Inject()(nodeContext: ClusterNode.Context,
+                                     config: ClusterConfig,
+                                     metrics: MetricRegistry)
+    extends Minion(nodeContext) {
+
+    private val log = LoggerFactory.getLogger("org.midonet.cluster.flow-history")
+
+    private val receivedDatagrams = metrics.meter(name(
+        classOf[FlowHistoryCollector], "receivedDatagrams"))
+    private val storedRecords = metrics.meter(name(
+        classOf[FlowHistoryCollector], "storedRecords"))
+    private val malformedDatagrams = metrics.counter(name(
+        classOf[FlowHistoryCollector], "malformedDatagrams"))
+
+    private val binary = new BinarySerialization
+    private val json = new JsonSerialization
+
+    @volatile private var running = false
+    private var store: FlowHistoryStore = _
+    private var channel: DatagramChannel = _
+    private var receiver: Thread = _
+    private var server: Server = _
+
+    override def isEnabled = config.flowHistory.isEnabled
+
+    override def doStart(): Unit = {
+        val conf = config.flowHistory
+        try {
+            store = new FlowHistoryStore(new File(conf.dataDirectory),
+                                         conf.segmentSize, conf.partitionMs,
+                                         conf.retentionMs)
+
+            log.info(s"Collecting flow history at UDP port ${conf.udpPort}")
+            channel = DatagramChannel.open()
+            channel.socket.bind(new InetSocketAddress(conf.udpPort))
+            running = true
+            receiver = new Thread(new Runnable {
+                override def run(): Unit = receive()
+            }, "flow-history-collector")
+            receiver.start()
+
+            log.info(s"Starting flow history API at ${conf.httpPort}")
+            server = new Server()
+            val http = new BlockingChannelConnector()
+            http.setPort(conf.httpPort)
+            server.addConnector(http)
+            val context = new ServletContextHandler()
+            context.setContextPath("/flow_history")
+            context.addServlet(new ServletHolder(new FlowHistoryEndpoint(store)),
+                               "/*")
+            server.setHandler(context)
+            server.start()
+            notifyStarted()
+        } catch {
+            case NonFatal(e) =>
+                log.error("Failed to start the flow history collector", e)
+                stop()
+                notifyFailed(e)
+        }
+    }
+
+    override def doStop(): Unit = {
+        stop()
+        notifyStopped()
+    }
+
+    private def stop(): Unit = {
+        running = false
+        if (channel ne null)
+            channel.close()
+        if (receiver ne null)
+            receiver.join()
+        if (server ne null) {
+            server.stop()
+            server.join()
+        }
+        if (store ne null)
+            store.flush()
+    }
+
+    private def receive(): Unit = {
+        val buf = ByteBuffer.allocateDirect(65536)
+        while (running) {
+            try {
+                buf.clear()
+                channel.receive(buf)
+                buf.flip()
+                receivedDatagrams.mark()
+                val records = decode(buf)
+                store.append(System.currentTimeMillis(), records)
+                storedRecords.mark(records.size)
+            } catch {
+                case e: ClosedChannelException =>
+                    running = false
+                case NonFatal(e) =>
+                    malformedDatagrams.inc()
+                    log.debug("Dropping malformed flow history datagram", e)
+            }
+        }
+    }
+
+    private def decode(buf: ByteBuffer): JList[FlowRecord] =
+        if (buf.remaining >= 4 && buf.getInt(buf.position) == BinarySerialization.Magic) {
+            binary.datagramToFlowRecords(buf)
+        } else {
+            val bytes = new Array[Byte](buf.remaining)
+            buf.get(bytes)
+            Collections.singletonList(json.bufferToFlowRecord(bytes))
+        }
+}
+
+/** Serves the queries of the flow history API. */
+class FlowHistoryEndpoint(store: FlowHistoryStore) extends HttpServlet {
+
+    private val DefaultMinutes = 10L
+
+    private val json = new JsonSerialization
+
+    override def doGet(req: HttpServletRequest,
+                       resp: HttpServletResponse): Unit = {
+        val until = System.currentTimeMillis()
+        try {
+            val minutes = param(req, "minutes").map(_.toLong)
+                                               .getOrElse(DefaultMinutes)
+            val since = until - TimeUnit.MINUTES.toMillis(minutes)
+            val path = Option(req.getPathInfo).getOrElse("").stripPrefix("/")
+            val records = path.split("/") match {
+                case Array("devices", id) =>
+                    store.flowsThroughDevice(UUID.fromString(id), since, until)
+                case Array("ports", id) =>
+                    store.flowsThroughPort(UUID.fromString(id), since, until)
+                case Array("flows") =>
+                    store.flowsOf(FiveTuple(IPAddr.fromString(required(req, "src")),
+                                            IPAddr.fromString(required(req, "dst")),
+                                            required(req, "proto").toByte,
+                                            required(req, "src_port").toInt,
+                                            required(req, "dst_port").toInt),
+                                  since, until)
+                case _ =>
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND)
+                    return
+            }
+            resp.setContentType("application/json; charset=utf-8")
+            resp.setStatus(HttpServletResponse.SC_OK)
+            val out = resp.getOutputStream
+            out.write('[')
+            var i = 0
+            while (i < records.size) {
+                if (i > 0)
+                    out.write(',')
+                out.write(json.flowRecordToBuffer(records.get(i)))
+                i += 1
+            }
+            out.write(']')
+        } catch {
+            case e: IllegalArgumentException =>
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage)
+        }
+    }
+
+    private def param(req: HttpServletRequest, name: String): Option[String] =
+        Option(req.getParameter(name))
+
+    private def required(req: HttpServletRequest, name: String): String =
+        param(req, name).getOrElse(
+            throw new IllegalArgumentException(s"Missing parameter $name"))
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.flowhistory
+
+import java.io.{File, RandomAccessFile}
+import java.nio.channels.FileChannel.MapMode
+import java.nio.{BufferOverflowException, ByteBuffer, MappedByteBuffer}
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.{ArrayList, HashMap, List => JList, UUID}
+
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.flowhistory.{BinarySerialization, FlowRecord, FlowRecordMatch}
+import org.midonet.packets.IPAddr
+
+object FlowHistoryStore {
+
+    /** The addresses, protocol and ports matched by a flow. */
+    case class FiveTuple(networkSrc: IPAddr, networkDst: IPAddr,
+                         networkProto: Byte, srcPort: Int, dstPort: Int)
+
+    object FiveTuple {
+        def apply(m: FlowRecordMatch): FiveTuple =
+            if ((m.networkSrc eq null) || (m.networkDst eq null)) null
+            else FiveTuple(IPAddr.fromBytes(m.networkSrc),
+                           IPAddr.fromBytes(m.networkDst),
+                           m.networkProto, m.srcPort, m.dstPort)
+    }
+
+    /* Each entry of a segment is the time at which the record was received,
+     * the length of the record and the record in the binary encoding. */
+    private final val EntryHeaderSize = 12
+    private final val MaxRecordSize = 65535
+    private final val SegmentSuffix = ".log"
+
+    /** The offsets of the entries of a segment matching an index key. */
+    private class Offsets {
+        var offsets = new Array[Int](4)
+        var size = 0
+
+        def add(offset: Int): Unit = {
+            if (size == offsets.length)
+                offsets = java.util.Arrays.copyOf(offsets, size * 2)
+            offsets(size) = offset
+            size += 1
+        }
+    }
+
+    /**
+     * A partition of the log, in a memory mapped file named after the time
+     * of its first record, with the indexes of its records.
+     */
+    private class Segment(val file: File, val start: Long, size: Int) {
+        val buffer: MappedByteBuffer = {
+            val raf = new RandomAccessFile(file, "rw")
+            try raf.getChannel.map(MapMode.READ_WRITE, 0, size)
+            finally raf.close()
+        }
+        var end = start
+        var records = 0
+
+        val devices = new HashMap[UUID, Offsets]
+        val ports = new HashMap[UUID, Offsets]
+        val flows = new HashMap[FiveTuple, Offsets]
+
+        def index(record: FlowRecord, offset: Int, time: Long): Unit = {
+            def add[K](index: HashMap[K, Offsets], key: K): Unit =
+                if (key != null) {
+                    var offsets = index.get(key)
+                    if (offsets eq null) {
+                        offsets = new Offsets
+                        index.put(key, offsets)
+                    }
+                    offsets.add(offset)
+                }
+
+            if (record.devices ne null) {
+                var i = 0
+                while (i < record.devices.size) {
+                    add(devices, record.devices.get(i))
+                    i += 1
+                }
+            }
+            add(ports, record.inPort)
+            if (record.outPorts ne null) {
+                var i = 0
+                while (i < record.outPorts.size) {
+                    add(ports, record.outPorts.get(i))
+                    i += 1
+                }
+            }
+            if (record.flowMatch ne null)
+                add(flows, FiveTuple(record.flowMatch))
+            end = Math.max(end, time)
+            records += 1
+        }
+    }
+}
+
+/**
+ * Stores flow records in a log partitioned in time, and indexes them by
+ * device, by port and by five-tuple.
+ *
+ * The log is made of segments, each one a memory mapped file of the given
+ * size. A new segment is started when the current one is full, or when the
+ * records being appended are more recent than the partition period from
+ * its first record. The segments whose last record is older than the
+ * retention period are deleted when a new segment is started. The indexes
+ * are kept in memory, and rebuilt from the segments found in the directory
+ * when the store is created.
+ *
+ * A single thread is expected to append records, while any thread may
+ * query them.
+ */
+class FlowHistoryStore(directory: File, segmentSize: Int,
+                       partitionMillis: Long, retentionMillis: Long) {
+    import FlowHistoryStore._
+
+    private val log = LoggerFactory.getLogger("org.midonet.cluster.flow-history")
+
+    private val lock = new ReentrantReadWriteLock()
+    private val segments = new ArrayList[Segment]
+    private var current: Segment = null
+
+    private val serializer = new BinarySerialization
+    private val scratch = ByteBuffer.allocate(MaxRecordSize)
+
+    if (segmentSize <= EntryHeaderSize)
+        throw new IllegalArgumentException(s"Invalid segment size $segmentSize")
+    directory.mkdirs()
+    load()
+
+    /** Appends records received at the given time, in milliseconds. */
+    def append(time: Long, records: JList[FlowRecord]): Unit = {
+        lock.writeLock.lock()
+        try {
+            var i = 0
+            while (i < records.size) {
+                append(time, records.get(i))
+                i += 1
+            }
+        } finally {
+            lock.writeLock.unlock()
+        }
+    }
+
+    /** The records of the flows traversing a device in the given period. */
+    def flowsThroughDevice(id: UUID, since: Long, until: Long): JList[FlowRecord] =
+        query(since, until) { _.devices.get(id) }
+
+    /** The records of the flows ingressing or egressing a port in the given
+      * period. */
+    def flowsThroughPort(id: UUID, since: Long, until: Long): JList[FlowRecord] =
+        query(since, until) { _.ports.get(id) }
+
+    /** The records of the flows with the given five-tuple in the given
+      * period. */
+    def flowsOf(tuple: FiveTuple, since: Long, until: Long): JList[FlowRecord] =
+        query(since, until) { _.flows.get(tuple) }
+
+    def segmentCount: Int = {
+        lock.readLock.lock()
+        try segments.size finally lock.readLock.unlock()
+    }
+
+    /** Deletes the segments whose records are all older than the retention
+      * period from the given time. */
+    def expire(now: Long): Unit = {
+        lock.writeLock.lock()
+        try {
+            val it = segments.iterator()
+            while (it.hasNext) {
+                val segment = it.next()
+                if (segment.end < now - retentionMillis) {
+                    log.debug(s"Deleting flow history segment ${segment.file}")
+                    it.remove()
+                    if (segment eq current)
+                        current = null
+                    segment.file.delete()
+                }
+            }
+        } finally {
+            lock.writeLock.unlock()
+        }
+    }
+
+    /** Flushes the segments to disk. */
+    def flush(): Unit = {
+        lock.writeLock.lock()
+        try {
+            var i = 0
+            while (i < segments.size) {
+                segments.get(i).buffer.force()
+                i += 1
+            }
+        } finally {
+            lock.writeLock.unlock()
+        }
+    }
+
+    private def append(time: Long, record: FlowRecord): Unit = {
+        scratch.clear()
+        try {
+            serializer.flowRecordToBuffer(record, scratch)
+        } catch {
+            case e: BufferOverflowException =>
+                log.warn("Dropping flow record too large to store")
+                return
+        }
+        scratch.flip()
+        val size = EntryHeaderSize + scratch.remaining
+        if (size > segmentSize) {
+            log.warn("Dropping flow record larger than a segment")
+            return
+        }
+
+        if ((current eq null) || time >= current.start + partitionMillis ||
+            current.buffer.remaining < size) {
+            startSegment(time)
+        }
+        val offset = current.buffer.position
+        current.buffer.putLong(time)
+        current.buffer.putInt(scratch.remaining)
+        current.buffer.put(scratch)
+        current.index(record, offset, time)
+    }
+
+    private def startSegment(time: Long): Unit = {
+        // Names must be unique, even when segments fill up within a
+        // millisecond.
+        var start = time
+        if ((current ne null) && start <= current.start)
+            start = current.start + 1
+        current = new Segment(new File(directory, s"$start$SegmentSuffix"),
+                              start, segmentSize)
+        segments.add(current)
+        expire(time)
+    }
+
+    private def query(since: Long, until: Long)
+                     (index: Segment => Offsets): JList[FlowRecord] = {
+        val result = new ArrayList[FlowRecord]
+        lock.readLock.lock()
+        try {
+            var i = 0
+            while (i < segments.size) {
+                val segment = segments.get(i)
+                if (segment.start <= until && segment.end >= since) {
+                    val offsets = index(segment)
+                    if (offsets ne null)
+                        read(segment, offsets, since, until, result)
+                }
+                i += 1
+            }
+        } finally {
+            lock.readLock.unlock()
+        }
+        result
+    }
+
+    private def read(segment: Segment, offsets: Offsets, since: Long,
+                     until: Long, result: JList[FlowRecord]): Unit = {
+        val buf = segment.buffer.duplicate()
+        var i = 0
+        while (i < offsets.size) {
+            val offset = offsets.offsets(i)
+            val time = buf.getLong(offset)
+            if (time >= since && time <= until) {
+                buf.limit(offset + EntryHeaderSize + buf.getInt(offset + 8))
+                buf.position(offset + EntryHeaderSize)
+                result.add(serializer.bufferToFlowRecord(buf))
+                buf.limit(buf.capacity)
+            }
+            i += 1
+        }
+    }
+
+    /* Opens the existing segments, in time order, and indexes their
+     * records. Appending always starts a new segment. */
+    private def load(): Unit = {
+        val files = directory.listFiles()
+        if (files eq null)
+            return
+        val starts = files.map(_.getName)
+                          .filter(_.endsWith(SegmentSuffix))
+                          .flatMap { name =>
+                              try Some(name.stripSuffix(SegmentSuffix).toLong)
+                              catch { case e: NumberFormatException => None }
+                          }
+                          .sorted
+        for (start <- starts) {
+            val file = new File(directory, s"$start$SegmentSuffix")
+            try {
+                val segment = new Segment(file, start, file.length.toInt)
+                scan(segment)
+                segments.add(segment)
+            } catch {
+                case e: Exception =>
+                    log.warn(s"Failed to load flow history segment $file", e)
+            }
+        }
+        log.info(s"Loaded ${segments.size} flow history segments")
+    }
+
+    private def scan(segment: Segment): Unit = {
+        val buf = segment.buffer.duplicate()
+        var offset = 0
+        while (offset + EntryHeaderSize <= buf.capacity && buf.getInt(offset + 8) > 0) {
+            val time = buf.getLong(offset)
+            val length = buf.getInt(offset + 8)
+            buf.limit(offset + EntryHeaderSize + length)
+            buf.position(offset + EntryHeaderSize)
+            segment.index(serializer.bufferToFlowRecord(buf), offset, time)
+            buf.limit(buf.capacity)
+            offset += EntryHeaderSize + length
+        }
+        segment.buffer.position(offset)
+    }
+}
@@ -123,6 +123,9 @@ class C3POMinionTestBase extends FlatSpec with BeforeAndAfter
           |cluster.neutron_importer.user : ""
           |cluster.neutron_importer.password : ""
           |cluster.neutron_importer.jdbc_driver_class : "org.sqlite.JDBC"
+          |cluster.neutron_importer.page_size : 1000
+          |cluster.neutron_importer.parser_threads : 4
+          |cluster.neutron_importer.delete_processed_tasks : false
           |zookeeper.root_key : "$rootPath"
           |zookeeper.use_new_stack : true
           |# The following is for legacy Data Client
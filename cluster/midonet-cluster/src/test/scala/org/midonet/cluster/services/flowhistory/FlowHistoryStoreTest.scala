@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.flowhistory
+
+import java.io.File
+import java.nio.file.Files
+import java.util.{Arrays, Collections, UUID}
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+
+import org.midonet.cluster.flowhistory.FlowRecord
+import org.midonet.cluster.services.flowhistory.FlowHistoryStore.FiveTuple
+import org.midonet.packets.IPv4Addr
+
+@RunWith(classOf[JUnitRunner])
+class FlowHistoryStoreTest extends FeatureSpec with Matchers
+                                              with BeforeAndAfter {
+
+    private val SegmentSize = 1024 * 1024
+    private val Partition = 60000L
+    private val Retention = 600000L
+
+    private var directory: File = _
+
+    before {
+        directory = Files.createTempDirectory("flow-history").toFile
+    }
+
+    after {
+        for (file <- directory.listFiles())
+            file.delete()
+        directory.delete()
+    }
+
+    private def newStore(segmentSize: Int = SegmentSize) =
+        new FlowHistoryStore(directory, segmentSize, Partition, Retention)
+
+    private def record(devices: UUID*): FlowRecord = {
+        val r = FlowRecord.random()
+        r.copy(devices = Arrays.asList(devices: _*))
+    }
+
+    private def record(src: String, dst: String, proto: Byte,
+                       srcPort: Int, dstPort: Int): FlowRecord = {
+        val r = FlowRecord.random()
+        r.copy(flowMatch = r.flowMatch.copy(
+            networkSrc = IPv4Addr.fromString(src).toBytes,
+            networkDst = IPv4Addr.fromString(dst).toBytes,
+            networkProto = proto, srcPort = srcPort, dstPort = dstPort))
+    }
+
+    feature("Flow history store indexes records") {
+        scenario("Records are queried by device") {
+            val store = newStore()
+            val device1 = UUID.randomUUID()
+            val device2 = UUID.randomUUID()
+            val r1 = record(device1)
+            val r2 = record(device1, device2)
+            val r3 = record(device2)
+            store.append(1000L, Arrays.asList(r1, r2))
+            store.append(2000L, Collections.singletonList(r3))
+
+            store.flowsThroughDevice(device1, 0L, 3000L).asScala shouldBe Seq(r1, r2)
+            store.flowsThroughDevice(device2, 0L, 3000L).asScala shouldBe Seq(r2, r3)
+            store.flowsThroughDevice(UUID.randomUUID(), 0L, 3000L).asScala shouldBe empty
+        }
+
+        scenario("Records are queried by port") {
+            val store = newStore()
+            val port = UUID.randomUUID()
+            val r1 = FlowRecord.random()
+            val r2 = FlowRecord.random().copy(outPorts = Arrays.asList(port))
+            store.append(1000L, Arrays.asList(r1, r2))
+
+            store.flowsThroughPort(r1.inPort, 0L, 3000L).asScala shouldBe Seq(r1)
+            store.flowsThroughPort(port, 0L, 3000L).asScala shouldBe Seq(r2)
+        }
+
+        scenario("Records are queried by five-tuple") {
+            val store = newStore()
+            val r1 = record("10.0.0.1", "10.0.0.2", 6, 1000, 80)
+            val r2 = record("10.0.0.1", "10.0.0.2", 6, 1001, 80)
+            store.append(1000L, Arrays.asList(r1, r2))
+
+            val tuple = FiveTuple(IPv4Addr.fromString("10.0.0.1"),
+                                  IPv4Addr.fromString("10.0.0.2"), 6, 1000, 80)
+            store.flowsOf(tuple, 0L, 3000L).asScala shouldBe Seq(r1)
+        }
+
+        scenario("Queries are limited to a period of time") {
+            val store = newStore()
+            val device = UUID.randomUUID()
+            val r1 = record(device)
+            val r2 = record(device)
+            val r3 = record(device)
+            store.append(1000L, Collections.singletonList(r1))
+            store.append(2000L, Collections.singletonList(r2))
+            store.append(Partition + 3000L, Collections.singletonList(r3))
+
+            store.flowsThroughDevice(device, 1500L, 2500L).asScala shouldBe Seq(r2)
+            store.flowsThroughDevice(device, 2000L, Partition + 3000L).asScala shouldBe Seq(r2, r3)
+            store.flowsThroughDevice(device, 4000L, 5000L).asScala shouldBe empty
+        }
+    }
+
+    feature("Flow history store manages segments") {
+        scenario("A new segment is started for each partition") {
+            val store = newStore()
+            store.append(1000L, Collections.singletonList(FlowRecord.random()))
+            store.append(2000L, Collections.singletonList(FlowRecord.random()))
+            store.segmentCount shouldBe 1
+
+            store.append(Partition + 1000L,
+                         Collections.singletonList(FlowRecord.random()))
+            store.segmentCount shouldBe 2
+        }
+
+        scenario("A new segment is started when the current one is full") {
+            val store = newStore(segmentSize = 4096)
+            val device = UUID.randomUUID()
+            val records = for (i <- 0 until 100) yield record(device)
+            for (r <- records)
+                store.append(1000L, Collections.singletonList(r))
+
+            store.segmentCount should be > 1
+            store.flowsThroughDevice(device, 0L, 2000L).asScala shouldBe records
+        }
+
+        scenario("Segments older than the retention period are deleted") {
+            val store = newStore()
+            val device = UUID.randomUUID()
+            val r1 = record(device)
+            val r2 = record(device)
+            store.append(1000L, Collections.singletonList(r1))
+            store.append(Retention + 2000L, Collections.singletonList(r2))
+
+            store.segmentCount shouldBe 1
+            directory.listFiles() should have length 1
+            store.flowsThroughDevice(device, 0L, Retention + 3000L).asScala shouldBe Seq(r2)
+        }
+
+        scenario("Indexes are rebuilt when the store is reopened") {
+            val store = newStore()
+            val device = UUID.randomUUID()
+            val r1 = record(device)
+            val r2 = record(device)
+            store.append(1000L, Arrays.asList(r1, r2))
+            store.flush()
+
+            val reopened = newStore()
+            reopened.segmentCount shouldBe 1
+            reopened.flowsThroughDevice(device, 0L, 2000L).asScala shouldBe Seq(r1, r2)
+            reopened.flowsThroughPort(r1.inPort, 0L, 2000L).asScala shouldBe Seq(r1)
+        }
+    }
+}
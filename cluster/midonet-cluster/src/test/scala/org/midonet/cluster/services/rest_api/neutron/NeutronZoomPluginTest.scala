@@ -58,6 +58,7 @@ class NeutronZoomPluginTest extends FeatureSpec
         val cfg = new MidonetBackendConfig(ConfigFactory.parseString(s"""
            |zookeeper.zookeeper_hosts : "${zk.getConnectString}"
            |zookeeper.root_key : "$ZK_ROOT"
+           |zookeeper.binary_encoding : false
         """.stripMargin)
         )
         backend = new MidonetBackendService(cfg, curator)
@@ -810,6 +810,16 @@ public interface DataClient {
     UUID routesCreateEphemeral(@Nonnull Route route)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Creates and deletes ephemeral routes in a single storage operation. The
+     * created routes are stored with the identifiers they are mapped to, and
+     * the deleted routes must be those stored with the identifiers they are
+     * mapped to. Either all the routes are updated, or none of them.
+     */
+    void routesUpdateEphemeral(@Nonnull Map<UUID, Route> created,
+                               @Nonnull Map<UUID, Route> deleted)
+            throws StateAccessException, SerializationException;
+
     List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException;
 
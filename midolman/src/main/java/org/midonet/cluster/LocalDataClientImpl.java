@@ -18,6 +18,7 @@ package org.midonet.cluster;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -276,8 +277,11 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
         List<UUID> adRouteIds = adRouteZkManager.list(bgpId);
         List<AdRoute> adRoutes = new ArrayList<>();
-        for (UUID adRouteId : adRouteIds) {
-            adRoutes.add(adRoutesGet(adRouteId));
+        for (Map.Entry<UUID, AdRouteZkManager.AdRouteConfig> entry :
+                 adRouteZkManager.getAll(adRouteIds).entrySet()) {
+            AdRoute adRoute = Converter.fromAdRouteConfig(entry.getValue());
+            adRoute.setId(entry.getKey());
+            adRoutes.add(adRoute);
         }
         return adRoutes;
     }
@@ -578,9 +582,18 @@ public class LocalDataClientImpl implements DataClient {
         log.debug("bridgesGetAll entered");
         List<Bridge> bridges = new ArrayList<>();
 
-        for (UUID id :
-            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath())) {
-            Bridge bridge = bridgesGet(id);
+        List<UUID> ids =
+            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath());
+        for (Map.Entry<UUID, BridgeConfig> entry :
+                 bridgeZkManager.getAll(ids).entrySet()) {
+            Bridge bridge;
+            if (entry.getValue().vxLanPortId != null) {
+                // Let bridgesGet migrate the legacy property.
+                bridge = bridgesGet(entry.getKey());
+            } else {
+                bridge = Converter.fromBridgeConfig(entry.getValue());
+                bridge.setId(entry.getKey());
+            }
             if (bridge != null) {
                 bridges.add(bridge);
             }
@@ -678,12 +691,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getChainsPath();
         if (zkManager.exists(path)) {
-            Set<String> chainIds = zkManager.getChildren(path);
-            for (String id : chainIds) {
-                Chain chain = chainsGet(UUID.fromString(id));
-                if (chain != null) {
-                    chains.add(chain);
-                }
+            List<UUID> ids = chainZkManager.getUuidList(path);
+            for (Map.Entry<UUID, ChainZkManager.ChainConfig> entry :
+                     chainZkManager.getAll(ids).entrySet()) {
+                Chain chain = Converter.fromChainConfig(entry.getValue());
+                chain.setId(entry.getKey());
+                chains.add(chain);
             }
         }
 
@@ -1368,18 +1381,17 @@ public class LocalDataClientImpl implements DataClient {
 
         Collection<UUID> ids = portZkManager.getBridgePortIDs(bridgeId);
         List<BridgePort> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            Port<?, ?> port = portsGet(id);
+        for (Port<?, ?> port : portsGet(ids)) {
             if (port instanceof BridgePort) {
                 // Skip the VxLanPort, since it's not really a
                 // BridgePort and is accessible in other ways.
-                ports.add((BridgePort) portsGet(id));
+                ports.add((BridgePort) port);
             }
         }
 
         ids = portZkManager.getBridgeLogicalPortIDs(bridgeId);
-        for (UUID id : ids) {
-            ports.add((BridgePort) portsGet(id));
+        for (Port<?, ?> port : portsGet(ids)) {
+            ports.add((BridgePort) port);
         }
 
         return ports;
@@ -1390,15 +1402,14 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
 
         Collection<UUID> ids = portZkManager.getBridgeLogicalPortIDs(bridgeId);
-        List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            Port<?, ?> portData = portsGet(id);
+        List<UUID> peerIds = new ArrayList<>();
+        for (Port<?, ?> portData : portsGet(ids)) {
             if (portData.getPeerId() != null) {
-                ports.add(portsGet(portData.getPeerId()));
+                peerIds.add(portData.getPeerId());
             }
         }
 
-        return ports;
+        return portsGet(peerIds);
     }
 
     @Override
@@ -1406,12 +1417,7 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
 
         Collection<UUID> ids = portZkManager.getRouterPortIDs(routerId);
-        List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            ports.add(portsGet(id));
-        }
-
-        return ports;
+        return portsGet(ids);
     }
 
     @Override
@@ -1419,15 +1425,14 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
 
         Collection<UUID> ids = portZkManager.getRouterPortIDs(routerId);
-        List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            Port<?, ?> portData = portsGet(id);
+        List<UUID> peerIds = new ArrayList<>();
+        for (Port<?, ?> portData : portsGet(ids)) {
             if (portData.getPeerId() != null) {
-                ports.add(portsGet(portData.getPeerId()));
+                peerIds.add(portData.getPeerId());
             }
         }
 
-        return ports;
+        return portsGet(peerIds);
     }
 
     @Override
@@ -1444,13 +1449,7 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPortsPath();
         if (zkManager.exists(path)) {
-            Set<String> portIds = zkManager.getChildren(path);
-            for (String id : portIds) {
-                Port<?, ?> port = portsGet(UUID.fromString(id));
-                if (port != null) {
-                    ports.add(port);
-                }
-            }
+            ports.addAll(portsGet(portZkManager.getUuidList(path)));
         }
 
         log.debug("portsGetAll exiting: {} routers found", ports.size());
@@ -1470,6 +1469,26 @@ public class LocalDataClientImpl implements DataClient {
         return port;
     }
 
+    /**
+     * Gets the specified ports, in the order of their IDs, pipelining the
+     * reads of their configurations and liveness. The ports that don't
+     * exist are skipped.
+     */
+    private List<Port<?, ?>> portsGet(Collection<UUID> ids)
+            throws StateAccessException, SerializationException {
+        Map<UUID, PortConfig> configs = portZkManager.getAll(ids);
+        Set<UUID> activePorts = portZkManager.getActivePorts(configs.keySet());
+
+        List<Port<?, ?>> ports = new ArrayList<>(configs.size());
+        for (Map.Entry<UUID, PortConfig> entry : configs.entrySet()) {
+            Port<?, ?> port = Converter.fromPortConfig(entry.getValue());
+            port.setActive(activePorts.contains(entry.getKey()));
+            port.setId(entry.getKey());
+            ports.add(port);
+        }
+        return ports;
+    }
+
     @Override
     public void portsUpdate(@Nonnull Port<?,?> port)
             throws StateAccessException, SerializationException {
@@ -1500,12 +1519,7 @@ public class LocalDataClientImpl implements DataClient {
     public List<Port<?, ?>> portsFindByPortGroup(UUID portGroupId)
             throws StateAccessException, SerializationException {
         Set<UUID> portIds = portZkManager.getPortGroupPortIds(portGroupId);
-        List<Port<?, ?>> ports = new ArrayList<>(portIds.size());
-        for (UUID portId : portIds) {
-            ports.add(portsGet(portId));
-        }
-
-        return ports;
+        return portsGet(portIds);
     }
 
     @Override
@@ -1541,11 +1555,11 @@ public class LocalDataClientImpl implements DataClient {
         Set<UUID> ids = ipAddrGroupZkManager.getAllIds();
 
         List<IpAddrGroup> groups = new ArrayList<>();
-        for (UUID id : ids) {
-            IpAddrGroupZkManager.IpAddrGroupConfig config =
-                    ipAddrGroupZkManager.get(id);
-            IpAddrGroup group = Converter.fromIpAddrGroupConfig(config);
-            group.setId(id);
+        for (Map.Entry<UUID, IpAddrGroupZkManager.IpAddrGroupConfig> entry :
+                 ipAddrGroupZkManager.getAll(ids).entrySet()) {
+            IpAddrGroup group =
+                Converter.fromIpAddrGroupConfig(entry.getValue());
+            group.setId(entry.getKey());
             groups.add(group);
         }
         return groups;
@@ -1600,12 +1614,8 @@ public class LocalDataClientImpl implements DataClient {
         List<PortGroup> portGroups = new ArrayList<>();
 
         if (portsExists(portId)) {
-            for (UUID portGroupId : portsGet(portId).getPortGroups()) {
-                PortGroup portGroup = portGroupsGet(portGroupId);
-                if (portGroup != null) {
-                    portGroups.add(portGroup);
-                }
-            }
+            portGroups.addAll(
+                portGroupsGet(portsGet(portId).getPortGroups()));
         }
 
         log.debug("portGroupsFindByPort exiting: {} portGroups found",
@@ -1688,13 +1698,8 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPortGroupsPath();
         if (zkManager.exists(path)) {
-            Set<String> portGroupIds = zkManager.getChildren(path);
-            for (String id : portGroupIds) {
-                PortGroup portGroup = portGroupsGet(UUID.fromString(id));
-                if (portGroup != null) {
-                    portGroups.add(portGroup);
-                }
-            }
+            portGroups.addAll(
+                portGroupsGet(portGroupZkManager.getUuidList(path)));
         }
 
         log.debug("portGroupsGetAll exiting: {} port groups found",
@@ -1719,6 +1724,19 @@ public class LocalDataClientImpl implements DataClient {
         return portGroup;
     }
 
+    private List<PortGroup> portGroupsGet(Collection<UUID> ids)
+            throws StateAccessException, SerializationException {
+        List<PortGroup> portGroups = new ArrayList<>(ids.size());
+        for (Map.Entry<UUID, PortGroupZkManager.PortGroupConfig> entry :
+                 portGroupZkManager.getAll(ids).entrySet()) {
+            PortGroup portGroup =
+                Converter.fromPortGroupConfig(entry.getValue());
+            portGroup.setId(entry.getKey());
+            portGroups.add(portGroup);
+        }
+        return portGroups;
+    }
+
     @Override
     public void portGroupsDelete(UUID id)
             throws StateAccessException, SerializationException {
@@ -1851,13 +1869,13 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getLoadBalancersPath();
         if (zkManager.exists(path)) {
-            Set<String> loadBalancerIds = zkManager.getChildren(path);
-            for (String id : loadBalancerIds) {
+            List<UUID> ids = loadBalancerZkManager.getUuidList(path);
+            for (Map.Entry<UUID, LoadBalancerZkManager.LoadBalancerConfig>
+                     entry : loadBalancerZkManager.getAll(ids).entrySet()) {
                 LoadBalancer loadBalancer =
-                    loadBalancerGet(UUID.fromString(id));
-                if (loadBalancer != null) {
-                    loadBalancers.add(loadBalancer);
-                }
+                    Converter.fromLoadBalancerConfig(entry.getValue());
+                loadBalancer.setId(entry.getKey());
+                loadBalancers.add(loadBalancer);
             }
         }
 
@@ -2106,13 +2124,13 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getHealthMonitorsPath();
         if (zkManager.exists(path)) {
-            Set<String> healthMonitorIds = zkManager.getChildren(path);
-            for (String id : healthMonitorIds) {
-                HealthMonitor healthMonitor
-                    = healthMonitorGet(UUID.fromString(id));
-                if (healthMonitor != null) {
-                    healthMonitors.add(healthMonitor);
-                }
+            List<UUID> ids = healthMonitorZkManager.getUuidList(path);
+            for (Map.Entry<UUID, HealthMonitorZkManager.HealthMonitorConfig>
+                     entry : healthMonitorZkManager.getAll(ids).entrySet()) {
+                HealthMonitor healthMonitor =
+                    Converter.fromHealthMonitorConfig(entry.getValue());
+                healthMonitor.setId(entry.getKey());
+                healthMonitors.add(healthMonitor);
             }
         }
 
@@ -2323,12 +2341,13 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPoolMembersPath();
         if (zkManager.exists(path)) {
-            Set<String> poolMemberIds = zkManager.getChildren(path);
-            for (String id : poolMemberIds) {
-                PoolMember poolMember = poolMemberGet(UUID.fromString(id));
-                if (poolMember != null) {
-                    poolMembers.add(poolMember);
-                }
+            List<UUID> ids = poolMemberZkManager.getUuidList(path);
+            for (Map.Entry<UUID, PoolMemberZkManager.PoolMemberConfig>
+                     entry : poolMemberZkManager.getAll(ids).entrySet()) {
+                PoolMember poolMember =
+                    Converter.fromPoolMemberConfig(entry.getValue());
+                poolMember.setId(entry.getKey());
+                poolMembers.add(poolMember);
             }
         }
 
@@ -2560,12 +2579,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPoolsPath();
         if (zkManager.exists(path)) {
-            Set<String> poolIds = zkManager.getChildren(path);
-            for (String id : poolIds) {
-                Pool pool = poolGet(UUID.fromString(id));
-                if (pool != null) {
-                    pools.add(pool);
-                }
+            List<UUID> ids = poolZkManager.getUuidList(path);
+            for (Map.Entry<UUID, PoolZkManager.PoolConfig> entry :
+                     poolZkManager.getAll(ids).entrySet()) {
+                Pool pool = Converter.fromPoolConfig(entry.getValue());
+                pool.setId(entry.getKey());
+                pools.add(pool);
             }
         }
 
@@ -2798,12 +2817,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getVipsPath();
         if (zkManager.exists(path)) {
-            Set<String> vipIds = zkManager.getChildren(path);
-            for (String id : vipIds) {
-                VIP vip = vipGet(UUID.fromString(id));
-                if (vip != null) {
-                    vips.add(vip);
-                }
+            List<UUID> ids = vipZkManager.getUuidList(path);
+            for (Map.Entry<UUID, VipZkManager.VipConfig> entry :
+                     vipZkManager.getAll(ids).entrySet()) {
+                VIP vip = Converter.fromVipConfig(entry.getValue());
+                vip.setId(entry.getKey());
+                vips.add(vip);
             }
         }
 
@@ -2849,14 +2868,36 @@ public class LocalDataClientImpl implements DataClient {
         return routeZkManager.create(Converter.toRouteConfig(route), false);
     }
 
+    @Override
+    public void routesUpdateEphemeral(@Nonnull Map<UUID, Route> created,
+                                      @Nonnull Map<UUID, Route> deleted)
+            throws StateAccessException, SerializationException {
+        Map<UUID, org.midonet.midolman.layer3.Route> createdConfigs =
+            new HashMap<>(created.size());
+        for (Map.Entry<UUID, Route> entry : created.entrySet()) {
+            createdConfigs.put(entry.getKey(),
+                               Converter.toRouteConfig(entry.getValue()));
+        }
+        Map<UUID, org.midonet.midolman.layer3.Route> deletedConfigs =
+            new HashMap<>(deleted.size());
+        for (Map.Entry<UUID, Route> entry : deleted.entrySet()) {
+            deletedConfigs.put(entry.getKey(),
+                               Converter.toRouteConfig(entry.getValue()));
+        }
+        routeZkManager.updateEphemeral(createdConfigs, deletedConfigs);
+    }
+
     @Override
     public List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException {
 
         List<UUID> routeIds = routeZkManager.list(routerId);
         List<Route> routes = new ArrayList<>();
-        for (UUID id : routeIds) {
-            routes.add(routesGet(id));
+        for (Map.Entry<UUID, org.midonet.midolman.layer3.Route> entry :
+                 routeZkManager.getAll(routeIds).entrySet()) {
+            Route route = Converter.fromRouteConfig(entry.getValue());
+            route.setId(entry.getKey());
+            routes.add(route);
         }
         return routes;
 
@@ -2875,12 +2916,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getRoutersPath();
         if (zkManager.exists(path)) {
-            Set<String> routerIds = zkManager.getChildren(path);
-            for (String id : routerIds) {
-                Router router = routersGet(UUID.fromString(id));
-                if (router != null) {
-                    routers.add(router);
-                }
+            List<UUID> ids = routerZkManager.getUuidList(path);
+            for (Map.Entry<UUID, RouterZkManager.RouterConfig> entry :
+                     routerZkManager.getAll(ids).entrySet()) {
+                Router router = Converter.fromRouterConfig(entry.getValue());
+                router.setId(entry.getKey());
+                routers.add(router);
             }
         }
 
@@ -3013,14 +3054,20 @@ public class LocalDataClientImpl implements DataClient {
     public List<Rule<?, ?>> rulesFindByChain(UUID chainId)
             throws StateAccessException, SerializationException {
         List<UUID> ruleIds = ruleZkManager.getRuleList(chainId).getRuleList();
+        Map<UUID, org.midonet.midolman.rules.Rule> configs =
+            ruleZkManager.getAll(ruleIds);
         List<Rule<?, ?>> rules = new ArrayList<>();
 
         int position = 1;
         for (UUID id : ruleIds) {
-            Rule<?,?> rule = rulesGet(id);
-            rule.setPosition(position);
+            org.midonet.midolman.rules.Rule config = configs.get(id);
+            if (config != null) {
+                Rule<?,?> rule = Converter.fromRuleConfig(config);
+                rule.setId(id);
+                rule.setPosition(position);
+                rules.add(rule);
+            }
             position++;
-            rules.add(rule);
         }
         return rules;
     }
@@ -3209,12 +3256,11 @@ public class LocalDataClientImpl implements DataClient {
         List<TraceRequest> traceRequests = new ArrayList<>();
         String path = pathBuilder.getTraceRequestsPath();
         if (zkManager.exists(path)) {
-            Set<String> trIds = zkManager.getChildren(path);
-            for (String id : trIds) {
-                TraceRequest tr = traceRequestGet(UUID.fromString(id));
-                if (tr != null) {
-                    traceRequests.add(tr);
-                }
+            List<UUID> trIds = traceReqZkManager.getUuidList(path);
+            for (Map.Entry<UUID, TraceRequestZkManager.TraceRequestConfig>
+                     entry : traceReqZkManager.getAll(trIds).entrySet()) {
+                traceRequests.add(Converter.fromTraceRequestConfig(
+                    entry.getValue()).setId(entry.getKey()));
             }
         }
         return traceRequests;
@@ -3468,11 +3514,15 @@ public class LocalDataClientImpl implements DataClient {
         String path = pathBuilder.getVtepsPath();
         if (zkManager.exists(path)) {
             Set<String> vtepIps = zkManager.getChildren(path);
+            List<IPv4Addr> ipAddrs = new ArrayList<>(vtepIps.size());
             for (String vtepIp : vtepIps) {
-                VTEP vtep = vtepGet(IPv4Addr.fromString(vtepIp));
-                if (vtep != null) {
-                    vteps.add(vtep);
-                }
+                ipAddrs.add(IPv4Addr.fromString(vtepIp));
+            }
+            for (Map.Entry<IPv4Addr, VtepZkManager.VtepConfig> entry :
+                     vtepZkManager.getAll(ipAddrs).entrySet()) {
+                VTEP vtep = Converter.fromVtepConfig(entry.getValue());
+                vtep.setId(entry.getKey());
+                vteps.add(vtep);
             }
         }
 
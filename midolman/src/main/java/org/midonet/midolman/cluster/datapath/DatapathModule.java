@@ -21,6 +21,7 @@ import javax.inject.Singleton;
 import scala.collection.JavaConversions;
 import scala.collection.Seq$;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.PrivateModule;
@@ -228,7 +229,9 @@ public class DatapathModule extends PrivateModule {
                         config.datapath().globalIncomingBurstCapacity() * 2,
                         512, // Flow request size
                         injector.getInstance(NetlinkChannelFactory.class),
-                        NanoClock$.MODULE$.DEFAULT());
+                        NanoClock$.MODULE$.DEFAULT(),
+                        config.datapath().netlinkWriteBatchSize(),
+                        config.datapath().netlinkReadBatchSize());
                 }
             })
             .in(Singleton.class);
@@ -260,14 +263,19 @@ public class DatapathModule extends PrivateModule {
         @Inject
         TokenBucketPolicy tbPolicy;
 
+        @Inject
+        MetricRegistry metricRegistry;
+
         @Override
         public UpcallDatapathConnectionManager get() {
             String val = config.inputChannelThreading();
             switch (val) {
                 case "one_to_many":
-                    return new OneToManyDpConnManager(config, tbPolicy);
+                    return new OneToManyDpConnManager(config, tbPolicy,
+                                                      metricRegistry);
                 case "one_to_one":
-                    return new OneToOneDpConnManager(config, tbPolicy);
+                    return new OneToOneDpConnManager(config, tbPolicy,
+                                                     metricRegistry);
                 default:
                     throw new IllegalArgumentException(
                         "Unknown value for input_channel_threading: " + val);
@@ -35,6 +35,9 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
     private final static Logger log =
         LoggerFactory.getLogger(SelectorBasedDatapathConnection.class);
 
+    private final static int LARGE_BUFFER_SIZE = 64 * 1024;
+    private final static int LARGE_BUFFER_RATIO = 64;
+
     public final String name;
 
     private final MidolmanConfig config;
@@ -64,20 +67,40 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
                                            MidolmanConfig config,
                                            boolean singleThreaded,
                                            Bucket bucket) {
-        this(name, config, singleThreaded, bucket,
-             new BufferPool(config.datapath().sendBufferPoolInitialSize(),
-                            config.datapath().sendBufferPoolMaxSize(),
-                            config.datapath().sendBufferPoolBufSizeKb() * 1024));
+        this(name, config, singleThreaded, bucket, sendPool(config));
     }
 
     public SelectorBasedDatapathConnection(String name, MidolmanConfig config) {
         this(name, config, false, Bucket.BOTTOMLESS);
     }
 
+    /**
+     * Builds the send pool of a connection, with buffers of the configured
+     * size, and a large size class for the requests that don't fit in them,
+     * such as the execution of jumbo frames. The large class only holds one
+     * buffer for every LARGE_BUFFER_RATIO regular ones.
+     */
+    private static BufferPool sendPool(MidolmanConfig config) {
+        int minBuffers = config.datapath().sendBufferPoolInitialSize();
+        int maxBuffers = config.datapath().sendBufferPoolMaxSize();
+        int bufSize = config.datapath().sendBufferPoolBufSizeKb() * 1024;
+        if (bufSize >= LARGE_BUFFER_SIZE)
+            return new BufferPool(minBuffers, maxBuffers, bufSize);
+        return new BufferPool(
+            new int[] { minBuffers, minBuffers / LARGE_BUFFER_RATIO },
+            new int[] { maxBuffers,
+                        Math.max(1, maxBuffers / LARGE_BUFFER_RATIO) },
+            new int[] { bufSize, LARGE_BUFFER_SIZE });
+    }
+
     public OvsDatapathConnection getConnection() {
         return conn;
     }
 
+    public SelectLoop getReadLoop() {
+        return readLoop;
+    }
+
     @Override
     public void start() throws IOException, ExecutionException, InterruptedException {
         if (conn == null) {
@@ -23,28 +23,51 @@ import org.midonet.packets.IPv4Addr;
 import java.util.List;
 
 /**
- * TODO (galo) - transitional, wraps the legacy RoutesTrie implementation
- * into the new RoutingTableIfc interface. All classes depending on
- * RoutesTrie should be refactored to conform to the RoutesTrie interface.
+ * An IPv4 routing table, backed by a MultibitRoutingTable. The legacy
+ * RoutesTrie implementation is kept for the classes that still depend on it.
+ *
+ * The table is updated incrementally, and a snapshot of it can be taken in
+ * constant time for the readers that must not see the later updates.
  */
 public class IPv4RoutingTable implements RoutingTableIfc<IPv4Addr> {
 
-    private RoutingTable legacyTable = new RoutingTable();
+    private final MultibitRoutingTable table;
+
+    public IPv4RoutingTable() {
+        this(new MultibitRoutingTable());
+    }
+
+    private IPv4RoutingTable(MultibitRoutingTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns a copy of this table that is not affected by its later updates.
+     * The copy shares the structure of this table until either of them is
+     * updated.
+     */
+    public IPv4RoutingTable snapshot() {
+        return new IPv4RoutingTable(table.snapshot());
+    }
+
+    public int size() {
+        return table.size();
+    }
 
     public void addRoute(Route rt) {
-        legacyTable.addRoute(rt);
+        table.addRoute(rt);
     }
 
     public void deleteRoute(Route rt) {
-        legacyTable.deleteRoute(rt);
+        table.deleteRoute(rt);
     }
 
     public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
-        return legacyTable.lookup(src.toInt(), dst.toInt());
+        return table.lookup(src.toInt(), dst.toInt());
     }
 
     public List<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
-        return legacyTable.lookup(src.toInt(), dst.toInt(), logger);
+        return table.lookup(src.toInt(), dst.toInt(), logger);
     }
 
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3;
+
+import java.util.UUID;
+
+import com.google.common.base.Objects;
+
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
+
+/**
+ * A route whose source and destination prefixes are IPv6 subnets. The IPv4
+ * addresses and prefix lengths inherited from Route are left unset.
+ */
+public class IPv6Route extends Route {
+
+    private static final long serialVersionUID = 4106413512470208351L;
+
+    public IPv6Subnet srcSubnet;
+    public IPv6Subnet dstSubnet;
+    public IPv6Addr nextHopGateway6;
+
+    public IPv6Route(IPv6Subnet srcSubnet, IPv6Subnet dstSubnet,
+                     NextHop nextHop, UUID nextHopPort,
+                     IPv6Addr nextHopGateway, int weight, UUID routerId) {
+        super(0, 0, 0, 0, nextHop, nextHopPort, NO_GATEWAY, weight, null,
+              routerId);
+        this.srcSubnet = srcSubnet;
+        this.dstSubnet = dstSubnet;
+        this.nextHopGateway6 = nextHopGateway;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) return false;
+        final IPv6Route rt = (IPv6Route) obj;
+        return Objects.equal(srcSubnet, rt.srcSubnet)
+               && Objects.equal(dstSubnet, rt.dstSubnet)
+               && Objects.equal(nextHopGateway6, rt.nextHopGateway6);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(super.hashCode(), srcSubnet, dstSubnet,
+                                nextHopGateway6);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(srcSubnet).append(",");
+        sb.append(dstSubnet).append(",");
+        if (learned)
+            sb.append("learned,");
+        if (null != nextHop)
+            sb.append(nextHop.toString());
+        sb.append(",");
+        if (null != nextHopPort)
+            sb.append(nextHopPort.toString());
+        sb.append(",");
+        sb.append(nextHopGateway6).append(",");
+        sb.append(weight).append(",");
+        if (null != attributes)
+            sb.append(attributes);
+        if (null != routerId)
+            sb.append(routerId);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv6Addr;
+
+/**
+ * An IPv6 routing table of IPv6Routes, with the same lookup semantics as the
+ * IPv4RoutingTable: the routes of the longest destination prefix that match
+ * the source address, and among those the ones with the minimum weight.
+ *
+ * Like the MultibitRoutingTable, it finds the longest matching prefix through
+ * a multibit trie with a stride of 8 bits, here up to sixteen levels deep, in
+ * which every prefix is expanded over the slots it covers in its node. Each
+ * prefix caches the result of a lookup when none of its routes restricts the
+ * source address, so that such lookups allocate nothing.
+ */
+public class IPv6RoutingTable implements RoutingTableIfc<IPv6Addr> {
+
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    private static final int STRIDE = 8;
+    private static final int SLOTS = 1 << STRIDE;
+    private static final int LEVELS = 128 / STRIDE;
+
+    private static final class Prefix {
+        final long upper;
+        final long lower;
+        final int length;
+        final ArrayList<IPv6Route> routes = new ArrayList<>(1);
+        /* The routes with the minimum weight, if no route restricts the
+         * source address, null otherwise. */
+        List<Route> anySource;
+
+        Prefix(long upper, long lower, int length) {
+            this.upper = upper;
+            this.lower = lower;
+            this.length = length;
+        }
+
+        void update() {
+            int minWeight = Integer.MAX_VALUE;
+            List<Route> best = new ArrayList<>(1);
+            for (IPv6Route rt : routes) {
+                if (rt.srcSubnet.getPrefixLen() != 0) {
+                    anySource = null;
+                    return;
+                }
+                if (rt.weight < minWeight) {
+                    best.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    best.add(rt);
+            }
+            anySource = Collections.unmodifiableList(best);
+        }
+
+        List<Route> select(IPv6Addr src) {
+            if (anySource != null)
+                return anySource;
+            List<Route> best = new ArrayList<>(1);
+            int minWeight = Integer.MAX_VALUE;
+            // Filter out the routes that don't match the source address and
+            // return only those with the minimum weight.
+            for (IPv6Route rt : routes) {
+                if (rt.srcSubnet.containsAddress(src)) {
+                    if (rt.weight < minWeight) {
+                        best.clear();
+                        minWeight = rt.weight;
+                    }
+                    if (rt.weight == minWeight)
+                        best.add(rt);
+                }
+            }
+            return best;
+        }
+    }
+
+    private static final class Node {
+        final Prefix[] prefixes = new Prefix[SLOTS];
+        Node[] children;
+        int numPrefixes;
+        int numChildren;
+
+        boolean isEmpty() {
+            return numPrefixes == 0 && numChildren == 0;
+        }
+    }
+
+    private final Node root = new Node();
+    /* The prefixes by length, keyed by their address, used to find the
+     * prefixes hidden in the trie by longer ones. */
+    @SuppressWarnings("unchecked")
+    private final HashMap<IPv6Addr, Prefix>[] prefixesByLength =
+        new HashMap[129];
+    private int numRoutes = 0;
+
+    public int size() {
+        return numRoutes;
+    }
+
+    /**
+     * Adds a route to the table.
+     * @throws IllegalArgumentException if the route is not an IPv6Route
+     */
+    @Override
+    public void addRoute(Route route) {
+        log.debug("addRoute: {}", route);
+        IPv6Route rt = ipv6Route(route);
+        int length = rt.dstSubnet.getPrefixLen();
+        IPv6Addr addr = network(rt.dstSubnet.getAddress(), length);
+        HashMap<IPv6Addr, Prefix> prefixes = prefixesByLength[length];
+        if (prefixes == null)
+            prefixes = prefixesByLength[length] = new HashMap<>();
+        Prefix prefix = prefixes.get(addr);
+        if (prefix == null) {
+            prefix = new Prefix(addr.upperWord(), addr.lowerWord(), length);
+            prefixes.put(addr, prefix);
+            insert(prefix);
+        } else if (prefix.routes.contains(rt)) {
+            return;
+        }
+        prefix.routes.add(rt);
+        prefix.update();
+        numRoutes++;
+    }
+
+    @Override
+    public void deleteRoute(Route route) {
+        log.debug("deleteRoute: {}", route);
+        IPv6Route rt = ipv6Route(route);
+        int length = rt.dstSubnet.getPrefixLen();
+        IPv6Addr addr = network(rt.dstSubnet.getAddress(), length);
+        HashMap<IPv6Addr, Prefix> prefixes = prefixesByLength[length];
+        Prefix prefix = prefixes != null ? prefixes.get(addr) : null;
+        if (prefix == null || !prefix.routes.remove(rt))
+            return;
+        numRoutes--;
+        if (prefix.routes.isEmpty()) {
+            prefixes.remove(addr);
+            remove(prefix);
+        } else {
+            prefix.update();
+        }
+    }
+
+    @Override
+    public List<Route> lookup(IPv6Addr src, IPv6Addr dst) {
+        return lookup(src, dst, log);
+    }
+
+    @Override
+    public List<Route> lookup(IPv6Addr src, IPv6Addr dst, Logger logger) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("lookup: src %s dst %s in table with %d routes",
+                                       src, dst, numRoutes));
+        }
+
+        List<Route> ret = Collections.emptyList();
+        Prefix prefix = longestMatch(dst.upperWord(), dst.lowerWord());
+        while (prefix != null) {
+            ret = prefix.select(src);
+            if (!ret.isEmpty())
+                break;
+            prefix = longestMatch(dst, prefix.length - 1);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("lookup: return %s for src %s dst %s",
+                                       ret.toString(), src, dst));
+        }
+
+        return ret;
+    }
+
+    private static IPv6Route ipv6Route(Route route) {
+        if (!(route instanceof IPv6Route))
+            throw new IllegalArgumentException("Not an IPv6 route: " + route);
+        return (IPv6Route) route;
+    }
+
+    /* Walks the trie, keeping the last prefix found along the way. */
+    private Prefix longestMatch(long upper, long lower) {
+        Prefix best = null;
+        Node node = root;
+        for (int level = 0; node != null; level++) {
+            int slot = slot(upper, lower, level);
+            Prefix prefix = node.prefixes[slot];
+            if (prefix != null)
+                best = prefix;
+            node = node.children != null ? node.children[slot] : null;
+        }
+        return best;
+    }
+
+    /* Finds the longest prefix covering an address whose length is at most
+     * the specified one. The trie only references the longest prefix of a
+     * node covering each slot, so this looks up the prefixes by length. */
+    private Prefix longestMatch(IPv6Addr dst, int maxLength) {
+        for (int length = maxLength; length >= 0; length--) {
+            HashMap<IPv6Addr, Prefix> prefixes = prefixesByLength[length];
+            if (prefixes != null && !prefixes.isEmpty()) {
+                Prefix prefix = prefixes.get(network(dst, length));
+                if (prefix != null)
+                    return prefix;
+            }
+        }
+        return null;
+    }
+
+    private void insert(Prefix prefix) {
+        int level = level(prefix.length);
+        Node node = root;
+        for (int l = 0; l < level; l++) {
+            int slot = slot(prefix.upper, prefix.lower, l);
+            if (node.children == null)
+                node.children = new Node[SLOTS];
+            Node child = node.children[slot];
+            if (child == null) {
+                child = node.children[slot] = new Node();
+                node.numChildren++;
+            }
+            node = child;
+        }
+
+        // Expand the prefix over the slots it covers, except those already
+        // covered by a longer prefix.
+        int first = slot(prefix.upper, prefix.lower, level);
+        int last = first + span(prefix.length, level);
+        for (int slot = first; slot < last; slot++) {
+            Prefix current = node.prefixes[slot];
+            if (current == null || current.length < prefix.length)
+                node.prefixes[slot] = prefix;
+        }
+        node.numPrefixes++;
+    }
+
+    private void remove(Prefix prefix) {
+        int level = level(prefix.length);
+        Node[] path = new Node[LEVELS];
+        Node node = root;
+        for (int l = 0; l < level; l++) {
+            path[l] = node;
+            node = node.children[slot(prefix.upper, prefix.lower, l)];
+        }
+
+        // The slots referencing the prefix are now covered by the next
+        // shorter prefix stored in the same node, if any.
+        Prefix replacement = null;
+        if (prefix.length > 0) {
+            replacement = longestMatch(
+                IPv6Addr.fromLong(prefix.upper, prefix.lower),
+                prefix.length - 1);
+            if (replacement != null && level > 0 &&
+                replacement.length <= level * STRIDE)
+                replacement = null;
+        }
+        int first = slot(prefix.upper, prefix.lower, level);
+        int last = first + span(prefix.length, level);
+        for (int slot = first; slot < last; slot++) {
+            if (node.prefixes[slot] == prefix)
+                node.prefixes[slot] = replacement;
+        }
+        node.numPrefixes--;
+
+        // Release the nodes left empty.
+        for (int l = level - 1; l >= 0 && node.isEmpty(); l--) {
+            Node parent = path[l];
+            parent.children[slot(prefix.upper, prefix.lower, l)] = null;
+            if (--parent.numChildren == 0)
+                parent.children = null;
+            node = parent;
+        }
+    }
+
+    private static int level(int length) {
+        return length == 0 ? 0 : (length - 1) / STRIDE;
+    }
+
+    private static int slot(long upper, long lower, int level) {
+        int shift = 64 - STRIDE * (level + 1);
+        return (int) ((shift >= 0 ? upper >>> shift : lower >>> (shift + 64))
+                      & (SLOTS - 1));
+    }
+
+    /* The number of slots covered by a prefix in the node at a level. */
+    private static int span(int length, int level) {
+        return 1 << (STRIDE * (level + 1) - length);
+    }
+
+    private static IPv6Addr network(IPv6Addr addr, int length) {
+        long upperMask = length == 0 ? 0L
+                         : length >= 64 ? ~0L : ~0L << (64 - length);
+        long lowerMask = length <= 64 ? 0L : ~0L << (128 - length);
+        return IPv6Addr.fromLong(addr.upperWord() & upperMask,
+                                 addr.lowerWord() & lowerMask);
+    }
+
+    @Override
+    public String toString() {
+        return "IPv6RoutingTable [numRoutes=" + numRoutes + "]";
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+
+/**
+ * An IPv4 routing table that finds the longest matching destination prefix
+ * through a multibit trie with a stride of 8 bits.
+ *
+ * The trie has at most four levels of nodes with 256 slots each, where level
+ * k consumes the k-th byte of the destination address. A prefix of length L
+ * is stored in the node at level (L - 1) / 8 (the default route in the root),
+ * expanded over all the slots it covers there, and each slot references the
+ * longest prefix stored in its node that covers it. A lookup therefore reads
+ * at most four slots, keeping the last prefix it finds, which makes its cost
+ * independent of the number of routes and of the depth of the prefixes.
+ *
+ * Routes are grouped by destination prefix. Each prefix caches the result of
+ * a lookup for the common case where none of its routes restricts the source
+ * address: the immutable list of its routes with the minimum weight. Looking
+ * up such a prefix allocates nothing. Otherwise the routes are filtered by
+ * the source address as in the RoutingTable, and if none matches the lookup
+ * falls back to the next shorter prefix covering the destination.
+ *
+ * Routes can be added and deleted incrementally: an update only rewrites the
+ * slots covered by the prefix in a single node. The trie is persistent: a
+ * snapshot of the table is taken in constant time and shares all its nodes
+ * with the table. The nodes and prefixes are owned by the version of the
+ * table that created them, and an update copies those along the path of the
+ * prefix that the table doesn't own before modifying them. So updating a
+ * table after taking a snapshot costs a few node copies, and the updates that
+ * follow modify the copies in place until the next snapshot.
+ *
+ * Lookups may be performed concurrently on a snapshot, or on a table that is
+ * no longer modified, while the table it was taken from keeps being updated.
+ * The lists returned by lookups must not be modified.
+ */
+final class MultibitRoutingTable {
+
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    private static final int STRIDE = 8;
+    private static final int SLOTS = 1 << STRIDE;
+    private static final int LEVELS = 32 / STRIDE;
+
+    /**
+     * The routes sharing a destination prefix.
+     */
+    private static final class Prefix {
+        final int addr;
+        final int length;
+        final Object owner;
+        final ArrayList<Route> routes;
+        /* The routes with the minimum weight, if no route restricts the
+         * source address, null otherwise. */
+        List<Route> anySource;
+
+        Prefix(int addr, int length, Object owner, ArrayList<Route> routes) {
+            this.addr = addr;
+            this.length = length;
+            this.owner = owner;
+            this.routes = routes;
+        }
+
+        Prefix copy(Object owner) {
+            Prefix prefix = new Prefix(addr, length, owner,
+                                       new ArrayList<>(routes));
+            prefix.anySource = anySource;
+            return prefix;
+        }
+
+        boolean covers(int addr, int maxLength) {
+            return length <= maxLength &&
+                   ((addr ^ this.addr) & mask(length)) == 0;
+        }
+
+        void update() {
+            int minWeight = Integer.MAX_VALUE;
+            List<Route> best = new ArrayList<>(1);
+            for (Route rt : routes) {
+                if (rt.srcNetworkLength != 0) {
+                    anySource = null;
+                    return;
+                }
+                if (rt.weight < minWeight) {
+                    best.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    best.add(rt);
+            }
+            anySource = Collections.unmodifiableList(best);
+        }
+
+        List<Route> select(int src) {
+            if (anySource != null)
+                return anySource;
+            List<Route> best = new ArrayList<>(1);
+            int minWeight = Integer.MAX_VALUE;
+            // Filter out the routes that don't match the source address and
+            // return only those with the minimum weight.
+            for (Route rt : routes) {
+                if (IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                         rt.srcNetworkLength)) {
+                    if (rt.weight < minWeight) {
+                        best.clear();
+                        minWeight = rt.weight;
+                    }
+                    if (rt.weight == minWeight)
+                        best.add(rt);
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            return IPv4Addr.intToString(addr) + "/" + length + " " + routes;
+        }
+    }
+
+    private static final class Node {
+        final Object owner;
+        final Prefix[] slots;
+        /* The prefixes stored in this node, including those hidden in the
+         * slots by longer ones. */
+        Prefix[] prefixes;
+        Node[] children;
+        int numPrefixes;
+        int numChildren;
+
+        Node(Object owner) {
+            this.owner = owner;
+            this.slots = new Prefix[SLOTS];
+            this.prefixes = new Prefix[2];
+        }
+
+        private Node(Object owner, Node node) {
+            this.owner = owner;
+            this.slots = node.slots.clone();
+            this.prefixes = node.prefixes.clone();
+            this.children = node.children != null ? node.children.clone()
+                                                  : null;
+            this.numPrefixes = node.numPrefixes;
+            this.numChildren = node.numChildren;
+        }
+
+        Node copy(Object owner) {
+            return new Node(owner, this);
+        }
+
+        boolean isEmpty() {
+            return numPrefixes == 0 && numChildren == 0;
+        }
+
+        Prefix find(int addr, int length) {
+            for (int i = 0; i < numPrefixes; i++) {
+                Prefix prefix = prefixes[i];
+                if (prefix.length == length && prefix.addr == addr)
+                    return prefix;
+            }
+            return null;
+        }
+
+        /* The longest prefix in this node covering an address whose length
+         * is at most the specified one. */
+        Prefix longest(int addr, int maxLength) {
+            Prefix best = null;
+            for (int i = 0; i < numPrefixes; i++) {
+                Prefix prefix = prefixes[i];
+                if (prefix.covers(addr, maxLength) &&
+                    (best == null || prefix.length > best.length))
+                    best = prefix;
+            }
+            return best;
+        }
+
+        void add(Prefix prefix) {
+            if (numPrefixes == prefixes.length)
+                prefixes = Arrays.copyOf(prefixes, 2 * numPrefixes);
+            prefixes[numPrefixes++] = prefix;
+        }
+
+        void replace(Prefix prefix, Prefix replacement) {
+            for (int i = 0; i < numPrefixes; i++) {
+                if (prefixes[i] == prefix) {
+                    if (replacement != null) {
+                        prefixes[i] = replacement;
+                    } else {
+                        prefixes[i] = prefixes[--numPrefixes];
+                        prefixes[numPrefixes] = null;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /* The version of the table owning the nodes and prefixes it can modify
+     * in place. */
+    private Object edit;
+    private Node root;
+    private int numRoutes;
+
+    MultibitRoutingTable() {
+        edit = new Object();
+        root = new Node(edit);
+    }
+
+    private MultibitRoutingTable(Node root, int numRoutes) {
+        this.edit = new Object();
+        this.root = root;
+        this.numRoutes = numRoutes;
+    }
+
+    int size() {
+        return numRoutes;
+    }
+
+    /**
+     * Returns a table with the current routes of this one, which is not
+     * affected by the later updates of this table.
+     */
+    MultibitRoutingTable snapshot() {
+        edit = new Object();
+        return new MultibitRoutingTable(root, numRoutes);
+    }
+
+    void addRoute(Route rt) {
+        log.debug("addRoute: {}", rt);
+        int length = rt.dstNetworkLength;
+        int addr = rt.dstNetworkAddr & mask(length);
+        Prefix prefix = find(addr, length);
+        if (prefix != null && prefix.routes.contains(rt))
+            return;
+
+        int level = level(length);
+        Node node = editableNode(addr, level, null);
+        if (prefix == null) {
+            prefix = new Prefix(addr, length, edit, new ArrayList<Route>(1));
+            insert(node, level, prefix);
+        } else {
+            prefix = editablePrefix(node, level, prefix);
+        }
+        prefix.routes.add(rt);
+        prefix.update();
+        numRoutes++;
+    }
+
+    void deleteRoute(Route rt) {
+        log.debug("deleteRoute: {}", rt);
+        int length = rt.dstNetworkLength;
+        int addr = rt.dstNetworkAddr & mask(length);
+        Prefix prefix = find(addr, length);
+        if (prefix == null || !prefix.routes.contains(rt))
+            return;
+
+        int level = level(length);
+        Node[] path = new Node[LEVELS];
+        Node node = editableNode(addr, level, path);
+        if (prefix.routes.size() == 1) {
+            remove(node, level, path, prefix);
+        } else {
+            prefix = editablePrefix(node, level, prefix);
+            prefix.routes.remove(rt);
+            prefix.update();
+        }
+        numRoutes--;
+    }
+
+    List<Route> lookup(int src, int dst) {
+        return lookup(src, dst, log);
+    }
+
+    List<Route> lookup(int src, int dst, Logger logger) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("lookup: src %s dst %s in table with %d routes",
+                                       IPv4Addr.intToString(src),
+                                       IPv4Addr.intToString(dst),
+                                       numRoutes));
+        }
+
+        List<Route> ret = Collections.emptyList();
+        Prefix prefix = longestMatch(dst);
+        while (prefix != null) {
+            ret = prefix.select(src);
+            if (!ret.isEmpty())
+                break;
+            prefix = longestMatch(dst, prefix.length - 1);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("lookup: return %s for src %s dst %s",
+                                       ret.toString(),
+                                       IPv4Addr.intToString(src),
+                                       IPv4Addr.intToString(dst)));
+        }
+
+        return ret;
+    }
+
+    /* Walks the trie, keeping the last prefix found along the way. */
+    private Prefix longestMatch(int dst) {
+        Prefix best = null;
+        Node node = root;
+        for (int level = 0; node != null; level++) {
+            int slot = slot(dst, level);
+            Prefix prefix = node.slots[slot];
+            if (prefix != null)
+                best = prefix;
+            node = node.children != null ? node.children[slot] : null;
+        }
+        return best;
+    }
+
+    /* Finds the longest prefix covering an address whose length is at most
+     * the specified one. The slots only reference the longest prefix of a
+     * node covering them, so this looks at the prefixes stored in the nodes
+     * along the path of the address, from the deepest one. */
+    private Prefix longestMatch(int dst, int maxLength) {
+        if (maxLength < 0)
+            return null;
+        for (int level = level(maxLength); level >= 0; level--) {
+            Node node = nodeAt(dst, level);
+            Prefix prefix = node != null ? node.longest(dst, maxLength) : null;
+            if (prefix != null)
+                return prefix;
+        }
+        return null;
+    }
+
+    private Prefix find(int addr, int length) {
+        Node node = nodeAt(addr, level(length));
+        return node != null ? node.find(addr, length) : null;
+    }
+
+    private Node nodeAt(int addr, int level) {
+        Node node = root;
+        for (int l = 0; l < level && node != null; l++)
+            node = node.children != null ? node.children[slot(addr, l)] : null;
+        return node;
+    }
+
+    /* Returns the node at the specified level along the path of an address,
+     * copying the nodes on the path that this table doesn't own and creating
+     * the missing ones. Records the parent nodes in the path, if any. */
+    private Node editableNode(int addr, int level, Node[] path) {
+        root = editable(root);
+        Node node = root;
+        for (int l = 0; l < level; l++) {
+            if (path != null)
+                path[l] = node;
+            int slot = slot(addr, l);
+            if (node.children == null)
+                node.children = new Node[SLOTS];
+            Node child = node.children[slot];
+            if (child == null) {
+                child = new Node(edit);
+                node.numChildren++;
+            } else {
+                child = editable(child);
+            }
+            node.children[slot] = child;
+            node = child;
+        }
+        return node;
+    }
+
+    private Node editable(Node node) {
+        return node.owner == edit ? node : node.copy(edit);
+    }
+
+    /* Returns a prefix of the specified editable node that this table can
+     * modify, replacing the prefix with a copy if the table doesn't own it. */
+    private Prefix editablePrefix(Node node, int level, Prefix prefix) {
+        if (prefix.owner == edit)
+            return prefix;
+        Prefix copy = prefix.copy(edit);
+        node.replace(prefix, copy);
+        int first = slot(prefix.addr, level);
+        int last = first + span(prefix.length, level);
+        for (int slot = first; slot < last; slot++) {
+            if (node.slots[slot] == prefix)
+                node.slots[slot] = copy;
+        }
+        return copy;
+    }
+
+    private void insert(Node node, int level, Prefix prefix) {
+        // Expand the prefix over the slots it covers, except those already
+        // covered by a longer prefix.
+        int first = slot(prefix.addr, level);
+        int last = first + span(prefix.length, level);
+        for (int slot = first; slot < last; slot++) {
+            Prefix current = node.slots[slot];
+            if (current == null || current.length < prefix.length)
+                node.slots[slot] = prefix;
+        }
+        node.add(prefix);
+    }
+
+    private void remove(Node node, int level, Node[] path, Prefix prefix) {
+        node.replace(prefix, null);
+
+        // The slots referencing the prefix are now covered by the next
+        // shorter prefix stored in the same node, if any.
+        Prefix replacement = node.longest(prefix.addr, prefix.length - 1);
+        int first = slot(prefix.addr, level);
+        int last = first + span(prefix.length, level);
+        for (int slot = first; slot < last; slot++) {
+            if (node.slots[slot] == prefix)
+                node.slots[slot] = replacement;
+        }
+
+        // Release the nodes left empty.
+        for (int l = level - 1; l >= 0 && node.isEmpty(); l--) {
+            Node parent = path[l];
+            parent.children[slot(prefix.addr, l)] = null;
+            if (--parent.numChildren == 0)
+                parent.children = null;
+            node = parent;
+        }
+    }
+
+    private static int level(int length) {
+        return length == 0 ? 0 : (length - 1) / STRIDE;
+    }
+
+    private static int slot(int addr, int level) {
+        return (addr >>> (32 - STRIDE * (level + 1))) & (SLOTS - 1);
+    }
+
+    /* The number of slots covered by a prefix in the node at a level. */
+    private static int span(int length, int level) {
+        return 1 << (STRIDE * (level + 1) - length);
+    }
+
+    private static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    @Override
+    public String toString() {
+        return "MultibitRoutingTable [numRoutes=" + numRoutes + "]";
+    }
+}
@@ -174,10 +174,10 @@ public class Route extends ZoomObject implements Serializable {
     }
 
     @Override
-    public final boolean equals(Object obj) {
+    public boolean equals(Object obj) {
         if (obj == this) return true;
         if (obj == null) return false;
-        if (!(obj instanceof Route)) return false;
+        if (obj.getClass() != getClass()) return false;
         final Route rt = (Route) obj;
         return (Objects.equal(this.srcNetworkAddr, rt.srcNetworkAddr)
                 && Objects.equal(this.learned, rt.learned)
@@ -17,7 +17,6 @@ package org.midonet.midolman.simulation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -28,6 +27,7 @@ import scala.collection.Map;
 import com.google.common.annotations.VisibleForTesting;
 
 import org.midonet.midolman.rules.JumpRule;
+import org.midonet.midolman.rules.NatRule;
 import org.midonet.midolman.rules.Rule;
 import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.rules.RuleResult.Action;
@@ -38,6 +38,7 @@ import static org.midonet.midolman.topology.VirtualTopology.VirtualDevice;
 public class Chain implements VirtualDevice {
     public final UUID id;
     private final List<Rule> rules;
+    private final ChainClassifier classifier;
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
@@ -46,6 +47,7 @@ public class Chain implements VirtualDevice {
                  String name) {
         this.id = id;
         this.rules = new ArrayList<>(rules);
+        this.classifier = ChainClassifier.compile(this.rules);
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
@@ -106,12 +108,22 @@ public class Chain implements VirtualDevice {
         context.addFlowTag(flowInvTag);
         traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
+        // Rules that the classifier rules out are still traversed, but
+        // their conditions aren't evaluated.
+        int numRules = rules.size();
+        ChainClassifier.Selection candidates =
+            classifier != null && classifier.size() == numRules
+                ? classifier.select(context.wcmatch()) : null;
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
-
-            Rule r = iter.next();
-            r.process(context, res, ownerId, isPortFilter);
+        for (int i = 0; i < numRules && res.action == Action.CONTINUE; i++) {
+
+            Rule r = rules.get(i);
+            if (candidates == null || candidates.mayMatch(i, context)) {
+                r.process(context, res, ownerId, isPortFilter);
+                // NAT rules may have modified the match
+                if (candidates != null && r instanceof NatRule)
+                    candidates.reselect(context.wcmatch());
+            }
 
             context.recordTraversedRule(r.id, res);
 
@@ -133,10 +145,15 @@ public class Chain implements VirtualDevice {
                                     res, depth + 1, traversedChains);
                     if (res.action == Action.RETURN)
                         res.action = Action.CONTINUE;
+                    if (candidates != null)
+                        candidates.reselect(context.wcmatch());
                 }
             }
         }
 
+        if (candidates != null)
+            candidates.markSeenFields(context.wcmatch());
+
         assert res.action != Action.JUMP;
     }
 
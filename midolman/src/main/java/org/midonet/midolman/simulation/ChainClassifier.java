@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.midonet.midolman.rules.Condition;
+import org.midonet.midolman.rules.Rule;
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.FlowMatch.Field;
+import org.midonet.packets.Unsigned;
+import org.midonet.util.Range;
+
+/**
+ * A compiled form of the rules of a chain, used to skip the evaluation of
+ * rules that cannot match a packet.
+ *
+ * For each of the fields it classifies on (ethertype, network protocol and
+ * transport source and destination ports), the classifier holds, for every
+ * possible value of the field, the set of rules whose condition may match a
+ * packet with that value. Rules that do not constrain a field, or that
+ * constrain it through an inverted match, belong to every set of that field.
+ * A rule is a candidate for a packet when it belongs to the sets selected by
+ * the packet's values of all four fields, and only candidates need to have
+ * their condition evaluated. Rules are still visited in order, so the
+ * first-match and jump semantics of the chain are preserved.
+ *
+ * Skipping a rule must leave the same traces as evaluating its condition
+ * would. Looking up the sets does not mark the fields as seen in the packet's
+ * match: instead, for each skipped rule, the selection marks the fields that
+ * Condition.matches() would have read before failing, so that the wildcarded
+ * flows resulting from the simulation are the same as without the classifier.
+ * Likewise, skipping a rule that matches on the flow direction still queries
+ * the connection tracking state of the packet, which starts tracking it.
+ */
+final class ChainClassifier {
+
+    /* Chains with fewer rules are evaluated rule by rule. */
+    static final int MIN_RULES = 8;
+
+    /* The order in which Condition.matches() checks the classified fields,
+     * which determines the fields it reads before failing on one of them. */
+    private static final int ETHER_TYPE = 1;
+    private static final int NW_PROTO = 2;
+    private static final int TP_SRC = 3;
+    private static final int TP_DST = 4;
+
+    private final ExactIndex etherTypes;
+    private final ExactIndex nwProtos;
+    private final RangeIndex tpSrcs;
+    private final RangeIndex tpDsts;
+    /* The conditions that match on the flow direction, by rule. */
+    private final Condition[] directionConditions;
+
+    private ChainClassifier(ExactIndex etherTypes, ExactIndex nwProtos,
+                            RangeIndex tpSrcs, RangeIndex tpDsts,
+                            Condition[] directionConditions) {
+        this.etherTypes = etherTypes;
+        this.nwProtos = nwProtos;
+        this.tpSrcs = tpSrcs;
+        this.tpDsts = tpDsts;
+        this.directionConditions = directionConditions;
+    }
+
+    /**
+     * The number of rules this classifier was compiled for.
+     */
+    int size() {
+        return directionConditions.length;
+    }
+
+    /**
+     * Compiles the rules of a chain. Returns null if the chain is too small,
+     * or its rules not selective enough, for the classifier to pay off.
+     */
+    static ChainClassifier compile(List<Rule> rules) {
+        int numRules = rules.size();
+        if (numRules < MIN_RULES)
+            return null;
+
+        Integer[] etherTypes = new Integer[numRules];
+        Integer[] nwProtos = new Integer[numRules];
+        int[][] tpSrcs = new int[numRules][];
+        int[][] tpDsts = new int[numRules][];
+        Condition[] directionConditions = new Condition[numRules];
+        boolean selective = false;
+        for (int i = 0; i < numRules; i++) {
+            Condition cond = rules.get(i).getCondition();
+            if (cond != null && (cond.matchForwardFlow || cond.matchReturnFlow))
+                directionConditions[i] = cond;
+            // The conjunction of an inverted condition is not a necessary
+            // condition for a match, and neither is any inverted field.
+            if (cond == null || cond.getClass() != Condition.class ||
+                cond.conjunctionInv)
+                continue;
+            if (cond.etherType != null && !cond.invDlType)
+                etherTypes[i] = cond.etherType;
+            if (cond.nwProto != null && !cond.nwProtoInv)
+                nwProtos[i] = cond.nwProto.intValue();
+            if (cond.tpSrc != null && !cond.tpSrcInv)
+                tpSrcs[i] = bounds(cond.tpSrc);
+            if (cond.tpDst != null && !cond.tpDstInv)
+                tpDsts[i] = bounds(cond.tpDst);
+            selective |= etherTypes[i] != null || nwProtos[i] != null ||
+                         tpSrcs[i] != null || tpDsts[i] != null;
+        }
+
+        return selective ? new ChainClassifier(new ExactIndex(etherTypes),
+                                               new ExactIndex(nwProtos),
+                                               new RangeIndex(tpSrcs),
+                                               new RangeIndex(tpDsts),
+                                               directionConditions)
+                         : null;
+    }
+
+    private static int[] bounds(Range<Integer> range) {
+        return new int[] {
+            range.start() != null ? range.start() : Integer.MIN_VALUE,
+            range.end() != null ? range.end() : Integer.MAX_VALUE
+        };
+    }
+
+    /**
+     * Selects the candidate rules for the specified match.
+     */
+    Selection select(FlowMatch match) {
+        Selection selection = new Selection();
+        selection.reselect(match);
+        return selection;
+    }
+
+    /**
+     * The candidate rules of a chain for the current values of a match.
+     * A selection is confined to the thread simulating the packet.
+     */
+    final class Selection {
+        private long[] etherTypeRules;
+        private long[] nwProtoRules;
+        private long[] tpSrcRules;
+        private long[] tpDstRules;
+        private int skippedUpTo = 0;
+
+        /**
+         * Selects the candidate rules again, after the match may have been
+         * modified by a rule.
+         */
+        void reselect(FlowMatch match) {
+            long seen = match.getSeenFields();
+            etherTypeRules = etherTypes.get(Unsigned.unsign(match.getEtherType()));
+            nwProtoRules = nwProtos.get(match.getNetworkProto());
+            tpSrcRules = tpSrcs.get(match.getSrcPort());
+            tpDstRules = tpDsts.get(match.getDstPort());
+            unsee(match, seen, Field.EtherType);
+            unsee(match, seen, Field.NetworkProto);
+            unsee(match, seen, Field.SrcPort);
+            unsee(match, seen, Field.DstPort);
+        }
+
+        /**
+         * Returns whether the rule at the specified position may match. If
+         * it can't, its condition need not be evaluated.
+         */
+        boolean mayMatch(int rule, PacketContext context) {
+            int failsAt = !contains(etherTypeRules, rule) ? ETHER_TYPE :
+                          !contains(nwProtoRules, rule) ? NW_PROTO :
+                          !contains(tpSrcRules, rule) ? TP_SRC :
+                          !contains(tpDstRules, rule) ? TP_DST : 0;
+            if (failsAt == 0)
+                return true;
+            if (failsAt > skippedUpTo)
+                skippedUpTo = failsAt;
+            Condition cond = directionConditions[rule];
+            if (cond != null && cond.fragmentPolicy.accepts(
+                    context.wcmatch().getIpFragmentType()))
+                context.isForwardFlow();
+            return false;
+        }
+
+        /**
+         * Marks as seen the fields that evaluating the conditions of the
+         * skipped rules would have read.
+         */
+        void markSeenFields(FlowMatch match) {
+            if (skippedUpTo >= ETHER_TYPE) {
+                match.getIpFragmentType();
+                match.getNetworkSrcIP();
+                match.getNetworkDstIP();
+                match.getEtherType();
+            }
+            if (skippedUpTo >= NW_PROTO) {
+                match.getEthSrc();
+                match.getEthDst();
+                match.getNetworkTOS();
+                match.getNetworkProto();
+            }
+            if (skippedUpTo >= TP_SRC)
+                match.getSrcPort();
+            if (skippedUpTo >= TP_DST)
+                match.getDstPort();
+        }
+    }
+
+    private static void unsee(FlowMatch match, long seen, Field field) {
+        if ((seen & (1L << field.ordinal())) == 0)
+            match.fieldUnseen(field);
+    }
+
+    private static boolean contains(long[] set, int rule) {
+        return (set[rule >>> 6] & (1L << rule)) != 0;
+    }
+
+    private static void add(long[] set, int rule) {
+        set[rule >>> 6] |= 1L << rule;
+    }
+
+    /**
+     * Maps the values of a field that rules match exactly to the set of
+     * rules that may match that value.
+     */
+    private static final class ExactIndex {
+        private final int[] values;
+        private final long[][] rules;
+        private final long[] anyValue;
+
+        ExactIndex(Integer[] ruleValues) {
+            int words = (ruleValues.length + 63) >>> 6;
+            anyValue = new long[words];
+            TreeSet<Integer> distinct = new TreeSet<>();
+            for (int i = 0; i < ruleValues.length; i++) {
+                if (ruleValues[i] == null)
+                    add(anyValue, i);
+                else
+                    distinct.add(ruleValues[i]);
+            }
+
+            values = new int[distinct.size()];
+            rules = new long[distinct.size()][];
+            int j = 0;
+            for (Integer value : distinct) {
+                values[j] = value;
+                rules[j] = Arrays.copyOf(anyValue, words);
+                for (int i = 0; i < ruleValues.length; i++) {
+                    if (value.equals(ruleValues[i]))
+                        add(rules[j], i);
+                }
+                j++;
+            }
+        }
+
+        long[] get(int value) {
+            int j = Arrays.binarySearch(values, value);
+            return j >= 0 ? rules[j] : anyValue;
+        }
+    }
+
+    /**
+     * Divides the values of a field that rules match by range into the
+     * elementary intervals delimited by the bounds of the ranges, and maps
+     * each interval to the set of rules that may match values inside it.
+     */
+    private static final class RangeIndex {
+        private final int[] starts;
+        private final long[][] rules;
+
+        RangeIndex(int[][] ruleRanges) {
+            int words = (ruleRanges.length + 63) >>> 6;
+            TreeSet<Integer> bounds = new TreeSet<>();
+            bounds.add(Integer.MIN_VALUE);
+            for (int[] range : ruleRanges) {
+                if (range != null) {
+                    bounds.add(range[0]);
+                    if (range[1] != Integer.MAX_VALUE)
+                        bounds.add(range[1] + 1);
+                }
+            }
+
+            starts = new int[bounds.size()];
+            rules = new long[bounds.size()][];
+            int j = 0;
+            for (Integer start : bounds) {
+                starts[j] = start;
+                rules[j] = new long[words];
+                for (int i = 0; i < ruleRanges.length; i++) {
+                    int[] range = ruleRanges[i];
+                    if (range == null || (range[0] <= start && start <= range[1]))
+                        add(rules[j], i);
+                }
+                j++;
+            }
+        }
+
+        long[] get(int value) {
+            int j = Arrays.binarySearch(starts, value);
+            return rules[j >= 0 ? j : -j - 2];
+        }
+    }
+}
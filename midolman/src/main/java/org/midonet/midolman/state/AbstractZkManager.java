@@ -35,6 +35,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -161,11 +162,14 @@ public abstract class AbstractZkManager<K, CFG>
         if (data == null)
             return null;
 
+        return deserialize(key, data);
+    }
+
+    private CFG deserialize(K key, byte[] data) throws SerializationException {
         CFG config = serializer.deserialize(data, getConfigClass());
         if (config instanceof BaseConfig && key instanceof UUID) {
             ((BaseConfig)config).id = (UUID)key;
         }
-
         return config;
     }
 
@@ -179,9 +183,42 @@ public abstract class AbstractZkManager<K, CFG>
      */
     public List<CFG> get(Collection<K> keys)
             throws StateAccessException, SerializationException {
+        Map<K, CFG> found = getAll(keys);
         List<CFG> configs = new ArrayList<>(keys.size());
         for (K key : keys) {
-            configs.add(get(key));
+            CFG config = found.get(key);
+            // Get the missing configs one by one, to fail as get(K) does.
+            configs.add(config != null ? config : get(key));
+        }
+        return configs;
+    }
+
+    /**
+     * Gets the configs for the specified multiple resource IDs, pipelining
+     * the requests to ZooKeeper instead of waiting for each config before
+     * requesting the next.
+     *
+     * @param keys IDs of resources to be retrieved.
+     * @return The configs of the requested resources by ID, in the order of
+     *         the IDs. The resources that don't exist are not in the map.
+     * @throws StateAccessException
+     * @throws SerializationException
+     */
+    public Map<K, CFG> getAll(Collection<K> keys)
+            throws StateAccessException, SerializationException {
+        List<String> paths = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            paths.add(getConfigPath(key));
+        }
+
+        Map<String, byte[]> data = zk.getAll(paths);
+        Map<K, CFG> configs = new LinkedHashMap<>(keys.size());
+        int index = 0;
+        for (K key : keys) {
+            byte[] config = data.get(paths.get(index++));
+            if (config != null) {
+                configs.put(key, deserialize(key, config));
+            }
         }
         return configs;
     }
@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.state;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -66,6 +67,30 @@ public interface Directory {
     Set<String> getChildren(String relativePath, Runnable watcher)
             throws KeeperException, InterruptedException;
 
+    /**
+     * Gets the data of several nodes, pipelining the requests instead of
+     * waiting for each reply before sending the next request.
+     *
+     * @param relativePaths
+     *      Paths relative to base path.
+     * @param maxInFlight
+     *      Maximum number of requests sent and not yet replied at any time.
+     * @return
+     *      The data of the nodes, by relative path. The nodes that don't
+     *      exist are not in the map.
+     */
+    Map<String, byte[]> getAll(Collection<String> relativePaths,
+                               int maxInFlight)
+            throws KeeperException, InterruptedException;
+
+    /**
+     * Gets the children of several nodes, pipelining the requests as
+     * {@link #getAll(Collection, int)} does.
+     */
+    Map<String, Set<String>> getAllChildren(Collection<String> relativePaths,
+                                            int maxInFlight)
+            throws KeeperException, InterruptedException;
+
     void asyncGetChildren(String relativePath,
                           DirectoryCallback<Set<String>> childrenCallback,
                           TypedWatcher watcher);
@@ -17,6 +17,7 @@
 package org.midonet.midolman.state;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -379,6 +380,34 @@ public class MockDirectory implements Directory {
         return getNode(path).getChildren(watcher);
     }
 
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> relativePaths,
+                                      int maxInFlight) {
+        Map<String, byte[]> results = new HashMap<>();
+        for (String path : relativePaths) {
+            try {
+                results.put(path, get(path, null));
+            } catch (NoNodeException e) {
+                // The node is not in the results.
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, Set<String>> getAllChildren(
+            Collection<String> relativePaths, int maxInFlight) {
+        Map<String, Set<String>> results = new HashMap<>();
+        for (String path : relativePaths) {
+            try {
+                results.put(path, getChildren(path, null));
+            } catch (NoNodeException e) {
+                // The node is not in the results.
+            }
+        }
+        return results;
+    }
+
     @Override
     public boolean exists(String path, Watcher watcher) {
         try {
@@ -19,7 +19,7 @@ package org.midonet.midolman.state;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -73,152 +73,217 @@ public abstract class ReplicatedMap<K, V> {
         }
     }
 
-    private class DirectoryWatcher implements Runnable {
+    /**
+     * Watches the children of the map directory, and applies to the local
+     * map the difference between the children it receives and the ones it
+     * already knows. Only the added paths are decoded, and only the keys
+     * whose paths were added or removed are notified to the watchers.
+     *
+     * The children are read asynchronously. Watch events received while a
+     * read is in flight are coalesced into a single read, issued when the
+     * current one completes.
+     */
+    private class DirectoryWatcher extends Directory.DefaultTypedWatcher
+        implements DirectoryCallback<Set<String>> {
 
-        /**
-         * Retrieve all the children of the watched directory, handling
-         * failures.
-         * @return the set of paths, or null if a failure happened
-         */
-        Set<String> getCurPaths() {
-            Set<String> paths = null;
-            try {
-                // TODO(pino, rossella): make this asynchronous.
-                paths = dir.getChildren("/", this);
-            } catch (KeeperException e) {
-                log.warn("DirectoryWatcher.run {}", e);
-                if (connectionWatcher == null) {
-                    throw new RuntimeException(e);
+        private boolean reading = false;
+        private boolean pending = false;
+
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            synchronized(ReplicatedMap.this) {
+                if (reading) {
+                    pending = true;
+                    return;
                 }
-                connectionWatcher.handleError("ReplicatedMap", this, e);
-            } catch (InterruptedException e) {
-                log.error("DirectoryWatcher.run {}", e);
-                Thread.currentThread().interrupt();
+                reading = true;
             }
-            return paths;
+            dir.asyncGetChildren("/", this, this);
         }
 
-        /**
-         * Takes the curPaths set and populates the given newMap with them,
-         * using only the highest versioned entry for each key, and adding to
-         * cleanupPaths all that need to be purged.
-         */
-        void populateNewMap(final Map<K, MapValue> newMap,
-                            final Set<String> curPaths,
-                            final List<Path> cleanupPaths) {
-            for (String path : curPaths) {
-                Path p = decodePath(path);
-                MapValue mv = newMap.get(p.key);
-                if (mv == null)
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-                else if (mv.version < p.version) {
-                    // The one currently in newMap needs to be replaced.
-                    // Also clean it up if it belongs to this ZK client.
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-
-                    if (ownedVersions.contains(mv.version)) {
-                        p.value = mv.value;
-                        p.version = mv.version;
-                        cleanupPaths.add(p);
-                    }
-                } else if (mv.version > p.version &&
-                    ownedVersions.contains(p.version)) {
-                    // The one currently in newMap is newer and the other
-                    // one belongs to this ZK client. Clean it up.
-                    cleanupPaths.add(p);
+        @Override
+        public void onSuccess(Set<String> curPaths) {
+            List<Path> cleanupPaths = new ArrayList<>();
+            List<Notification<K, V>> notifications = new ArrayList<>();
+            boolean again;
+
+            synchronized(ReplicatedMap.this) {
+                if (running) {
+                    Set<K> changedKeys = applyPaths(curPaths);
+                    collectChanges(changedKeys, notifications, cleanupPaths);
                 }
+                again = running && pending;
+                pending = false;
+                reading = again;
+            }
+
+            for (Notification<K,V> notice : notifications) {
+                notifyWatchers(notice.key, notice.oldValue, notice.newValue);
+            }
+
+            cleanup(cleanupPaths);
+
+            if (again) {
+                dir.asyncGetChildren("/", this, this);
+            }
+        }
+
+        @Override
+        public void onError(KeeperException e) {
+            log.warn("DirectoryWatcher getChildren failed", e);
+            readFailed();
+            if (connectionWatcher != null) {
+                connectionWatcher.handleError("ReplicatedMap", this, e);
+            }
+        }
+
+        @Override
+        public void onTimeout() {
+            log.warn("DirectoryWatcher getChildren timed out");
+            readFailed();
+            if (connectionWatcher != null) {
+                connectionWatcher.handleTimeout(this);
+            }
+        }
+
+        private void readFailed() {
+            synchronized(ReplicatedMap.this) {
+                reading = false;
+                pending = false;
             }
         }
 
         /**
-         * Cleans all paths in the given List. If a ZK exception occurs in the
-         * process it will abort the cleanup. InterruptedExceptions will
-         * stop the running thread.
-         *
-         * @param paths to clean up
+         * Updates the known paths with the given set of current paths, and
+         * returns the keys whose paths were added or removed.
          */
-        void cleanup(final List<Path> paths) {
-            for (Path path : paths) {
-                try {
-                    dir.delete(encodePath(path.key, path.value, path.version));
-                    ownedVersions.remove(path.version);
-                } catch (KeeperException e) {
-                    log.error("DirectoryWatcher.run", e);
-                    // TODO (guillermo) connectionWatcher.handleError()?
-                    throw new RuntimeException(e);
-                } catch (InterruptedException e) {
-                    log.error("DirectoryWatcher.run", e);
-                    Thread.currentThread().interrupt();
+        private Set<K> applyPaths(final Set<String> curPaths) {
+            Set<K> changedKeys = new HashSet<>();
+
+            Iterator<Map.Entry<String, Path>> it =
+                knownPaths.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Path> entry = it.next();
+                if (!curPaths.contains(entry.getKey())) {
+                    it.remove();
+                    Path p = entry.getValue();
+                    List<Path> paths = keyPaths.get(p.key);
+                    paths.remove(p);
+                    if (paths.isEmpty())
+                        keyPaths.remove(p.key);
+                    changedKeys.add(p.key);
+                }
+            }
+
+            for (String path : curPaths) {
+                if (knownPaths.containsKey(path))
+                    continue;
+                Path p = decodePath(path);
+                knownPaths.put(path, p);
+                List<Path> paths = keyPaths.get(p.key);
+                if (paths == null) {
+                    paths = new ArrayList<>(2);
+                    keyPaths.put(p.key, paths);
                 }
+                paths.add(p);
+                changedKeys.add(p.key);
             }
+            return changedKeys;
         }
 
         /**
-         * Compiles notifications to be sent after the newMap has been compiled.
-         *
-         * @param notifications where to accumulate the notifications
-         * @param newMap the new map generated from the last set of paths
+         * Updates the local map for the given keys using only the highest
+         * versioned entry for each key, and compiles the notifications to
+         * send. The lower versioned entries belonging to this ZK client are
+         * added to cleanupPaths.
          */
-        void collectNotifications(final Set<Notification<K, V>> notifications,
-                                  final Map<K, MapValue> newMap) {
-
-            Set<K> oldKeys = new HashSet<>(localMap.keySet());
-            oldKeys.removeAll(newMap.keySet());
-            for (K deletedKey : oldKeys) {
-                MapValue mv = localMap.get(deletedKey);
-                notifications.add(new Notification<>(
-                    deletedKey, mv.value, null));
-            }
+        private void collectChanges(final Set<K> changedKeys,
+                                    final List<Notification<K, V>> notifications,
+                                    final List<Path> cleanupPaths) {
+            for (K key : changedKeys) {
+                List<Path> paths = keyPaths.get(key);
+                Path latest = null;
+                if (paths != null) {
+                    for (Path p : paths) {
+                        if (latest == null || latest.version < p.version)
+                            latest = p;
+                    }
+                    for (Path p : paths) {
+                        if (p != latest && ownedVersions.contains(p.version))
+                            cleanupPaths.add(p);
+                    }
+                }
 
-            for (Map.Entry<K, MapValue> entry : newMap.entrySet()) {
-                K key = entry.getKey();
-                V value = entry.getValue().value;
                 MapValue mv = localMap.get(key);
-                if (mv == null) {
+                if (latest == null) {
+                    if (mv != null) {
+                        localMap.remove(key);
+                        notifications.add(new Notification<>(
+                            key, mv.value, null));
+                    }
+                } else if (mv == null) {
+                    localMap.put(key, new MapValue(latest.value,
+                                                   latest.version));
                     notifications.add(new Notification<>(
-                        key, null, value));
-                } else if (mv.version != entry.getValue().version) {
+                        key, null, latest.value));
+                } else if (mv.version != latest.version) {
                     // We compare versions because the 'value' members
                     // might not implement .equals accurately.
+                    localMap.put(key, new MapValue(latest.value,
+                                                   latest.version));
                     notifications.add(new Notification<>(
-                        key, mv.value, value));
-                } // else mv == entry:  No notification.
+                        key, mv.value, latest.value));
+                } // else mv == latest:  No notification.
             }
-
         }
 
-        public void run() {
-            if (!running) {
-                return;
+        /**
+         * Asynchronously deletes all paths in the given List, which are
+         * obsolete entries owned by this ZK client.
+         *
+         * @param paths to clean up
+         */
+        private void cleanup(final List<Path> paths) {
+            for (final Path path : paths) {
+                dir.asyncDelete(
+                    encodePath(path.key, path.value, path.version),
+                    new CleanupCallback(path.version));
             }
-            Set<String> curPaths = getCurPaths();
-            if (curPaths == null)
-                return;
+        }
+    }
+
+    private class CleanupCallback implements DirectoryCallback<Void> {
+        private int version;
 
-            List<Path> cleanupPaths = new LinkedList<>();
-            Set<Notification<K,V>> notifications = new HashSet<>();
+        CleanupCallback(int version) {
+            this.version = version;
+        }
 
+        public void onSuccess(Void result) {
             synchronized(ReplicatedMap.this) {
-                if (!running) {
-                    return;
-                }
-                ConcurrentMap<K,MapValue> newMap = new ConcurrentHashMap<>();
-                populateNewMap(newMap, curPaths, cleanupPaths);
-                collectNotifications(notifications, newMap);
-                localMap = newMap;
+                ownedVersions.remove(version);
             }
+        }
 
-            for (Notification<K,V> notice : notifications) {
-                notifyWatchers(notice.key, notice.oldValue, notice.newValue);
-            }
+        public void onError(KeeperException ex) {
+            log.error("ReplicatedMap cleanup of version {} failed", version,
+                      ex);
+        }
 
-            cleanup(cleanupPaths);
+        public void onTimeout() {
+            log.error("ReplicatedMap cleanup of version {} timed out",
+                      version);
         }
     }
 
     private Directory dir;
     private volatile boolean running;
     private volatile ConcurrentMap<K, MapValue> localMap;
+    private final Map<String, Path> knownPaths = new HashMap<>();
+    private final Map<K, List<Path>> keyPaths = new HashMap<>();
     private Set<Integer> ownedVersions;
     private Set<Watcher<K, V>> watchers;
     private DirectoryWatcher myWatcher;
@@ -267,6 +332,8 @@ public abstract class ReplicatedMap<K, V> {
         Map<K, MapValue> oldMap = localMap;
         localMap = new ConcurrentHashMap<>();
         oldMap.clear();
+        knownPaths.clear();
+        keyPaths.clear();
     }
 
     public V get(K key) {
@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 
 public class ZkDirectory implements Directory {
     static final Logger log = LoggerFactory.getLogger(ZkDirectory.class);
@@ -285,6 +286,113 @@ public class ZkDirectory implements Directory {
             }, null);
     }
 
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> relativePaths,
+                                      int maxInFlight)
+            throws KeeperException, InterruptedException {
+        final PipelinedRead<byte[]> read = new PipelinedRead<>(maxInFlight);
+        AsyncCallback.DataCallback cb = new AsyncCallback.DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                                      byte[] data, Stat stat) {
+                read.complete(rc, path, (String) ctx, data);
+            }
+        };
+        for (String relativePath : relativePaths) {
+            if (!read.begin())
+                break;
+            zk.getZooKeeper().getData(getAbsolutePath(relativePath), false,
+                                      cb, relativePath);
+        }
+        return read.await();
+    }
+
+    @Override
+    public Map<String, Set<String>> getAllChildren(
+            Collection<String> relativePaths, int maxInFlight)
+            throws KeeperException, InterruptedException {
+        final PipelinedRead<Set<String>> read =
+            new PipelinedRead<>(maxInFlight);
+        AsyncCallback.ChildrenCallback cb =
+            new AsyncCallback.ChildrenCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx,
+                                          List<String> children) {
+                    read.complete(rc, path, (String) ctx,
+                                  children == null ? null
+                                      : new HashSet<>(children));
+                }
+            };
+        for (String relativePath : relativePaths) {
+            if (!read.begin())
+                break;
+            String absPath = getAbsolutePath(relativePath);
+            // path cannot end with / so strip it off
+            if (absPath.endsWith("/")) {
+                absPath = absPath.substring(0, absPath.length() - 1);
+            }
+            zk.getZooKeeper().getChildren(absPath, false, cb, relativePath);
+        }
+        return read.await();
+    }
+
+    /**
+     * The state of a pipelined read: the results of the requests replied so
+     * far, and a permit for each request that can still be sent. The
+     * callbacks run on the ZooKeeper event thread, so the reads must not be
+     * issued from that thread.
+     */
+    private static class PipelinedRead<T> {
+        private final int maxInFlight;
+        private final Semaphore permits;
+        private final Map<String, T> results = new HashMap<>();
+        private KeeperException error;
+
+        PipelinedRead(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        /**
+         * Waits until a request can be sent, and returns false if a
+         * previous request failed.
+         */
+        boolean begin() throws InterruptedException {
+            permits.acquire();
+            synchronized (this) {
+                if (error == null)
+                    return true;
+            }
+            permits.release();
+            return false;
+        }
+
+        void complete(int rc, String path, String relativePath, T result) {
+            synchronized (this) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    results.put(relativePath, result);
+                } else if (rc != KeeperException.Code.NONODE.intValue() &&
+                           error == null) {
+                    error = KeeperException.create(
+                        KeeperException.Code.get(rc), path);
+                }
+            }
+            permits.release();
+        }
+
+        /**
+         * Waits for the replies of all the requests sent.
+         */
+        Map<String, T> await() throws KeeperException, InterruptedException {
+            permits.acquire(maxInFlight);
+            synchronized (this) {
+                if (error != null)
+                    throw error;
+                return results;
+            }
+        }
+    }
+
     @Override
     public boolean exists(String path, Watcher watcher)
             throws KeeperException, InterruptedException {
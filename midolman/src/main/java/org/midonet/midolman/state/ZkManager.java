@@ -16,6 +16,7 @@
 package org.midonet.midolman.state;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -59,6 +60,12 @@ public class ZkManager {
 
     public static final int ZK_SEQ_NUM_LEN = 10;
 
+    /**
+     * The maximum number of outstanding requests of a pipelined read, which
+     * bounds the memory used by the requests and replies being sent.
+     */
+    public static final int MAX_IN_FLIGHT_READS = 128;
+
     public ZkManager(Directory zk, String basePath) {
         this.zk = zk;
         this.basePath = basePath;
@@ -322,6 +329,19 @@ public class ZkManager {
         }
     }
 
+    /**
+     * Gets the data of several nodes with pipelined requests. The nodes that
+     * don't exist are not in the returned map.
+     */
+    public Map<String, byte[]> getAll(Collection<String> paths)
+            throws StateAccessException {
+        try {
+            return zk.getAll(paths, MAX_IN_FLIGHT_READS);
+        } catch (Exception ex) {
+            throw processException(ex, "getting " + paths.size() + " nodes");
+        }
+    }
+
     public Set<String> getChildren(String path) throws StateAccessException {
         return getChildren(path, null);
     }
@@ -335,6 +355,20 @@ public class ZkManager {
         }
     }
 
+    /**
+     * Gets the children of several nodes with pipelined requests. The nodes
+     * that don't exist are not in the returned map.
+     */
+    public Map<String, Set<String>> getAllChildren(Collection<String> paths)
+            throws StateAccessException {
+        try {
+            return zk.getAllChildren(paths, MAX_IN_FLIGHT_READS);
+        } catch (Exception ex) {
+            throw processException(
+                ex, "getting the children of " + paths.size() + " nodes");
+        }
+    }
+
     public List<OpResult> multiDedup(List<Op> ops) throws StateAccessException {
 
         Set<String> paths = new HashSet<String>(ops.size());
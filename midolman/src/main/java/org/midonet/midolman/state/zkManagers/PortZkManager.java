@@ -17,9 +17,11 @@ package org.midonet.midolman.state.zkManagers;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
@@ -1004,6 +1006,29 @@ public class PortZkManager extends AbstractZkManager<UUID, PortConfig> {
         return zk.exists(path) && (zk.getChildren(path).size() > 0);
     }
 
+    /**
+     * Returns the ports among the specified ones that are active, reading
+     * their liveness with pipelined requests.
+     */
+    public Set<UUID> getActivePorts(Collection<UUID> portIds)
+            throws StateAccessException {
+        List<String> activePaths = new ArrayList<>(portIds.size());
+        for (UUID portId : portIds) {
+            activePaths.add(paths.getPortActivePath(portId));
+        }
+
+        Map<String, Set<String>> children = zk.getAllChildren(activePaths);
+        Set<UUID> activePorts = new HashSet<>();
+        int index = 0;
+        for (UUID portId : portIds) {
+            Set<String> hosts = children.get(activePaths.get(index++));
+            if (hosts != null && !hosts.isEmpty()) {
+                activePorts.add(portId);
+            }
+        }
+        return activePorts;
+    }
+
     public PortDirectory.RouterPortConfig findFirstRouterPortMatchFromBridge(
             UUID bridgeId,
             Function<PortConfig, Boolean> matcher)
@@ -620,6 +620,71 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
         return routes;
     }
 
+    /**
+     * Creates and deletes the specified ephemeral routes in a single multi
+     * operation. The configuration of each next hop port is read once for
+     * the whole batch, and the nodes named after a route identifier are not
+     * checked for existence: they exist if and only if the route does.
+     *
+     * @param created
+     *            The routes to create, by the identifier to create them with.
+     * @param deleted
+     *            The routes to delete, by their identifier.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public void updateEphemeral(Map<UUID, Route> created,
+                                Map<UUID, Route> deleted)
+            throws StateAccessException, SerializationException {
+        Map<UUID, PortDirectory.RouterPortConfig> ports = new HashMap<>();
+        List<Op> ops = new ArrayList<>();
+        for (Map.Entry<UUID, Route> entry : deleted.entrySet()) {
+            UUID id = entry.getKey();
+            Route rt = entry.getValue();
+            ops.add(Op.delete(paths.getRoutePath(id), -1));
+            List<String> subPaths =
+                getSubDirectoryRoutePaths(id, rt, nextHopPort(rt, ports));
+            ops.add(Op.delete(subPaths.get(0), -1));
+            for (String path : subPaths.subList(1, subPaths.size())) {
+                if (zk.exists(path))
+                    ops.add(Op.delete(path, -1));
+            }
+        }
+        for (Map.Entry<UUID, Route> entry : created.entrySet()) {
+            UUID id = entry.getKey();
+            Route rt = entry.getValue();
+            ops.add(Op.create(paths.getRoutePath(id), serializer.serialize(rt),
+                              Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+            List<String> subPaths =
+                getSubDirectoryRoutePaths(id, rt, nextHopPort(rt, ports));
+            ops.add(Op.create(subPaths.get(0), null, Ids.OPEN_ACL_UNSAFE,
+                              CreateMode.EPHEMERAL));
+            for (String path : subPaths.subList(1, subPaths.size())) {
+                if (!zk.exists(path))
+                    ops.add(Op.create(path, null, Ids.OPEN_ACL_UNSAFE,
+                                      CreateMode.EPHEMERAL));
+            }
+        }
+        if (!ops.isEmpty())
+            zk.multi(ops);
+    }
+
+    private PortDirectory.RouterPortConfig nextHopPort(
+            Route rt, Map<UUID, PortDirectory.RouterPortConfig> ports)
+            throws StateAccessException, SerializationException {
+        if (!rt.nextHop.toPort())
+            return null;
+        PortDirectory.RouterPortConfig port = ports.get(rt.nextHopPort);
+        if (port == null) {
+            PortZkManager portZkManager = new PortZkManager(zk, paths,
+                                                            serializer);
+            port = portZkManager.get(rt.nextHopPort,
+                                     PortDirectory.RouterPortConfig.class);
+            ports.put(rt.nextHopPort, port);
+        }
+        return port;
+    }
+
     /***
      * Deletes a route and its related data from the ZooKeeper directories
      * atomically.
@@ -0,0 +1,871 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.state;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.NanoClock;
+
+/**
+ * A per-flow state table partitioned among a number of children shards, which
+ * store their entries in flat arrays rather than as map nodes.
+ *
+ * Each entry occupies a fixed number of words in an array of longs: the key,
+ * packed by a FlowStateCodec, followed by the reference count and the
+ * expiration time, while its value is kept in a parallel array so that reads
+ * don't allocate. Entries are found through an open addressing index with
+ * linear probing, whose slots contain the hash of the key and the position
+ * of the entry. Entries whose reference count drops to zero are queued for
+ * expiration, in an array of (entry, expiration) pairs. An entry thus costs
+ * a few tens of bytes, as opposed to the map node, metadata, atomic counter
+ * and expiration tuple allocated per entry by the TimedExpirationMap. Keys
+ * are only materialized when they are handed to a Reducer.
+ *
+ * THREADING SEMANTICS:
+ *
+ * As with the PartitionedFlowStateTable, a key is owned by the shard that
+ * inserts it, until it expires there, and the table maintains an owner index
+ * mapping each key to its shard, so that a lookup costs at most one probe
+ * in the local shard, one in the owner index and one in the owning shard.
+ * The owner index holds no keys: its slots pack the hash of a key with the
+ * id of the shard that owns it, and the lookups check the shards found for
+ * a hash for the key itself. Clients should distribute shards among threads
+ * in a way that results in no keyspace overlap.
+ *
+ * A shard has a single writer, the thread that owns it, which performs its
+ * puts, refs, unrefs, folds and expiration without locking. Other threads
+ * only read it: the owner makes the version of the shard odd while it
+ * modifies the index or reuses an entry, and the readers retry the lookups
+ * that overlap such a modification. The refs, unrefs and touches performed
+ * through the parent table are queued to the owning shard, which applies
+ * them before its own next operation.
+ */
+public class CompactFlowStateTable<K extends IdleExpiration, V>
+        implements FlowStateTable<K, V> {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /* The words of an entry that follow its key. */
+    private static final int META = 0;
+    private static final int EXPIRATION = 1;
+    private static final int ENTRY_WORDS = 2;
+
+    /* The meta word of an entry flags it as used, and holds its reference
+     * count in the low order bits. The count is set to EXPIRING while the
+     * entry is being handed over to the expiration reducer. */
+    private static final long USED = 1L << 32;
+    private static final int EXPIRING = -1;
+
+    /* A cleared slot of the owner index. */
+    private static final long TOMBSTONE = 0xffffffff00000000L;
+
+    /* The operations queued to a shard by other threads. */
+    private static final int REF = 0;
+    private static final int UNREF = 1;
+    private static final int TOUCH = 2;
+
+    private final FlowStateCodec<K> codec;
+    private final NanoClock clock;
+    private final int initialCapacity;
+    private final CopyOnWriteArrayList<FlowStateShard> shards =
+        new CopyOnWriteArrayList<>();
+    private final OwnerIndex owners;
+
+    /* The buffers into which the threads reading the shards they don't own
+     * encode their keys. */
+    private final ThreadLocal<long[]> probes = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[codec.keyWords()];
+        }
+    };
+
+    private final Logger defaultLog =
+        LoggerFactory.getLogger("org.midonet.state.table");
+
+    public CompactFlowStateTable(FlowStateCodec<K> codec, NanoClock clock) {
+        this(codec, clock, DEFAULT_CAPACITY);
+    }
+
+    public CompactFlowStateTable(FlowStateCodec<K> codec, NanoClock clock,
+                                 int initialCapacity) {
+        if (initialCapacity <= 0)
+            throw new IllegalArgumentException();
+        this.codec = codec;
+        this.clock = clock;
+        this.initialCapacity = Integer.highestOneBit(initialCapacity - 1) << 1;
+        this.owners = new OwnerIndex(this.initialCapacity * 2);
+    }
+
+    public FlowStateShard addShard() {
+        return addShard(defaultLog);
+    }
+
+    public synchronized FlowStateShard addShard(Logger log) {
+        FlowStateShard shard = new FlowStateShard(shards.size(), log);
+        shards.add(shard);
+        return shard;
+    }
+
+    @Override
+    public V putAndRef(K key, V value) {
+        throw new IllegalArgumentException();
+    }
+
+    @Override
+    public V get(K key) {
+        long[] probe = encodeProbe(key);
+        return owners.read(hash(probe, 0), probe, null);
+    }
+
+    /**
+     * References a key in its owning shard, returning its current value. The
+     * reference is applied by the owning shard.
+     */
+    @Override
+    public V ref(K key) {
+        long[] probe = encodeProbe(key);
+        int hash = hash(probe, 0);
+        FlowStateShard owner = owners.ownerOf(hash, probe);
+        if (owner == null)
+            return null;
+        V value = owner.read(hash, probe);
+        if (value != null)
+            owner.post(REF, key, null);
+        return value;
+    }
+
+    /**
+     * Updates the value and expiration time of a key in its owning shard.
+     * Since the parent table cannot insert entries, this is a no-op if no
+     * shard owns the key.
+     */
+    @Override
+    public void touch(K key, V value) {
+        long[] probe = encodeProbe(key);
+        FlowStateShard owner = owners.ownerOf(hash(probe, 0), probe);
+        if (owner != null)
+            owner.post(TOUCH, key, value);
+    }
+
+    @Override
+    public void unref(K key) {
+        long[] probe = encodeProbe(key);
+        FlowStateShard owner = owners.ownerOf(hash(probe, 0), probe);
+        if (owner != null)
+            owner.post(UNREF, key, null);
+    }
+
+    @Override
+    public int getRefCount(K key) {
+        long[] probe = encodeProbe(key);
+        int hash = hash(probe, 0);
+        FlowStateShard owner = owners.ownerOf(hash, probe);
+        return owner != null ? owner.readRefCount(hash, probe) : 0;
+    }
+
+    @Override
+    public void expireIdleEntries() {
+        for (int i = 0; i < shards.size(); i++)
+            shards.get(i).expireIdleEntries();
+    }
+
+    @Override
+    public <U> U expireIdleEntries(U seed, Reducer<K, V, U> func) {
+        for (int i = 0; i < shards.size(); i++)
+            seed = shards.get(i).expireIdleEntries(seed, func);
+        return seed;
+    }
+
+    @Override
+    public <U> U fold(U seed, Reducer<K, V, U> func) {
+        for (int i = 0; i < shards.size(); i++)
+            seed = shards.get(i).fold(seed, func);
+        return seed;
+    }
+
+    /**
+     * The number of entries in all the shards.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shards.size(); i++)
+            size += shards.get(i).size();
+        return size;
+    }
+
+    /**
+     * The number of bytes allocated by all the shards to store their entries.
+     */
+    public long memoryUsage() {
+        long bytes = 0;
+        for (int i = 0; i < shards.size(); i++)
+            bytes += shards.get(i).memoryUsage();
+        return bytes;
+    }
+
+    private long tickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.tick());
+    }
+
+    /* Encodes a key into the probe buffer of the calling thread. */
+    private long[] encodeProbe(K k) {
+        long[] probe = probes.get();
+        codec.encodeKey(k, probe, 0);
+        return probe;
+    }
+
+    private int hash(long[] words, int offset) {
+        long h = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < codec.keyWords(); i++) {
+            h ^= words[offset + i];
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 32;
+        }
+        return (int) h;
+    }
+
+    /* An operation queued to a shard by another thread. */
+    private static final class RemoteOp<K, V> {
+        final int kind;
+        final K key;
+        final V value;
+
+        RemoteOp(int kind, K key, V value) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Maps the hash of each key to the id of the shard that owns it, in an
+     * open addressing index whose slots contain the hash in the high order
+     * bits and the id of the shard plus one in the low order bits. A hash may
+     * have several slots, one per key: the lookups check each shard found for
+     * the key itself.
+     *
+     * The shards claim and clear their slots with CAS, under the read lock.
+     * Cleared slots become tombstones, which are reused by later insertions
+     * and purged when the index is rebuilt, under the write lock. Lookups
+     * don't lock: a lookup that overlaps a rebuild sees the index as it was
+     * when the rebuild started.
+     */
+    private final class OwnerIndex {
+        private volatile AtomicLongArray slots;
+        /* The number of slots that are not empty, tombstones included. */
+        private final AtomicInteger used = new AtomicInteger();
+        private final AtomicInteger live = new AtomicInteger();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        OwnerIndex(int capacity) {
+            slots = new AtomicLongArray(capacity);
+        }
+
+        void add(int hash, int shard) {
+            long slot = ((long) hash << 32) | (shard + 1);
+            int capacity;
+            lock.readLock().lock();
+            try {
+                AtomicLongArray slots = this.slots;
+                capacity = slots.length();
+                int mask = capacity - 1;
+                int i = hash & mask;
+                while (true) {
+                    long s = slots.get(i);
+                    if (s == 0) {
+                        if (slots.compareAndSet(i, 0, slot)) {
+                            used.incrementAndGet();
+                            break;
+                        }
+                    } else if (s == TOMBSTONE &&
+                               slots.compareAndSet(i, TOMBSTONE, slot)) {
+                        break;
+                    } else {
+                        i = (i + 1) & mask;
+                    }
+                }
+                live.incrementAndGet();
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (used.get() * 4L > capacity * 3L)
+                rebuild();
+        }
+
+        void remove(int hash, int shard) {
+            long slot = ((long) hash << 32) | (shard + 1);
+            lock.readLock().lock();
+            try {
+                AtomicLongArray slots = this.slots;
+                int mask = slots.length() - 1;
+                int i = hash & mask;
+                long s;
+                while ((s = slots.get(i)) != 0) {
+                    if (s == slot && slots.compareAndSet(i, slot, TOMBSTONE)) {
+                        live.decrementAndGet();
+                        return;
+                    }
+                    i = (i + 1) & mask;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /* Returns the shard that owns an encoded key, or null. */
+        FlowStateShard ownerOf(int hash, long[] k) {
+            AtomicLongArray slots = this.slots;
+            int mask = slots.length() - 1;
+            int i = hash & mask;
+            long s;
+            for (int n = 0; n <= mask && (s = slots.get(i)) != 0; n++) {
+                if ((int) (s >>> 32) == hash && (int) s != 0) {
+                    FlowStateShard shard = shards.get((int) s - 1);
+                    if (shard.read(hash, k) != null)
+                        return shard;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        /* Returns the value of an encoded key in the shard that owns it,
+         * unless it's the excluded shard, or null. */
+        V read(int hash, long[] k, FlowStateShard exclude) {
+            AtomicLongArray slots = this.slots;
+            int mask = slots.length() - 1;
+            int i = hash & mask;
+            long s;
+            for (int n = 0; n <= mask && (s = slots.get(i)) != 0; n++) {
+                if ((int) (s >>> 32) == hash && (int) s != 0) {
+                    FlowStateShard shard = shards.get((int) s - 1);
+                    if (shard != exclude) {
+                        V value = shard.read(hash, k);
+                        if (value != null)
+                            return value;
+                    }
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        /* Purges the tombstones, growing the index if it's half full. */
+        private void rebuild() {
+            lock.writeLock().lock();
+            try {
+                AtomicLongArray old = slots;
+                if (used.get() * 4L <= old.length() * 3L)
+                    return;
+                int capacity = old.length();
+                if (live.get() * 2L > capacity)
+                    capacity *= 2;
+                AtomicLongArray fresh = new AtomicLongArray(capacity);
+                int mask = capacity - 1;
+                int n = 0;
+                for (int i = 0; i < old.length(); i++) {
+                    long s = old.get(i);
+                    if (s != 0 && s != TOMBSTONE) {
+                        int j = (int) (s >>> 32) & mask;
+                        while (fresh.get(j) != 0)
+                            j = (j + 1) & mask;
+                        fresh.set(j, s);
+                        n++;
+                    }
+                }
+                used.set(n);
+                slots = fresh;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * A shard within a CompactFlowStateTable.
+     *
+     * It stores the entries it owns locally and registers them in the
+     * parent's owner index, through which it forwards the lookups of keys it
+     * does not own.
+     */
+    public final class FlowStateShard implements FlowStateTable<K, V> {
+        private final int id;
+        private final Logger log;
+        private final int keyWords = codec.keyWords();
+        private final int stride = keyWords + ENTRY_WORDS;
+
+        /* The key of the current operation of the owner, encoded. */
+        private final long[] key = new long[keyWords];
+
+        /* The entries, stride words each, identified by their position. */
+        private long[] entries = new long[initialCapacity * stride];
+        private Object[] values = new Object[initialCapacity];
+        private int usedEntries = 0;
+        private int[] freeEntries = new int[16];
+        private int numFreeEntries = 0;
+
+        /* The index slots contain the hash of the key in the high order
+         * bits and the entry's position plus one in the low order bits, or
+         * zero if empty. */
+        private long[] index = new long[initialCapacity * 2];
+        private int size = 0;
+
+        /* Odd while the owner modifies the index or reuses an entry. */
+        private volatile int version = 0;
+
+        /* The (entry, expiration) pairs of entries whose reference count
+         * dropped to zero, in the order in which that happened. */
+        private long[] expiring = new long[initialCapacity * 2];
+        private int expiringHead = 0;
+        private int expiringTail = 0;
+
+        /* The operations queued by other threads through the parent. */
+        private final ConcurrentLinkedQueue<RemoteOp<K, V>> remoteOps =
+            new ConcurrentLinkedQueue<>();
+        private boolean applyingRemoteOps = false;
+
+        private FlowStateShard(int id, Logger log) {
+            this.id = id;
+            this.log = log;
+        }
+
+        /**
+         * Inserts or updates a key. An entry being handed over to the
+         * expiration reducer is considered gone: the key is inserted anew,
+         * with a new expiration time.
+         */
+        @Override
+        public V putAndRef(K k, V value) {
+            applyRemoteOps();
+            int hash = encode(k);
+            int entry = find(hash);
+            if (entry >= 0 &&
+                (int) entries[entry * stride + keyWords + META] == EXPIRING) {
+                // The key keeps its slot in the owner index.
+                remove(entry);
+                insert(hash, value);
+                return null;
+            }
+            if (entry < 0) {
+                insert(hash, value);
+                owners.add(hash, id);
+                return null;
+            }
+
+            int base = entry * stride + keyWords;
+            @SuppressWarnings("unchecked")
+            V old = (V) values[entry];
+            values[entry] = value;
+            setRefCount(base, (int) entries[base + META] + 1);
+            return old;
+        }
+
+        @Override
+        public V get(K k) {
+            applyRemoteOps();
+            int hash = encode(k);
+            int entry = find(hash);
+            if (entry >= 0) {
+                int refs = (int) entries[entry * stride + keyWords + META];
+                return refs != EXPIRING ? valueOf(entry) : null;
+            }
+            return owners.read(hash, key, this);
+        }
+
+        /**
+         * Returns the value of a key in this shard only. It may be called
+         * from any thread.
+         */
+        public V shallowGet(K k) {
+            long[] probe = encodeProbe(k);
+            return read(hash(probe, 0), probe);
+        }
+
+        @Override
+        public V ref(K k) {
+            applyRemoteOps();
+            int entry = find(encode(k));
+            if (entry < 0)
+                return null;
+            int base = entry * stride + keyWords;
+            int refs = (int) entries[base + META];
+            if (refs == EXPIRING)
+                return null;
+            setRefCount(base, refs + 1);
+            return valueOf(entry);
+        }
+
+        @Override
+        public int getRefCount(K k) {
+            applyRemoteOps();
+            int entry = find(encode(k));
+            return entry < 0 ? 0 : (int) entries[entry * stride + keyWords + META];
+        }
+
+        @Override
+        public void touch(K k, V value) {
+            putAndRef(k, value);
+            unref(k);
+        }
+
+        @Override
+        public void unref(K k) {
+            applyRemoteOps();
+            int entry = find(encode(k));
+            if (entry < 0)
+                return;
+            int base = entry * stride + keyWords;
+            int refs = (int) entries[base + META];
+            if (refs <= 0) {
+                log.error("Decrement a ref count past 0 for {}", k);
+                return;
+            }
+            setRefCount(base, --refs);
+            if (refs == 0) {
+                long expiration = tickMillis() + k.expiresAfter().toMillis();
+                entries[base + EXPIRATION] = expiration;
+                enqueueExpiring(entry, expiration);
+            }
+        }
+
+        @Override
+        public void expireIdleEntries() {
+            expireIdleEntries(null, null);
+        }
+
+        @Override
+        public <U> U expireIdleEntries(U seed, Reducer<K, V, U> func) {
+            applyRemoteOps();
+            long now = tickMillis();
+            U acc = seed;
+            int entry;
+            while ((entry = nextExpired(now)) >= 0) {
+                /* The entry is committed as expired only after calling into
+                 * the reducer, during which a lookup won't find it. */
+                if (func != null) {
+                    K k = codec.decodeKey(entries, entry * stride);
+                    acc = func.apply(acc, k, valueOf(entry));
+                }
+                if ((int) entries[entry * stride + keyWords + META] == EXPIRING) {
+                    owners.remove(hash(entries, entry * stride), id);
+                    remove(entry);
+                }
+            }
+            return acc;
+        }
+
+        @Override
+        public <U> U fold(U seed, Reducer<K, V, U> func) {
+            applyRemoteOps();
+            U acc = seed;
+            for (int entry = 0; entry < usedEntries; entry++) {
+                long meta = entries[entry * stride + keyWords + META];
+                if ((meta & USED) != 0 && (int) meta != EXPIRING) {
+                    acc = func.apply(acc, codec.decodeKey(entries, entry * stride),
+                                     valueOf(entry));
+                }
+            }
+            return acc;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long memoryUsage() {
+            return 8L * (entries.length + values.length + index.length +
+                         expiring.length) +
+                   4L * freeEntries.length;
+        }
+
+        /* Queues an operation from another thread. */
+        private void post(int kind, K k, V value) {
+            remoteOps.add(new RemoteOp<>(kind, k, value));
+        }
+
+        /* Applies the operations queued by other threads. A touch only
+         * updates a key that is still in the shard, as the parent table
+         * cannot insert entries. */
+        private void applyRemoteOps() {
+            if (applyingRemoteOps || remoteOps.isEmpty())
+                return;
+            applyingRemoteOps = true;
+            try {
+                applyQueuedOps();
+            } finally {
+                applyingRemoteOps = false;
+            }
+        }
+
+        private void applyQueuedOps() {
+            RemoteOp<K, V> op;
+            while ((op = remoteOps.poll()) != null) {
+                switch (op.kind) {
+                    case REF:
+                        ref(op.key);
+                        break;
+                    case UNREF:
+                        unref(op.key);
+                        break;
+                    case TOUCH:
+                        int entry = find(encode(op.key));
+                        if (entry >= 0 && (int) entries[
+                                entry * stride + keyWords + META] != EXPIRING) {
+                            putAndRef(op.key, op.value);
+                            unref(op.key);
+                        }
+                        break;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V valueOf(int entry) {
+            return (V) values[entry];
+        }
+
+        private void setRefCount(int base, int refs) {
+            entries[base + META] = USED | (refs & 0xffffffffL);
+        }
+
+        /* Encodes the key into the key buffer, returning its hash. */
+        private int encode(K k) {
+            codec.encodeKey(k, key, 0);
+            return hash(key, 0);
+        }
+
+        private boolean keyEquals(long[] entries, int base, long[] k) {
+            for (int i = 0; i < keyWords; i++) {
+                if (entries[base + i] != k[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /* Returns the entry containing the current key, or -1. */
+        private int find(int hash) {
+            int mask = index.length - 1;
+            int i = hash & mask;
+            long slot;
+            while ((slot = index[i]) != 0) {
+                if ((int) (slot >>> 32) == hash) {
+                    int entry = (int) slot - 1;
+                    if (keyEquals(entries, entry * stride, key))
+                        return entry;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /* Reads the value of an encoded key from a thread other than the
+         * owner, retrying while the owner modifies the shard. */
+        private V read(int hash, long[] k) {
+            while (true) {
+                int v = version;
+                if ((v & 1) == 0) {
+                    long[] entries = this.entries;
+                    Object[] values = this.values;
+                    int entry = lookup(hash, k, index, entries, values.length);
+                    Object value = entry >= 0 && (int) entries[
+                        entry * stride + keyWords + META] != EXPIRING
+                        ? values[entry] : null;
+                    if (version == v) {
+                        @SuppressWarnings("unchecked")
+                        V result = (V) value;
+                        return result;
+                    }
+                }
+            }
+        }
+
+        /* Reads the reference count of an encoded key from a thread other
+         * than the owner, as read() does. */
+        private int readRefCount(int hash, long[] k) {
+            while (true) {
+                int v = version;
+                if ((v & 1) == 0) {
+                    long[] entries = this.entries;
+                    int entry = lookup(hash, k, index, entries, values.length);
+                    int refs = entry >= 0 ? (int) entries[
+                        entry * stride + keyWords + META] : 0;
+                    if (version == v)
+                        return refs == EXPIRING ? 0 : refs;
+                }
+            }
+        }
+
+        /* Looks up an encoded key without assuming that the arrays are
+         * consistent, since the owner may be modifying them: the result is
+         * only used if the version didn't change meanwhile. Returns the entry
+         * of the key, or -1. */
+        private int lookup(int hash, long[] k, long[] index, long[] entries,
+                           int numValues) {
+            int mask = index.length - 1;
+            int i = hash & mask;
+            for (int n = 0; n < index.length; n++) {
+                long slot = index[i];
+                if (slot == 0)
+                    return -1;
+                int entry = (int) slot - 1;
+                int base = entry * stride;
+                if ((int) (slot >>> 32) == hash && entry >= 0 &&
+                    entry < numValues && base + stride <= entries.length &&
+                    keyEquals(entries, base, k)) {
+                    return entry;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /* Inserts the current key, with a reference count of one. */
+        private void insert(int hash, V value) {
+            version++;
+            if ((size + 1) * 4L > index.length * 3L)
+                growIndex();
+
+            int entry;
+            if (numFreeEntries > 0) {
+                entry = freeEntries[--numFreeEntries];
+            } else {
+                entry = usedEntries++;
+                if (usedEntries * stride > entries.length) {
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+            }
+            int base = entry * stride;
+            System.arraycopy(key, 0, entries, base, keyWords);
+            entries[base + keyWords + EXPIRATION] = Long.MAX_VALUE;
+            setRefCount(base + keyWords, 1);
+            values[entry] = value;
+
+            place(index, slotFor(hash, entry));
+            size++;
+            version++;
+        }
+
+        private long slotFor(int hash, int entry) {
+            return ((long) hash << 32) | ((entry + 1) & 0xffffffffL);
+        }
+
+        private void place(long[] index, long slot) {
+            int mask = index.length - 1;
+            int i = (int) (slot >>> 32) & mask;
+            while (index[i] != 0)
+                i = (i + 1) & mask;
+            index[i] = slot;
+        }
+
+        private void growIndex() {
+            long[] newIndex = new long[index.length * 2];
+            for (long slot : index) {
+                if (slot != 0)
+                    place(newIndex, slot);
+            }
+            index = newIndex;
+        }
+
+        /* Removes an entry, shifting back the index slots that follow it so
+         * that lookups need no tombstones. */
+        private void remove(int entry) {
+            version++;
+            int mask = index.length - 1;
+            int i = hash(entries, entry * stride) & mask;
+            while ((int) index[i] - 1 != entry)
+                i = (i + 1) & mask;
+
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                long slot = index[j];
+                if (slot == 0)
+                    break;
+                int home = (int) (slot >>> 32) & mask;
+                boolean inPlace = i <= j ? (i < home && home <= j)
+                                         : (i < home || home <= j);
+                if (!inPlace) {
+                    index[i] = slot;
+                    i = j;
+                }
+            }
+            index[i] = 0;
+
+            entries[entry * stride + keyWords + META] = 0;
+            values[entry] = null;
+            if (numFreeEntries == freeEntries.length)
+                freeEntries = Arrays.copyOf(freeEntries, freeEntries.length * 2);
+            freeEntries[numFreeEntries++] = entry;
+            size--;
+            version++;
+        }
+
+        private void enqueueExpiring(int entry, long expiration) {
+            int capacity = expiring.length / 2;
+            if (expiringTail - expiringHead == capacity) {
+                long[] queue = new long[expiring.length * 2];
+                for (int i = 0; i < capacity; i++) {
+                    int pos = ((expiringHead + i) & (capacity - 1)) * 2;
+                    queue[i * 2] = expiring[pos];
+                    queue[i * 2 + 1] = expiring[pos + 1];
+                }
+                expiring = queue;
+                expiringHead = 0;
+                expiringTail = capacity;
+                capacity *= 2;
+            }
+            int pos = (expiringTail++ & (capacity - 1)) * 2;
+            expiring[pos] = entry;
+            expiring[pos + 1] = expiration;
+        }
+
+        /* Dequeues the next entry that has been idle past its expiration,
+         * marking it as expiring, or returns -1 if there's none. As with the
+         * TimedExpirationMap, the queue only flags entries that should be
+         * checked: the canonical expiration is the one stored in the entry. */
+        private int nextExpired(long now) {
+            int mask = expiring.length / 2 - 1;
+            while (expiringHead != expiringTail) {
+                int pos = (expiringHead & mask) * 2;
+                if (expiring[pos + 1] > now)
+                    return -1;
+                int entry = (int) expiring[pos];
+                expiringHead++;
+
+                int base = entry * stride + keyWords;
+                long meta = entries[base + META];
+                if ((meta & USED) != 0 && (int) meta == 0 &&
+                    entries[base + EXPIRATION] <= now) {
+                    setRefCount(base, EXPIRING);
+                    return entry;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.state;
+
+/**
+ * Packs the keys of a per-flow state table into fixed-width words, so that
+ * a CompactFlowStateTable can store them in flat arrays instead of as
+ * objects.
+ *
+ * @param <K> Type of the keys in the table
+ */
+public interface FlowStateCodec<K> {
+    /**
+     * The number of words of an encoded key.
+     */
+    int keyWords();
+
+    /**
+     * Encodes a key into keyWords() words of the destination array, starting
+     * at the given offset.
+     */
+    void encodeKey(K key, long[] dst, int offset);
+
+    /**
+     * Decodes a key from keyWords() words of the source array, starting at
+     * the given offset.
+     */
+    K decodeKey(long[] src, int offset);
+}
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman
 
-import java.util.{HashMap, ArrayList}
+import java.util.{ArrayDeque, HashMap, ArrayList}
 
 import akka.actor.{Actor, ActorSystem}
 
@@ -66,6 +66,12 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private val flowRemoveCommandsToRetry = new ArrayList[FlowOperation](
         flowProcessor.capacity)
 
+    /* Flows removed from the indexes that are waiting for a FlowOperation,
+     * or for room in the FlowProcessor, to be deleted from the datapath. */
+    private val pendingFlowDeletions = new ArrayDeque[ManagedFlow](
+        flowProcessor.capacity)
+    private val maxPendingFlowDeletions = flowProcessor.capacity
+
     private val dpFlows = new HashMap[FlowMatch, ManagedFlow](maxFlows)
 
     metrics.currentDpFlowsMetric register new Gauge[Long] {
@@ -91,7 +97,8 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         }
     }
 
-    override def shouldProcess() = completedFlowOperations.size > 0
+    override def shouldProcess() =
+        completedFlowOperations.size > 0 || !pendingFlowDeletions.isEmpty
 
     override def process(): Unit = {
         processCompletedFlowOperations()
@@ -121,25 +128,60 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
-            if (req.isFailed) {
+            if (req.opId == FlowOperation.GET) {
+                flowGetCompleted(req)
+            } else if (req.isFailed) {
                 flowDeleteFailed(req)
             } else {
                 flowDeleteSucceeded(req)
             }
         }
         retryFailedFlowOperations()
+        ejectPendingFlows()
+    }
+
+    override protected def requestFlowStats(flow: ManagedFlow): Unit = {
+        val flowOp = pooledFlowOperations.take
+        if (flowOp ne null) {
+            flowOp.reset(FlowOperation.GET, flow, retries = 0)
+            if (!flowProcessor.tryGet(datapathId, flow.flowMatch, flowOp)) {
+                log.debug(s"Skipping idle check of $flow, flow processor is busy")
+                flowOp.clear()
+            }
+        }
+    }
+
+    private def flowGetCompleted(req: FlowOperation): Unit = {
+        if (req.isFailed) {
+            log.debug(s"Failed to get the statistics of ${req.managedFlow}",
+                      req.failure)
+        } else {
+            val stats = req.flowMetadata.getStats
+            meters.updateFlow(req.managedFlow.flowMatch, stats)
+            flowStatsReceived(req.managedFlow, stats, clock.tick)
+        }
+        req.clear()
     }
 
     private def retryFailedFlowOperations(): Unit = {
         var i = 0
+        var ejected = 0
         while (i < flowRemoveCommandsToRetry.size()) {
             val cmd = flowRemoveCommandsToRetry.get(i)
             val fmatch = cmd.managedFlow.flowMatch
             val seq = cmd.managedFlow.sequence
-            flowProcessor.tryEject(seq, datapathId, fmatch, cmd)
+            // Keep the commands the FlowProcessor has no room for yet
+            if (!flowProcessor.tryEject(seq, datapathId, fmatch, cmd)) {
+                flowRemoveCommandsToRetry.set(i - ejected, cmd)
+            } else {
+                ejected += 1
+            }
             i += 1
         }
-        flowRemoveCommandsToRetry.clear()
+        while (ejected > 0) {
+            flowRemoveCommandsToRetry.remove(flowRemoveCommandsToRetry.size() - 1)
+            ejected -= 1
+        }
     }
 
     private def flowDeleteFailed(req: FlowOperation): Unit = {
@@ -178,28 +220,52 @@ trait FlowController extends FlowIndexer with FlowTagIndexer
         override def shouldWakeUp() = completedFlowOperations.size > 0
     }
 
-    private def takeFlowOperation(flow: ManagedFlow): FlowOperation = {
-        var flowOp: FlowOperation = null
-        while ({ flowOp = pooledFlowOperations.take; flowOp } eq null) {
-            processCompletedFlowOperations()
-            if (pooledFlowOperations.available == 0) {
-                log.debug("Parking until the pending flow operations complete")
-                flowOperationParkable.park()
-            }
-        }
-        flowOp.reset(flow, retries = 10)
-        flowOp
+    private var awaitedFlowSequence = 0L
+    private val flowCreationParkable = new Parkable {
+        override def shouldWakeUp() =
+            flowProcessor.isCreated(awaitedFlowSequence)
     }
 
+    /**
+     * Queues the deletion of a flow from the datapath. Deletions are handed
+     * to the FlowProcessor in batches as FlowOperations and room in the
+     * FlowProcessor becomes available, and it coalesces them into multi-message
+     * writes. When the backlog of deletions grows beyond the capacity of the
+     * FlowProcessor, the simulation thread parks until some of the pending
+     * operations complete.
+     */
     private def removeFlowFromDatapath(flow: ManagedFlow): Unit = {
         log.debug(s"Removing flow $flow from datapath")
-        val flowOp = takeFlowOperation(flow)
-        // Spin while we try to eject the flow. This can happen if we invalidated
-        // a flow so close to its creation that it has not been created yet.
-        while (!flowProcessor.tryEject(flow.sequence, datapathId,
-                                       flow.flowMatch, flowOp)) {
+        if (!flowProcessor.isCreated(flow.sequence)) {
+            // We invalidated a flow so close to its creation that it has not
+            // been created yet, so wait for the FlowProcessor to catch up.
+            awaitedFlowSequence = flow.sequence
+            flowCreationParkable.park()
+        }
+        flow.ref()
+        pendingFlowDeletions.add(flow)
+        ejectPendingFlows()
+        while (pendingFlowDeletions.size() > maxPendingFlowDeletions) {
+            log.debug("Parking until the pending flow operations complete")
+            flowOperationParkable.park()
             processCompletedFlowOperations()
-            Thread.`yield`()
+        }
+    }
+
+    private def ejectPendingFlows(): Unit = {
+        var flow: ManagedFlow = null
+        while ({ flow = pendingFlowDeletions.peek(); flow } ne null) {
+            val flowOp = pooledFlowOperations.take
+            if (flowOp eq null)
+                return
+            flowOp.reset(FlowOperation.DELETE, flow, retries = 10)
+            if (!flowProcessor.tryEject(flow.sequence, datapathId,
+                                        flow.flowMatch, flowOp)) {
+                flowOp.clear()
+                return
+            }
+            pendingFlowDeletions.poll()
+            flow.unref()
         }
     }
 }
@@ -16,7 +16,7 @@
 
 package org.midonet.midolman
 
-import java.util.UUID
+import java.util.{ArrayList => JArrayList, UUID}
 
 import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
@@ -24,6 +24,7 @@ import scala.util.control.NonFatal
 import scala.util.{Failure, Success}
 
 import akka.actor._
+import com.codahale.metrics.Gauge
 import com.typesafe.scalalogging.Logger
 import org.jctools.queues.MpscArrayQueue
 import org.slf4j.{LoggerFactory, MDC}
@@ -32,7 +33,8 @@ import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
 import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
-import org.midonet.midolman.flows.FlowExpirationIndexer
+import org.midonet.midolman.flows.{FlowExpirationIndexer, SimulationCache}
+import org.midonet.midolman.io.PacketInbox
 import org.midonet.midolman.logging.{ActorLogWithoutPath, FlowTracingContext}
 import org.midonet.midolman.management.PacketTracing
 import org.midonet.midolman.monitoring.FlowRecorder
@@ -48,6 +50,7 @@ import org.midonet.midolman.topology.devices.Port
 import org.midonet.midolman.topology.{RouterManager, VirtualTopologyActor, VxLanPortMapper}
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.odp._
+import org.midonet.odp.flows.FlowAction
 import org.midonet.packets._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger._
@@ -57,6 +60,8 @@ import org.midonet.util.concurrent._
 
 object PacketWorkflow {
     case class HandlePackets(packet: Array[Packet])
+    case object PacketsPending
+    case object PushFlowState
     case class RestartWorkflow(pktCtx: PacketContext, error: Throwable)
 
     trait SimulationResult
@@ -70,6 +75,12 @@ object PacketWorkflow {
     case object FlowCreated extends SimulationResult
     case object DuplicatedFlow extends SimulationResult
     case object GeneratedPacket extends SimulationResult
+
+    /* The number of empty polls of the packet inbox before the worker goes
+     * back to its mailbox, and the number of batches it handles from the
+     * inbox before it lets the other messages in its mailbox through. */
+    private final val InboxSpins = 1000
+    private final val MaxInboxBatches = 64
 }
 
 class CookieGenerator(val start: Int, val increment: Int) {
@@ -152,7 +163,8 @@ class PacketWorkflow(
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
             val flowRecorder: FlowRecorder,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val inbox: PacketInbox = null)
         extends Actor with ActorLogWithoutPath with Stash with Backchannel
         with UnderlayTrafficHandler with FlowTranslator with RoutingWorkflow
         with FlowController with BackChannelHandler {
@@ -183,12 +195,23 @@ class PacketWorkflow(
             hostId,
             dpState,
             this,
-            config.datapath.controlPacketTos)
+            config.datapath.controlPacketTos,
+            config.datapath.stateBatchInterval,
+            config.datapath.stateBatchCompression,
+            pushStatePacket)
+
+    private var stateBatchPushScheduled = false
 
     protected val datapathId = dpState.datapath.getIndex
 
     protected val arpBroker = new ArpRequestBroker(genPacketEmitter, config, backChannel )
 
+    protected val simulationCache = new SimulationCache(config.simulationCacheSize)
+
+    metrics.currentSimulationCacheEntries register new Gauge[Long] {
+        override def getValue = simulationCache.size
+    }
+
     private val invalidateExpiredConnTrackKeys =
         new Reducer[ConnTrackKey, ConnTrackValue, Unit]() {
             override def apply(u: Unit, k: ConnTrackKey, v: ConnTrackValue) {
@@ -206,21 +229,33 @@ class PacketWorkflow(
 
     system.scheduler.schedule(20 millis, 5 seconds, self, CheckBackchannels)
 
+    if (inbox ne null)
+        inbox.attach(self)
+
+    private val handleBatch = (packets: Array[Packet]) => handlePackets(packets)
+
     override def receive = {
         case m: FlowStateBatch =>
             replicator.importFromStorage(m)
 
         case HandlePackets(packets) =>
-            var i = 0
-            while (i < packets.length && packets(i) != null) {
-                handlePacket(packets(i))
-                i += 1
-            }
+            // Batches sent to the worker directly come this way, after the
+            // batches queued in the inbox before them.
+            if (inbox ne null)
+                inbox.drain(handleBatch, Int.MaxValue)
+            handlePackets(packets)
             process()
 
+        case PacketsPending =>
+            pollInbox()
+
         case CheckBackchannels =>
             process()
 
+        case PushFlowState =>
+            stateBatchPushScheduled = false
+            process()
+
         case RestartWorkflow(pktCtx, error) =>
             if (pktCtx.idle) {
                 metrics.packetsOnHold.dec()
@@ -236,6 +271,36 @@ class PacketWorkflow(
             // Else the packet may have already been expired and dropped
     }
 
+    /* Handles the batches in the inbox, polling it while it keeps getting
+     * batches, until it has been empty for a while or the worker has handled
+     * enough batches to let the rest of the mailbox through. In the latter
+     * case, the worker keeps the inbox scheduled and resumes polling after
+     * the messages ahead of it. */
+    private def pollInbox(): Unit = {
+        var spins = InboxSpins
+        var drained = 0
+        while (spins > 0 && drained < MaxInboxBatches) {
+            val n = inbox.drain(handleBatch, MaxInboxBatches - drained)
+            if (n > 0) {
+                drained += n
+                process()
+                spins = InboxSpins
+            } else {
+                spins -= 1
+            }
+        }
+        if (drained >= MaxInboxBatches || inbox.idle())
+            self ! PacketsPending
+    }
+
+    private def handlePackets(packets: Array[Packet]): Unit = {
+        var i = 0
+        while (i < packets.length && packets(i) != null) {
+            handlePacket(packets(i))
+            i += 1
+        }
+    }
+
     override def shouldProcess(): Boolean =
         super.shouldProcess() ||
         genPacketEmitter.pendingPackets > 0 ||
@@ -262,6 +327,11 @@ class PacketWorkflow(
         }
     }
 
+    override def invalidateFlowsFor(tag: FlowTag): Unit = {
+        simulationCache.invalidate(tag)
+        super.invalidateFlowsFor(tag)
+    }
+
     override def handle(msg: BackChannelMessage): Unit = msg match {
         case m: RouterManager.InvalidateFlows => handle(m)
         case tag: FlowTag => invalidateFlowsFor(tag)
@@ -277,6 +347,25 @@ class PacketWorkflow(
         natLeaser.obliterateUnusedBlocks()
         traceStateTable.expireIdleEntries()
         arpBroker.process()
+        simulationCache.expire(clock.tick)
+        pushStateBatches()
+    }
+
+    private def pushStateBatches(): Unit = {
+        replicator.pushBatches(NanoClock.DEFAULT.tick)
+        if (replicator.hasPendingBatches && !stateBatchPushScheduled) {
+            stateBatchPushScheduled = true
+            system.scheduler.scheduleOnce(
+                config.datapath.stateBatchInterval nanos, self, PushFlowState)
+        }
+    }
+
+    /* Executes a packet carrying batched flow state, which doesn't belong
+     * to any simulated packet. */
+    private def pushStatePacket(eth: Ethernet, actions: JArrayList[FlowAction]): Unit = {
+        val context = packetContext(new Packet(eth, FlowMatches.fromEthernetPacket(eth)))
+        context.packetActions.addAll(actions)
+        dpChannel.handoff(context)
     }
 
     protected def packetContext(packet: Packet): PacketContext =
@@ -492,12 +581,42 @@ class PacketWorkflow(
         if (context.origMatch.isFromTunnel) {
             handleFromTunnel(context, inPortNo)
         } else if (resolveVport(context, inPortNo)) {
-            processSimulationResult(context, simulatePacketIn(context))
+            simulateOrApplyCached(context)
         } else {
             processSimulationResult(context, handleBgp(context, inPortNo))
         }
     }
 
+    /**
+     * Applies the cached outcome of an earlier simulation of a packet with the
+     * same values in the fields that simulation read, if there is one, and
+     * otherwise simulates the packet and caches the outcome.
+     */
+    private def simulateOrApplyCached(context: PacketContext): SimulationResult = {
+        val useCache = simulationCache.maxEntries > 0 &&
+                       context.packet.getReason != Packet.Reason.FlowActionUserspace &&
+                       !isDhcp(context.origMatch)
+        if (useCache) {
+            val entry = simulationCache.lookup(context.origMatch, clock.tick)
+            if (entry ne null) {
+                context.log.debug("Applying the cached simulation of an " +
+                                  s"equivalent packet: ${entry.key}")
+                entry.applyTo(context)
+                metrics.simulationCacheHits.mark()
+                tryAddFlow(context, entry.expiration)
+                return FlowCreated
+            }
+        }
+
+        val result = processSimulationResult(context, simulatePacketIn(context))
+        if (useCache && result == FlowCreated && (context.flow ne null) &&
+            context.flow.expirationType == FlowExpirationIndexer.FLOW_EXPIRATION.typeId) {
+            simulationCache.add(context, FlowExpirationIndexer.FLOW_EXPIRATION,
+                                clock.tick)
+        }
+        result
+    }
+
     private def resolveVport(context: PacketContext, inPortNo: Int): Boolean = {
         val inPortId = dpState getVportForDpPortNumber inPortNo
         context.inputPort = inPortId
@@ -571,13 +690,13 @@ class PacketWorkflow(
         replicator.accept(context.ethernet)
     }
 
-    private def handleDHCP(context: PacketContext): Boolean = {
-        val fmatch = context.origMatch
-        val isDhcp = fmatch.getEtherType == IPv4.ETHERTYPE &&
-                     fmatch.getNetworkProto == UDP.PROTOCOL_NUMBER &&
-                     fmatch.getSrcPort == 68 && fmatch.getDstPort == 67
+    private def isDhcp(fmatch: FlowMatch): Boolean =
+        fmatch.getEtherType == IPv4.ETHERTYPE &&
+        fmatch.getNetworkProto == UDP.PROTOCOL_NUMBER &&
+        fmatch.getSrcPort == 68 && fmatch.getDstPort == 67
 
-        if (!isDhcp)
+    private def handleDHCP(context: PacketContext): Boolean = {
+        if (!isDhcp(context.origMatch))
             return false
 
         val port = VirtualTopologyActor.tryAsk[Port](context.inputPort)
@@ -31,16 +31,17 @@ import org.midonet.cluster.DataClient
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{DatapathChannel, FlowProcessor}
+import org.midonet.midolman.io.PacketInbox
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.FlowRecorderFactory
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.{DhcpConfigFromDataclient, DhcpConfigFromZoom}
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackCodec, ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatCodec, NatKey}
 import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
 import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
 import org.midonet.midolman.topology.{RouterManager, VirtualTopology}
-import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.sdn.state.{CompactFlowStateTable, PartitionedFlowStateTable}
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
 
@@ -49,7 +50,10 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    /* The inboxes are empty when the workers only take packets through
+     * their mailboxes. */
+    case class Workers(list: IndexedSeq[ActorRef],
+                       inboxes: IndexedSeq[PacketInbox] = IndexedSeq.empty)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
@@ -90,6 +94,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var inboxes = immutable.IndexedSeq[PacketInbox]()
 
     @Inject
     var counter: StatisticalCounter = null
@@ -118,25 +123,30 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     @Inject
     var flowRecorderFactory: FlowRecorderFactory = _
 
-    var connTrackStateTable: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
-    var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
+    var connTrackStateTable: CompactFlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var natStateTable: CompactFlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
-    var traceStateTable: ShardedFlowStateTable[TraceKey, TraceContext] = _
+    var traceStateTable: PartitionedFlowStateTable[TraceKey, TraceContext] = _
 
     override def preStart(): Unit = {
         super.preStart()
         NUM_WORKERS = config.simulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry, NUM_WORKERS)
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        connTrackStateTable = new CompactFlowStateTable[ConnTrackKey, ConnTrackValue](
+            ConnTrackCodec, clock)
+        natStateTable = new CompactFlowStateTable[NatKey, NatBinding](NatCodec, clock)
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
             val clock = PacketsEntryPoint.this.clock
         }
-        traceStateTable = new ShardedFlowStateTable(clock)
+        traceStateTable = new PartitionedFlowStateTable(clock)
 
+        if (config.packetHandoffQueueSize > 0) {
+            inboxes = immutable.IndexedSeq.fill(NUM_WORKERS)(
+                new PacketInbox(config.packetHandoffQueueSize))
+        }
         for (i <- 0 until NUM_WORKERS) {
             workers :+= startWorker(i)
         }
@@ -175,14 +185,15 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             dhcpConfig,
             backChannel.registerProcessor(),
             flowProcessor,
-            connTrackStateTable.addShard(log = shardLogger(connTrackStateTable)),
-            natStateTable.addShard(log = shardLogger(natStateTable)),
+            connTrackStateTable.addShard(shardLogger(connTrackStateTable).underlying),
+            natStateTable.addShard(shardLogger(natStateTable).underlying),
             traceStateTable.addShard(log = shardLogger(traceStateTable)),
             storageFactory.create(),
             natLeaser,
             metrics,
             flowRecorderFactory.newFlowRecorder(),
-            counter.addAndGet(index, _: Int))
+            counter.addAndGet(index, _: Int),
+            if (inboxes.isEmpty) null else inboxes(index))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -194,6 +205,6 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, inboxes)
     }
 }
@@ -73,6 +73,8 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
 
     def dhcpMtu: Short = getInt(s"$PREFIX.midolman.dhcp_mtu").toShort
     def simulationThreads = getInt(s"$PREFIX.midolman.simulation_threads")
+    def simulationCacheSize = getInt(s"$PREFIX.midolman.simulation_cache_size")
+    def packetHandoffQueueSize = getInt(s"$PREFIX.midolman.packet_handoff_queue_size")
     def outputChannels = getInt(s"$PREFIX.midolman.output_channels")
     def inputChannelThreading = getString(s"$PREFIX.midolman.input_channel_threading")
     def datapathName = Try(getString(s"$PREFIX.midolman.datapath")).getOrElse("midonet")
@@ -104,6 +106,8 @@ class RouterConfig(val conf: Config, val schema: Config) extends TypeFailureFall
     val PREFIX = "agent.router"
     def maxBgpPeerRoutes = conf.getInt(s"$PREFIX.max_bgp_peer_routes")
     def bgpZookeeperHoldtime = conf.getDuration(s"$PREFIX.bgp_zookeeper_holdtime", TimeUnit.SECONDS)
+    def bgpRouteBatchInterval = conf.getDuration(s"$PREFIX.bgp_route_batch_interval", TimeUnit.MILLISECONDS)
+    def bgpRouteBatchSize = conf.getInt(s"$PREFIX.bgp_route_batch_size")
 }
 
 class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -115,6 +119,13 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
 
     def maxFlowCount = getInt(s"$PREFIX.max_flow_count")
 
+    def netlinkWriteBatchSize = getInt(s"$PREFIX.netlink_write_batch_size")
+    def netlinkReadBatchSize = getInt(s"$PREFIX.netlink_read_batch_size")
+
+    def upcallPortQueueSize = getInt(s"$PREFIX.upcall_port_queue_size")
+    def upcallMaxBatchSize = getInt(s"$PREFIX.upcall_max_batch_size")
+    def upcallTunnelWeight = getInt(s"$PREFIX.upcall_tunnel_weight")
+
     def vxlanVtepUdpPort = getInt(s"$PREFIX.vxlan_vtep_udp_port")
     def vxlanOverlayUdpPort = getInt(s"$PREFIX.vxlan_overlay_udp_port")
 
@@ -124,6 +135,8 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
 
     def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
+    def stateBatchInterval = getDuration(s"$PREFIX.state_batch_interval", TimeUnit.NANOSECONDS)
+    def stateBatchCompression = getBoolean(s"$PREFIX.state_batch_compression")
 }
 
 class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -153,4 +166,6 @@ class FlowHistoryConfig(val conf: Config, val schema: Config) extends TypeFailur
     def enabled = getBoolean("agent.flow_history.enabled")
     def encoding = getString("agent.flow_history.encoding")
     def udpEndpoint = getString("agent.flow_history.udp_endpoint")
+    def ringSize = getInt("agent.flow_history.ring_size")
+    def maxDatagramSize = getInt("agent.flow_history.max_datagram_size")
 }
@@ -16,6 +16,7 @@
 
 package org.midonet.midolman.datapath
 
+import java.nio.channels.SelectionKey
 import java.nio.{BufferOverflowException, ByteBuffer}
 import java.util.ArrayList
 
@@ -27,6 +28,7 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
+import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink._
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp._
@@ -46,6 +48,22 @@ object FlowProcessor {
         classOf[FlowProcessor].getDeclaredField("lastSequence"))
 
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
+    private val INITIAL_BUF_CAPACITY = 8 * 1024
+
+    /**
+     * The default maximum number of flow operations coalesced into a single
+     * write, so that setting up or invalidating many flows costs one syscall
+     * per batch of them.
+     */
+    val DEFAULT_WRITE_BATCH_SIZE = 64
+
+    /**
+     * The default maximum number of replies drained from the channel before
+     * completing the corresponding requests.
+     */
+    val DEFAULT_READ_BATCH_SIZE = 64
+
+    private val REPLY_SELECT_TIMEOUT_MILLIS = 100L
 }
 
 class FlowProcessor(dpState: DatapathState,
@@ -53,7 +71,9 @@ class FlowProcessor(dpState: DatapathState,
                     maxPendingRequests: Int,
                     maxRequestSize: Int,
                     channelFactory: NetlinkChannelFactory,
-                    clock: NanoClock)
+                    clock: NanoClock,
+                    writeBatchSize: Int = FlowProcessor.DEFAULT_WRITE_BATCH_SIZE,
+                    readBatchSize: Int = FlowProcessor.DEFAULT_READ_BATCH_SIZE)
     extends EventPoller.Handler[PacketContextHolder]
     with Backchannel
     with LifecycleAware {
@@ -66,8 +86,19 @@ class FlowProcessor(dpState: DatapathState,
     private val datapathId = dpState.datapath.getIndex
     private val supportsMegaflow = dpState.datapath.supportsMegaflow()
 
-    private var writeBuf = BytesUtil.instance.allocateDirect(64 * 1024)
-    private val channel = channelFactory.create(blocking = true)
+    /**
+     * The flow creations of the current batch, which are written to the
+     * datapath together when the batch is full or when the Disruptor signals
+     * the end of the current batch of events.
+     */
+    private val writeBufs = Array.fill(Math.max(1, writeBatchSize)) {
+        BytesUtil.instance.allocateDirect(INITIAL_BUF_CAPACITY)
+    }
+    private val pendingContexts = new Array[PacketContext](writeBufs.length)
+    private var pendingFlows = 0
+    private var pendingSequence = Sequencer.INITIAL_CURSOR_VALUE
+
+    private val channel = channelFactory.create(blocking = false)
     private val pid = channel.getLocalAddress.getPid
 
     {
@@ -81,7 +112,8 @@ class FlowProcessor(dpState: DatapathState,
         maxPendingRequests,
         maxRequestSize,
         BytesUtil.instance.allocateDirect(64 * 1024),
-        clock)
+        clock,
+        writeBatchSize = writeBatchSize)
 
     private val protocol = new OvsProtocol(pid, families)
 
@@ -101,40 +133,92 @@ class FlowProcessor(dpState: DatapathState,
                     context.log.debug(s"Applying mask $flowMask")
                     flowMask
                 } else null
-                writeFlow(datapathId, flowMatch.getKeys,
-                          context.flowActions, mask)
-                context.log.debug("Created datapath flow")
+                prepareFlow(datapathId, flowMatch.getKeys,
+                            context.flowActions, mask)
+                pendingContexts(pendingFlows) = context
+                pendingFlows += 1
             } catch { case t: Throwable =>
                 context.log.error("Failed to create datapath flow", t)
+                writeBufs(pendingFlows).clear()
             } finally {
                 flowMask.clear()
-                writeBuf.clear()
             }
 
-            lastSequence = sequence
+            pendingSequence = sequence
+        }
+        if (pendingFlows > 0 && (endOfBatch || pendingFlows == writeBufs.length ||
+                                 !isAligned(writeBufs(pendingFlows - 1)))) {
+            writePendingFlows()
         }
         true
     }
 
-    private def writeFlow(datapathId: Int, keys: ArrayList[FlowKey],
-                          actions: ArrayList[FlowAction], mask: FlowMask): Unit =
+    private def prepareFlow(datapathId: Int, keys: ArrayList[FlowKey],
+                            actions: ArrayList[FlowAction], mask: FlowMask): Unit = {
+        val writeBuf = writeBufs(pendingFlows)
         try {
             protocol.prepareFlowCreate(datapathId, keys, actions, mask, writeBuf)
-            writer.write(writeBuf)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= MAX_BUF_CAPACITY)
                 throw e
             val newCapacity = capacity * 2
-            writeBuf = BytesUtil.instance.allocateDirect(newCapacity)
+            writeBufs(pendingFlows) = BytesUtil.instance.allocateDirect(newCapacity)
             log.debug(s"Increasing buffer size to $newCapacity")
-            writeFlow(datapathId, keys, actions, mask)
+            prepareFlow(datapathId, keys, actions, mask)
+        }
+    }
+
+    /* The kernel expects each message of a multi-message write to start at
+     * an aligned offset, so a flow whose length is not aligned ends the batch
+     * in which it is written. */
+    private def isAligned(buf: ByteBuffer): Boolean =
+        NetlinkMessage.align(buf.remaining()) == buf.remaining()
+
+    /**
+     * Writes the pending flow creations through a single gathering write,
+     * after which they are considered created and can thus be deleted.
+     */
+    private def writePendingFlows(): Unit = {
+        try {
+            if (pendingFlows == 1)
+                writer.write(writeBufs(0))
+            else if (pendingFlows > 1)
+                writer.write(writeBufs, 0, pendingFlows)
+            var i = 0
+            while (i < pendingFlows) {
+                pendingContexts(i).log.debug("Created datapath flow")
+                i += 1
+            }
+        } catch { case t: Throwable =>
+            var i = 0
+            while (i < pendingFlows) {
+                pendingContexts(i).log.error("Failed to create datapath flow", t)
+                i += 1
+            }
+        } finally {
+            var i = 0
+            while (i < pendingFlows) {
+                writeBufs(i).clear()
+                pendingContexts(i) = null
+                i += 1
+            }
+            pendingFlows = 0
         }
+        lastSequence = pendingSequence
+    }
 
     def capacity = broker.capacity
 
     def hasPendingOperations = broker.hasRequestsToWrite
 
+    /**
+     * Returns whether the flow create operation for the specified Disruptor
+     * sequence has been completed, and so whether the flow can be ejected.
+     */
+    def isCreated(sequence: Long): Boolean =
+        unsafe.getLongVolatile(this, sequenceAddress) >= sequence
+
     /**
      * Tries to eject a flow only if the corresponding Disruptor sequence is
      * greater than the one specified, meaning that the corresponding flow
@@ -195,11 +279,27 @@ class FlowProcessor(dpState: DatapathState,
         override def onNext(t: ByteBuffer): Unit = { }
     }
 
+    /**
+     * Used by the replies thread to wait for replies when the channel is non
+     * blocking, so that it can drain all of them once they arrive.
+     */
+    private val replySelector =
+        if (channel.isBlocking) null
+        else {
+            val selector = channel.provider().openSelector()
+            channel.register(selector, SelectionKey.OP_READ)
+            selector
+        }
+
     val replies = new Thread("flow-processor-replies") {
         override def run(): Unit =
             while (channel.isOpen) {
                 try {
-                    broker.readReply(defaultObserver)
+                    if (replySelector ne null) {
+                        replySelector.select(REPLY_SELECT_TIMEOUT_MILLIS)
+                        replySelector.selectedKeys().clear()
+                    }
+                    broker.readReplies(defaultObserver, readBatchSize)
                 } catch { case t: Throwable =>
                     log.debug("Error while reading replies", t)
                 }
@@ -213,6 +313,8 @@ class FlowProcessor(dpState: DatapathState,
 
     override def onShutdown(): Unit = {
         channel.close()
+        if (replySelector ne null)
+            replySelector.close()
         replies.interrupt()
     }
 }
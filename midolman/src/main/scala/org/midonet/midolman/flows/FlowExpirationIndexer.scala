@@ -16,110 +16,148 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayDeque
-
 import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
 
+import org.midonet.odp.flows.FlowStats
+
 object FlowExpirationIndexer {
+    /**
+     * The hard and idle timeouts of a flow, in nanoseconds. An idle timeout
+     * of zero means the flow only expires through its hard timeout.
+     */
     sealed abstract class Expiration {
         def value: Long
+        def idleValue: Long
         val typeId: Int
     }
     object ERROR_CONDITION_EXPIRATION extends Expiration {
         val value = (5 seconds).toNanos
+        val idleValue = 0L
         val typeId = 0
     }
     object FLOW_EXPIRATION extends Expiration {
         var value = (1 minutes).toNanos
+        var idleValue = (15 seconds).toNanos
         val typeId = 1
     }
     object STATEFUL_FLOW_EXPIRATION extends Expiration {
         val value = (1 minute).toNanos
+        val idleValue = (15 seconds).toNanos
         val typeId = 2
     }
     object TUNNEL_FLOW_EXPIRATION extends Expiration {
         def value = FLOW_EXPIRATION.value * 5
+        def idleValue = FLOW_EXPIRATION.value
         val typeId = 3
     }
-
-    private final val maxType = 4
 }
 
 /**
  * This trait deals with flow expiration. It registers all new flows and removes
- * them when the specified expiration time has elapsed.
+ * them when either their hard timeout elapses or they have been idle for
+ * longer than their idle timeout.
+ *
+ * Flows are kept in a FlowTimingWheel, scheduled at the earliest of their hard
+ * deadline and their next idle check. When an idle check comes due, the flow's
+ * datapath statistics are requested through requestFlowStats() and the flow
+ * is rescheduled; when the statistics arrive through flowStatsReceived(), the
+ * flow is removed if its packet count did not change since the last check.
+ *
+ * When the number of flows exceeds maxFlows, the flows that are closest to
+ * their deadline are evicted first. As the deadline of a flow is pushed back
+ * every time it is found to be active, these are the flows whose last known
+ * activity is the oldest.
  */
 trait FlowExpirationIndexer extends FlowIndexer {
-    import FlowExpirationIndexer._
 
     val log: Logger
     val maxFlows: Int
 
-    private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
+    private val wheel = new FlowTimingWheel()
 
-    {
-        expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-        expirationQueues(FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(STATEFUL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(TUNNEL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-    }
+    /**
+     * Requests the datapath statistics of a flow, which should be handed
+     * back through flowStatsReceived(). Implementations may drop the request
+     * if it can't be served immediately, in which case the flow is treated as
+     * active until its next idle check.
+     */
+    protected def requestFlowStats(flow: ManagedFlow): Unit
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        expirationQueues(flow.expirationType).addLast(flow)
+        wheel.start(flow.lastActivityNanos)
+        wheel.schedule(flow, nextDeadline(flow, flow.lastActivityNanos))
         flow.ref()
     }
 
+    abstract override def removeFlow(flow: ManagedFlow): Unit = {
+        super.removeFlow(flow)
+        if (wheel.cancel(flow))
+            flow.unref()
+    }
+
     def checkFlowsExpiration(now: Long): Unit = {
-        checkHardTimeOutExpiration(now)
+        checkExpiredFlows(now)
         manageFlowTableSize()
     }
 
-    private def checkHardTimeOutExpiration(now: Long): Unit = {
-        var i = 0
-        while (i < maxType) {
-            var flow: ManagedFlow = null
-            val queue = expirationQueues(i)
-            while (({ flow = queue.peekFirst(); flow } ne null) &&
-                   now >= flow.absoluteExpirationNanos) {
+    /**
+     * Updates the activity of a flow from its datapath statistics, removing
+     * it if it has not seen any packets since the last idle check.
+     */
+    def flowStatsReceived(flow: ManagedFlow, stats: FlowStats, now: Long): Unit =
+        if (wheel.isScheduled(flow)) {
+            if (stats.packets == flow.lastPackets) {
+                log.debug(s"Removing flow $flow for idle expiration")
+                removeFlow(flow)
+            } else {
+                flow.lastPackets = stats.packets
+                flow.lastActivityNanos = now
+                wheel.schedule(flow, nextDeadline(flow, now))
+            }
+        }
+
+    private def nextDeadline(flow: ManagedFlow, lastActivity: Long): Long =
+        if (flow.idleTimeoutNanos > 0)
+            math.min(flow.absoluteExpirationNanos,
+                     lastActivity + flow.idleTimeoutNanos)
+        else
+            flow.absoluteExpirationNanos
+
+    private def checkExpiredFlows(now: Long): Unit = {
+        var flow: ManagedFlow = null
+        while ({ flow = wheel.poll(now); flow } ne null) {
+            if (now >= flow.absoluteExpirationNanos) {
                 log.debug(s"Removing flow $flow for hard expiration")
-                removeFlow(queue.pollFirst())
+                removeFlow(flow)
                 flow.unref()
+            } else {
+                // The flow stays scheduled until its next idle check, so that
+                // it still expires if the statistics never arrive.
+                wheel.schedule(flow, nextDeadline(flow, now))
+                requestFlowStats(flow)
             }
-            i += 1
         }
     }
 
     private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
-        var i = 0
-        while (i < maxType) {
-            excessFlows += expirationQueues(i).size()
-            i += 1
-        }
-        excessFlows -= maxFlows
-
+        val excessFlows = wheel.size - maxFlows
         if (excessFlows > 0) {
             log.debug(s"Evicting $excessFlows excess flows")
-            removeOldestDpFlows(excessFlows)
+            evictColdestFlows(excessFlows)
         }
     }
 
-    private def removeOldestDpFlows(numFlowsToEvict: Int): Unit = {
-        var i = 0
+    private def evictColdestFlows(numFlowsToEvict: Int): Unit = {
         var evicted = 0
-        while (i < maxType) {
-            val queue = expirationQueues(i)
-            var flow: ManagedFlow = null
-            while (evicted < numFlowsToEvict &&
-                   ({ flow = queue.pollFirst(); flow } ne null)) {
-                removeFlow(flow)
-                flow.unref()
-                evicted += 1
-            }
-            i += 1
+        var flow: ManagedFlow = null
+        while (evicted < numFlowsToEvict &&
+               ({ flow = wheel.pollEarliest(); flow } ne null)) {
+            removeFlow(flow)
+            flow.unref()
+            evicted += 1
         }
     }
 }
@@ -16,55 +16,200 @@
 
 package org.midonet.midolman.flows
 
-import java.util._
-
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
+object FlowTagIndexer {
+    private final val INITIAL_CAPACITY = 1024
+
+    private def spread(id: Long): Int = {
+        val h = id * 0x9E3779B97F4A7C15L
+        (h ^ (h >>> 32)).toInt
+    }
+}
+
+/**
+ * This trait indexes flows by their tags, so that all flows associated with a
+ * tag can be removed when the tag is invalidated.
+ *
+ * The index is an open addressing hash table, keyed by the tags' 64-bit
+ * identifiers, that holds the head of a doubly linked list of the flows for
+ * each tag. The lists are threaded through intrusive links kept in the
+ * ManagedFlows, one per tag of the flow, so that registering and removing a
+ * flow allocates nothing.
+ */
 trait FlowTagIndexer extends FlowIndexer {
-    private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlow]]()
+    import FlowTagIndexer._
+
     val log: Logger
 
+    private var mask = INITIAL_CAPACITY - 1
+    private var ids = new Array[Long](INITIAL_CAPACITY)
+    private var keys = new Array[FlowTag](INITIAL_CAPACITY)
+    private var heads = new Array[ManagedFlow](INITIAL_CAPACITY)
+    private var headIdx = new Array[Int](INITIAL_CAPACITY)
+    private var numTags = 0
+
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        val numTags = flow.tags.size()
+        val numFlowTags = flow.tags.size()
+        flow.ensureTagLinks(numFlowTags)
         var i = 0
-        while (i < numTags) {
-            getOrAdd(flow.tags.get(i)).add(flow)
+        while (i < numFlowTags) {
+            link(flow, i, getOrAdd(flow.tags.get(i)))
             i += 1
         }
+        flow.indexedTags = numFlowTags
     }
 
     abstract override def removeFlow(flow: ManagedFlow): Unit = {
         super.removeFlow(flow)
-        val numTags = flow.tags.size()
+        unindex(flow)
+    }
+
+    def invalidateFlowsFor(tag: FlowTag): Unit = {
+        var invalidated = 0
+        var slot = indexOf(tag)
+        while (slot >= 0) {
+            val flow = heads(slot)
+            removeFlow(flow)
+            // Make progress even if the flow was not removed from the index
+            if (flow.indexedTags > 0)
+                unindex(flow)
+            invalidated += 1
+            slot = indexOf(tag)
+        }
+        log.debug(s"Invalidated $invalidated flows for tag $tag")
+    }
+
+    private def unindex(flow: ManagedFlow): Unit = {
         var i = 0
-        while (i < numTags) {
-            val flows = tagToFlows.get(flow.tags.get(i))
-            if (flows ne null)
-                flows.remove(flow)
+        while (i < flow.indexedTags) {
+            unlink(flow, i)
             i += 1
         }
+        flow.indexedTags = 0
     }
 
-    def invalidateFlowsFor(tag: FlowTag): Unit = {
-        val flows = tagToFlows.remove(tag)
-        log.debug(s"Invalidating ${if (flows ne null) flows.size() else 0} flows for tag $tag")
-        if (flows ne null) {
-            val it = flows.iterator()
-            while (it.hasNext) {
-                removeFlow(it.next())
+    private def link(flow: ManagedFlow, tagIdx: Int, slot: Int): Unit = {
+        val head = heads(slot)
+        val idx = headIdx(slot)
+        flow.tagPrev(tagIdx) = null
+        flow.tagNext(tagIdx) = head
+        flow.tagNextIdx(tagIdx) = idx
+        if (head ne null) {
+            head.tagPrev(idx) = flow
+            head.tagPrevIdx(idx) = tagIdx
+        }
+        heads(slot) = flow
+        headIdx(slot) = tagIdx
+    }
+
+    private def unlink(flow: ManagedFlow, tagIdx: Int): Unit = {
+        val prev = flow.tagPrev(tagIdx)
+        val prevIdx = flow.tagPrevIdx(tagIdx)
+        val next = flow.tagNext(tagIdx)
+        val nextIdx = flow.tagNextIdx(tagIdx)
+        if (prev ne null) {
+            prev.tagNext(prevIdx) = next
+            prev.tagNextIdx(prevIdx) = nextIdx
+        } else {
+            val slot = indexOf(flow.tags.get(tagIdx))
+            if (slot >= 0 && (heads(slot) eq flow) && headIdx(slot) == tagIdx) {
+                if (next ne null) {
+                    heads(slot) = next
+                    headIdx(slot) = nextIdx
+                } else {
+                    delete(slot)
+                }
             }
         }
+        if (next ne null) {
+            next.tagPrev(nextIdx) = prev
+            next.tagPrevIdx(nextIdx) = prevIdx
+        }
+        flow.tagPrev(tagIdx) = null
+        flow.tagNext(tagIdx) = null
     }
 
-    private def getOrAdd(tag: FlowTag): Set[ManagedFlow] = {
-        var set = tagToFlows.get(tag)
-        if (set eq null) {
-            set = Collections.newSetFromMap(new IdentityHashMap())
-            tagToFlows.put(tag, set)
+    private def indexOf(tag: FlowTag): Int = {
+        val id = tag.toLongHash
+        var slot = spread(id) & mask
+        var key: FlowTag = null
+        while ({ key = keys(slot); key } ne null) {
+            if (ids(slot) == id && key == tag)
+                return slot
+            slot = (slot + 1) & mask
+        }
+        -1
+    }
+
+    private def getOrAdd(tag: FlowTag): Int = {
+        val id = tag.toLongHash
+        var slot = spread(id) & mask
+        var key: FlowTag = null
+        while ({ key = keys(slot); key } ne null) {
+            if (ids(slot) == id && key == tag)
+                return slot
+            slot = (slot + 1) & mask
+        }
+        if ((numTags + 1) * 2 > keys.length) {
+            grow()
+            getOrAdd(tag)
+        } else {
+            ids(slot) = id
+            keys(slot) = tag
+            heads(slot) = null
+            numTags += 1
+            slot
+        }
+    }
+
+    /* Removes a slot by shifting back the entries that follow it in its
+     * probe sequence, so that lookups never need tombstones. */
+    private def delete(slot: Int): Unit = {
+        var hole = slot
+        var next = (hole + 1) & mask
+        while (keys(next) ne null) {
+            val ideal = spread(ids(next)) & mask
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                ids(hole) = ids(next)
+                keys(hole) = keys(next)
+                heads(hole) = heads(next)
+                headIdx(hole) = headIdx(next)
+                hole = next
+            }
+            next = (next + 1) & mask
+        }
+        keys(hole) = null
+        heads(hole) = null
+        numTags -= 1
+    }
+
+    private def grow(): Unit = {
+        val oldIds = ids
+        val oldKeys = keys
+        val oldHeads = heads
+        val oldHeadIdx = headIdx
+        val capacity = oldKeys.length * 2
+        mask = capacity - 1
+        ids = new Array[Long](capacity)
+        keys = new Array[FlowTag](capacity)
+        heads = new Array[ManagedFlow](capacity)
+        headIdx = new Array[Int](capacity)
+        var i = 0
+        while (i < oldKeys.length) {
+            if (oldKeys(i) ne null) {
+                var slot = spread(oldIds(i)) & mask
+                while (keys(slot) ne null)
+                    slot = (slot + 1) & mask
+                ids(slot) = oldIds(i)
+                keys(slot) = oldKeys(i)
+                heads(slot) = oldHeads(i)
+                headIdx(slot) = oldHeadIdx(i)
+            }
+            i += 1
         }
-        set
     }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+object FlowTimingWheel {
+    private final val SLOT_BITS = 6
+    private final val SLOTS = 1 << SLOT_BITS
+    private final val SLOT_MASK = SLOTS - 1
+
+    final val NOT_SCHEDULED = -1
+}
+
+/**
+ * A hierarchical timing wheel that schedules ManagedFlows at arbitrary
+ * deadlines, expressed in nanoseconds of the NanoClock used by the caller.
+ *
+ * Time is divided in ticks of 2^tickShift nanoseconds. The wheel has a number
+ * of levels of 64 slots each, where a slot in level L spans 64^L ticks. A flow
+ * is placed in the lowest level whose range covers its deadline, and flows in
+ * higher levels are cascaded down as time advances. Flows are linked into the
+ * slots through intrusive fields of the ManagedFlow itself, so scheduling and
+ * cancelling a flow are O(1) operations that allocate nothing.
+ *
+ * Expiration is precise: a flow is only returned by poll() once the current
+ * time is at or past its deadline. Flows sharing a slot are kept in scheduling
+ * order. Deadlines further away than the wheel's range are parked in the top
+ * level and re-examined once per rotation.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowTimingWheel(tickShift: Int = 26, levels: Int = 4) {
+    import FlowTimingWheel._
+
+    private val slots = new Array[ManagedFlow](levels * SLOTS + 1)
+    private val tails = new Array[ManagedFlow](levels * SLOTS + 1)
+    private val levelSizes = new Array[Int](levels)
+    /* The list of flows whose deadline tick has been reached, but which
+     * have not yet been returned. */
+    private val PENDING = levels * SLOTS
+
+    /* All ticks strictly before the current one have been processed. */
+    private var currentTick = 0L
+    private var started = false
+    private var count = 0
+
+    def size: Int = count
+
+    def isStarted: Boolean = started
+
+    /**
+     * Starts the wheel at the specified time. Scheduling a flow before the
+     * wheel is started implicitly starts it at the flow's deadline.
+     */
+    def start(now: Long): Unit =
+        if (!started) {
+            currentTick = now >> tickShift
+            started = true
+        }
+
+    def isScheduled(flow: ManagedFlow): Boolean =
+        flow.timerSlot != NOT_SCHEDULED
+
+    /**
+     * Schedules a flow at the specified deadline, replacing its previous
+     * deadline if it was already scheduled.
+     */
+    def schedule(flow: ManagedFlow, deadline: Long): Unit = {
+        if (flow.timerSlot != NOT_SCHEDULED)
+            unlink(flow)
+        if (!started)
+            start(deadline)
+        flow.timerDeadline = deadline
+        link(flow, slotFor(deadline >> tickShift))
+        count += 1
+    }
+
+    /**
+     * Cancels the scheduling of a flow. Returns whether it was scheduled.
+     */
+    def cancel(flow: ManagedFlow): Boolean =
+        if (flow.timerSlot != NOT_SCHEDULED) {
+            unlink(flow)
+            count -= 1
+            true
+        } else {
+            false
+        }
+
+    /**
+     * Returns and unschedules a flow whose deadline is at or before the
+     * specified time, or null if there are none.
+     */
+    def poll(now: Long): ManagedFlow = {
+        if (!started)
+            return null
+        val nowTick = now >> tickShift
+        while (true) {
+            var flow = slots(PENDING)
+            while (flow ne null) {
+                if (flow.timerDeadline <= now) {
+                    unlink(flow)
+                    count -= 1
+                    return flow
+                }
+                // Expires later within the current tick.
+                flow = flow.timerNext
+            }
+            skipEmptyTicks(nowTick)
+            if (currentTick > nowTick)
+                return null
+            expireTick()
+        }
+        null
+    }
+
+    /**
+     * Returns and unschedules the flow with the earliest deadline, within
+     * the granularity of the slot it currently sits in, or null if the wheel
+     * is empty.
+     */
+    def pollEarliest(): ManagedFlow = {
+        if (count == 0)
+            return null
+        var flow = slots(PENDING)
+        var level = 0
+        while ((flow eq null) && level < levels) {
+            if (levelSizes(level) > 0) {
+                val base = currentTick >> (level * SLOT_BITS)
+                var i = 0
+                while ((flow eq null) && i < SLOTS) {
+                    flow = slots(level * SLOTS + ((base + i).toInt & SLOT_MASK))
+                    i += 1
+                }
+            }
+            level += 1
+        }
+        unlink(flow)
+        count -= 1
+        flow
+    }
+
+    /* Moves the flows of the current tick to the pending list, cascading
+     * down higher levels as their slots come due. */
+    private def expireTick(): Unit = {
+        var level = levels - 1
+        while (level > 0) {
+            val shift = level * SLOT_BITS
+            if ((currentTick & ((1L << shift) - 1)) == 0)
+                cascade(level, (currentTick >> shift).toInt & SLOT_MASK)
+            level -= 1
+        }
+        val slot = currentTick.toInt & SLOT_MASK
+        currentTick += 1
+        var flow = slots(slot)
+        while (flow ne null) {
+            val next = flow.timerNext
+            unlink(flow)
+            link(flow, PENDING)
+            flow = next
+        }
+    }
+
+    private def cascade(level: Int, index: Int): Unit = {
+        val slot = level * SLOTS + index
+        var flow = slots(slot)
+        slots(slot) = null
+        tails(slot) = null
+        while (flow ne null) {
+            val next = flow.timerNext
+            levelSizes(level) -= 1
+            flow.timerPrev = null
+            flow.timerNext = null
+            link(flow, slotFor(flow.timerDeadline >> tickShift))
+            flow = next
+        }
+    }
+
+    /* Jumps over ticks for which there can be no scheduled flows: if the
+     * lowest L levels are empty, nothing can happen before the next tick
+     * aligned to a level L slot. */
+    private def skipEmptyTicks(nowTick: Long): Unit =
+        if (currentTick <= nowTick) {
+            var level = 0
+            while (level < levels && levelSizes(level) == 0)
+                level += 1
+            if (level > 0) {
+                val next = if (level == levels) nowTick + 1 else {
+                    val span = 1L << (level * SLOT_BITS)
+                    (currentTick + span - 1) & ~(span - 1)
+                }
+                currentTick = math.min(next, nowTick + 1)
+            }
+        }
+
+    private def slotFor(deadlineTick: Long): Int = {
+        val delta = deadlineTick - currentTick
+        if (delta < 0)
+            return PENDING
+        if (delta < SLOTS)
+            return deadlineTick.toInt & SLOT_MASK
+        var level = 1
+        while (level < levels) {
+            val shift = level * SLOT_BITS
+            if (delta < (1L << (shift + SLOT_BITS)))
+                return level * SLOTS + ((deadlineTick >> shift).toInt & SLOT_MASK)
+            level += 1
+        }
+        // Beyond the wheel's range: park in the top level slot that will be
+        // cascaded last, and re-examine it then.
+        val shift = (levels - 1) * SLOT_BITS
+        (levels - 1) * SLOTS + (((currentTick >> shift) + SLOT_MASK).toInt & SLOT_MASK)
+    }
+
+    /* Appends a flow to a slot, so that flows sharing a slot are kept in
+     * the order in which they were scheduled. */
+    private def link(flow: ManagedFlow, slot: Int): Unit = {
+        val tail = tails(slot)
+        flow.timerSlot = slot
+        flow.timerPrev = tail
+        flow.timerNext = null
+        if (tail ne null)
+            tail.timerNext = flow
+        else
+            slots(slot) = flow
+        tails(slot) = flow
+        if (slot != PENDING)
+            levelSizes(slot >> SLOT_BITS) += 1
+    }
+
+    private def unlink(flow: ManagedFlow): Unit = {
+        val slot = flow.timerSlot
+        val prev = flow.timerPrev
+        val next = flow.timerNext
+        if (prev ne null)
+            prev.timerNext = next
+        else
+            slots(slot) = next
+        if (next ne null)
+            next.timerPrev = prev
+        else
+            tails(slot) = prev
+        if (slot != PENDING)
+            levelSizes(slot >> SLOT_BITS) -= 1
+        flow.timerSlot = NOT_SCHEDULED
+        flow.timerPrev = null
+        flow.timerNext = null
+    }
+}
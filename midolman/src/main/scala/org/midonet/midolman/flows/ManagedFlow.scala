@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman.flows
 
-import java.util.{ArrayList, Collection}
+import java.util.{ArrayList, Arrays, Collection}
 
 import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
 import org.midonet.odp.FlowMatch
@@ -23,6 +23,10 @@ import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.util.collection.{ObjectPool, PooledObject}
 import org.midonet.util.functors.Callback0
 
+object ManagedFlow {
+    private final val INITIAL_TAG_LINKS = 16
+}
+
 /**
  * A ManagedFlow that is stored in a pool.
  * Once the instance is no longer used, the pool entry can be reused.
@@ -37,19 +41,55 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     val flowMatch = new FlowMatch()
     var expirationType = 0
     var absoluteExpirationNanos = 0L
+    var idleTimeoutNanos = 0L
+    var lastActivityNanos = 0L
+    var lastPackets = 0L
     var sequence = 0L
 
+    /* Intrusive links used by the FlowTagIndexer. For each of the flow's
+     * tags, the neighbouring flows in the list of flows for that tag, along
+     * with the position of the tag within those neighbours. */
+    var tagNext = new Array[ManagedFlow](ManagedFlow.INITIAL_TAG_LINKS)
+    var tagNextIdx = new Array[Int](ManagedFlow.INITIAL_TAG_LINKS)
+    var tagPrev = new Array[ManagedFlow](ManagedFlow.INITIAL_TAG_LINKS)
+    var tagPrevIdx = new Array[Int](ManagedFlow.INITIAL_TAG_LINKS)
+    var indexedTags = 0
+
+    /* Intrusive links used by the FlowTimingWheel. */
+    var timerSlot = FlowTimingWheel.NOT_SCHEDULED
+    var timerDeadline = 0L
+    var timerPrev: ManagedFlow = null
+    var timerNext: ManagedFlow = null
+
     def reset(flowMatch: FlowMatch, flowTags: Collection[FlowTag],
               flowRemovedCallbacks: ArrayList[Callback0], sequence: Long,
               expiration: Expiration, now: Long): Unit = {
         this.flowMatch.resetWithoutUserspaceFields(flowMatch)
         expirationType = expiration.typeId
         absoluteExpirationNanos = now + expiration.value
+        idleTimeoutNanos = expiration.idleValue
+        lastActivityNanos = now
+        lastPackets = 0L
         tags.addAll(flowTags)
         callbacks.addAll(flowRemovedCallbacks)
         this.sequence = sequence
     }
 
+    /**
+     * Grows the tag links so they can hold the specified number of tags.
+     * Links are kept when the flow is returned to the pool, so this only
+     * allocates for flows with more tags than any previous user of the
+     * instance had.
+     */
+    def ensureTagLinks(numTags: Int): Unit =
+        if (tagNext.length < numTags) {
+            val size = math.max(numTags, tagNext.length * 2)
+            tagNext = Arrays.copyOf(tagNext, size)
+            tagNextIdx = Arrays.copyOf(tagNextIdx, size)
+            tagPrev = Arrays.copyOf(tagPrev, size)
+            tagPrevIdx = Arrays.copyOf(tagPrevIdx, size)
+        }
+
     override def clear(): Unit = {
         flowMatch.clear()
         callbacks.clear()
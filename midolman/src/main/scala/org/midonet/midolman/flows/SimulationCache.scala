@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.{ArrayList, HashMap, LinkedHashMap, UUID}
+
+import org.midonet.midolman.flows.FlowExpirationIndexer.Expiration
+import org.midonet.midolman.rules.RuleResult
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows._
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object SimulationCache {
+    private final val MAX_MASKS = 64
+
+    private def bit(field: Field): Long = 1L << field.ordinal()
+
+    private val L2Fields = bit(Field.EthSrc) | bit(Field.EthDst)
+    private val L3Fields = bit(Field.NetworkSrc) | bit(Field.NetworkDst) |
+                           bit(Field.NetworkProto) | bit(Field.NetworkTTL) |
+                           bit(Field.NetworkTOS) | bit(Field.FragmentType)
+    private val L4Fields = bit(Field.SrcPort) | bit(Field.DstPort)
+
+    /**
+     * The outcome of a simulation, in terms of the fields of the packet it
+     * read, that can be applied to any packet with the same values in those
+     * fields.
+     */
+    final class Entry(val key: FlowMatch, val usedFields: Long,
+                      val expiration: Expiration, val deadline: Long) {
+        val flowActions = new ArrayList[FlowAction]()
+        val packetActions = new ArrayList[FlowAction]()
+        val flowTags = new ArrayList[FlowTag]()
+        val outPorts = new ArrayList[UUID]()
+        val traversedRules = new ArrayList[UUID]()
+        val traversedRuleResults = new ArrayList[RuleResult]()
+        var inPortId: UUID = _
+        var inputPort: UUID = _
+
+        /**
+         * Copies the outcome of the simulation to the specified context,
+         * whose match must be equal to the key of this entry in the fields
+         * the key uses.
+         */
+        def applyTo(context: PacketContext): Unit = {
+            context.origMatch.propagateSeenFieldsFrom(key)
+            context.inPortId = inPortId
+            context.inputPort = inputPort
+            context.flowTags.clear()
+            context.flowTags.addAll(flowTags)
+            context.flowActions.addAll(flowActions)
+            context.packetActions.addAll(packetActions)
+            context.outPorts.clear()
+            context.outPorts.addAll(outPorts)
+            context.traversedRules.addAll(traversedRules)
+            context.traversedRuleResults.addAll(traversedRuleResults)
+        }
+    }
+}
+
+/**
+ * A userspace counterpart of the datapath megaflows: it caches the outcome of
+ * stateless simulations keyed by the values of the packet fields that the
+ * simulation read, so that later packets that only differ from the simulated
+ * one in other fields skip the simulation. This covers packets that miss in
+ * the datapath because their flow was evicted, or flushed, for traffic classes
+ * that were already simulated.
+ *
+ * Entries are keyed by a FlowMatch that only uses the fields in the mask of
+ * the simulation, so entries for different masks never collide. Lookups try
+ * each of the distinct masks in turn. An entry is removed when any of its flow
+ * tags is invalidated, when its hard expiration elapses, or when it is the
+ * oldest entry and room is needed for a new one.
+ *
+ * This class is not thread-safe: each simulation worker owns an instance.
+ */
+final class SimulationCache(val maxEntries: Int) {
+    import SimulationCache._
+
+    private val entries = new LinkedHashMap[FlowMatch, Entry]()
+    private val tagIndex = new HashMap[FlowTag, ArrayList[Entry]]()
+    private val masks = new Array[Long](MAX_MASKS)
+    private val maskRefs = new Array[Int](MAX_MASKS)
+    private var numMasks = 0
+    private val lookupKey = new FlowMatch()
+
+    def size: Int = entries.size()
+
+    /**
+     * Returns the entry matching the specified match, or null if there is
+     * none or it has expired.
+     */
+    def lookup(fmatch: FlowMatch, now: Long): Entry = {
+        val usedFields = fmatch.getUsedFields
+        var i = 0
+        while (i < numMasks) {
+            lookupKey.resetMasked(fmatch, masks(i))
+            val entry = entries.get(lookupKey)
+            if ((entry ne null) && entry.usedFields == usedFields) {
+                if (entry.deadline - now > 0)
+                    return entry
+                remove(entry)
+                return null
+            }
+            i += 1
+        }
+        null
+    }
+
+    /**
+     * Caches the outcome of the simulation of the specified context, if it
+     * can be reused for other packets. This is the case when it produced no
+     * flow state nor flow removal callbacks, so that replaying it has no side
+     * effects, and when its actions only depend on the fields in its mask.
+     * Then, a cache hit is a packet that the datapath flow installed for the
+     * simulation would have matched, had it still been there.
+     */
+    def add(context: PacketContext, expiration: Expiration, now: Long): Boolean = {
+        if (maxEntries <= 0 || context.tracingEnabled ||
+            context.containsFlowState || !context.flowRemovedCallbacks.isEmpty)
+            return false
+
+        val fmatch = context.origMatch
+        val mask = maskFor(context)
+        if (mask == 0L || fmatch.userspaceFieldsSeen)
+            return false
+
+        val key = new FlowMatch()
+        key.resetMasked(fmatch, mask)
+        val previous = entries.get(key)
+        if (previous ne null)
+            remove(previous)
+        else if (entries.size() >= maxEntries)
+            remove(entries.values().iterator().next())
+
+        val slot = addMask(mask)
+        if (slot < 0)
+            return false
+
+        val entry = new Entry(key, fmatch.getUsedFields, expiration,
+                              now + expiration.value)
+        entry.inPortId = context.inPortId
+        entry.inputPort = context.inputPort
+        entry.flowTags.addAll(context.flowTags)
+        entry.flowActions.addAll(context.flowActions)
+        entry.packetActions.addAll(context.packetActions)
+        entry.outPorts.addAll(context.outPorts)
+        entry.traversedRules.addAll(context.traversedRules)
+        var i = 0
+        while (i < context.traversedRuleResults.size()) {
+            val res = context.traversedRuleResults.get(i)
+            entry.traversedRuleResults.add(new RuleResult(res.action, res.jumpToChain))
+            i += 1
+        }
+
+        entries.put(key, entry)
+        maskRefs(slot) += 1
+        i = 0
+        while (i < entry.flowTags.size()) {
+            val tag = entry.flowTags.get(i)
+            var tagged = tagIndex.get(tag)
+            if (tagged eq null) {
+                tagged = new ArrayList[Entry](4)
+                tagIndex.put(tag, tagged)
+            }
+            tagged.add(entry)
+            i += 1
+        }
+        true
+    }
+
+    /**
+     * Removes the entries tagged with the specified tag.
+     */
+    def invalidate(tag: FlowTag): Int = {
+        val tagged = tagIndex.remove(tag)
+        if (tagged eq null)
+            return 0
+        var i = 0
+        while (i < tagged.size()) {
+            remove(tagged.get(i))
+            i += 1
+        }
+        tagged.size()
+    }
+
+    /**
+     * Removes the oldest entries while they have expired.
+     */
+    def expire(now: Long): Unit = {
+        var entry: Entry = null
+        while (!entries.isEmpty && {
+                   entry = entries.values().iterator().next()
+                   entry.deadline - now <= 0 }) {
+            remove(entry)
+        }
+    }
+
+    def clear(): Unit = {
+        entries.clear()
+        tagIndex.clear()
+        numMasks = 0
+    }
+
+    private def remove(entry: Entry): Unit = {
+        if (entries.remove(entry.key) ne entry)
+            return
+        val slot = indexOfMask(entry.key.getUsedFields)
+        if (slot >= 0) {
+            maskRefs(slot) -= 1
+            if (maskRefs(slot) == 0) {
+                numMasks -= 1
+                masks(slot) = masks(numMasks)
+                maskRefs(slot) = maskRefs(numMasks)
+            }
+        }
+        var i = 0
+        while (i < entry.flowTags.size()) {
+            val tag = entry.flowTags.get(i)
+            val tagged = tagIndex.get(tag)
+            if (tagged ne null) {
+                tagged.remove(entry)
+                if (tagged.isEmpty)
+                    tagIndex.remove(tag)
+            }
+            i += 1
+        }
+    }
+
+    private def indexOfMask(mask: Long): Int = {
+        var i = 0
+        while (i < numMasks) {
+            if (masks(i) == mask)
+                return i
+            i += 1
+        }
+        -1
+    }
+
+    /* Returns the slot of the specified mask, adding it if it is new, or -1
+     * if there are too many distinct masks. */
+    private def addMask(mask: Long): Int = {
+        val slot = indexOfMask(mask)
+        if (slot >= 0 || numMasks == MAX_MASKS)
+            return slot
+        masks(numMasks) = mask
+        maskRefs(numMasks) = 0
+        numMasks += 1
+        numMasks - 1
+    }
+
+    /* The fields the outcome of the simulation depends on: those it read,
+     * those implied by the highest layer it read, as the datapath mask does,
+     * and those copied from the packet into set actions. Returns 0 if the
+     * actions depend on the packet in ways the mask can't capture. */
+    private def maskFor(context: PacketContext): Long = {
+        val fmatch = context.origMatch
+        var mask = bit(Field.InputPortNumber) |
+                   (fmatch.getSeenFields & fmatch.getUsedFields)
+        val layer = fmatch.highestLayerSeen()
+        if (layer >= 3)
+            mask |= bit(Field.EtherType) | bit(Field.FragmentType)
+        if (layer >= 4)
+            mask |= bit(Field.NetworkProto)
+
+        val actions = context.virtualFlowActions
+        var i = 0
+        while (i < actions.size()) {
+            actions.get(i) match {
+                case a: FlowActionSetKey => a.getFlowKey match {
+                    case _: FlowKeyEthernet => mask |= L2Fields
+                    case _: FlowKeyIPv4 | _: FlowKeyIPv6 => mask |= L3Fields
+                    case _: FlowKeyTCP | _: FlowKeyUDP => mask |= L4Fields
+                    case _ => return 0L
+                }
+                case _: FlowActionPushVLAN | _: FlowActionPopVLAN =>
+                    mask |= bit(Field.VlanId)
+                case _ =>
+            }
+            i += 1
+        }
+        mask & fmatch.getUsedFields
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.io
+
+import java.util.ArrayDeque
+
+import scala.collection.mutable
+
+import akka.actor.ActorRef
+import com.codahale.metrics.{Counter, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.PacketWorkflow
+import org.midonet.midolman.state.FlowStatePackets
+import org.midonet.odp.Packet
+import org.midonet.util.BatchCollector
+import org.midonet.util.concurrent.NanoClock
+
+object FairUpcallScheduler {
+    /* The number of packets a port of weight 1 can hand to a worker in each
+     * round of the scheduler. */
+    final val Quantum = 16
+
+    final class PortMetrics(registry: MetricRegistry, portNo: Int) {
+        val queueDepth: Counter = registry.counter(name(
+            classOf[FairUpcallScheduler], "port", portNo.toString, "queueDepth"))
+        val dropped: Counter = registry.counter(name(
+            classOf[FairUpcallScheduler], "port", portNo.toString, "dropped"))
+    }
+
+    private final class PortQueue(val portNo: Int, capacity: Int,
+                                  val metrics: PortMetrics) {
+        val packets = new ArrayDeque[Packet](capacity)
+        var weight = 1
+        var deficit = 0
+        var active = false
+        var inTurn = false
+    }
+}
+
+/**
+ * Hands the upcalls read from the datapath over to the simulation workers,
+ * sharing each worker fairly among the datapath ports the packets came from.
+ *
+ * Packets are steered to workers by their connection hash, as before, but
+ * are first queued per worker and per ingress port. At the end of each read
+ * batch, the queues of each worker are drained with deficit round robin: every
+ * round, each port with queued packets can dispatch up to its weight times the
+ * quantum. The packets are handed to the worker in that order, in messages
+ * whose size adapts to the number of dispatched packets up to the maximum
+ * batch size. So a port that floods the agent doesn't delay the packets of the
+ * other ports sharing the worker behind its own.
+ *
+ * When the workers have inboxes, the scheduler registers as a producer in
+ * each of them and hands the batches over through the inbox. A worker whose
+ * inbox is full stops taking packets: the packets stay in the port queues,
+ * with the deficits of the ports, until the worker frees room in the inbox,
+ * which calls the wakeup function so that the reader ends another batch.
+ * Without inboxes, the queues are drained into the worker's mailbox at the
+ * end of each batch. Each port queue is bounded, and the packets that don't
+ * fit are dropped and counted in the metrics of the port, so a port that
+ * floods a busy worker loses its own packets rather than those of the other
+ * ports. The scheduler must be closed when its reader stops, to release its
+ * inbox queues.
+ *
+ * Flow state packets bypass the port queues and are broadcast to all the
+ * workers ahead of the rest of the batch.
+ *
+ * This class is not thread-safe. It is used from the thread that reads the
+ * upcalls of the ports it serves.
+ */
+final class FairUpcallScheduler(workers: IndexedSeq[ActorRef],
+                                inboxes: IndexedSeq[PacketInbox],
+                                weightOf: Int => Int,
+                                portQueueSize: Int,
+                                maxBatchSize: Int,
+                                registry: MetricRegistry,
+                                wakeup: () => Unit)
+        extends BatchCollector[Packet] {
+    import FairUpcallScheduler._
+
+    private val log = LoggerFactory.getLogger("PacketInHook")
+
+    private val numWorkers = workers.length
+    private val queues = Array.fill(numWorkers)(mutable.LongMap[PortQueue]())
+    private val activeQueues = Array.fill(numWorkers)(new ArrayDeque[PortQueue]())
+    private val statePackets = Array.fill(numWorkers)(new ArrayDeque[Packet]())
+    private val pending = new Array[Int](numWorkers)
+    private val stalled = new Array[Array[Packet]](numWorkers)
+    private val portMetrics = mutable.LongMap[PortMetrics]()
+    private val producers = inboxes.map(_.register(wakeup)).toArray
+    private val inboxOverflows = registry.counter(name(
+        classOf[FairUpcallScheduler], "inboxOverflows"))
+
+    private var batch: Array[Packet] = null
+    private var cursor = 0
+
+    /**
+     * Returns the metrics of the specified port.
+     */
+    def metricsFor(portNo: Int): PortMetrics =
+        portMetrics.getOrElseUpdate(portNo, new PortMetrics(registry, portNo))
+
+    override def submit(data: Packet): Unit = {
+        log.trace("accumulating packet: {}", data.getMatch)
+
+        data.startTimeNanos = NanoClock.DEFAULT.tick
+
+        if (FlowStatePackets.isStateMessage(data.getMatch)) {
+            var i = 0
+            while (i < numWorkers) {
+                statePackets(i).add(data)
+                pending(i) += 1
+                i += 1
+            }
+        } else {
+            val worker = Math.abs(data.getMatch.connectionHash) % numWorkers
+            enqueue(worker, data)
+        }
+    }
+
+    /**
+     * Releases the inbox queues of this scheduler.
+     */
+    def close(): Unit = {
+        var i = 0
+        while (i < producers.length) {
+            producers(i).close()
+            i += 1
+        }
+    }
+
+    override def endBatch(): Unit = {
+        var i = 0
+        while (i < numWorkers) {
+            if (pending(i) > 0)
+                dispatch(i)
+            i += 1
+        }
+    }
+
+    private def enqueue(worker: Int, data: Packet): Unit = {
+        val portNo = data.getMatch.getInputPortNumber
+        val queue = queues(worker).getOrElseUpdate(portNo,
+            new PortQueue(portNo, portQueueSize, metricsFor(portNo)))
+        if (queue.packets.size >= portQueueSize) {
+            queue.metrics.dropped.inc()
+            return
+        }
+        queue.packets.add(data)
+        queue.metrics.queueDepth.inc()
+        pending(worker) += 1
+        if (!queue.active) {
+            queue.active = true
+            queue.weight = Math.max(1, weightOf(portNo))
+            activeQueues(worker).add(queue)
+        }
+    }
+
+    private def dispatch(worker: Int): Unit = {
+        val held = stalled(worker)
+        if (held ne null) {
+            if (!producers(worker).offer(held))
+                return
+            stalled(worker) = null
+            pending(worker) -= held.length
+        }
+
+        val states = statePackets(worker)
+        while (!states.isEmpty && (stalled(worker) eq null))
+            emit(worker, states.poll())
+
+        /* A port keeps its turn, and what is left of its deficit, when the
+         * worker stalls before the port has used up its share. */
+        val active = activeQueues(worker)
+        while (!active.isEmpty && (stalled(worker) eq null)) {
+            val queue = active.peek()
+            if (!queue.inTurn) {
+                queue.deficit += Quantum * queue.weight
+                queue.inTurn = true
+            }
+            val packets = queue.packets
+            while (queue.deficit > 0 && !packets.isEmpty &&
+                   (stalled(worker) eq null)) {
+                emit(worker, packets.poll())
+                queue.deficit -= 1
+                queue.metrics.queueDepth.dec()
+            }
+            if (packets.isEmpty) {
+                active.poll()
+                queue.deficit = 0
+                queue.inTurn = false
+                queue.active = false
+            } else if (queue.deficit <= 0) {
+                active.poll()
+                queue.inTurn = false
+                active.add(queue)
+            }
+        }
+        flush(worker)
+    }
+
+    private def emit(worker: Int, packet: Packet): Unit = {
+        if (batch eq null) {
+            batch = new Array[Packet](Math.min(pending(worker), maxBatchSize))
+            cursor = 0
+        }
+        batch(cursor) = packet
+        cursor += 1
+        pending(worker) -= 1
+        if (cursor == batch.length)
+            flush(worker)
+    }
+
+    private def flush(worker: Int): Unit =
+        if (batch ne null) {
+            if (producers.length == 0) {
+                workers(worker) ! PacketWorkflow.HandlePackets(batch)
+            } else if (!producers(worker).offer(batch)) {
+                inboxOverflows.inc()
+                stalled(worker) = batch
+                pending(worker) += batch.length
+            }
+            batch = null
+        }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.io
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import akka.actor.ActorRef
+import org.jctools.queues.SpscArrayQueue
+
+import org.midonet.midolman.PacketWorkflow
+import org.midonet.odp.Packet
+
+object PacketInbox {
+    /**
+     * The end of an inbox owned by a single upcall reader thread.
+     */
+    final class Producer private[PacketInbox] (inbox: PacketInbox,
+                                               capacity: Int,
+                                               wakeup: () => Unit) {
+        private[PacketInbox] val queue =
+            new SpscArrayQueue[Array[Packet]](capacity)
+        private val blocked = new AtomicBoolean(false)
+        @volatile private[PacketInbox] var closed = false
+
+        /**
+         * Hands the specified batch to the worker, returning false if the
+         * queue of this producer is full. In that case, the worker calls the
+         * wakeup function of the producer once it has taken batches out of
+         * the queue.
+         */
+        def offer(batch: Array[Packet]): Boolean = {
+            if (!queue.offer(batch)) {
+                // Flag the producer before looking at the queue again, so
+                // that either the producer sees the room freed by the worker
+                // or the worker sees the flag.
+                blocked.getAndSet(true)
+                if (!queue.offer(batch))
+                    return false
+            }
+            inbox.signal()
+            true
+        }
+
+        /* Called by the worker after taking batches out of the queue. */
+        private[PacketInbox] def polled(): Unit =
+            if (blocked.getAndSet(false))
+                wakeup()
+
+        /**
+         * Releases this producer. The worker removes it from the inbox once
+         * it has drained the batches still queued.
+         */
+        def close(): Unit = {
+            closed = true
+            inbox.signal()
+        }
+    }
+}
+
+/**
+ * Hands batches of upcalls over to a simulation worker without going through
+ * its Akka mailbox. Each upcall reader thread registers as a producer and gets
+ * a single-producer single-consumer ring buffer into the worker, so that the
+ * hand-off of a batch is a plain store into the queue.
+ *
+ * The worker is only notified through its mailbox when it is not already
+ * polling the inbox: the first producer to find it idle sends a single
+ * PacketsPending message, and the worker keeps polling the queues, spinning
+ * for a while once they are empty, until it declares itself idle again. So
+ * under load, the mailbox sees a message per burst rather than per batch.
+ *
+ * The producers are registered and closed from any thread, but only the
+ * worker the inbox is attached to polls it.
+ */
+final class PacketInbox(capacity: Int) {
+    import PacketInbox._
+
+    @volatile private var producers = new Array[Producer](0)
+    private val scheduled = new AtomicBoolean(false)
+    @volatile private var worker: ActorRef = _
+    private var next = 0
+
+    /**
+     * Sets the worker consuming the batches of this inbox. A worker attached
+     * again after a restart has lost the PacketsPending message and the
+     * polling of its previous incarnation, so the inbox is no longer
+     * considered scheduled, and the worker is notified if batches are
+     * waiting.
+     */
+    def attach(worker: ActorRef): Unit = {
+        this.worker = worker
+        scheduled.set(false)
+        if (!isEmpty)
+            signal()
+    }
+
+    /**
+     * Registers a new producer. The wakeup function is called from the worker
+     * when it frees room in the queue of a producer that found it full.
+     */
+    def register(wakeup: () => Unit = () => { }): Producer = synchronized {
+        val producer = new Producer(this, capacity, wakeup)
+        producers = producers :+ producer
+        producer
+    }
+
+    def numProducers: Int = producers.length
+
+    def isEmpty: Boolean = {
+        val ps = producers
+        var i = 0
+        while (i < ps.length) {
+            if (!ps(i).queue.isEmpty)
+                return false
+            i += 1
+        }
+        true
+    }
+
+    /**
+     * Hands the batches queued by each producer to the specified handler,
+     * up to the specified number of batches. The batches queued while
+     * draining are left for the next call. Each call starts with a different
+     * producer, so that a busy reader can't delay the others. Returns the
+     * number of batches drained. Called from the worker only.
+     */
+    def drain(handler: Array[Packet] => Unit, maxBatches: Int): Int = {
+        val ps = producers
+        if (ps.length == 0)
+            return 0
+        next = (next + 1) % ps.length
+        var drained = 0
+        var i = 0
+        while (i < ps.length && drained < maxBatches) {
+            val producer = ps((next + i) % ps.length)
+            var queued = producer.queue.size()
+            if (queued > 0 && drained < maxBatches) {
+                while (queued > 0 && drained < maxBatches) {
+                    handler(producer.queue.poll())
+                    queued -= 1
+                    drained += 1
+                }
+                producer.polled()
+            }
+            if (producer.closed && producer.queue.isEmpty)
+                remove(producer)
+            i += 1
+        }
+        drained
+    }
+
+    /**
+     * Called by the worker when it stops polling the inbox. Returns true if
+     * batches arrived in the meantime, in which case the worker must keep
+     * polling because no producer notified it.
+     */
+    def idle(): Boolean = {
+        scheduled.set(false)
+        !isEmpty && scheduled.compareAndSet(false, true)
+    }
+
+    private def signal(): Unit = {
+        val w = worker
+        if ((w ne null) && !scheduled.get() &&
+            scheduled.compareAndSet(false, true)) {
+            w ! PacketWorkflow.PacketsPending
+        }
+    }
+
+    private def remove(producer: Producer): Unit = synchronized {
+        producers = producers filterNot (_ eq producer)
+    }
+}
@@ -22,6 +22,7 @@ import scala.concurrent._
 import scala.concurrent.duration._
 
 import akka.actor.{Actor, ActorRef, ActorSystem, Props}
+import com.codahale.metrics.MetricRegistry
 
 import org.midonet.midolman.NetlinkCallbackDispatcher
 import org.midonet.midolman.PacketsEntryPoint
@@ -64,13 +65,13 @@ object UpcallChannelsTest {
         val conf = new MidolmanConfig(MidoTestConfigurator.forAgents)
 
         val mngr1 =
-            new OneToOneDpConnManager(conf, tbPolicy(conf)) with TestMixin {
+            new OneToOneDpConnManager(conf, tbPolicy(conf), new MetricRegistry) with TestMixin {
                 val dispatcher: ActorRef = nlDispatcher
                 val packetHandler: ActorRef = act
             }
 
         val mngr2 =
-            new OneToManyDpConnManager(conf, tbPolicy(conf)) with TestMixin {
+            new OneToManyDpConnManager(conf, tbPolicy(conf), new MetricRegistry) with TestMixin {
                 val dispatcher: ActorRef = nlDispatcher
                 val packetHandler: ActorRef = act
             }
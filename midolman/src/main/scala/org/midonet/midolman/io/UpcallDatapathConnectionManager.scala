@@ -23,18 +23,17 @@ import scala.util.{Failure, Success}
 
 import akka.actor.ActorSystem
 import akka.util.Timeout
+import com.codahale.metrics.MetricRegistry
 import org.slf4j.{Logger, LoggerFactory}
 
 import org.midonet.ErrorCode.{EBUSY, EEXIST, EADDRINUSE}
 import org.midonet.midolman.PacketsEntryPoint.{GetWorkers, Workers}
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.state.FlowStatePackets
-import org.midonet.midolman.{PacketWorkflow, NetlinkCallbackDispatcher, PacketsEntryPoint}
+import org.midonet.midolman.{NetlinkCallbackDispatcher, PacketsEntryPoint}
 import org.midonet.netlink.BufferPool
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp._
 import org.midonet.odp.protos.OvsDatapathConnection
-import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.{BatchCollector, Bucket}
 import org.midonet.util.eventloop.SelectLoop
 
@@ -60,7 +59,8 @@ trait UpcallDatapathConnectionManager {
  */
 abstract class UpcallDatapathConnectionManagerBase(
         val config: MidolmanConfig,
-        val tbPolicy: TokenBucketPolicy) extends UpcallDatapathConnectionManager {
+        val tbPolicy: TokenBucketPolicy,
+        val metricRegistry: MetricRegistry) extends UpcallDatapathConnectionManager {
 
     protected val log: Logger
 
@@ -73,7 +73,10 @@ abstract class UpcallDatapathConnectionManagerBase(
     protected val portToChannel = new ConcurrentHashMap[(Datapath, Int),
                                                         ManagedDatapathConnection]()
 
-    protected def setUpcallHandler(conn: OvsDatapathConnection,
+    /* The weights of the ports in the fair scheduling of upcalls. */
+    protected val portWeights = new ConcurrentHashMap[Int, Int]()
+
+    protected def setUpcallHandler(conn: ManagedDatapathConnection,
                                    w: Workers)
                                   (implicit as: ActorSystem)
 
@@ -108,11 +111,12 @@ abstract class UpcallDatapathConnectionManagerBase(
         askForWorkers() flatMap { workers =>
             val dpConn = conn.getConnection
             dpConn setCallbackDispatcher getDispatcher()
-            setUpcallHandler(dpConn, workers)
+            setUpcallHandler(conn, workers)
             ensurePortPid(port, datapath, dpConn)
         } andThen {
             case Success((createdPort, _)) =>
                 portToChannel.put((datapath, createdPort.getPortNo.intValue), conn)
+                portWeights.put(createdPort.getPortNo.intValue, upcallWeight(t))
             case Failure(e) =>
                 log.error("failed to create or retrieve datapath port "
                           + port.getName, e)
@@ -138,8 +142,14 @@ abstract class UpcallDatapathConnectionManagerBase(
         } map { (_, con.getChannel.getLocalAddress.getPid) }
     }
 
+    private def upcallWeight(t: ChannelType): Int = t match {
+        case OverlayTunnel | VtepTunnel => config.datapath.upcallTunnelWeight
+        case _ => 1
+    }
+
     def deleteDpPort(datapath: Datapath, port: DpPort)(
-        implicit ec: ExecutionContext, as: ActorSystem): Future[_] =
+        implicit ec: ExecutionContext, as: ActorSystem): Future[_] = {
+        portWeights.remove(port.getPortNo.intValue)
         portToChannel.remove((datapath, port.getPortNo)) match {
             case null => Future.successful(null)
             case conn =>
@@ -158,57 +168,20 @@ abstract class UpcallDatapathConnectionManagerBase(
                     tbPolicy.unlink(port)
                 }
         }
+    }
 
-    protected def makeUpcallHandler(workers: Workers)
-                                   (implicit as: ActorSystem) =
-        new BatchCollector[Packet] {
-
-            val BATCH_SIZE: Int = 16
-            val NUM_WORKERS = workers.list.length
-            var packets = Array.ofDim[Packet](workers.list.length, BATCH_SIZE)
-            var cursors = Array.fill[Int](NUM_WORKERS)(0)
-            val log = LoggerFactory.getLogger("PacketInHook")
-
-            def endBatch(worker: Int) {
-                if (cursors(worker) > 0) {
-                    workers.list(worker) ! PacketWorkflow.HandlePackets(packets(worker))
-                    cursors(worker) = 0
-                    packets(worker) = new Array[Packet](BATCH_SIZE)
-                }
-            }
-
-            override def endBatch() {
-                var i = 0
-                while (i < NUM_WORKERS) {
-                    endBatch(i)
-                    i += 1
-                }
-            }
-
-            override def submit(data: Packet) {
-                log.trace("accumulating packet: {}", data.getMatch)
-
-                data.startTimeNanos = NanoClock.DEFAULT.tick
-
-                if (FlowStatePackets.isStateMessage(data.getMatch)) {
-                    var i = 0
-                    while (i < NUM_WORKERS) {
-                        addToWorkerBatch(i, data)
-                        i += 1
-                    }
-                } else {
-                    val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
-                    addToWorkerBatch(worker, data)
-                }
-            }
-
-            private def addToWorkerBatch(worker: Int, data: Packet): Unit = {
-                packets(worker)(cursors(worker)) = data
-                cursors(worker) += 1
-                if (cursors(worker) == BATCH_SIZE)
-                    endBatch(worker)
-            }
-        }
+    /* The scheduler ends a batch when the read loop wakes up after a worker
+     * freed room in its inbox, so that the packets it held are handed over
+     * even if no more upcalls arrive. */
+    protected def makeUpcallHandler(workers: Workers, readLoop: SelectLoop)
+                                   (implicit as: ActorSystem): FairUpcallScheduler =
+        new FairUpcallScheduler(workers.list, workers.inboxes,
+                                portNo => { val w = portWeights.get(portNo)
+                                            if (w == 0) 1 else w },
+                                config.datapath.upcallPortQueueSize,
+                                config.datapath.upcallMaxBatchSize,
+                                metricRegistry,
+                                () => readLoop.wakeup())
 }
 
 /**
@@ -216,23 +189,41 @@ abstract class UpcallDatapathConnectionManagerBase(
  * channel gets its own thread and select loop.
  */
 class OneToOneDpConnManager(c: MidolmanConfig,
-                            tbPolicy: TokenBucketPolicy) extends
-        UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+                            tbPolicy: TokenBucketPolicy,
+                            metricRegistry: MetricRegistry) extends
+        UpcallDatapathConnectionManagerBase(c, tbPolicy, metricRegistry) {
 
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
+    private val upcallHandlers =
+        new ConcurrentHashMap[OvsDatapathConnection, FairUpcallScheduler]()
+
     override def makeConnection(name: String, bucket: Bucket,
                                 channelType: ChannelType) =
         new SelectorBasedDatapathConnection(name, config, true, bucket, makeBufferPool())
 
     override def stopConnection(conn: ManagedDatapathConnection) {
         conn.stop()
+        val handler = upcallHandlers.remove(conn.getConnection)
+        if (handler ne null)
+            handler.close()
     }
 
-    protected override def setUpcallHandler(conn: OvsDatapathConnection,
+    protected override def setUpcallHandler(conn: ManagedDatapathConnection,
                                             w: Workers)
                                            (implicit as: ActorSystem) {
-        conn.datapathsSetNotificationHandler(makeUpcallHandler(w))
+        val readLoop =
+            conn.asInstanceOf[SelectorBasedDatapathConnection].getReadLoop
+        val handler = makeUpcallHandler(w, readLoop)
+        val dpConn = conn.getConnection
+        upcallHandlers.put(dpConn, handler)
+        dpConn.setUsingSharedNotificationHandler(true)
+        readLoop.setEndOfLoopCallback(new Runnable {
+            override def run() {
+                handler.endBatch()
+            }
+        })
+        dpConn.datapathsSetNotificationHandler(handler)
     }
 }
 
@@ -241,8 +232,9 @@ class OneToOneDpConnManager(c: MidolmanConfig,
  * thread and a single select loop is used for all the input channels.
  */
 class OneToManyDpConnManager(c: MidolmanConfig,
-                             tbPolicy: TokenBucketPolicy)
-        extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+                             tbPolicy: TokenBucketPolicy,
+                             metricRegistry: MetricRegistry)
+        extends UpcallDatapathConnectionManagerBase(c, tbPolicy, metricRegistry) {
 
     val threadPair = new SelectorThreadPair("upcall", config, false)
 
@@ -272,13 +264,13 @@ class OneToManyDpConnManager(c: MidolmanConfig,
         threadPair.removeConnection(conn)
     }
 
-    protected override def setUpcallHandler(conn: OvsDatapathConnection,
+    protected override def setUpcallHandler(conn: ManagedDatapathConnection,
                                             w: Workers)
                                            (implicit as: ActorSystem) {
         lock.lock()
         try {
             if (upcallHandler == null) {
-                upcallHandler = makeUpcallHandler(w)
+                upcallHandler = makeUpcallHandler(w, threadPair.getReadLoop)
                 threadPair.getReadLoop.setEndOfLoopCallback(new Runnable {
                     override def run() {
                         upcallHandler.endBatch()
@@ -289,6 +281,6 @@ class OneToManyDpConnManager(c: MidolmanConfig,
             lock.unlock()
         }
 
-        conn.datapathsSetNotificationHandler(upcallHandler)
+        conn.getConnection.datapathsSetNotificationHandler(upcallHandler)
     }
 }
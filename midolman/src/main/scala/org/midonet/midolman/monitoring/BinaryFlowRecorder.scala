@@ -0,0 +1,447 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.net.InetSocketAddress
+import java.nio.{BufferOverflowException, ByteBuffer}
+import java.nio.channels.DatagramChannel
+import java.util.{List => JList, UUID}
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.locks.LockSupport
+
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+import com.lmax.disruptor.{EventFactory, EventPoller, InsufficientCapacityException, RingBuffer}
+import com.typesafe.scalalogging.Logger
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.flowhistory.BinarySerialization
+import org.midonet.cluster.flowhistory.BinarySerialization._
+import org.midonet.midolman.PacketWorkflow.SimulationResult
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows._
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr, MAC}
+import org.midonet.sdn.flows.FlowTagger.{DeviceTag, FlowTag}
+
+object BinaryFlowRecorder {
+
+    /** The default size of the slots of the ring, enough for most records. */
+    final val SlotSize = 512
+
+    /**
+     * Writes the record of a simulated packet in the encoding of
+     * BinarySerialization.putRecord, reading it straight from the packet
+     * context rather than building a FlowRecord first. Throws a
+     * BufferOverflowException if the record doesn't fit in the buffer.
+     */
+    def encode(buf: ByteBuffer, hostId: UUID, pktContext: PacketContext,
+               simRes: SimulationResult): Unit = {
+        putUUID(buf, hostId)
+        putUUID(buf, pktContext.inPortId)
+        putMatch(buf, pktContext.origMatch)
+        buf.putInt(pktContext.cookie)
+        putDevices(buf, pktContext.flowTags)
+        putRules(buf, pktContext)
+        putSimulationResult(
+            buf, FlowRecordConversions.simulationResult(simRes))
+        putUUIDs(buf, pktContext.outPorts)
+        putActions(buf, pktContext.flowActions)
+    }
+
+    private def putMatch(buf: ByteBuffer, fmatch: FlowMatch): Unit = {
+        buf.putInt(fmatch.getInputPortNumber)
+        buf.putLong(fmatch.getTunnelKey)
+        buf.putInt(fmatch.getTunnelSrc)
+        buf.putInt(fmatch.getTunnelDst)
+        putMac(buf, fmatch.getEthSrc)
+        putMac(buf, fmatch.getEthDst)
+        buf.putShort(fmatch.getEtherType)
+        putIp(buf, fmatch.getNetworkSrcIP)
+        putIp(buf, fmatch.getNetworkDstIP)
+        buf.put(fmatch.getNetworkProto)
+        buf.put(fmatch.getNetworkTTL)
+        buf.put(fmatch.getNetworkTOS)
+        buf.put(fmatch.getIpFragmentType.value)
+        buf.putInt(fmatch.getSrcPort)
+        buf.putInt(fmatch.getDstPort)
+        buf.putShort(fmatch.getIcmpIdentifier)
+        putBytes(buf, fmatch.getIcmpData)
+        val vlanIds = fmatch.getVlanIds
+        if (vlanIds eq null) {
+            putSize(buf, -1)
+        } else {
+            putSize(buf, vlanIds.size)
+            var i = 0
+            while (i < vlanIds.size) {
+                buf.putShort(vlanIds.get(i))
+                i += 1
+            }
+        }
+    }
+
+    /** Writes a MAC address as the bytes of MAC.getAddress. */
+    private def putMac(buf: ByteBuffer, mac: MAC): Unit =
+        if (mac eq null) {
+            putSize(buf, -1)
+        } else {
+            putSize(buf, 6)
+            buf.putShort((mac.asLong >>> 32).toShort)
+            buf.putInt(mac.asLong.toInt)
+        }
+
+    /** Writes an IP address as the bytes of IPAddr.toBytes. */
+    private def putIp(buf: ByteBuffer, ip: IPAddr): Unit = ip match {
+        case null =>
+            putSize(buf, -1)
+        case ip: IPv4Addr =>
+            putSize(buf, 4)
+            buf.putInt(ip.addr)
+        case ip: IPv6Addr =>
+            putSize(buf, 16)
+            buf.putLong(ip.upperWord)
+            buf.putLong(ip.lowerWord)
+        case ip =>
+            putBytes(buf, ip.toBytes)
+    }
+
+    private def putDevices(buf: ByteBuffer, tags: JList[FlowTag]): Unit = {
+        val offset = buf.position
+        buf.putShort(0)
+        var devices = 0
+        var i = 0
+        while (i < tags.size) {
+            tags.get(i) match {
+                case tag: DeviceTag =>
+                    putUUID(buf, tag.device)
+                    devices += 1
+                case _ =>
+            }
+            i += 1
+        }
+        putSize(buf, offset, devices)
+    }
+
+    private def putRules(buf: ByteBuffer, pktContext: PacketContext): Unit = {
+        val rules = pktContext.traversedRules
+        putSize(buf, rules.size)
+        var i = 0
+        while (i < rules.size) {
+            putRule(buf, rules.get(i), FlowRecordConversions.ruleResult(
+                pktContext.traversedRuleResults.get(i)))
+            i += 1
+        }
+    }
+
+    /**
+     * Writes the recorded actions, as FlowRecordConversions.flowAction
+     * would convert them.
+     */
+    private def putActions(buf: ByteBuffer, actions: JList[FlowAction])
+    : Unit = {
+        val offset = buf.position
+        buf.putShort(0)
+        var recorded = 0
+        var i = 0
+        while (i < actions.size) {
+            if (putAction(buf, actions.get(i)))
+                recorded += 1
+            i += 1
+        }
+        putSize(buf, offset, recorded)
+    }
+
+    private def putAction(buf: ByteBuffer, action: FlowAction): Boolean =
+        action match {
+            case a: FlowActionOutput =>
+                buf.put(OutputTag).putInt(a.getPortNumber)
+                true
+            case a: FlowActionPopVLAN =>
+                buf.put(PopVlanTag)
+                true
+            case a: FlowActionPushVLAN =>
+                buf.put(PushVlanTag).putShort(a.getTagProtocolIdentifier)
+                   .putShort(a.getTagControlIdentifier)
+                true
+            case a: FlowActionSetKey =>
+                putSetKey(buf, a.getFlowKey)
+            case a: FlowActionUserspace =>
+                buf.put(UserspaceTag).putInt(a.uplinkPid)
+                   .putLong(if (a.userData eq null) 0L
+                            else a.userData.longValue)
+                true
+            case _ =>
+                false
+        }
+
+    private def putSetKey(buf: ByteBuffer, key: FlowKey): Boolean =
+        key match {
+            case a: FlowKeyARP =>
+                buf.put(ArpTag).putInt(a.arp_sip).putInt(a.arp_tip)
+                   .putShort(a.arp_op)
+                putBytes(buf, a.arp_sha)
+                putBytes(buf, a.arp_tha)
+                true
+            case a: FlowKeyEthernet =>
+                buf.put(EthernetTag)
+                putBytes(buf, a.eth_src)
+                putBytes(buf, a.eth_dst)
+                true
+            case a: FlowKeyEtherType =>
+                buf.put(EtherTypeTag).putShort(a.etherType)
+                true
+            case a: FlowKeyICMPEcho =>
+                buf.put(IcmpEchoTag).put(a.icmp_type).put(a.icmp_code)
+                   .putShort(a.icmp_id)
+                true
+            case a: FlowKeyICMPError =>
+                buf.put(IcmpErrorTag).put(a.icmp_type).put(a.icmp_code)
+                putBytes(buf, a.icmp_data)
+                true
+            case a: FlowKeyICMP =>
+                buf.put(IcmpTag).put(a.icmp_type).put(a.icmp_code)
+                true
+            case a: FlowKeyIPv4 =>
+                buf.put(IPv4Tag).putInt(a.ipv4_src).putInt(a.ipv4_dst)
+                   .put(a.ipv4_proto).put(a.ipv4_tos).put(a.ipv4_ttl)
+                   .put(a.ipv4_frag)
+                true
+            case a: FlowKeyTCP =>
+                buf.put(TcpTag).putShort(a.tcp_src.toShort)
+                   .putShort(a.tcp_dst.toShort)
+                true
+            case a: FlowKeyTunnel =>
+                buf.put(TunnelTag).putInt(a.tun_id.toInt).putInt(a.ipv4_src)
+                   .putInt(a.ipv4_dst).putShort(a.tun_flags).put(a.ipv4_tos)
+                   .put(a.ipv4_ttl)
+                true
+            case a: FlowKeyUDP =>
+                buf.put(UdpTag).putShort(a.udp_src.toShort)
+                   .putShort(a.udp_dst.toShort)
+                true
+            case a: FlowKeyVLAN =>
+                buf.put(VlanTag).putShort(a.vlan)
+                true
+            case _ =>
+                false
+        }
+}
+
+/**
+ * A slot of the ring of a BinaryFlowRecorder, holding one encoded record.
+ * Records that don't fit in the preallocated buffer of the slot are spilled
+ * to a buffer of their own.
+ */
+final class RecordSlot(size: Int) {
+    val buf = ByteBuffer.allocate(size)
+    var spill: ByteBuffer = null
+
+    def record: ByteBuffer = if (spill ne null) spill else buf
+}
+
+/**
+ * A flow recorder that does no more than encode the record on the packet
+ * processing thread: the record is written by BinaryFlowRecorder.encode,
+ * straight from the packet context, into a preallocated slot of a ring
+ * buffer owned by the recorder, and so by the worker using it. The slots
+ * are sized for a typical record; the few records that don't fit are
+ * encoded in a scratch buffer and copied to a buffer of their own. A
+ * FlowHistoryExporter thread drains the rings of all the recorders, packing
+ * many records per datagram. Records are dropped when the ring is full, or
+ * when they don't fit in a datagram.
+ */
+class BinaryFlowRecorder(hostId: UUID, ringSize: Int,
+                         exporter: FlowHistoryExporter,
+                         slotSize: Int = BinaryFlowRecorder.SlotSize)
+        extends FlowRecorder {
+    import BinaryFlowRecorder.encode
+
+    private val ring = RingBuffer.createSingleProducer(
+        new EventFactory[RecordSlot] {
+            override def newInstance() =
+                new RecordSlot(Math.min(slotSize, exporter.maxRecordSize))
+        }, Integer.highestOneBit(Math.max(ringSize - 1, 1)) << 1)
+    exporter.register(ring)
+
+    private var scratch: ByteBuffer = null
+
+    override def record(pktContext: PacketContext,
+                        simRes: SimulationResult): Unit = {
+        val seq = try ring.tryNext() catch {
+            case e: InsufficientCapacityException =>
+                exporter.droppedRecords.inc()
+                return
+        }
+        val slot = ring.get(seq)
+        val buf = slot.buf
+        slot.spill = null
+        buf.clear()
+        try {
+            encode(buf, hostId, pktContext, simRes)
+        } catch {
+            case e: BufferOverflowException =>
+                buf.clear()
+                slot.spill = spill(pktContext, simRes)
+            case NonFatal(e) =>
+                buf.clear()
+                exporter.droppedRecords.inc()
+        } finally {
+            buf.flip()
+            ring.publish(seq)
+        }
+    }
+
+    /**
+     * Encodes a record that doesn't fit in a slot, returning it in a buffer
+     * of its own, or null if it was dropped.
+     */
+    private def spill(pktContext: PacketContext,
+                      simRes: SimulationResult): ByteBuffer = {
+        if (scratch eq null)
+            scratch = ByteBuffer.allocate(exporter.maxRecordSize)
+        scratch.clear()
+        try {
+            encode(scratch, hostId, pktContext, simRes)
+            scratch.flip()
+            val record = ByteBuffer.allocate(scratch.remaining)
+            record.put(scratch)
+            record.flip()
+            exporter.spilledRecords.inc()
+            record
+        } catch {
+            case NonFatal(e) =>
+                exporter.droppedRecords.inc()
+                null
+        }
+    }
+}
+
+/**
+ * Drains the rings of the BinaryFlowRecorders registered with it, and
+ * sends their records to the flow history endpoint, packed in datagrams of
+ * up to the given size. A datagram is sent when the next record doesn't fit
+ * in it, or when there are no more records to send.
+ */
+class FlowHistoryExporter(endpoint: InetSocketAddress, maxDatagramSize: Int,
+                          metrics: MetricRegistry)
+        extends Thread("flow-history-exporter") {
+
+    private final val IdleParkNanos = 1000000L
+
+    private val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
+
+    val maxRecordSize = Math.min(maxDatagramSize, 65535) - HeaderSize - 2
+
+    val droppedRecords = metrics.counter(name(
+        classOf[FlowHistoryExporter], "droppedRecords"))
+    val spilledRecords = metrics.counter(name(
+        classOf[FlowHistoryExporter], "spilledRecords"))
+    val exportedRecords = metrics.meter(name(
+        classOf[FlowHistoryExporter], "exportedRecords"))
+    val sentDatagrams = metrics.meter(name(
+        classOf[FlowHistoryExporter], "sentDatagrams"))
+
+    private val pollers = new CopyOnWriteArrayList[EventPoller[RecordSlot]]
+    private val socket = DatagramChannel.open()
+    private val datagram = ByteBuffer.allocateDirect(maxRecordSize +
+                                                     HeaderSize + 2)
+    private var records = 0
+
+    private val handler = new EventPoller.Handler[RecordSlot] {
+        override def onEvent(slot: RecordSlot, sequence: Long,
+                             endOfBatch: Boolean): Boolean = {
+            append(slot.record)
+            true
+        }
+    }
+
+    setDaemon(true)
+    startDatagram()
+
+    def register(ring: RingBuffer[RecordSlot]): Unit = {
+        val poller = ring.newPoller()
+        ring.addGatingSequences(poller.getSequence)
+        pollers.add(poller)
+    }
+
+    override def run(): Unit = {
+        while (!isInterrupted) {
+            try {
+                if (!poll()) {
+                    flush()
+                    LockSupport.parkNanos(IdleParkNanos)
+                }
+            } catch {
+                case NonFatal(e) =>
+                    log.warn("FlowHistory: Error exporting records", e)
+            }
+        }
+    }
+
+    /**
+     * Polls all the rings once, returning whether any records were found.
+     */
+    def poll(): Boolean = {
+        var found = false
+        var i = 0
+        while (i < pollers.size) {
+            if (pollers.get(i).poll(handler) == EventPoller.PollState.PROCESSING)
+                found = true
+            i += 1
+        }
+        found
+    }
+
+    /**
+     * Sends the records appended to the current datagram, if any.
+     */
+    def flush(): Unit = {
+        if (records == 0)
+            return
+        putRecordCount(datagram, records)
+        datagram.flip()
+        try {
+            if (endpoint ne null) {
+                socket.send(datagram, endpoint)
+                sentDatagrams.mark()
+                exportedRecords.mark(records)
+            }
+        } catch {
+            case NonFatal(e) => log.warn("FlowHistory: Error sending data", e)
+        } finally {
+            startDatagram()
+        }
+    }
+
+    private def append(record: ByteBuffer): Unit = {
+        val length = record.limit
+        if (length > 0) {
+            if (datagram.remaining < length + 2)
+                flush()
+            datagram.putShort(length.toShort)
+            datagram.put(record.array, record.arrayOffset, length)
+            records += 1
+        }
+    }
+
+    private def startDatagram(): Unit = {
+        datagram.clear()
+        BinarySerialization.putHeader(datagram)
+        records = 0
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring
+
+import java.util.{ArrayList, HashSet, List => JList, Set => JSet, UUID}
+
+import org.midonet.cluster.flowhistory._
+import org.midonet.midolman.PacketWorkflow
+import org.midonet.midolman.PacketWorkflow.{SimulationResult => MMSimRes}
+import org.midonet.midolman.rules.{RuleResult => MMRuleResult}
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows._
+import org.midonet.packets.{IPAddr, MAC}
+import org.midonet.sdn.flows.FlowTagger.{DeviceTag, FlowTag}
+
+/**
+ * Conversions from the simulation's types to those of the flow records,
+ * shared by the flow recorders.
+ */
+object FlowRecordConversions {
+
+    /**
+     * Builds the flow record of a simulated packet.
+     */
+    def flowRecord(hostId: UUID, pktContext: PacketContext,
+                   simRes: MMSimRes): FlowRecord =
+        FlowRecord(hostId, pktContext.inPortId,
+                   flowRecordMatch(pktContext.origMatch), pktContext.cookie,
+                   devices(pktContext.flowTags), rules(pktContext),
+                   simulationResult(simRes), pktContext.outPorts,
+                   flowActions(pktContext.flowActions))
+
+    def flowRecordMatch(fmatch: FlowMatch): FlowRecordMatch =
+        FlowRecordMatch(fmatch.getInputPortNumber, fmatch.getTunnelKey,
+                        fmatch.getTunnelSrc, fmatch.getTunnelDst,
+                        macBytes(fmatch.getEthSrc), macBytes(fmatch.getEthDst),
+                        fmatch.getEtherType, ipBytes(fmatch.getNetworkSrcIP),
+                        ipBytes(fmatch.getNetworkDstIP), fmatch.getNetworkProto,
+                        fmatch.getNetworkTTL, fmatch.getNetworkTOS,
+                        fmatch.getIpFragmentType.value,
+                        fmatch.getSrcPort, fmatch.getDstPort,
+                        fmatch.getIcmpIdentifier, fmatch.getIcmpData,
+                        fmatch.getVlanIds)
+
+    def devices(tags: JList[FlowTag]): JList[UUID] = {
+        val devices = new ArrayList[UUID]
+        var i = 0
+        while (i < tags.size) {
+            tags.get(i) match {
+                case tag: DeviceTag => devices.add(tag.device)
+                case _ =>
+            }
+            i += 1
+        }
+        devices
+    }
+
+    def rules(pktContext: PacketContext): JList[TraversedRule] = {
+        val rules = new ArrayList[TraversedRule]
+        var i = 0
+        while (i < pktContext.traversedRules.size) {
+            rules.add(TraversedRule(
+                          pktContext.traversedRules.get(i),
+                          ruleResult(pktContext.traversedRuleResults.get(i))))
+            i += 1
+        }
+        rules
+    }
+
+    def flowActions(actions: JList[FlowAction]): JSet[Actions.FlowAction] = {
+        val recActions = new HashSet[Actions.FlowAction]
+        var i = 0
+        while (i < actions.size) {
+            val action = flowAction(actions.get(i))
+            if (action ne null)
+                recActions.add(action)
+            i += 1
+        }
+        recActions
+    }
+
+    /**
+     * Converts a datapath flow action, returning null for the actions that
+     * are not recorded.
+     */
+    def flowAction(action: FlowAction): Actions.FlowAction = action match {
+        case a: FlowActionOutput =>
+            Actions.Output(a.getPortNumber)
+        case a: FlowActionPopVLAN =>
+            Actions.PopVlan()
+        case a: FlowActionPushVLAN =>
+            Actions.PushVlan(a.getTagProtocolIdentifier,
+                             a.getTagControlIdentifier)
+        case a: FlowActionSetKey =>
+            setKeyAction(a)
+        case a: FlowActionUserspace =>
+            Actions.Userspace(a.uplinkPid, a.userData)
+        case _ =>
+            null
+    }
+
+    private def setKeyAction(action: FlowActionSetKey): Actions.FlowAction =
+        action.getFlowKey match {
+            case a: FlowKeyARP =>
+                Actions.Arp(a.arp_sip, a.arp_tip, a.arp_op, a.arp_sha, a.arp_tha)
+            case a: FlowKeyEthernet =>
+                Actions.Ethernet(a.eth_src, a.eth_dst)
+            case a: FlowKeyEtherType =>
+                Actions.EtherType(a.etherType)
+            case a: FlowKeyICMPEcho =>
+                Actions.IcmpEcho(a.icmp_type, a.icmp_code, a.icmp_id)
+            case a: FlowKeyICMPError =>
+                Actions.IcmpError(a.icmp_type, a.icmp_code, a.icmp_data)
+            case a: FlowKeyICMP =>
+                Actions.Icmp(a.icmp_type, a.icmp_code)
+            case a: FlowKeyIPv4 =>
+                Actions.IPv4(a.ipv4_src, a.ipv4_dst, a.ipv4_proto, a.ipv4_tos,
+                             a.ipv4_ttl, a.ipv4_frag)
+            case a: FlowKeyTCP =>
+                Actions.TCP(a.tcp_src.toShort, a.tcp_dst.toShort)
+            case a: FlowKeyTunnel =>
+                Actions.Tunnel(a.tun_id.toInt, a.ipv4_src, a.ipv4_dst,
+                               a.tun_flags, a.ipv4_tos, a.ipv4_ttl)
+            case a: FlowKeyUDP =>
+                Actions.UDP(a.udp_src.toShort, a.udp_dst.toShort)
+            case a: FlowKeyVLAN =>
+                Actions.VLan(a.vlan)
+            case _ =>
+                null
+        }
+
+    def ruleResult(result: MMRuleResult): RuleResult.RuleResult =
+        result.action match {
+            case MMRuleResult.Action.ACCEPT => RuleResult.ACCEPT
+            case MMRuleResult.Action.CONTINUE => RuleResult.CONTINUE
+            case MMRuleResult.Action.DROP => RuleResult.DROP
+            case MMRuleResult.Action.JUMP => RuleResult.JUMP
+            case MMRuleResult.Action.REJECT => RuleResult.REJECT
+            case MMRuleResult.Action.RETURN => RuleResult.RETURN
+        }
+
+    def simulationResult(simRes: MMSimRes): SimulationResult.SimulationResult =
+        simRes match {
+            case PacketWorkflow.NoOp => SimulationResult.NOOP
+            case PacketWorkflow.Drop => SimulationResult.DROP
+            case PacketWorkflow.ErrorDrop => SimulationResult.TEMP_DROP
+            case PacketWorkflow.AddVirtualWildcardFlow =>
+                SimulationResult.ADD_VIRTUAL_WILDCARD_FLOW
+            case PacketWorkflow.StateMessage => SimulationResult.STATE_MESSAGE
+            case PacketWorkflow.UserspaceFlow =>
+                SimulationResult.USERSPACE_FLOW
+            case PacketWorkflow.FlowCreated => SimulationResult.FLOW_CREATED
+            case PacketWorkflow.DuplicatedFlow => SimulationResult.DUPE_FLOW
+            case PacketWorkflow.GeneratedPacket =>
+                SimulationResult.GENERATED_PACKET
+        }
+
+    private def macBytes(mac: MAC): Array[Byte] =
+        if (mac eq null) null else mac.getAddress
+
+    private def ipBytes(ip: IPAddr): Array[Byte] =
+        if (ip eq null) null else ip.toBytes
+}
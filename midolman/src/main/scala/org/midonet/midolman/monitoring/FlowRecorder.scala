@@ -20,6 +20,7 @@ import java.nio.ByteBuffer
 import java.nio.channels.DatagramChannel
 import java.util.UUID
 
+import com.codahale.metrics.MetricRegistry
 import com.google.common.net.HostAndPort
 import com.google.inject.Inject
 import com.typesafe.scalalogging.Logger
@@ -34,9 +35,38 @@ trait FlowRecorder {
     def record(pktContext: PacketContext, simRes: SimulationResult): Unit
 }
 
-class FlowRecorderFactory @Inject() (config : MidolmanConfig) {
+object FlowRecorder {
+    /**
+     * Parses the UDP endpoint of the flow history configuration, returning
+     * null if it is invalid.
+     */
+    def endpoint(config: FlowHistoryConfig, log: Logger): InetSocketAddress =
+        try {
+            val hostAndPort = HostAndPort.fromString(config.udpEndpoint)
+                .requireBracketsForIPv6.withDefaultPort(5000)
+            new InetSocketAddress(InetAddress.getByName(hostAndPort.getHostText),
+                                  hostAndPort.getPort)
+        } catch {
+            case t: Throwable => {
+                log.warn(s"FlowHistory: Invalid udp endpoint ${config.udpEndpoint}",
+                         t)
+                null
+            }
+        }
+}
+
+class FlowRecorderFactory @Inject() (config : MidolmanConfig,
+                                     metrics: MetricRegistry) {
     val log = Logger(LoggerFactory.getLogger(classOf[FlowRecorderFactory]))
 
+    private lazy val exporter = {
+        val exporter = new FlowHistoryExporter(
+            FlowRecorder.endpoint(config.flowHistory, log),
+            config.flowHistory.maxDatagramSize, metrics)
+        exporter.start()
+        exporter
+    }
+
     def newFlowRecorder(): FlowRecorder = {
         val hostUuid = try {
             HostIdGenerator.getHostId
@@ -53,6 +83,8 @@ class FlowRecorderFactory @Inject() (config : MidolmanConfig) {
             config.flowHistory.encoding match {
                 case "json" => new JsonFlowRecorder(
                     hostUuid, config.flowHistory)
+                case "binary" => new BinaryFlowRecorder(
+                    hostUuid, config.flowHistory.ringSize, exporter)
                 case "none" => new NullFlowRecorder
                 case other => {
                     log.error(s"Invalid encoding (${other}) specified")
@@ -82,18 +114,7 @@ class NullFlowRecorder extends FlowRecorder {
 abstract class AbstractFlowRecorder(config: FlowHistoryConfig) extends FlowRecorder {
     val log = Logger(LoggerFactory.getLogger("org.midonet.history"))
 
-    val endpoint: InetSocketAddress = try {
-        val hostAndPort = HostAndPort.fromString(config.udpEndpoint)
-            .requireBracketsForIPv6.withDefaultPort(5000)
-        new InetSocketAddress(InetAddress.getByName(hostAndPort.getHostText),
-                              hostAndPort.getPort)
-    } catch {
-        case t: Throwable => {
-            log.warn(s"FlowHistory: Invalid udp endpoint ${config.udpEndpoint}",
-                     t)
-            null
-        }
-    }
+    val endpoint: InetSocketAddress = FlowRecorder.endpoint(config, log)
 
     val socket = DatagramChannel.open()
 
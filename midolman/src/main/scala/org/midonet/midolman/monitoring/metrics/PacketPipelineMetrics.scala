@@ -81,6 +81,13 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
             classOf[FlowTablesMeter], "datapathFlowsCreated",
             "datapathFlows"))
 
+    val simulationCacheHits = registry.meter(name(
+            classOf[PacketPipelineMeter], "simulationCacheHits", "packets"))
+
+    val currentSimulationCacheEntries = registry.register(name(
+            classOf[PacketPipelineGauge], "currentSimulationCacheEntries"),
+            new CompositeLongGauge())
+
     def packetSimulated(latency: Int) {
         packetsSimulated.mark()
         simulationLatency.update(latency)
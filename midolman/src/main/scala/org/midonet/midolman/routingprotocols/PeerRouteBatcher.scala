@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.routingprotocols
+
+import java.util.{HashMap => JHashMap, LinkedHashMap => JLinkedHashMap, UUID}
+
+import com.codahale.metrics.{Counter, Gauge, MetricRegistry, Timer}
+import com.codahale.metrics.MetricRegistry.name
+
+import org.midonet.cluster.data.Route
+
+object PeerRouteBatcher {
+
+    /**
+     * The route creations and deletions written to storage in a single
+     * operation. The routes are mapped to their storage identifiers.
+     */
+    final class Batch {
+        val created = new JHashMap[UUID, Route]()
+        val deleted = new JHashMap[UUID, Route]()
+
+        def size: Int = created.size + deleted.size
+        def isEmpty: Boolean = size == 0
+    }
+
+    final class Metrics(registry: MetricRegistry, portId: UUID,
+                        batcher: PeerRouteBatcher) {
+        private val prefix = name(classOf[PeerRouteBatcher], portId.toString)
+
+        val routesCreated: Counter = registry.counter(name(prefix, "created"))
+        val routesDeleted: Counter = registry.counter(name(prefix, "deleted"))
+        val coalesced: Counter = registry.counter(name(prefix, "coalesced"))
+        val failed: Counter = registry.counter(name(prefix, "failed"))
+        val batchWrites: Timer = registry.timer(name(prefix, "batchWrites"))
+
+        registry.register(name(prefix, "routes"), new Gauge[Int] {
+            override def getValue: Int = batcher.numRoutes
+        })
+        registry.register(name(prefix, "pending"), new Gauge[Int] {
+            override def getValue: Int = batcher.numPending
+        })
+
+        def close(): Unit = {
+            registry.remove(name(prefix, "routes"))
+            registry.remove(name(prefix, "pending"))
+        }
+    }
+
+    private final class PeerRoute(val id: UUID, val route: Route)
+}
+
+/**
+ * Coalesces the routes learned and withdrawn by a BGP session into batches of
+ * storage updates.
+ *
+ * The updates are kept pending, in arrival order, and only the last update
+ * of each route is written: a route withdrawn before its announcement was
+ * written is never stored, and a flapping route is written at most once per
+ * batch. Routes are identified by their destination and gateway, so the
+ * announcement of a stored route with a different weight replaces it.
+ *
+ * Each batch updates the routes of this batcher as if its write had already
+ * succeeded, so that the following batches can be computed while it is being
+ * written. The routes whose creation failed must be reported back.
+ *
+ * This class is not thread-safe.
+ */
+final class PeerRouteBatcher(portId: UUID, maxBatchSize: Int,
+                             registry: MetricRegistry) {
+    import PeerRouteBatcher._
+
+    private val routes = new JHashMap[Route, PeerRoute]()
+    /* The pending update of each route: the route to store, or null if the
+     * route is withdrawn. */
+    private val pending = new JLinkedHashMap[Route, Route]()
+
+    val metrics = new Metrics(registry, portId, this)
+
+    /** The number of routes stored or being stored. */
+    def numRoutes: Int = routes.size
+
+    def numPending: Int = pending.size
+
+    def hasPending: Boolean = !pending.isEmpty
+
+    /** Whether the pending updates fill a batch. */
+    def isBatchFull: Boolean = pending.size >= maxBatchSize
+
+    def add(route: Route): Unit = update(route, route)
+
+    def remove(route: Route): Unit = update(route, null)
+
+    /**
+     * Discards the pending updates and withdraws all the routes.
+     */
+    def removeAll(): Unit = {
+        pending.clear()
+        val it = routes.keySet.iterator
+        while (it.hasNext)
+            pending.put(it.next(), null)
+    }
+
+    /**
+     * Returns a batch with the oldest pending updates, up to the maximum
+     * batch size. The batch may be empty if these updates cancel out.
+     */
+    def nextBatch(): Batch = {
+        val batch = new Batch
+        val it = pending.entrySet.iterator
+        while (it.hasNext && batch.size < maxBatchSize) {
+            val entry = it.next()
+            it.remove()
+            val route = entry.getValue
+            val current = routes.get(entry.getKey)
+            if (route ne null) {
+                if ((current eq null) ||
+                    current.route.getWeight != route.getWeight) {
+                    if (current ne null)
+                        batch.deleted.put(current.id, current.route)
+                    val id = UUID.randomUUID()
+                    batch.created.put(id, route)
+                    routes.put(route, new PeerRoute(id, route))
+                }
+            } else if (current ne null) {
+                batch.deleted.put(current.id, current.route)
+                routes.remove(entry.getKey)
+            }
+        }
+        batch
+    }
+
+    /**
+     * Reports that the creation of a route of a batch failed.
+     */
+    def createFailed(batch: Batch, id: UUID): Unit = {
+        val route = batch.created.get(id)
+        if (route ne null) {
+            val current = routes.get(route)
+            if ((current ne null) && current.id == id)
+                routes.remove(route)
+        }
+    }
+
+    def close(): Unit = metrics.close()
+
+    private def update(key: Route, route: Route): Unit = {
+        // The update replaces the pending one, keeping its position.
+        if (pending.containsKey(key))
+            metrics.coalesced.inc()
+        pending.put(key, route)
+    }
+}
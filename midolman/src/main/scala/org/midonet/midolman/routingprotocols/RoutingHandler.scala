@@ -16,13 +16,18 @@
 package org.midonet.midolman.routingprotocols
 
 import java.io.File
-import java.util.UUID
+import java.util.concurrent.{Executors, ThreadFactory}
+import java.util.{Collections, UUID}
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable
+import scala.concurrent.{ExecutionContext, Future}
 import scala.concurrent.duration._
+import scala.util.control.NonFatal
 
 import akka.actor.{Actor, ActorRef, Stash}
 import akka.pattern.pipe
+import com.codahale.metrics.MetricRegistry
 
 import org.midonet.cluster.client.BGPListBuilder
 import org.midonet.cluster.data.{AdRoute, BGP, Route}
@@ -30,6 +35,7 @@ import org.midonet.cluster.{Client, DataClient}
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io.{UpcallDatapathConnectionManager, VirtualMachine}
 import org.midonet.midolman.logging.ActorLogWithoutPath
+import org.midonet.midolman.routingprotocols.PeerRouteBatcher.Batch
 import org.midonet.midolman.routingprotocols.RoutingManagerActor.BgpStatus
 import org.midonet.midolman.state.{StateAccessException, ZkConnectionAwareWatcher}
 import org.midonet.midolman.topology.VirtualTopologyActor
@@ -80,6 +86,10 @@ object RoutingHandler {
                                        destination: IPv4Subnet,
                                        gateway: IPv4Addr)
 
+    private case object FlushPeerRoutes
+
+    private case class PeerRoutesWritten(batch: Batch, failed: Seq[UUID])
+
     private case class DpPortCreateSuccess(port: DpPort, pid: Int)
     private case class DpPortDeleteSuccess(port: DpPort)
     private case class DpPortError(port: String, ex: Throwable)
@@ -151,6 +161,12 @@ class LazyZkConnectionMonitor(down: () => Unit,
  * exterior virtual routers may be bound to physical interfaces on different
  * physical hosts, therefore MidoNet must anyway be able to use different
  * RoutingHandlers for different virtual ports of the same router. *
+ *
+ * The routes learned from the BGP peer are written to storage in batches,
+ * off the actor thread. The announcements and withdrawals received within the
+ * configured batch interval are coalesced by a PeerRouteBatcher, and each
+ * batch is written by a dedicated thread as a single multi operation, one
+ * batch at a time.
  */
 class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                      val flowInvalidator: SimulationBackChannel,
@@ -159,7 +175,8 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                      val client: Client, val dataClient: DataClient,
                      val config: MidolmanConfig,
                      val connWatcher: ZkConnectionAwareWatcher,
-                     val selectLoop: SelectLoop)
+                     val selectLoop: SelectLoop,
+                     val metricRegistry: MetricRegistry)
     extends Actor with ActorLogWithoutPath with Stash {
 
     import RoutingHandler._
@@ -185,7 +202,15 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
     private var theBgpSession: Option[BGP] = None
 
     private var adRoutes = Set[AdRoute]()
-    private val peerRoutes = mutable.Map[Route, UUID]()
+    private val peerRoutes = new PeerRouteBatcher(
+        rport.id, config.router.bgpRouteBatchSize, metricRegistry)
+    private val peerRouteWriter = ExecutionContext.fromExecutorService(
+        Executors.newSingleThreadExecutor(new ThreadFactory {
+            override def newThread(r: Runnable): Thread =
+                new Thread(r, s"bgp-routes-$bgpIdx")
+        }))
+    private var writingPeerRoutes = false
+    private var peerRoutesFlushScheduled = false
     private var socketAddress: AfUnix.Address = null
 
     // At this moment we only support one bgpd process
@@ -304,6 +329,14 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
     override def postStop() {
         super.postStop()
         disable()
+        // The writer runs the batches queued before it is shut down.
+        while (peerRoutes.hasPending) {
+            val batch = peerRoutes.nextBatch()
+            if (!batch.isEmpty)
+                writePeerRoutes(batch)
+        }
+        peerRouteWriter.shutdown()
+        peerRoutes.close()
         log.debug("({}) Stopped", phase)
     }
 
@@ -404,6 +437,21 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
             zookeeperActive = false
             disable()
 
+        case FlushPeerRoutes =>
+            peerRoutesFlushScheduled = false
+            flushPeerRoutes()
+
+        case PeerRoutesWritten(batch, failed) =>
+            writingPeerRoutes = false
+            failed foreach { peerRoutes.createFailed(batch, _) }
+            peerRoutes.metrics.routesCreated.inc(batch.created.size - failed.size)
+            peerRoutes.metrics.routesDeleted.inc(batch.deleted.size)
+            peerRoutes.metrics.failed.inc(failed.size)
+            log.debug(s"($phase) Wrote peer routes: ${batch.created.size} " +
+                      s"created, ${batch.deleted.size} deleted, " +
+                      s"${failed.size} failed, ${peerRoutes.numPending} pending")
+            peerRoutesUpdated()
+
         case m =>
             log.warn(s"($phase) $m: ignoring")
     }
@@ -501,10 +549,8 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                 invalidateFlows(bgp)
 
                 // If this is the last BGP for ths port, tear everything down.
-                peerRoutes.values foreach {
-                    routeId => deleteRoute(routeId)
-                }
-                peerRoutes.clear()
+                peerRoutes.removeAll()
+                flushPeerRoutes()
                 stopBGP()
 
             case Some(bgp) =>
@@ -546,7 +592,9 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
             }
 
         case AddPeerRoute(ribType, destination, gateway, distance) if
-                peerRoutes.size > config.router.maxBgpPeerRoutes =>
+                config.router.maxBgpPeerRoutes > 0 &&
+                peerRoutes.numRoutes + peerRoutes.numPending >
+                    config.router.maxBgpPeerRoutes =>
 
             log.warn(s"($phase) Max number of peer routes reached " +
                 s"(${config.router.maxBgpPeerRoutes}), please check the " +
@@ -563,9 +611,8 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
             route.setNextHopPort(rport.id)
             route.setWeight(distance)
             route.setLearned(true)
-            val routeId = dataClient.routesCreateEphemeral(route)
-            peerRoutes.put(route, routeId)
-            log.debug("({}) announcing we've added a peer route", phase)
+            peerRoutes.add(route)
+            peerRoutesUpdated()
 
         case RemovePeerRoute(ribType, destination, gateway) =>
             log.info(s"($phase) RemovePeerRoute: $ribType, $destination, $gateway")
@@ -577,10 +624,8 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
             route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
             route.setNextHopPort(rport.id)
             route.setLearned(true)
-            peerRoutes.remove(route) match {
-                case Some(routeId) => deleteRoute(routeId)
-                case None =>
-            }
+            peerRoutes.remove(route)
+            peerRoutesUpdated()
     }
 
     val NotStartedState: Receive = {
@@ -660,23 +705,78 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                 invalidateFlows(bgp)
 
                 // NOTE(guillermo) the dataClient's write operations (such as
-                // deleting a route) are synchronous. That implies that a) these
-                // calls, because ZK is disconnected, will only return when
-                // the session is restored or finally lost. The actor is
-                // effectively 'suspended' for that period of time. and b)
-                // these calls should be at the very end of this message
-                // handler's code path, after the flow invalidation and
-                // bgpd tear down.
-                peerRoutes.values foreach {
-                    routeId => deleteRoute(routeId)
-                }
-                peerRoutes.clear()
+                // deleting a route) are synchronous. Because ZK may be
+                // disconnected, they only return when the session is restored
+                // or finally lost, so the routes are deleted by the peer route
+                // writer rather than by the actor.
+                peerRoutes.removeAll()
+                flushPeerRoutes()
 
             case _ =>
                 transition(Disabled)
         }
     }
 
+    /* Writes the pending peer routes right away if they fill a batch, or
+     * after the batch interval otherwise, unless a batch is being written. */
+    private def peerRoutesUpdated(): Unit = {
+        if (writingPeerRoutes || !peerRoutes.hasPending) {
+            // The pending routes are written when the current batch is done.
+        } else if (peerRoutes.isBatchFull ||
+                   config.router.bgpRouteBatchInterval <= 0) {
+            flushPeerRoutes()
+        } else if (!peerRoutesFlushScheduled) {
+            peerRoutesFlushScheduled = true
+            system.scheduler.scheduleOnce(
+                config.router.bgpRouteBatchInterval millis, self, FlushPeerRoutes)
+        }
+    }
+
+    private def flushPeerRoutes(): Unit = {
+        while (!writingPeerRoutes && peerRoutes.hasPending) {
+            val batch = peerRoutes.nextBatch()
+            if (!batch.isEmpty) {
+                writingPeerRoutes = true
+                writePeerRoutes(batch) pipeTo self
+            }
+        }
+    }
+
+    /* Writes a batch of peer routes on the writer thread. If the batch fails
+     * as a whole, for instance because some of its routes were already
+     * deleted along with the ZK session, each route is written on its own. */
+    private def writePeerRoutes(batch: Batch): Future[PeerRoutesWritten] = Future {
+        val timer = peerRoutes.metrics.batchWrites.time()
+        try {
+            dataClient.routesUpdateEphemeral(batch.created, batch.deleted)
+            PeerRoutesWritten(batch, Seq.empty)
+        } catch {
+            case NonFatal(e) =>
+                log.warn(s"Failed to write a batch of ${batch.size} peer " +
+                         "routes, writing them one by one", e)
+                batch.deleted.keySet.asScala foreach deleteRoute
+                PeerRoutesWritten(batch, batch.created.asScala.toSeq collect {
+                    case (routeId, route) if !createRoute(routeId, route) =>
+                        routeId
+                })
+        } finally {
+            timer.stop()
+        }
+    }(peerRouteWriter)
+
+    private def createRoute(routeId: UUID, route: Route): Boolean = {
+        try {
+            dataClient.routesUpdateEphemeral(
+                Collections.singletonMap(routeId, route),
+                Collections.emptyMap[UUID, Route]())
+            true
+        } catch {
+            case NonFatal(e) =>
+                log.error(s"Failed to create peer route $route", e)
+                false
+        }
+    }
+
     def deleteRoute(routeId: UUID) {
         try {
             dataClient.routesDelete(routeId)
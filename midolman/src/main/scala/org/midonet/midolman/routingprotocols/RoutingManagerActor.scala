@@ -20,6 +20,7 @@ import java.util.UUID
 import scala.collection.mutable
 
 import akka.actor._
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 
 import org.midonet.cluster.state.{StateStorage, LocalPortActive}
@@ -80,6 +81,8 @@ class RoutingManagerActor extends ReactiveActor[LocalPortActive]
 
     @Inject
     var upcallConnManager: UpcallDatapathConnectionManager = null
+    @Inject
+    var metricsRegistry: MetricRegistry = null
 
     override def preStart() {
         super.preStart()
@@ -149,7 +152,8 @@ class RoutingManagerActor extends ReactiveActor[LocalPortActive]
                     context.actorOf(
                         Props(new RoutingHandler(port, portIndexForHandler,
                                     flowInvalidator, dpState, upcallConnManager,
-                                    client, dataClient, config, zkConnWatcher, zebraLoop)).
+                                    client, dataClient, config, zkConnWatcher, zebraLoop,
+                                    metricsRegistry)).
                               withDispatcher("actors.pinned-dispatcher"),
                         name = port.id.toString)
                 )
@@ -15,13 +15,15 @@
  */
 package org.midonet.midolman.simulation
 
-import java.util.{Arrays, Objects, UUID}
+import java.util.{Arrays, HashMap => JHashMap, Objects, UUID}
 
 import akka.actor.ActorSystem
 
 import org.midonet.midolman.rules.RuleResult
 import org.midonet.midolman.topology.VirtualTopology.VirtualDevice
 import org.midonet.midolman.topology.VirtualTopologyActor.tryAsk
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPAddr, TCP}
 import org.midonet.sdn.flows.FlowTagger
 
 object LoadBalancer {
@@ -40,6 +42,18 @@ class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
     val hasStickyVips: Boolean = vips.exists(_.isStickySourceIP)
     val hasNonStickyVips: Boolean = vips.exists(!_.isStickySourceIP)
 
+    /* The VIPs that are admin state up, indexed by address, in the order of
+     * the VIP array since the first VIP matching a packet wins. */
+    private val vipsByAddress = {
+        val index = new JHashMap[IPAddr, Array[VIP]]()
+        for (vip <- vips if vip.adminStateUp) {
+            val current = index.get(vip.address)
+            index.put(vip.address,
+                      if (current eq null) Array(vip) else current :+ vip)
+        }
+        index
+    }
+
     def processInbound(context: PacketContext)(implicit actorSystem: ActorSystem)
     : RuleResult = {
 
@@ -117,21 +131,37 @@ class LoadBalancer(val id: UUID, val adminStateUp: Boolean, val routerId: UUID,
         }
     }
 
+    /* Finds the VIP a packet is sent to, as VIP.matches. The fields of the
+     * packet are read in the same order, so that the flow only matches on
+     * the fields it would with a scan of the VIPs. */
     private def findVip(context: PacketContext): VIP = {
-        var i = 0
-        while (i < vips.size) {
-            if (vips(i).matches(context))
-                return vips(i)
-            i += 1
-        }
-        null
+        if (vipsByAddress.isEmpty)
+            return null
+        val pktMatch = context.wcmatch
+        val candidates = vipsByAddress.get(pktMatch.getNetworkDstIP)
+        if (candidates eq null)
+            return null
+        findVip(candidates, pktMatch.getDstPort, pktMatch)
     }
 
+    /* Finds the VIP a packet is sent from, as VIP.matchesReturn. */
     private def findVipReturn(context: PacketContext): VIP = {
+        if (vipsByAddress.isEmpty)
+            return null
+        val pktMatch = context.wcmatch
+        val candidates = vipsByAddress.get(pktMatch.getNetworkSrcIP)
+        if (candidates eq null)
+            return null
+        findVip(candidates, pktMatch.getSrcPort, pktMatch)
+    }
+
+    private def findVip(candidates: Array[VIP], port: Int,
+                        pktMatch: FlowMatch): VIP = {
         var i = 0
-        while (i < vips.size) {
-            if (vips(i).matchesReturn(context))
-                return vips(i)
+        while (i < candidates.length) {
+            if (candidates(i).protocolPort == port &&
+                pktMatch.getNetworkProto == TCP.PROTOCOL_NUMBER)
+                return candidates(i)
             i += 1
         }
         null
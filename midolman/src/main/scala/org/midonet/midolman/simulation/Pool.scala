@@ -18,13 +18,15 @@ package org.midonet.midolman.simulation
 
 import java.util.{Arrays, Objects, UUID}
 
+import scala.util.hashing.MurmurHash3
+
 import org.midonet.midolman.state.NatState
 import org.midonet.midolman.state.NatState.NatKey
 import org.midonet.midolman.state.l4lb.PoolLBMethod
 import org.midonet.midolman.topology.VirtualTopology.VirtualDevice
-import org.midonet.packets.{ICMP, IPAddr}
+import org.midonet.packets.{ICMP, IPAddr, IPv4Addr}
 import org.midonet.sdn.flows.FlowTagger
-import org.midonet.util.collection.WeightedSelector
+import org.midonet.util.collection.MaglevSelector
 
 object Pool {
     def findPoolMember(ip: IPAddr, port: Int, pmArray: Array[PoolMember])
@@ -38,6 +40,32 @@ object Pool {
         }
         false
     }
+
+    /* The key of a pool member in the consistent hashing table. */
+    private def memberKey(member: PoolMember): Long =
+        member.id.getMostSignificantBits ^ member.id.getLeastSignificantBits
+
+    /**
+     * Hashes the fields identifying the connection of a packet, or only its
+     * source address for a VIP with sticky source IP. The hash only depends
+     * on the packet, so that every host selects the same pool member for it.
+     */
+    def flowHash(context: PacketContext, stickySourceIP: Boolean): Int = {
+        val pktMatch = context.wcmatch
+        var hash = addressHash(pktMatch.getNetworkSrcIP)
+        if (stickySourceIP)
+            return MurmurHash3.finalizeHash(hash, 1)
+        hash = MurmurHash3.mix(hash, pktMatch.getSrcPort)
+        hash = MurmurHash3.mix(hash, addressHash(pktMatch.getNetworkDstIP))
+        hash = MurmurHash3.mix(hash, pktMatch.getDstPort)
+        hash = MurmurHash3.mix(hash, pktMatch.getNetworkProto)
+        MurmurHash3.finalizeHash(hash, 5)
+    }
+
+    private def addressHash(address: IPAddr): Int = address match {
+        case ip: IPv4Addr => ip.toInt
+        case ip => ip.hashCode
+    }
 }
 
 final class Pool(val id: UUID, val adminStateUp: Boolean,
@@ -53,13 +81,19 @@ final class Pool(val id: UUID, val adminStateUp: Boolean,
 
     val isUp = adminStateUp && activePoolMembers.nonEmpty
 
-    private val memberSelector = if (!isUp) null
-                                 else WeightedSelector(activePoolMembers)
+    private val memberSelector =
+        if (!isUp) null
+        else MaglevSelector[PoolMember](activePoolMembers, Pool.memberKey)
 
     /**
      * Choose an active pool member and apply DNAT to the packetContext
      * to redirect traffic to that pool member.
      *
+     * The member is selected by consistent hashing of the connection, or of
+     * the source address with sticky source IP, so every host picks the same
+     * member for a new connection, and a change of the active members only
+     * remaps a small share of the connections.
+     *
      * If an existing NAT mapping is present, we respect that instead of mapping
      * to a new backend, in order to maintain existing connections.
      *
@@ -74,7 +108,8 @@ final class Pool(val id: UUID, val adminStateUp: Boolean,
         context.addFlowTag(deviceTag)
 
         if (isUp) {
-            val member = memberSelector.select()
+            val member = memberSelector.select(
+                Pool.flowHash(context, stickySourceIP))
             if (context.log.underlying.isDebugEnabled) {
                 context.log.debug(s"Selected member $member out of {}",
                                   activePoolMembers.mkString(", "))
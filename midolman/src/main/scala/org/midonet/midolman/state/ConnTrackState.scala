@@ -25,8 +25,8 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.devices.Port
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.{ICMP, IPAddr, IPv4, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.packets.{ICMP, IPAddr, IPv4, IPv4Addr, IPv6Addr, TCP, UDP}
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -54,6 +54,56 @@ object ConnTrackState {
                                 s"$networkProtocol:$deviceId"
     }
 
+    /**
+     * Packs conntrack keys into 8 words for a CompactFlowStateTable: two per
+     * address, so that IPv6 addresses fit, one for the transport ports, one
+     * for the protocol and the address families, and two for the device id.
+     */
+    object ConnTrackCodec extends FlowStateCodec[ConnTrackKey] {
+        private final val SrcIPv6 = 0x100L
+        private final val DstIPv6 = 0x200L
+
+        override def keyWords = 8
+
+        override def encodeKey(key: ConnTrackKey, dst: Array[Long],
+                               offset: Int): Unit = {
+            val families = encodeAddr(key.networkSrc, dst, offset, SrcIPv6) |
+                           encodeAddr(key.networkDst, dst, offset + 2, DstIPv6)
+            dst(offset + 4) = (key.icmpIdOrTransportSrc.toLong << 32) |
+                              (key.icmpIdOrTransportDst & 0xffffffffL)
+            dst(offset + 5) = families | (key.networkProtocol & 0xffL)
+            dst(offset + 6) = key.deviceId.getMostSignificantBits
+            dst(offset + 7) = key.deviceId.getLeastSignificantBits
+        }
+
+        override def decodeKey(src: Array[Long], offset: Int): ConnTrackKey = {
+            val families = src(offset + 5)
+            ConnTrackKey(decodeAddr(src, offset, families & SrcIPv6),
+                         (src(offset + 4) >> 32).toInt,
+                         decodeAddr(src, offset + 2, families & DstIPv6),
+                         src(offset + 4).toInt,
+                         families.toByte,
+                         new UUID(src(offset + 6), src(offset + 7)))
+        }
+
+        private def encodeAddr(addr: IPAddr, dst: Array[Long], offset: Int,
+                               ipv6: Long): Long = addr match {
+            case ip: IPv4Addr =>
+                dst(offset) = 0L
+                dst(offset + 1) = ip.addr & 0xffffffffL
+                0L
+            case ip: IPv6Addr =>
+                dst(offset) = ip.upperWord
+                dst(offset + 1) = ip.lowerWord
+                ipv6
+        }
+
+        private def decodeAddr(src: Array[Long], offset: Int,
+                               ipv6: Long): IPAddr =
+            if (ipv6 != 0L) new IPv6Addr(src(offset), src(offset + 1))
+            else new IPv4Addr(src(offset + 1).toInt)
+    }
+
     def EgressConnTrackKey(wcMatch: FlowMatch, egressDeviceId: UUID): ConnTrackKey =
         ConnTrackKey(wcMatch.getNetworkDstIP,
                      icmpIdOr(wcMatch, wcMatch.getDstPort),
@@ -16,11 +16,14 @@
 
 package org.midonet.midolman.state
 
-import java.util.{ArrayList, Collection, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
+import java.io.ByteArrayOutputStream
+import java.util.{ArrayList, Collection, HashMap => JHashMap, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
+import java.util.zip.{Deflater, InflaterInputStream}
 
 import scala.concurrent.{ExecutionContext, Future}
 
 import akka.actor.ActorSystem
+import com.google.protobuf.{ByteString, CodedOutputStream}
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
@@ -36,7 +39,7 @@ import org.midonet.midolman.{NotYetException, UnderlayResolver}
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.flows.FlowActions.setKey
 import org.midonet.odp.flows.FlowKeys.tunnel
-import org.midonet.packets.Ethernet
+import org.midonet.packets.{Ethernet, FlowStateEthernet}
 import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.FlowStateTable
@@ -66,7 +69,7 @@ import org.midonet.util.functors.Callback0
  *          **********************
  *
  * This class is meant to be associated with a single shard pair (nat, conntrack)
- * of a ShardedFlowStateTable table. For this reason the class happily uses
+ * of a PartitionedFlowStateTable table. For this reason the class happily uses
  * unsynchronized internal state, it's NOT thread-safe.
  *
  * The expected ownership semantics are:
@@ -89,6 +92,19 @@ import org.midonet.util.functors.Callback0
  *
  *   5 Other threads' read operations will spill over to this shard for the
  *     received keys.
+ *
+ *          BATCHING
+ *          ********
+ *
+ * With a batch interval, the state destined to the hosts that own the egress
+ * ports of a flow is still pushed ahead of the packet that created it, since
+ * the replies to that packet will be simulated there. The state for the rest
+ * of the peers, such as the other members of a stateful port group, is added
+ * to a per-peer batch instead. A batch is pushed when it is as large as a
+ * state packet can carry, or when pushBatches() finds it older than the batch
+ * interval, as a single message with many FlowStates that accept() takes
+ * like any other. Batches can be deflated, in which case they only reach
+ * agents that know about compressed state messages.
  */
 abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
                                        natTable: FlowStateTable[NatKey, NatBinding],
@@ -97,13 +113,30 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                                        hostId: UUID,
                                        underlay: UnderlayResolver,
                                        flowInvalidation: FlowTagIndexer,
-                                       tos: Byte) {
+                                       tos: Byte,
+                                       batchInterval: Long = 0L,
+                                       compressBatches: Boolean = false) {
     import FlowStatePackets._
 
     protected def log: Logger
     protected def getPort(id: UUID): Port
     protected def getPortGroup(id: UUID): PortGroup
 
+    /* Sends a packet carrying a batch of state through the specified
+     * tunnelling actions. */
+    protected def pushState(packet: Ethernet, actions: ArrayList[FlowAction]): Unit
+
+    private final class PendingBatch(val since: Long) {
+        val states = new ArrayList[Proto.FlowState]()
+        var size = 0
+    }
+
+    /* The delimited size of a state message with no new state, and the size
+     * the new state of a message can take so that it fits in a packet. */
+    private[this] val MessageOverhead = 64
+    private[this] val MaxBatchSize =
+        FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH - MessageOverhead
+
     /* Used for message building */
     private[this] val txState = Proto.FlowState.newBuilder()
     private[this] val txNatEntry = Proto.NatEntry.newBuilder()
@@ -112,6 +145,11 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
+    private[this] val txEgressHosts: JSet[UUID] = new JHashSet[UUID]()
+
+    private[this] val batches = new JHashMap[UUID, PendingBatch]()
+    private[this] val deflater = new Deflater(Deflater.BEST_SPEED)
+    private[this] val deflateBuf = new Array[Byte](4096)
 
     private[this] val hostIdProto = uuidToProto(hostId)
     private[this] var storage: FlowStateStorage = _
@@ -232,6 +270,8 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         val ingressPort = context.inputPort
         val egressPorts = context.outPorts
         resolvePeers(ingressPort, egressPorts, txPeers, txPorts, context.flowTags)
+        if (batchInterval > 0)
+            resolveEgressHosts(egressPorts, txEgressHosts)
         txIngressPort = ingressPort
         val callbacks = context.flowRemovedCallbacks
         context.conntrackTx.fold(callbacks, _conntrackAdder)
@@ -243,11 +283,16 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     def buildMessage(context: PacketContext, ingressPort: UUID): Unit =
         if (!txPeers.isEmpty) {
             try {
-                resetCurrentMessage()
                 txState.setIngressPort(uuidToProto(ingressPort))
-                currentMessage.addNewState(txState.build())
-                context.stateMessage = currentMessage.build()
-                hostsToActions(txPeers, context.stateActions)
+                val state = txState.build()
+                if (batchInterval > 0)
+                    addToBatches(state, txPeers)
+                if (!txPeers.isEmpty) {
+                    resetCurrentMessage()
+                    currentMessage.addNewState(state)
+                    context.stateMessage = currentMessage.build()
+                    hostsToActions(txPeers, context.stateActions)
+                }
             } finally {
                 txState.clear()
             }
@@ -257,16 +302,123 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
                                actions: ArrayList[FlowAction]): Unit = {
         val hostsIt = hosts.iterator
         while (hostsIt.hasNext) {
-            underlay.peerTunnelInfo(hostsIt.next()) match {
-                case Some(route) =>
-                    val key = setKey(tunnel(TUNNEL_KEY, route.srcIp, route.dstIp, tos))
-                    actions.add(key)
-                    actions.add(route.output)
-                case None =>
+            hostToActions(hostsIt.next(), actions)
+        }
+    }
+
+    private def hostToActions(host: UUID, actions: ArrayList[FlowAction]): Unit =
+        underlay.peerTunnelInfo(host) match {
+            case Some(route) =>
+                val key = setKey(tunnel(TUNNEL_KEY, route.srcIp, route.dstIp, tos))
+                actions.add(key)
+                actions.add(route.output)
+            case None =>
+        }
+
+    /* Adds the state to the batches of the peers that don't own an egress
+     * port, removing them from the specified set of peers. */
+    private def addToBatches(state: Proto.FlowState, peers: JSet[UUID]): Unit = {
+        val size = CodedOutputStream.computeMessageSizeNoTag(state) + 1
+        val rawLimit = if (compressBatches) 2 * MaxBatchSize else MaxBatchSize
+        val it = peers.iterator()
+        while (it.hasNext) {
+            val peer = it.next()
+            if (!txEgressHosts.contains(peer)) {
+                var batch = batches.get(peer)
+                if ((batch ne null) && batch.size + size > rawLimit) {
+                    pushBatch(peer, batch)
+                    batch = null
+                }
+                if (batch eq null) {
+                    batch = new PendingBatch(NanoClock.DEFAULT.tick)
+                    batches.put(peer, batch)
+                }
+                batch.states.add(state)
+                batch.size += size
+                it.remove()
             }
         }
     }
 
+    def hasPendingBatches: Boolean = !batches.isEmpty
+
+    /**
+     * Pushes the batches that have been pending for at least the batch
+     * interval.
+     *
+     * EXPECTED CALLING THREADS: only the packet processing thread that owns
+     * this replicator.
+     */
+    def pushBatches(now: Long): Unit =
+        if (!batches.isEmpty) {
+            val it = batches.entrySet().iterator()
+            while (it.hasNext) {
+                val e = it.next()
+                if (now - e.getValue.since >= batchInterval) {
+                    it.remove()
+                    pushBatch(e.getKey, e.getValue)
+                }
+            }
+        }
+
+    private def pushBatch(peer: UUID, batch: PendingBatch): Unit = {
+        batches.remove(peer)
+        val actions = new ArrayList[FlowAction](2)
+        hostToActions(peer, actions)
+        if (!actions.isEmpty) {
+            log.debug("push {} batched states to {}", Int.box(batch.states.size), peer)
+            pushStates(batch.states, actions)
+        }
+    }
+
+    /* Pushes the states in as few packets as possible: deflated if enabled
+     * and if they then fit in a packet, split in halves otherwise. */
+    private def pushStates(states: JList[Proto.FlowState],
+                           actions: ArrayList[FlowAction]): Unit = {
+        resetCurrentMessage()
+        currentMessage.addAllNewState(states)
+        val message = currentMessage.build()
+        if (compressBatches) {
+            val compressed = compress(message)
+            if (fits(compressed)) {
+                pushState(statePacket(compressed), actions)
+                return
+            }
+        }
+        if (states.size == 1 || fits(message)) {
+            pushState(statePacket(message), actions)
+        } else {
+            val half = states.size / 2
+            pushStates(states.subList(0, half), actions)
+            pushStates(states.subList(half, states.size), actions)
+        }
+    }
+
+    private def fits(message: Proto.StateMessage): Boolean = {
+        val size = message.getSerializedSize
+        size + CodedOutputStream.computeRawVarint32Size(size) <=
+            FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH
+    }
+
+    private def compress(message: Proto.StateMessage): Proto.StateMessage = {
+        val out = new ByteArrayOutputStream(message.getSerializedSize)
+        deflater.reset()
+        deflater.setInput(message.toByteArray)
+        deflater.finish()
+        while (!deflater.finished()) {
+            out.write(deflateBuf, 0, deflater.deflate(deflateBuf))
+        }
+        resetCurrentMessage()
+        currentMessage.setCompressedState(ByteString.copyFrom(out.toByteArray))
+        currentMessage.build()
+    }
+
+    private def statePacket(message: Proto.StateMessage): Ethernet = {
+        val out = new ByteArrayOutputStream(message.getSerializedSize + 5)
+        message.writeDelimitedTo(out)
+        makeUdpShell(out.toByteArray)
+    }
+
     def touchState(): Unit =
         if (storage ne null)
             storage.submit()
@@ -329,6 +481,10 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
 
         log.debug("Got state replication message from: {}", msg.getSender)
         acceptNewState(msg)
+        if (msg.hasCompressedState) {
+            val input = new InflaterInputStream(msg.getCompressedState.newInput())
+            acceptNewState(Proto.StateMessage.parseFrom(input))
+        }
     }
 
     @throws(classOf[NotYetException])
@@ -380,6 +536,18 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
 
         log.debug("Resolved peers {}", hosts)
     }
+
+    @throws(classOf[NotYetException])
+    private def resolveEgressHosts(egressPorts: JList[UUID],
+                                   hosts: JSet[UUID]): Unit = {
+        hosts.clear()
+        val portsIt = egressPorts.iterator
+        while (portsIt.hasNext) {
+            val port = getPort(portsIt.next())
+            if ((port.hostId ne null) && (port.hostId != hostId))
+                hosts.add(port.hostId)
+        }
+    }
 }
 
 class FlowStateReplicator(
@@ -390,10 +558,15 @@ class FlowStateReplicator(
         hostId: UUID,
         underlay: UnderlayResolver,
         flowInvalidation: FlowTagIndexer,
-        tso: Byte)(implicit as: ActorSystem)
+        tso: Byte,
+        batchInterval: Long = 0L,
+        compressBatches: Boolean = false,
+        statePusher: (Ethernet, ArrayList[FlowAction]) => Unit = null)
+        (implicit as: ActorSystem)
         extends BaseFlowStateReplicator(conntrackTable, natTable, traceTable,
                                         storageFuture, hostId, underlay,
-                                        flowInvalidation, tso) {
+                                        flowInvalidation, tso, batchInterval,
+                                        compressBatches) {
     override val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
 
     @throws(classOf[NotYetException])
@@ -401,4 +574,7 @@ class FlowStateReplicator(
 
     @throws(classOf[NotYetException])
     override def getPortGroup(id: UUID) = VTA.tryAsk[PortGroup](id)
+
+    override def pushState(packet: Ethernet, actions: ArrayList[FlowAction]) =
+        statePusher(packet, actions)
 }
@@ -28,7 +28,7 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets._
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 
 object NatState {
     private val WILDCARD_PORT = 0
@@ -160,6 +160,49 @@ object NatState {
 
     case class NatBinding(var networkAddress: IPv4Addr, var transportPort: Int)
 
+    /**
+     * Packs NAT keys into 5 words for a CompactFlowStateTable: one for the
+     * addresses, one for the transport ports, one for the protocol and the
+     * key type, and two for the device id.
+     */
+    object NatCodec extends FlowStateCodec[NatKey] {
+        private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+                                              FWD_STICKY_DNAT, REV_SNAT,
+                                              REV_DNAT, REV_STICKY_DNAT)
+
+        override def keyWords = 5
+
+        override def encodeKey(key: NatKey, dst: Array[Long],
+                               offset: Int): Unit = {
+            dst(offset) = (key.networkSrc.addr.toLong << 32) |
+                          (key.networkDst.addr & 0xffffffffL)
+            dst(offset + 1) = (key.transportSrc.toLong << 32) |
+                              (key.transportDst & 0xffffffffL)
+            dst(offset + 2) = (ordinal(key.keyType).toLong << 8) |
+                              (key.networkProtocol & 0xffL)
+            dst(offset + 3) = key.deviceId.getMostSignificantBits
+            dst(offset + 4) = key.deviceId.getLeastSignificantBits
+        }
+
+        override def decodeKey(src: Array[Long], offset: Int): NatKey =
+            NatKey(keyTypes((src(offset + 2) >> 8).toInt),
+                   IPv4Addr.fromInt((src(offset) >> 32).toInt),
+                   (src(offset + 1) >> 32).toInt,
+                   IPv4Addr.fromInt(src(offset).toInt),
+                   src(offset + 1).toInt,
+                   src(offset + 2).toByte,
+                   new UUID(src(offset + 3), src(offset + 4)))
+
+        private def ordinal(keyType: KeyType): Int = keyType match {
+            case FWD_SNAT => 0
+            case FWD_DNAT => 1
+            case FWD_STICKY_DNAT => 2
+            case REV_SNAT => 3
+            case REV_DNAT => 4
+            case REV_STICKY_DNAT => 5
+        }
+    }
+
     def releaseBinding(key: NatKey, binding: NatBinding, natLeaser: NatLeaser): Unit =
         if ((key.keyType eq NatState.FWD_SNAT) &&
             key.networkProtocol != ICMP.PROTOCOL_NUMBER) {
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.tools
+
+import scala.util.control.NonFatal
+
+import org.apache.curator.framework.CuratorFramework
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.cluster.storage.MidonetBackendConfig
+
+/**
+ * Rewrites the topology objects stored by ZOOM in the text format in the
+ * binary encoding. Previous versions only read the text format, so the
+ * binary encoding is disabled by default: once all the nodes reading the
+ * topology have been upgraded, enable it with zookeeper.binary_encoding and
+ * then run this tool. Readers accept both encodings, so running it is
+ * optional, and the objects written since the binary encoding was enabled
+ * are already in the binary encoding.
+ */
+object ZoomMigrate {
+
+    def main(args: Array[String]): Unit = {
+        val injector = MmCtl.getInjector
+        val config = injector.getInstance(classOf[MidonetBackendConfig])
+        if (!config.useNewStack) {
+            System.err.println("[mm-zoom-migrate] The new storage stack is " +
+                               "not enabled")
+            System.exit(1)
+        }
+        if (!config.binaryEncoding) {
+            System.err.println("[mm-zoom-migrate] The binary encoding is " +
+                               "not enabled")
+            System.exit(1)
+        }
+
+        val curator = injector.getInstance(classOf[CuratorFramework])
+        val status = try {
+            curator.start()
+            val backend = injector.getInstance(classOf[MidonetBackend])
+            backend.setupBindings()
+            val migrated = backend.store.asInstanceOf[ZookeeperObjectMapper]
+                                  .migrateToBinaryEncoding()
+            println(s"Migrated $migrated objects to the binary encoding")
+            0
+        } catch {
+            case NonFatal(e) =>
+                System.err.println("[mm-zoom-migrate] Failed: " + e.getMessage)
+                1
+        } finally {
+            curator.close()
+        }
+        System.exit(status)
+    }
+}
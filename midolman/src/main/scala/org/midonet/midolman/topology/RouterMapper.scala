@@ -264,18 +264,12 @@ object RouterMapper {
     }
 
     /**
-     * Provides an implementation for a router's [[RoutingTable]], wrapping an
-     * underlying IPv4 routing table.
+     * Provides an implementation for a router's [[RoutingTable]], wrapping a
+     * snapshot of the router's IPv4 routing table.
      */
-    private class RouterRoutingTable(routes: mutable.Set[Route])
+    private class RouterRoutingTable(ipv4RoutingTable: IPv4RoutingTable)
         extends RoutingTable {
 
-        private val ipv4RoutingTable = new IPv4RoutingTable()
-
-        for (route <- routes) {
-            ipv4RoutingTable.addRoute(route)
-        }
-
         override def lookup(flowMatch: FlowMatch): java.util.List[Route] = {
             ipv4RoutingTable.lookup(
                 flowMatch.getNetworkSrcIP.asInstanceOf[IPv4Addr],
@@ -321,8 +315,9 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
     private val ports = new mutable.HashMap[UUID, PortState]
     private var loadBalancer: LoadBalancerState = null
     // Stores all routes received via notifications from the replicated routing
-    // table.
-    private val routes = new mutable.HashSet[Route]
+    // table. The table is updated incrementally, and each router device gets
+    // a snapshot of it.
+    private val routingTable = new IPv4RoutingTable()
     // Stores routes received via the router's configuration in storage.
     private val localRoutes = new mutable.HashMap[UUID, RouteState]
     private var arpCache: ArpCache = null
@@ -522,8 +517,8 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
                   routeUpdates.removed)
         assertThread()
         // Update the current routes.
-        routes ++= routeUpdates.added
-        routes --= routeUpdates.removed
+        routeUpdates.added foreach routingTable.addRoute
+        routeUpdates.removed foreach routingTable.deleteRoute
         vt.toBackChannel(RouterManager.InvalidateFlows(
             id, routeUpdates.added, routeUpdates.removed))
         config
@@ -565,11 +560,12 @@ final class RouterMapper(routerId: UUID, vt: VirtualTopology)
         val device = new SimulationRouter(
             routerId,
             config,
-            new RouterRoutingTable(routes),
+            new RouterRoutingTable(routingTable.snapshot()),
             tagManager,
             arpCache
             )
-        log.debug("Router ready: {} {}", device, routes)
+        log.debug("Router ready: {} with {} routes", device,
+                  routingTable.size)
 
         device
     }
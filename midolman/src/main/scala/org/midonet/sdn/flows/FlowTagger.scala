@@ -24,7 +24,15 @@ import org.midonet.packets.{IPv6Addr, IPv4Addr, IPAddr, MAC}
 import org.midonet.midolman.layer3.Route
 
 object FlowTagger {
-    trait FlowTag extends BackChannelMessage
+    trait FlowTag extends BackChannelMessage {
+        /**
+         * A 64-bit identifier of this tag, derived from its type and its
+         * contents, such that equal tags have the same identifier. Different
+         * tags may collide, so users must still compare tags for equality.
+         */
+        def toLongHash: Long =
+            (getClass.getName.hashCode.toLong << 32) | (hashCode() & 0xffffffffL)
+    }
 
     /**
      * Marker interface used to distinguish flow state tags from normal
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.ArrayList
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import org.slf4j.LoggerFactory
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+
+object PartitionedFlowStateTable {
+    def create[K <: IdleExpiration, V >: Null](): PartitionedFlowStateTable[K, V] =
+        new PartitionedFlowStateTable[K, V]()
+
+    def create[K <: IdleExpiration, V >: Null](clock: NanoClock):
+            PartitionedFlowStateTable[K, V] = new PartitionedFlowStateTable[K, V](clock)
+}
+
+/**
+ * A per-flow state table partitioned among a number of children shards, in
+ * which every key is owned by exactly one shard.
+ *
+ * Like the ShardedFlowStateTable, it offers single-writer / multiple-reader
+ * semantics by assigning ownership of different shards to different threads.
+ * Unlike it, lookups do not walk every shard: the table maintains an owner
+ * index mapping each key to the shard that inserted it, so a get(), ref(),
+ * unref() or touch() costs at most one probe in the local shard, one probe in
+ * the owner index and one probe in the owning shard, regardless of the number
+ * of shards.
+ *
+ * THREADING SEMANTICS:
+ *
+ * Puts on a shard do not touch other shards. A key becomes owned by the shard
+ * that inserts it and stays owned by it until it expires there. Two
+ * writes on the same key performed on different shards result in undefined
+ * behaviour, as with the ShardedFlowStateTable: clients should distribute
+ * shards among threads in a way that results in no keyspace overlap.
+ *
+ * The owner index is a concurrent map, written only by the thread owning
+ * the shard into which a key is inserted or from which it expires. Expiration
+ * of idle entries on a shard must be performed by the thread that owns it.
+ */
+class PartitionedFlowStateTable[K <: IdleExpiration, V >: Null]
+        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+
+    private val shards = new ArrayList[FlowStateShard]()
+    private val owners = new ConcurrentHashMap[K, FlowStateShard]()
+
+    private val defaultLogger =
+        Logger(LoggerFactory.getLogger("org.midonet.state.table"))
+
+    def addShard(log: Logger = defaultLogger) = {
+        val s: FlowStateShard = new FlowStateShard(shards.size, log)
+        shards.add(s)
+        s
+    }
+
+    /**
+     * Returns the shard that owns the given key, or null if no shard
+     * contains it.
+     */
+    private[state] def ownerOf(key: K): FlowStateShard = owners.get(key)
+
+    override def putAndRef(key: K, value: V): V = throw new IllegalArgumentException
+
+    override def get(key: K): V = {
+        val owner = owners.get(key)
+        if (owner ne null) owner.shallowGet(key) else null
+    }
+
+    override def ref(key: K): V = {
+        val owner = owners.get(key)
+        if (owner ne null) owner.ref(key) else null
+    }
+
+    /**
+     * Updates the value and expiration time of a key in its owning shard.
+     * Since the parent table cannot insert entries, this is a no-op if no
+     * shard owns the key.
+     */
+    override def touch(key: K, value: V): Unit = {
+        val owner = owners.get(key)
+        if (owner ne null)
+            owner.touch(key, value)
+    }
+
+    override def getRefCount(key: K): Int = {
+        val owner = owners.get(key)
+        if (owner ne null) owner.getRefCount(key) else 0
+    }
+
+    override def unref(key: K): Unit = {
+        val owner = owners.get(key)
+        if (owner ne null)
+            owner.unref(key)
+    }
+
+    override def fold[U](acc: U, func: Reducer[K, V, U]): U = {
+        var i = 0
+        var seed = acc
+        while (i < shards.size) {
+            seed = shards.get(i).fold(seed, func)
+            i += 1
+        }
+        seed
+    }
+
+    override def expireIdleEntries[U](acc: U, func: Reducer[K, V, U]): U = {
+        var i = 0
+        var seed = acc
+        while (i < shards.size) {
+            seed = shards.get(i).expireIdleEntries(seed, func)
+            i += 1
+        }
+        seed
+    }
+
+    override def expireIdleEntries() {
+        var i = 0
+        while (i < shards.size) {
+            shards.get(i).expireIdleEntries()
+            i += 1
+        }
+    }
+
+    /**
+     * A shard within a PartitionedFlowStateTable.
+     *
+     * It stores the entries it owns locally and registers them in the
+     * parent's owner index, through which it forwards queries for keys it
+     * does not own.
+     */
+    class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
+        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+
+        /* Unregisters expired keys from the owner index before handing them
+         * over to the caller's reducer. The reducer is called before the key
+         * is removed from the map, so a concurrent lookup either finds the
+         * entry through the index or misses it altogether. */
+        private class Disowner[U](func: Reducer[K, V, U]) extends Reducer[K, V, U] {
+            override def apply(acc: U, key: K, value: V): U = {
+                owners.remove(key, FlowStateShard.this)
+                if (func ne null) func(acc, key, value) else acc
+            }
+        }
+
+        private val disowner = new Disowner[Unit](null)
+
+        override def putAndRef(key: K, value: V): V = {
+            val old = map.putAndRef(key, value)
+            if (old eq null)
+                owners.put(key, this)
+            old
+        }
+
+        override def get(key: K): V = {
+            val v = map.get(key)
+            if (v ne null) {
+                v
+            } else {
+                val owner = owners.get(key)
+                if ((owner ne null) && (owner ne this)) owner.shallowGet(key)
+                else null
+            }
+        }
+
+        def shallowGet(key: K): V =
+            map.get(key)
+
+        override def ref(key: K): V =
+            map.ref(key)
+
+        override def getRefCount(key: K): Int =
+            map.getRefCount(key)
+
+        override def touch(key: K, value: V): Unit = {
+            putAndRef(key, value)
+            unref(key)
+        }
+
+        private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
+
+        override def unref(key: K) =
+            map.unref(key, tickMillis)
+
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U =
+            map.fold(seed, func)
+
+        override def expireIdleEntries(): Unit =
+            map.obliterateIdleEntries(tickMillis, (), disowner)
+
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
+            map.obliterateIdleEntries(tickMillis, seed, new Disowner(func))
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.slf4j.helpers.NOPLogger
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+/**
+ * Measures the cost of registering flows in a FlowTagIndexer and then
+ * invalidating all of them, with a table holding as many flows as a packet
+ * worker would at the given scale.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+@org.openjdk.jmh.annotations.Threads(1)
+class FlowTagIndexerBenchmark {
+
+    @Param(Array("100000"))
+    var flows: Int = _
+
+    @Param(Array("8"))
+    var tagsPerFlow: Int = _
+
+    @Param(Array("1024"))
+    var devices: Int = _
+
+    var indexer: FlowTagIndexer = _
+    var managedFlows: Array[ManagedFlow] = _
+    var deviceTags: Array[FlowTag] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        indexer = new FlowIndexer with FlowTagIndexer {
+            val log = Logger(NOPLogger.NOP_LOGGER)
+        }
+        deviceTags = Array.fill(devices)(FlowTagger.tagForDevice(UUID.randomUUID()))
+        managedFlows = new Array[ManagedFlow](flows)
+        var i = 0
+        while (i < flows) {
+            val flow = new ManagedFlow(null)
+            // A tag unique to the flow plus tags shared with other flows
+            flow.tags.add(FlowTagger.tagForDpPort(i))
+            var j = 1
+            while (j < tagsPerFlow) {
+                flow.tags.add(deviceTags((i * 31 + j * 17) % devices))
+                j += 1
+            }
+            managedFlows(i) = flow
+            i += 1
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100000)
+    def registerAndInvalidate(): Unit = {
+        var i = 0
+        while (i < flows) {
+            indexer.registerFlow(managedFlows(i))
+            i += 1
+        }
+        i = 0
+        while (i < devices) {
+            indexer.invalidateFlowsFor(deviceTags(i))
+            i += 1
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100000)
+    def registerAndRemove(): Unit = {
+        var i = 0
+        while (i < flows) {
+            indexer.registerFlow(managedFlows(i))
+            i += 1
+        }
+        i = 0
+        while (i < flows) {
+            indexer.removeFlow(managedFlows(i))
+            i += 1
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.packets.{IPv6Addr, IPv6Subnet}
+
+object IPv6RoutingTableBenchmark {
+    final val Lookups = 1024
+
+    final val Any = new IPv6Subnet("::", 0)
+    final val DeepTrieHost = IPv6Addr.fromString("2001:db8:19:19::1")
+}
+
+/**
+ * Measures the cost of IPv6 routing table lookups, both for a route to
+ * every prefix length of a single host and for a table the size of a full
+ * IPv6 BGP feed.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class IPv6RoutingTableBenchmark {
+    import IPv6RoutingTableBenchmark._
+
+    @Param(Array("deep", "full"))
+    var routes: String = _
+
+    @Param(Array("200000"))
+    var fullTableRoutes: Int = _
+
+    val table = new IPv6RoutingTable()
+    val sources = new Array[IPv6Addr](Lookups)
+    val destinations = new Array[IPv6Addr](Lookups)
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(42)
+        val prefixes = routes match {
+            case "deep" => (0 to 128) map (new IPv6Subnet(DeepTrieHost, _))
+            case "full" => internetPrefixes(random)
+        }
+        for (prefix <- prefixes) {
+            table.addRoute(new IPv6Route(Any, prefix, NextHop.PORT,
+                                         new UUID(0L, random.nextInt(16)),
+                                         null, 100, null))
+        }
+
+        var i = 0
+        while (i < Lookups) {
+            sources(i) = IPv6Addr.random
+            // Addresses inside the routed prefixes.
+            val prefix = prefixes(random.nextInt(prefixes.size)).getAddress
+            destinations(i) = IPv6Addr(prefix.upperWord | (random.nextLong() & 0xffff),
+                                       random.nextLong())
+            i += 1
+        }
+    }
+
+    /* Prefixes with the length distribution of an IPv6 Internet routing
+     * table: mostly /48s, then /32s and /36s to /44s, inside 2000::/3. */
+    private def internetPrefixes(random: Random): IndexedSeq[IPv6Subnet] =
+        for (i <- 0 until fullTableRoutes) yield {
+            val p = random.nextInt(100)
+            val length = if (p < 50) 48 else if (p < 70) 32
+                         else 36 + 4 * random.nextInt(3)
+            val upper = (random.nextLong() >>> 3 | (1L << 61)) &
+                        (-1L << (64 - length))
+            new IPv6Subnet(IPv6Addr(upper, 0L), length)
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    def lookups(bh: Blackhole): Unit = {
+        var i = 0
+        while (i < Lookups) {
+            bh.consume(table.lookup(sources(i), destinations(i)))
+            i += 1
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3
+
+import java.util.{List => JList, UUID}
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+
+object RoutingTableBenchmark {
+    final val Lookups = 1024
+
+    /* The destinations of the l3_deep_trie perf topology, each of which
+     * has a route for every prefix length. */
+    final val DeepTrieHosts = Array(0x0a191901, 0xc0a80001)
+}
+
+/**
+ * Measures the cost of routing table lookups with the legacy binary trie
+ * and with the multibit trie, both for the routes of the l3_deep_trie perf
+ * topology and for a table the size of a full BGP feed.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+    import RoutingTableBenchmark._
+
+    @Param(Array("legacy", "multibit"))
+    var implementation: String = _
+
+    @Param(Array("deep", "full"))
+    var routes: String = _
+
+    @Param(Array("500000"))
+    var fullTableRoutes: Int = _
+
+    var lookup: (Int, Int) => JList[Route] = _
+    val sources = new Array[Int](Lookups)
+    val destinations = new Array[Int](Lookups)
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(42)
+        val table = routes match {
+            case "deep" => deepTrieRoutes()
+            case "full" => internetRoutes(random)
+        }
+        implementation match {
+            case "legacy" =>
+                val t = new RoutingTable()
+                table foreach t.addRoute
+                lookup = (src, dst) => t.lookup(src, dst)
+            case "multibit" =>
+                val t = new MultibitRoutingTable()
+                table foreach t.addRoute
+                lookup = (src, dst) => t.lookup(src, dst)
+        }
+
+        var i = 0
+        while (i < Lookups) {
+            sources(i) = random.nextInt()
+            destinations(i) = routes match {
+                case "deep" => DeepTrieHosts(i % DeepTrieHosts.length)
+                case "full" => random.nextInt()
+            }
+            i += 1
+        }
+    }
+
+    private def route(dst: Int, length: Int, port: Long): Route =
+        new Route(0, 0, dst, length, NextHop.PORT, new UUID(0L, port), 0, 100,
+                  null, null)
+
+    private def deepTrieRoutes(): Seq[Route] =
+        for (host <- DeepTrieHosts.toSeq; length <- 0 to 32)
+            yield route(host, length, host)
+
+    /* Prefixes with the length distribution of an Internet routing table:
+     * mostly /24s, then /22s, /23s and /16s to /21s. */
+    private def internetRoutes(random: Random): Seq[Route] =
+        for (i <- 0 until fullTableRoutes) yield {
+            val p = random.nextInt(100)
+            val length = if (p < 58) 24 else if (p < 68) 22
+                         else if (p < 78) 23 else 16 + random.nextInt(6)
+            route(random.nextInt() & (-1 << (32 - length)), length,
+                  random.nextInt(16))
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    def lookups(bh: Blackhole): Unit = {
+        var i = 0
+        while (i < Lookups) {
+            bh.consume(lookup(sources(i), destinations(i)))
+            i += 1
+        }
+    }
+}
+
+/**
+ * Measures the cost of publishing a routing table after a route update on a
+ * table the size of a full BGP feed: rebuilding the table from all its routes,
+ * as router mappers used to, or updating it and taking a snapshot.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class RoutingTableUpdateBenchmark {
+
+    @Param(Array("100000"))
+    var fullTableRoutes: Int = _
+
+    var routes: Array[Route] = _
+    var table: MultibitRoutingTable = _
+    var next = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(42)
+        routes = Array.tabulate(fullTableRoutes) { i =>
+            val length = 16 + random.nextInt(9)
+            new Route(0, 0, random.nextInt() & (-1 << (32 - length)), length,
+                      NextHop.PORT, new UUID(0L, i), 0, 100, null, null)
+        }
+        table = new MultibitRoutingTable()
+        routes foreach table.addRoute
+    }
+
+    /* Withdraws a route and announces it again. */
+    private def update(t: MultibitRoutingTable): Unit = {
+        val route = routes(next)
+        next = (next + 1) % routes.length
+        t.deleteRoute(route)
+        t.addRoute(route)
+    }
+
+    @Benchmark
+    def rebuild(): MultibitRoutingTable = {
+        update(table)
+        val t = new MultibitRoutingTable()
+        routes foreach t.addRoute
+        t
+    }
+
+    @Benchmark
+    def snapshot(): MultibitRoutingTable = {
+        update(table)
+        table.snapshot()
+    }
+}
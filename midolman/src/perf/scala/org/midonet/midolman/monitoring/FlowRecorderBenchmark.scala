@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.codahale.metrics.MetricRegistry
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.PacketWorkflow
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.rules.RuleResult
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.odp.flows.{FlowActions, FlowKeys}
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.FlowTagger
+
+/**
+ * Measures the time the packet processing thread spends recording a flow
+ * summary with each encoding.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowRecorderBenchmark {
+
+    @Param(Array("json", "binary"))
+    var encoding: String = _
+
+    var recorder: FlowRecorder = _
+    var context: PacketContext = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val conf = MidolmanConfig.forTests(
+            s"""
+               |agent.flow_history.enabled=true
+               |agent.flow_history.encoding=$encoding
+               |agent.flow_history.udp_endpoint="localhost:50024"
+               """.stripMargin)
+        recorder = new FlowRecorderFactory(conf, new MetricRegistry)
+            .newFlowRecorder()
+
+        val ethernet = { eth addr MAC.random -> MAC.random } <<
+                       { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+                       { udp ports 5003 ---> 53 } << payload("payload")
+        val wcmatch = new FlowMatch(FlowKeys.fromEthernetPacket(ethernet))
+        context = new PacketContext(0, new Packet(ethernet, wcmatch), wcmatch)
+        context.inPortId = UUID.randomUUID()
+        for (i <- 0 until 4)
+            context.addFlowTag(FlowTagger.tagForDevice(UUID.randomUUID))
+        for (i <- 0 until 4)
+            context.recordTraversedRule(UUID.randomUUID,
+                new RuleResult(RuleResult.Action.ACCEPT, null))
+        context.outPorts.add(UUID.randomUUID)
+        for (i <- 0 until 3)
+            context.flowActions.add(FlowActions.randomAction)
+    }
+
+    @Benchmark
+    def record(): Unit = {
+        recorder.record(context, PacketWorkflow.AddVirtualWildcardFlow)
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.lang.management.ManagementFactory
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.state.{CompactFlowStateTable, FlowStateTable, PartitionedFlowStateTable}
+import org.midonet.util.concurrent.NanoClock
+
+object FlowStateTableBenchmark {
+    final val Lookups = 1024
+
+    val DeviceIds = Array.fill(16)(UUID.randomUUID())
+
+    def connTrackKey(random: Random): ConnTrackKey =
+        ConnTrackKey(IPv4Addr(random.nextInt()), random.nextInt(65536),
+                     IPv4Addr(random.nextInt()), random.nextInt(65536),
+                     6, DeviceIds(random.nextInt(DeviceIds.length)))
+
+    def usedHeap(): Long = {
+        for (i <- 0 until 3) System.gc()
+        ManagementFactory.getMemoryMXBean.getHeapMemoryUsage.getUsed
+    }
+}
+
+/**
+ * Compares the flow state table backed by the TimedExpirationMap with the
+ * flat-array CompactFlowStateTable, filled with the given number of conntrack
+ * entries. The setup prints the heap used per entry by each table; the
+ * benchmarks measure lookups of existing and missing keys, and the insertion
+ * and expiration of short-lived entries.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowStateTableBenchmark {
+    import FlowStateTableBenchmark._
+
+    @Param(Array("partitioned", "compact"))
+    var table: String = _
+
+    @Param(Array("1000000"))
+    var entries: Int = _
+
+    val clock = new NanoClock {
+        var time = 0L
+        override def tick = time
+    }
+
+    var shard: FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    val present = new Array[ConnTrackKey](Lookups)
+    val missing = new Array[ConnTrackKey](Lookups)
+    val fresh = new Array[ConnTrackKey](Lookups)
+
+    @JmhSetup
+    def setup(): Unit = {
+        val before = usedHeap()
+        shard = table match {
+            case "partitioned" =>
+                new PartitionedFlowStateTable[ConnTrackKey, ConnTrackValue](clock)
+                    .addShard()
+            case "compact" =>
+                new CompactFlowStateTable[ConnTrackKey, ConnTrackValue](
+                    ConnTrackCodec, clock).addShard()
+        }
+
+        // The keys are regenerated from the seed, so that only the
+        // objects retained by the table count towards its memory usage.
+        var random = new Random(42)
+        var i = 0
+        while (i < entries) {
+            shard.putAndRef(connTrackKey(random), java.lang.Boolean.TRUE)
+            i += 1
+        }
+        val bytes = usedHeap() - before
+        println(s"\n$table: ${bytes / entries} bytes per entry " +
+                s"($entries entries, ${bytes >> 20} MB)")
+
+        random = new Random(42)
+        for (i <- 0 until Lookups) {
+            present(i) = connTrackKey(random)
+            for (j <- 0 until entries / Lookups - 1)
+                connTrackKey(random)
+        }
+        for (i <- 0 until Lookups) {
+            missing(i) = connTrackKey(random)
+            fresh(i) = connTrackKey(random)
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    def getPresent(bh: Blackhole): Unit = {
+        var i = 0
+        while (i < Lookups) {
+            bh.consume(shard.get(present(i)))
+            i += 1
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    def getMissing(bh: Blackhole): Unit = {
+        var i = 0
+        while (i < Lookups) {
+            bh.consume(shard.get(missing(i)))
+            i += 1
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    def touchAndExpire(): Unit = {
+        var i = 0
+        while (i < Lookups) {
+            shard.touch(fresh(i), java.lang.Boolean.FALSE)
+            i += 1
+        }
+        clock.time += TimeUnit.MINUTES.toNanos(2)
+        shard.expireIdleEntries()
+    }
+}
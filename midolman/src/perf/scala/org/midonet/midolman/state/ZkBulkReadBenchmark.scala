@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.concurrent.TimeUnit
+import java.util.{ArrayList => JArrayList, UUID}
+
+import scala.collection.JavaConversions._
+
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.ZooDefs.Ids
+import org.apache.zookeeper.{CreateMode, Op}
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, _}
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Measures reading the data of many nodes from an in-process ZooKeeper, as
+ * the list operations of the data client do: with a synchronous get per
+ * node, and with the pipelined getAll() of the directory, for several bounds
+ * on the number of requests in flight.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZkBulkReadBenchmark {
+
+    private final val BasePath = "/ports"
+    private final val NodesPerMulti = 1000
+
+    @Param(Array("1000", "20000"))
+    var nodes: Int = _
+
+    @Param(Array("16", "128", "1024"))
+    var maxInFlight: Int = _
+
+    var server: TestingServer = _
+    var connection: ZkConnection = _
+    var directory: Directory = _
+    val paths = new JArrayList[String]()
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer
+        server.start()
+        connection = new ZkConnection(server.getConnectString, 30000, null)
+        connection.open()
+        directory = connection.getRootDirectory
+
+        // Port configurations are a few hundred bytes.
+        val data = new Array[Byte](512)
+        directory.add(BasePath, null, CreateMode.PERSISTENT)
+        val ops = new JArrayList[Op]()
+        for (i <- 0 until nodes) {
+            val path = s"$BasePath/${UUID.randomUUID()}"
+            paths.add(path)
+            ops.add(Op.create(path, data, Ids.OPEN_ACL_UNSAFE,
+                              CreateMode.PERSISTENT))
+            if (ops.size == NodesPerMulti) {
+                directory.multi(ops)
+                ops.clear()
+            }
+        }
+        if (!ops.isEmpty)
+            directory.multi(ops)
+    }
+
+    @JmhTearDown
+    def teardown(): Unit = {
+        connection.close()
+        server.close()
+    }
+
+    @Benchmark
+    def serialGets(bh: Blackhole): Unit = {
+        for (path <- paths)
+            bh.consume(directory.get(path, null))
+    }
+
+    @Benchmark
+    def pipelinedGets(bh: Blackhole): Unit = {
+        bh.consume(directory.getAll(paths, maxInFlight))
+    }
+}
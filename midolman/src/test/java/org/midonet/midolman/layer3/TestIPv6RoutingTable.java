@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
+
+public class TestIPv6RoutingTable {
+
+    private static final IPv6Subnet ANY = new IPv6Subnet("::", 0);
+
+    private static IPv6Route route(IPv6Subnet src, String dst, int dstLength,
+                                   int weight, long id) {
+        return new IPv6Route(src, new IPv6Subnet(dst, dstLength),
+                             NextHop.PORT, new UUID(40L, id), null, weight,
+                             null);
+    }
+
+    private static IPv6Addr addr(String s) {
+        return IPv6Addr.fromString(s);
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Assert.assertTrue(table.lookup(addr("2001:db8::1"),
+                                       addr("2001:db8::2")).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIPv4RoutesAreRejected() {
+        new IPv6RoutingTable().addRoute(
+            new Route(0, 0, 0x0a000000, 8, NextHop.PORT, new UUID(40L, 50L),
+                      0, 100, null, null));
+    }
+
+    @Test
+    public void testIPv6RoutesAreNotEqualToIPv4Routes() {
+        Route rt4 = new Route(0, 0, 0, 0, NextHop.PORT, new UUID(40L, 50L),
+                              Route.NO_GATEWAY, 100, null, null);
+        Route rt6 = route(ANY, "::", 0, 100, 50);
+        Assert.assertNotEquals(rt4, rt6);
+        Assert.assertNotEquals(rt6, rt4);
+        Assert.assertEquals(rt6, route(ANY, "::", 0, 100, 50));
+        Assert.assertNotEquals(rt6, route(ANY, "2001::", 16, 100, 50));
+    }
+
+    @Test
+    public void testLongestPrefixSourceAndWeight() {
+        IPv6Route rt1 = route(ANY, "::", 0, 100, 50);
+        IPv6Route rt2 = route(ANY, "2001:db8::", 32, 200, 60);
+        IPv6Route rt3 = route(ANY, "2001:db8::", 32, 300, 70);
+        IPv6Route rt4 = route(ANY, "2001:db8:0:1::", 64, 100, 80);
+        IPv6Route rt5 = route(new IPv6Subnet("fd00::", 8),
+                              "2001:db8:0:1::1", 128, 100, 90);
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        for (Route rt : new Route[] { rt1, rt2, rt3, rt4, rt5 })
+            table.addRoute(rt);
+
+        assertMatches(table.lookup(addr("fd00::1"), addr("2001:db8:0:1::1")),
+                      rt5);
+        // The source doesn't match rt5, which falls back to rt4.
+        assertMatches(table.lookup(addr("fe80::1"), addr("2001:db8:0:1::1")),
+                      rt4);
+        assertMatches(table.lookup(addr("fe80::1"), addr("2001:db8:0:2::1")),
+                      rt2);
+        assertMatches(table.lookup(addr("fe80::1"), addr("2001:db9::1")),
+                      rt1);
+
+        table.deleteRoute(rt2);
+        assertMatches(table.lookup(addr("fe80::1"), addr("2001:db8:0:2::1")),
+                      rt3);
+        rt2.weight = 300;
+        table.addRoute(rt2);
+        assertMatches(table.lookup(addr("fe80::1"), addr("2001:db8:0:2::1")),
+                      rt2, rt3);
+        table.deleteRoute(rt4);
+        assertMatches(table.lookup(addr("fe80::1"), addr("2001:db8:0:1::1")),
+                      rt2, rt3);
+        table.deleteRoute(rt1);
+        assertMatches(table.lookup(addr("fe80::1"), addr("2001:db9::1")));
+        Assert.assertEquals(3, table.size());
+    }
+
+    @Test
+    public void testRandomRoutesMatchLinearSearch() {
+        Random random = new Random(42);
+        IPv6Addr base = addr("2001:db8::");
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        List<IPv6Route> routes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            if (routes.isEmpty() || random.nextInt(3) > 0) {
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(129) : 0;
+                IPv6Route rt = new IPv6Route(
+                    new IPv6Subnet(randomAddr(random, base), srcLength),
+                    new IPv6Subnet(randomAddr(random, base), random.nextInt(129)),
+                    NextHop.PORT, new UUID(40L, i), null, random.nextInt(3),
+                    null);
+                routes.add(rt);
+                table.addRoute(rt);
+            } else {
+                table.deleteRoute(routes.remove(random.nextInt(routes.size())));
+            }
+            for (int j = 0; j < 10; j++) {
+                IPv6Addr src = randomAddr(random, base);
+                IPv6Addr dst = randomAddr(random, base);
+                Assert.assertEquals(linearLookup(routes, src, dst),
+                                    new HashSet<>(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    /* Addresses with few bits flipped, so that routes share long prefixes. */
+    private static IPv6Addr randomAddr(Random random, IPv6Addr base) {
+        return IPv6Addr.fromLong(
+            base.upperWord() ^ (random.nextLong() & random.nextLong() &
+                                random.nextLong() & random.nextLong()),
+            base.lowerWord() ^ (random.nextLong() & random.nextLong() &
+                                random.nextLong() & random.nextLong()));
+    }
+
+    private static Set<Route> linearLookup(List<IPv6Route> routes,
+                                           IPv6Addr src, IPv6Addr dst) {
+        for (int length = 128; length >= 0; length--) {
+            Set<Route> matches = new HashSet<>();
+            int minWeight = Integer.MAX_VALUE;
+            for (IPv6Route rt : routes) {
+                if (rt.dstSubnet.getPrefixLen() != length ||
+                    !rt.dstSubnet.containsAddress(dst) ||
+                    !rt.srcSubnet.containsAddress(src))
+                    continue;
+                if (rt.weight < minWeight) {
+                    matches.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    matches.add(rt);
+            }
+            if (!matches.isEmpty())
+                return matches;
+        }
+        return new HashSet<>();
+    }
+
+    private static void assertMatches(List<Route> matches, Route... routes) {
+        Set<Route> expected = new HashSet<>();
+        for (Route rt : routes)
+            expected.add(rt);
+        Assert.assertEquals(routes.length, matches.size());
+        Assert.assertEquals(expected, new HashSet<>(matches));
+    }
+}
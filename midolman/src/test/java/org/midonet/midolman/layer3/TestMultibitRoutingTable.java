@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Subnet;
+
+public class TestMultibitRoutingTable {
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight, long id) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         new UUID(40L, id), 0, weight, null, null);
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        Assert.assertTrue(table.lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(table.lookup(0x00000009, 0xfffffffe).isEmpty());
+    }
+
+    @Test
+    public void testSameDstPrefixVaryingLengths() {
+        Route rt1 = route(0, 0, 0x0a140085, 7, 100, 50);
+        Route rt2 = route(0, 0, 0x0a14008d, 18, 200, 60);
+        Route rt3 = route(0, 0, 0x0a14007d, 18, 300, 70);
+        Route rt4 = route(0, 0, 0x0a140096, 25, 300, 80);
+        Route rt5 = route(0x80c00304, 10, 0x0a14009f, 28, 300, 90);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        for (Route rt : new Route[] { rt1, rt2, rt3, rt4, rt5 })
+            table.addRoute(rt);
+
+        // A dst that matches rt4 but not rt5.
+        assertMatches(table.lookup(0x12345678, 0x0a140080), rt4);
+        // rt5 matches only if the src matches 10 bits, otherwise rt4 does.
+        assertMatches(table.lookup(0x80c01234, 0x0a140090), rt5);
+        assertMatches(table.lookup(0x80a01122, 0x0a140090), rt4);
+        // rt2 and rt3 share a prefix, rt2 has the lower weight.
+        assertMatches(table.lookup(0x12345678, 0x0a143700), rt2);
+        assertMatches(table.lookup(0x12345678, 0x0b332211), rt1);
+
+        table.deleteRoute(rt4);
+        assertMatches(table.lookup(0x12345678, 0x0a140080), rt2);
+        table.deleteRoute(rt3);
+        rt3.weight = 200;
+        table.addRoute(rt3);
+        assertMatches(table.lookup(0x12345678, 0x0a140080), rt2, rt3);
+        table.deleteRoute(rt1);
+        assertMatches(table.lookup(0x12345678, 0x0b332211));
+        table.deleteRoute(rt5);
+        assertMatches(table.lookup(0x80c01234, 0x0a140090), rt2, rt3);
+        table.addRoute(rt1);
+        table.addRoute(rt5);
+        table.deleteRoute(rt2);
+        table.deleteRoute(rt3);
+        assertMatches(table.lookup(0x80c01234, 0x0a140090), rt5);
+        assertMatches(table.lookup(0x12345678, 0x0a140080), rt1);
+        Assert.assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testDuplicateRoutesAreAddedOnce() {
+        Route rt = route(0, 0, 0x0a000000, 8, 100, 50);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        table.addRoute(rt);
+        table.addRoute(rt);
+        Assert.assertEquals(1, table.size());
+        table.deleteRoute(rt);
+        Assert.assertEquals(0, table.size());
+        assertMatches(table.lookup(0, 0x0a010203));
+    }
+
+    @Test
+    public void testLookupWithoutSourceRoutesReturnsSameList() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        table.addRoute(route(0, 0, 0x0a000000, 8, 100, 50));
+        table.addRoute(route(0, 0, 0x0a000000, 8, 100, 60));
+        Assert.assertSame(table.lookup(0x01020304, 0x0a010203),
+                          table.lookup(0x05060708, 0x0aff0000));
+    }
+
+    @Test
+    public void testDeepTrie() {
+        // A route for every prefix length of the same address, as in the
+        // l3_deep_trie perf topology.
+        int dst = 0x0a0a0a0b;
+        Route[] routes = new Route[33];
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        for (int length = 0; length <= 32; length++) {
+            routes[length] = route(0, 0, dst, length, 100, length);
+            table.addRoute(routes[length]);
+        }
+
+        for (int length = 32; length >= 0; length--) {
+            assertMatches(table.lookup(0, dst), routes[length]);
+            // An address that differs from dst in the bit following the
+            // prefix matches the prefix itself.
+            if (length < 32)
+                assertMatches(table.lookup(0, dst ^ (1 << (31 - length))),
+                              routes[length]);
+            table.deleteRoute(routes[length]);
+        }
+        assertMatches(table.lookup(0, dst));
+    }
+
+    @Test
+    public void testRandomRoutesMatchLinearSearch() {
+        Random random = new Random(42);
+        int base = 0x0a000000;
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        List<Route> routes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            if (routes.isEmpty() || random.nextInt(3) > 0) {
+                int length = random.nextInt(33);
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(33) : 0;
+                Route rt = route(base ^ random.nextInt(64), srcLength,
+                                 base ^ randomBits(random), length,
+                                 random.nextInt(3), i);
+                routes.add(rt);
+                table.addRoute(rt);
+            } else {
+                table.deleteRoute(routes.remove(random.nextInt(routes.size())));
+            }
+            for (int j = 0; j < 10; j++) {
+                int src = base ^ random.nextInt(64);
+                int dst = base ^ randomBits(random);
+                Assert.assertEquals(linearLookup(routes, src, dst),
+                                    new HashSet<>(table.lookup(src, dst)));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByUpdates() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100, 1);
+        Route rt2 = route(0, 0, 0x0a010000, 16, 100, 2);
+        Route rt3 = route(0, 0, 0x0a010000, 16, 50, 3);
+        Route rt4 = route(0x01020300, 24, 0x0a010200, 24, 100, 4);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        table.addRoute(rt4);
+
+        MultibitRoutingTable snapshot = table.snapshot();
+        table.addRoute(rt3);
+        table.deleteRoute(rt1);
+        table.deleteRoute(rt4);
+
+        assertMatches(table.lookup(0x01020304, 0x0a010203), rt3);
+        assertMatches(table.lookup(0, 0x0a020304));
+        Assert.assertEquals(2, table.size());
+
+        assertMatches(snapshot.lookup(0x01020304, 0x0a010203), rt4);
+        assertMatches(snapshot.lookup(0, 0x0a010203), rt2);
+        assertMatches(snapshot.lookup(0, 0x0a020304), rt1);
+        Assert.assertEquals(3, snapshot.size());
+
+        // Updating a snapshot doesn't affect the table it was taken from.
+        snapshot.deleteRoute(rt2);
+        assertMatches(snapshot.lookup(0, 0x0a010203), rt1);
+        assertMatches(table.lookup(0, 0x0a010203), rt3);
+    }
+
+    @Test
+    public void testRandomSnapshotsMatchLinearSearch() {
+        Random random = new Random(42);
+        int base = 0x0a000000;
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        List<Route> routes = new ArrayList<>();
+        List<MultibitRoutingTable> snapshots = new ArrayList<>();
+        List<List<Route>> snapshotRoutes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            if (routes.isEmpty() || random.nextInt(3) > 0) {
+                int length = random.nextInt(33);
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(33) : 0;
+                Route rt = route(base ^ random.nextInt(64), srcLength,
+                                 base ^ randomBits(random), length,
+                                 random.nextInt(3), i);
+                routes.add(rt);
+                table.addRoute(rt);
+            } else {
+                table.deleteRoute(routes.remove(random.nextInt(routes.size())));
+            }
+            if (random.nextInt(10) == 0) {
+                snapshots.add(table.snapshot());
+                snapshotRoutes.add(new ArrayList<>(routes));
+            }
+        }
+
+        snapshots.add(table);
+        snapshotRoutes.add(routes);
+        for (int i = 0; i < snapshots.size(); i++) {
+            Assert.assertEquals(snapshotRoutes.get(i).size(),
+                                snapshots.get(i).size());
+            for (int j = 0; j < 100; j++) {
+                int src = base ^ random.nextInt(64);
+                int dst = base ^ randomBits(random);
+                Assert.assertEquals(
+                    linearLookup(snapshotRoutes.get(i), src, dst),
+                    new HashSet<>(snapshots.get(i).lookup(src, dst)));
+            }
+        }
+    }
+
+    /* Addresses with few bits set, so that routes share long prefixes. */
+    private static int randomBits(Random random) {
+        return random.nextInt() & random.nextInt() & random.nextInt();
+    }
+
+    private static Set<Route> linearLookup(List<Route> routes, int src, int dst) {
+        for (int length = 32; length >= 0; length--) {
+            Set<Route> matches = new HashSet<>();
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.dstNetworkLength != length ||
+                    !IPv4Subnet.addrMatch(dst, rt.dstNetworkAddr, length) ||
+                    !IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                          rt.srcNetworkLength))
+                    continue;
+                if (rt.weight < minWeight) {
+                    matches.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    matches.add(rt);
+            }
+            if (!matches.isEmpty())
+                return matches;
+        }
+        return new HashSet<>();
+    }
+
+    private static void assertMatches(List<Route> matches, Route... routes) {
+        Set<Route> expected = new HashSet<>();
+        for (Route rt : routes)
+            expected.add(rt);
+        Assert.assertEquals(routes.length, matches.size());
+        Assert.assertEquals(expected, new HashSet<>(matches));
+    }
+}
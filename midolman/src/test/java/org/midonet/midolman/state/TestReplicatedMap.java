@@ -16,8 +16,11 @@
 
 package org.midonet.midolman.state;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -57,6 +60,52 @@ public class TestReplicatedMap {
         }
     }
 
+    private class CountingStringMap extends ReplicatedStringMap {
+        int decodedKeys = 0;
+
+        public CountingStringMap(Directory dir) {
+            super(dir);
+        }
+
+        @Override
+        protected String decodeKey(String str) {
+            decodedKeys++;
+            return str;
+        }
+    }
+
+    /**
+     * A directory that reads the children immediately, but defers the
+     * replies until they are completed by the test.
+     */
+    private class DeferredDirectory extends MockDirectory {
+        List<Runnable> replies = new ArrayList<>();
+        int reads = 0;
+
+        @Override
+        public void asyncGetChildren(String relativePath,
+                                     final DirectoryCallback<Set<String>> cb,
+                                     TypedWatcher watcher) {
+            reads++;
+            try {
+                final Set<String> children = getChildren(relativePath,
+                                                         watcher);
+                replies.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        cb.onSuccess(children);
+                    }
+                });
+            } catch (NoNodeException e) {
+                cb.onError(e);
+            }
+        }
+
+        void completeReply() {
+            replies.remove(0).run();
+        }
+    }
+
     private class Location {
         int a;
         int b;
@@ -387,4 +436,59 @@ public class TestReplicatedMap {
         expectedMap.clear();
         Assert.assertEquals(expectedMap, strMap.getMap());
     }
+
+    @Test
+    public void testOnlyAddedPathsAreDecoded()
+            throws KeeperException, InterruptedException {
+        CountingStringMap strMap = new CountingStringMap(mapDir);
+        mapDir.add("/one,100,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        mapDir.add("/two,200,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        String path3 = mapDir.add("/three,300,", null,
+                                  CreateMode.PERSISTENT_SEQUENTIAL);
+        strMap.start();
+        Assert.assertEquals(3, strMap.decodedKeys);
+
+        mapDir.add("/four,400,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals(4, strMap.decodedKeys);
+        Assert.assertEquals("400", strMap.get("four"));
+
+        mapDir.delete(path3);
+        Assert.assertEquals(4, strMap.decodedKeys);
+        Assert.assertNull(strMap.get("three"));
+        Assert.assertEquals("100", strMap.get("one"));
+    }
+
+    @Test
+    public void testWatchEventsAreCoalesced()
+            throws KeeperException, InterruptedException {
+        DeferredDirectory dir = new DeferredDirectory();
+        ReplicatedStringMap strMap = new ReplicatedStringMap(dir);
+        MyWatcher watcher = new MyWatcher();
+        strMap.addWatcher(watcher);
+        strMap.start();
+        Assert.assertEquals(1, dir.reads);
+        dir.completeReply();
+
+        // The first change triggers a read, the changes received while the
+        // read is in flight are coalesced into a single read.
+        dir.add("/one,100,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals(2, dir.reads);
+        dir.add("/two,200,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        dir.add("/three,300,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals(2, dir.reads);
+
+        dir.completeReply();
+        Assert.assertEquals(3, dir.reads);
+        Assert.assertEquals("100", strMap.get("one"));
+        Assert.assertNull(strMap.get("two"));
+
+        dir.completeReply();
+        Assert.assertEquals(3, dir.reads);
+        Map<String, String> expectedMap = new HashMap<>();
+        expectedMap.put("one", "100");
+        expectedMap.put("two", "200");
+        expectedMap.put("three", "300");
+        Assert.assertEquals(expectedMap, strMap.getMap());
+        Assert.assertEquals(expectedMap, watcher.map1);
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.midonet.cluster.ZookeeperTest;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+public class ZkManagerGetAllTest extends ZookeeperTest {
+
+    private static TestingServer server;
+
+    private ZkManager zk;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        zk = injector.getInstance(ZkManager.class);
+    }
+
+    @After // overriding so we can annotate it
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @BeforeClass
+    public static void initZkTestingServer() throws Exception {
+        if (server == null) {
+            server = new TestingServer(ZK_PORT);
+            server.start();
+        }
+    }
+
+    @AfterClass
+    public static void shutdownZkTestingServer() throws Exception {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (Throwable e) {
+                getLogger(ZkManagerGetAllTest.class)
+                    .warn("Failed to stop ZK testing server", e);
+            } finally {
+                server = null;
+            }
+        }
+    }
+
+    @Test
+    public void testGetAllMoreNodesThanInFlight() throws StateAccessException {
+        zk.addPersistent(getPath("/foo"), null);
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 3 * ZkManager.MAX_IN_FLIGHT_READS; i++) {
+            String path = getPath("/foo/" + i);
+            zk.addPersistent(path, Integer.toString(i).getBytes());
+            paths.add(path);
+        }
+
+        Map<String, byte[]> data = zk.getAll(paths);
+
+        Assert.assertEquals(paths.size(), data.size());
+        for (int i = 0; i < paths.size(); i++) {
+            Assert.assertArrayEquals(Integer.toString(i).getBytes(),
+                                     data.get(paths.get(i)));
+        }
+    }
+
+    @Test
+    public void testGetAllSkipsMissingNodes() throws StateAccessException {
+        zk.addPersistent(getPath("/foo"), "foo".getBytes());
+
+        Map<String, byte[]> data =
+            zk.getAll(Arrays.asList(getPath("/foo"), getPath("/bar")));
+
+        Assert.assertEquals(1, data.size());
+        Assert.assertArrayEquals("foo".getBytes(), data.get(getPath("/foo")));
+    }
+
+    @Test
+    public void testGetAllChildren() throws StateAccessException {
+        zk.addPersistent(getPath("/foo"), null);
+        zk.addPersistent(getPath("/foo/bar"), null);
+        zk.addPersistent(getPath("/foo/baz"), null);
+        zk.addPersistent(getPath("/qux"), null);
+
+        Map<String, Set<String>> children = zk.getAllChildren(
+            Arrays.asList(getPath("/foo"), getPath("/qux"), getPath("/none")));
+
+        Assert.assertEquals(2, children.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bar", "baz")),
+                            children.get(getPath("/foo")));
+        Assert.assertTrue(children.get(getPath("/qux")).isEmpty());
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.state;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.MockClock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CompactFlowStateTableTest {
+    static final Duration IDLE_EXPIRATION = new FiniteDuration(60, TimeUnit.SECONDS);
+
+    static class TestKey implements IdleExpiration  {
+        private final long id;
+        private final long device;
+
+        public TestKey(long id, long device) {
+            this.id = id;
+            this.device = device;
+        }
+
+        @Override
+        public Duration expiresAfter() {
+            return IDLE_EXPIRATION;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TestKey testKey = (TestKey) o;
+            return id == testKey.id && device == testKey.device;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, device);
+        }
+    }
+
+    static class TestCodec implements FlowStateCodec<TestKey> {
+        @Override
+        public int keyWords() {
+            return 2;
+        }
+
+        @Override
+        public void encodeKey(TestKey key, long[] dst, int offset) {
+            dst[offset] = key.id;
+            dst[offset + 1] = key.device;
+        }
+
+        @Override
+        public TestKey decodeKey(long[] src, int offset) {
+            return new TestKey(src[offset], src[offset + 1]);
+        }
+    }
+
+    private static TestKey key(long k) {
+        return new TestKey(k, 7L);
+    }
+
+    private CompactFlowStateTable<TestKey, Integer> global;
+    private List<CompactFlowStateTable<TestKey, Integer>.FlowStateShard> shards =
+        new ArrayList<>();
+
+    private final int SHARDS = 4;
+
+    private final TestKey[] keys =  { key(1), key(2), key(3),
+                                      key(4), key(5), key(6) };
+    private final Integer[] vals = {100, 200, 300, 400, 500, 600};
+    private final MockClock clock = new MockClock();
+
+    @Before
+    public void before() {
+        global = new CompactFlowStateTable<>(new TestCodec(), clock, 4);
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(global.addShard(NOPLogger.NOP_LOGGER));
+        }
+    }
+
+    @Test
+    public void testSetGetMultiShard() {
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(global.get(keys[i]), nullValue());
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                assertThat(shards.get(shard).get(keys[i]), equalTo(vals[i]));
+            }
+            assertThat(global.get(keys[i]), equalTo(vals[i]));
+        }
+
+        shards.get(0).putAndRef(keys[0], 9595);
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertThat(shards.get(shard).get(keys[0]), equalTo(9595));
+        }
+    }
+
+    @Test
+    public void testKeysAreOwnedByInsertingShard() {
+        for (int i = 0; i < keys.length; i++)
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+
+        for (int i = 0; i < keys.length; i++) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                int refs = shards.get(shard).getRefCount(keys[i]);
+                Integer value = shards.get(shard).shallowGet(keys[i]);
+                assertThat(refs, equalTo(shard == i % SHARDS ? 1 : 0));
+                assertThat(value, equalTo(shard == i % SHARDS ? vals[i] : null));
+            }
+        }
+        assertThat(global.size(), equalTo(keys.length));
+    }
+
+    @Test
+    public void testRefUnrefGoToOwner() {
+        shards.get(1).putAndRef(keys[0], vals[0]);
+
+        // Applied by the owner on its next operation.
+        assertThat(global.ref(keys[0]), equalTo(vals[0]));
+        assertThat(global.getRefCount(keys[0]), equalTo(1));
+        assertThat(shards.get(1).getRefCount(keys[0]), equalTo(2));
+        assertThat(global.getRefCount(keys[0]), equalTo(2));
+        assertThat(shards.get(0).getRefCount(keys[0]), equalTo(0));
+
+        global.unref(keys[0]);
+        global.unref(keys[0]);
+        assertThat(shards.get(1).getRefCount(keys[0]), equalTo(0));
+        assertThat(global.getRefCount(keys[0]), equalTo(0));
+        assertThat(global.get(keys[0]), equalTo(vals[0]));
+
+        global.unref(keys[0]);
+        assertThat(shards.get(1).getRefCount(keys[0]), equalTo(0));
+    }
+
+    @Test
+    public void testRemoteUnrefExpires() {
+        shards.get(1).putAndRef(keys[0], vals[0]);
+        global.unref(keys[0]);
+        // The entry starts idling when the owner applies the unref.
+        assertThat(shards.get(1).get(keys[0]), equalTo(vals[0]));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + TimeUnit.MILLISECONDS.toNanos(1));
+        Set<TestKey> expired =
+            global.expireIdleEntries(new HashSet<TestKey>(), new KeyReducer());
+        assertThat(expired, equalTo(Collections.singleton(keys[0])));
+        assertThat(global.get(keys[0]), nullValue());
+    }
+
+    @Test
+    public void testTouchOnlyUpdatesOwnedKeys() {
+        global.touch(keys[0], vals[0]);
+        assertThat(global.get(keys[0]), nullValue());
+        assertThat(shards.get(2).get(keys[0]), nullValue());
+
+        shards.get(2).touch(keys[0], vals[0]);
+        global.touch(keys[0], vals[1]);
+        assertThat(shards.get(2).get(keys[0]), equalTo(vals[1]));
+        assertThat(global.getRefCount(keys[0]), equalTo(0));
+        assertThat(global.size(), equalTo(1));
+    }
+
+    @Test
+    public void testOwnersOfManyKeys() {
+        int entries = 5000;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < entries; i++) {
+                TestKey k = new TestKey(i, round);
+                shards.get(i % SHARDS).touch(k, i);
+            }
+            for (int i = 0; i < entries; i++) {
+                TestKey k = new TestKey(i, round);
+                assertThat(global.get(k), equalTo(i));
+                assertThat(shards.get((i + 1) % SHARDS).get(k), equalTo(i));
+                assertThat(shards.get((i + 1) % SHARDS).getRefCount(k),
+                           equalTo(0));
+            }
+            clock.time_$eq(clock.tick() + IDLE_EXPIRATION.toNanos() +
+                           TimeUnit.MILLISECONDS.toNanos(1));
+            global.expireIdleEntries();
+            assertThat(global.size(), equalTo(0));
+            for (int i = 0; i < entries; i++)
+                assertThat(global.get(new TestKey(i, round)), nullValue());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParentTableCannotInsert() {
+        global.putAndRef(keys[0], vals[0]);
+    }
+
+    @Test
+    public void testExpiration() {
+        for (int i = 0; i < keys.length; i++) {
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+            shards.get(i % SHARDS).unref(keys[i]);
+        }
+        // Referenced again, so it doesn't expire.
+        shards.get(0).ref(keys[0]);
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() - 1);
+        Set<TestKey> expired =
+            global.expireIdleEntries(new HashSet<TestKey>(), new KeyReducer());
+        assertThat(expired, empty());
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + TimeUnit.MILLISECONDS.toNanos(1));
+        expired = global.expireIdleEntries(new HashSet<TestKey>(), new KeyReducer());
+
+        Set<TestKey> expected = expectedKeys();
+        expected.remove(keys[0]);
+        assertThat(expired, equalTo(expected));
+        for (int i = 1; i < keys.length; i++) {
+            assertThat(global.get(keys[i]), nullValue());
+            assertThat(global.getRefCount(keys[i]), equalTo(0));
+        }
+        assertThat(global.get(keys[0]), equalTo(vals[0]));
+        assertThat(global.size(), equalTo(1));
+
+        shards.get(3).putAndRef(keys[1], vals[1]);
+        assertThat(shards.get(3).getRefCount(keys[1]), equalTo(1));
+        assertThat(shards.get(1).get(keys[1]), equalTo(vals[1]));
+    }
+
+    @Test
+    public void testEntriesAreNotVisibleWhileExpiring() {
+        shards.get(0).touch(keys[0], vals[0]);
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + TimeUnit.MILLISECONDS.toNanos(1));
+
+        final CompactFlowStateTable<TestKey, Integer>.FlowStateShard shard =
+            shards.get(0);
+        shard.expireIdleEntries(null, new Reducer<TestKey, Integer, Object>() {
+            @Override
+            public Object apply(Object seed, TestKey key, Integer value) {
+                assertThat(shard.get(key), nullValue());
+                assertThat(shard.getRefCount(key), equalTo(-1));
+                return seed;
+            }
+        });
+        assertThat(shard.get(keys[0]), nullValue());
+        assertThat(shard.size(), equalTo(0));
+    }
+
+    @Test
+    public void testPutWhileExpiringInsertsAnew() {
+        final CompactFlowStateTable<TestKey, Integer>.FlowStateShard shard =
+            shards.get(0);
+        shard.touch(keys[0], vals[0]);
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + TimeUnit.MILLISECONDS.toNanos(1));
+
+        shard.expireIdleEntries(null, new Reducer<TestKey, Integer, Object>() {
+            @Override
+            public Object apply(Object seed, TestKey key, Integer value) {
+                assertThat(shard.putAndRef(key, vals[1]), nullValue());
+                return seed;
+            }
+        });
+        assertThat(shard.get(keys[0]), equalTo(vals[1]));
+        assertThat(shard.getRefCount(keys[0]), equalTo(1));
+        assertThat(global.get(keys[0]), equalTo(vals[1]));
+        assertThat(shard.size(), equalTo(1));
+
+        // The entry expires again only after being idle for the full period.
+        shard.unref(keys[0]);
+        clock.time_$eq(clock.tick() + IDLE_EXPIRATION.toNanos() - 1);
+        shard.expireIdleEntries();
+        assertThat(shard.get(keys[0]), equalTo(vals[1]));
+        clock.time_$eq(clock.tick() + TimeUnit.MILLISECONDS.toNanos(1));
+        shard.expireIdleEntries();
+        assertThat(shard.get(keys[0]), nullValue());
+        assertThat(global.get(keys[0]), nullValue());
+    }
+
+    @Test
+    public void testConcurrentReadsFromOtherShard() throws Exception {
+        final CompactFlowStateTable<TestKey, Integer>.FlowStateShard owner =
+            shards.get(0);
+        final CompactFlowStateTable<TestKey, Integer>.FlowStateShard reader =
+            shards.get(1);
+        owner.putAndRef(keys[0], vals[0]);
+
+        final int entries = 20000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < entries; i++) {
+                    owner.touch(new TestKey(i, 1), i);
+                    if (i % 100 == 0) {
+                        clock.time_$eq(clock.tick() + IDLE_EXPIRATION.toNanos());
+                        owner.expireIdleEntries();
+                    }
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive())
+            assertThat(reader.get(keys[0]), equalTo(vals[0]));
+        writer.join();
+        assertThat(reader.get(keys[0]), equalTo(vals[0]));
+    }
+
+    @Test
+    public void testManyEntries() {
+        CompactFlowStateTable<TestKey, Integer>.FlowStateShard shard =
+            shards.get(0);
+        int entries = 10000;
+        for (int i = 0; i < entries; i++)
+            shard.putAndRef(new TestKey(i, i % 3), i);
+        for (int i = 0; i < entries; i += 2)
+            shard.unref(new TestKey(i, i % 3));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + TimeUnit.MILLISECONDS.toNanos(1));
+        shard.expireIdleEntries();
+        assertThat(shard.size(), equalTo(entries / 2));
+
+        for (int i = 0; i < entries; i++) {
+            Integer value = shard.get(new TestKey(i, i % 3));
+            assertThat(value, equalTo(i % 2 == 0 ? null : i));
+        }
+        assertThat(shard.get(new TestKey(1, 0)), nullValue());
+
+        // Freed entries are reused.
+        long memory = global.memoryUsage();
+        for (int i = 0; i < entries; i += 2)
+            shard.putAndRef(new TestKey(i, i % 3), -i);
+        assertThat(global.memoryUsage(), equalTo(memory));
+        assertThat(shard.get(new TestKey(2, 2)), equalTo(-2));
+    }
+
+    @Test
+    public void testTransactionCommit() {
+        FlowStateTransaction<TestKey, Integer> tx =
+            new FlowStateTransaction<TestKey, Integer>(shards.get(1));
+        tx.putAndRef(key(10), 1);
+        tx.touch(key(11), 2);
+
+        tx.commit();
+
+        assertThat(global.get(key(10)), equalTo(1));
+        assertThat(global.get(key(11)), equalTo(2));
+        assertThat(shards.get(0).get(key(10)), equalTo(1));
+        assertThat(shards.get(1).getRefCount(key(11)), equalTo(0));
+    }
+
+    @Test
+    public void testShardFold() {
+        for (int i = 0; i < keys.length; i++)
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+
+        Set<TestKey> folded = global.fold(new HashSet<TestKey>(), new KeyReducer());
+        assertThat(folded, equalTo(expectedKeys()));
+    }
+
+    private Set<TestKey> expectedKeys() {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    class KeyReducer extends Reducer<TestKey, Integer, Set<TestKey>> {
+        @Override
+        public Set<TestKey> apply(Set<TestKey> seed, TestKey key, Integer value) {
+            seed.add(key);
+            return seed;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import com.typesafe.scalalogging.Logger$;
+
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.MockClock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PartitionedFlowStateTableTest {
+    static final Duration IDLE_EXPIRATION = new FiniteDuration(60, TimeUnit.SECONDS);
+
+    static class TestKey implements IdleExpiration  {
+        private final String key;
+
+        public TestKey(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Duration expiresAfter() {
+            return IDLE_EXPIRATION;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TestKey testKey = (TestKey) o;
+            return key.equals(testKey.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
+
+    private static TestKey key(String k) {
+        return new TestKey(k);
+    }
+
+    private PartitionedFlowStateTable<TestKey, Integer> global;
+    private List<FlowStateTable<TestKey, Integer>> shards = new ArrayList<>();
+
+    private final int SHARDS = 4;
+
+    private final TestKey[] keys =  { key("A"), key("B"), key("C"),
+                                      key("D"), key("E"), key("F") };
+    private final Integer[] vals = {100, 200, 300, 400, 500, 600};
+    private final MockClock clock = new MockClock();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        global = new PartitionedFlowStateTable<>(clock);
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add((FlowStateTable)
+                    global.addShard(Logger$.MODULE$.apply(NOPLogger.NOP_LOGGER)));
+        }
+    }
+
+    @Test
+    public void testSetGetMultiShard() {
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(global.get(keys[i]), nullValue());
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                assertThat(shards.get(shard).get(keys[i]), equalTo(vals[i]));
+            }
+            assertThat(global.get(keys[i]), equalTo(vals[i]));
+        }
+
+        shards.get(0).putAndRef(keys[0], 9595);
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertThat(shards.get(shard).get(keys[0]), equalTo(9595));
+        }
+    }
+
+    @Test
+    public void testKeysAreOwnedByInsertingShard() {
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(global.ownerOf(keys[i]), nullValue());
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            assertThat((Object) global.ownerOf(keys[i]),
+                       sameInstance((Object) shards.get(i % SHARDS)));
+            for (int shard = 0; shard < SHARDS; shard++) {
+                int refs = shards.get(shard).getRefCount(keys[i]);
+                assertThat(refs, equalTo(shard == i % SHARDS ? 1 : 0));
+            }
+        }
+    }
+
+    @Test
+    public void testRefUnrefGoToOwner() {
+        shards.get(1).putAndRef(keys[0], vals[0]);
+
+        assertThat(global.ref(keys[0]), equalTo(vals[0]));
+        assertThat(global.getRefCount(keys[0]), equalTo(2));
+        assertThat(shards.get(1).getRefCount(keys[0]), equalTo(2));
+        assertThat(shards.get(0).getRefCount(keys[0]), equalTo(0));
+
+        global.unref(keys[0]);
+        global.unref(keys[0]);
+        assertThat(global.getRefCount(keys[0]), equalTo(0));
+        assertThat(global.get(keys[0]), equalTo(vals[0]));
+    }
+
+    @Test
+    public void testTouchOnlyUpdatesOwnedKeys() {
+        global.touch(keys[0], vals[0]);
+        assertThat(global.get(keys[0]), nullValue());
+
+        shards.get(2).touch(keys[0], vals[0]);
+        global.touch(keys[0], vals[1]);
+        assertThat(shards.get(2).get(keys[0]), equalTo(vals[1]));
+        assertThat(global.getRefCount(keys[0]), equalTo(0));
+    }
+
+    @Test
+    public void testExpirationDisownsKeys() {
+        for (int i = 0; i < keys.length; i++) {
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+            shards.get(i % SHARDS).unref(keys[i]);
+        }
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        Set<TestKey> expired =
+            global.expireIdleEntries(new HashSet<TestKey>(), new KeyReducer());
+
+        assertThat(expired, equalTo(expectedKeys()));
+        for (TestKey key : keys) {
+            assertThat(global.ownerOf(key), nullValue());
+            assertThat(global.get(key), nullValue());
+        }
+
+        shards.get(3).putAndRef(keys[0], vals[0]);
+        assertThat((Object) global.ownerOf(keys[0]),
+                   sameInstance((Object) shards.get(3)));
+        assertThat(shards.get(0).get(keys[0]), equalTo(vals[0]));
+    }
+
+    @Test
+    public void testTransactionCommit() {
+        FlowStateTransaction<TestKey, Integer> tx =
+            new FlowStateTransaction<TestKey, Integer>(shards.get(1));
+        tx.putAndRef(key("foo"), 1);
+        tx.touch(key("bar"), 2);
+
+        tx.commit();
+
+        assertThat(global.get(key("foo")), equalTo(1));
+        assertThat(global.get(key("bar")), equalTo(2));
+        assertThat(shards.get(0).get(key("foo")), equalTo(1));
+        assertThat((Object) global.ownerOf(key("bar")),
+                   sameInstance((Object) shards.get(1)));
+    }
+
+    @Test
+    public void testShardFold() {
+        for (int i = 0; i < keys.length; i++)
+            shards.get(i % SHARDS).putAndRef(keys[i], vals[i]);
+
+        Set<TestKey> folded = global.fold(new HashSet<TestKey>(), new KeyReducer());
+        assertThat(folded, equalTo(expectedKeys()));
+    }
+
+    private Set<TestKey> expectedKeys() {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    class KeyReducer extends Reducer<TestKey, Integer, Set<TestKey>> {
+        @Override
+        public Set<TestKey> apply(Set<TestKey> seed, TestKey key, Integer value) {
+            seed.add(key);
+            return seed;
+        }
+    }
+}
@@ -25,21 +25,28 @@ import org.slf4j.helpers.NOPLogger
 
 import org.midonet.midolman.flows.{ManagedFlow, FlowExpirationIndexer, FlowIndexer}
 import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.flows.FlowStats
 
 @RunWith(classOf[JUnitRunner])
 class FlowExpirationIndexerTest extends MidolmanSpec {
 
-    class FlowAddRemover(flowsRemoved: Queue[ManagedFlow]) extends FlowIndexer {
+    class FlowAddRemover(flowsRemoved: Queue[ManagedFlow],
+                         statsRequested: Queue[ManagedFlow]) extends FlowIndexer {
         val log = Logger(NOPLogger.NOP_LOGGER)
 
         val maxFlows = 4
 
         override def removeFlow(flow: ManagedFlow): Unit =
             flowsRemoved += flow
+
+        protected def requestFlowStats(flow: ManagedFlow): Unit =
+            statsRequested += flow
     }
 
     val removedFlows = Queue[ManagedFlow]()
-    val flowExpiration = new FlowAddRemover(removedFlows) with FlowExpirationIndexer
+    val requestedStats = Queue[ManagedFlow]()
+    val flowExpiration = new FlowAddRemover(removedFlows, requestedStats)
+                         with FlowExpirationIndexer
 
     feature ("Flows are expired with a hard timeout") {
 
@@ -57,19 +64,36 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
             flow.currentRefCount should be (1)
         }
 
-        scenario ("The removal of a flow is delayed") {
+        scenario ("A removed flow is no longer scheduled for expiration") {
             val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION)
             flowExpiration.registerFlow(flow)
             flow.currentRefCount should be (2)
             flowExpiration.removeFlow(flow)
-            flow.unref()
             flow.currentRefCount should be (1)
+            flow.unref()
+            flow.currentRefCount should be (0)
             removedFlows.clear()
             clock.time = FlowExpirationIndexer.FLOW_EXPIRATION.value + 1
             flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+        }
+
+        scenario ("Flows with different timeouts expire in deadline order") {
+            val longFlow = createFlow(FlowExpirationIndexer.TUNNEL_FLOW_EXPIRATION)
+            val shortFlow = createFlow(FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION)
+            flowExpiration.registerFlow(longFlow)
+            flowExpiration.registerFlow(shortFlow)
+            clock.time = FlowExpirationIndexer.ERROR_CONDITION_EXPIRATION.value
+            flowExpiration.checkFlowsExpiration(clock.tick)
             removedFlows should have size 1
-            removedFlows.dequeue() should be (flow)
-            flow.currentRefCount should be (0)
+            removedFlows.dequeue() should be (shortFlow)
+            clock.time = FlowExpirationIndexer.TUNNEL_FLOW_EXPIRATION.value - 1
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+            clock.time = FlowExpirationIndexer.TUNNEL_FLOW_EXPIRATION.value
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (longFlow)
         }
 
         scenario ("There are multiple expiration types") {
@@ -83,6 +107,70 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
         }
     }
 
+    feature ("Flows are expired with an idle timeout") {
+
+        scenario ("Statistics are requested when a flow's idle timeout elapses") {
+            val idle = FlowExpirationIndexer.FLOW_EXPIRATION.idleValue
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION, idle)
+            flowExpiration.registerFlow(flow)
+            clock.time = idle - 1
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            requestedStats should be (empty)
+            clock.time = idle
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            requestedStats should have size 1
+            requestedStats.dequeue() should be (flow)
+            removedFlows should be (empty)
+        }
+
+        scenario ("A flow that saw no packets is removed") {
+            val idle = FlowExpirationIndexer.FLOW_EXPIRATION.idleValue
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION, idle)
+            flowExpiration.registerFlow(flow)
+            clock.time = idle
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            flowExpiration.flowStatsReceived(flow, new FlowStats(0, 0), clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("An active flow is kept until its hard timeout") {
+            val idle = FlowExpirationIndexer.FLOW_EXPIRATION.idleValue
+            val hard = FlowExpirationIndexer.FLOW_EXPIRATION.value
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION, idle)
+            flowExpiration.registerFlow(flow)
+
+            var packets = 0
+            while (clock.time + idle < hard) {
+                clock.time = clock.time + idle
+                flowExpiration.checkFlowsExpiration(clock.tick)
+                requestedStats.dequeue() should be (flow)
+                packets += 10
+                flowExpiration.flowStatsReceived(flow, new FlowStats(packets, 0),
+                                                 clock.tick)
+                removedFlows should be (empty)
+            }
+
+            clock.time = hard
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+        }
+
+        scenario ("Statistics of a removed flow are ignored") {
+            val idle = FlowExpirationIndexer.FLOW_EXPIRATION.idleValue
+            val flow = createFlow(FlowExpirationIndexer.FLOW_EXPIRATION, idle)
+            flowExpiration.registerFlow(flow)
+            clock.time = idle
+            flowExpiration.checkFlowsExpiration(clock.tick)
+            flowExpiration.removeFlow(flow)
+            removedFlows.clear()
+            flowExpiration.flowStatsReceived(flow, new FlowStats(0, 0), clock.tick)
+            removedFlows should be (empty)
+        }
+    }
+
     feature ("Oversubscription results in removal of excess flows") {
 
         scenario ("The oldest flows are removed") {
@@ -101,10 +189,12 @@ class FlowExpirationIndexerTest extends MidolmanSpec {
         }
     }
 
-    private def createFlow(exp: FlowExpirationIndexer.Expiration) = {
+    private def createFlow(exp: FlowExpirationIndexer.Expiration,
+                           idleTimeout: Long = 0L) = {
         val flow = new ManagedFlow(null)
         flow.ref()
         flow.absoluteExpirationNanos = exp.value
+        flow.idleTimeoutNanos = idleTimeout
         flow.expirationType = exp.typeId
         flow
     }
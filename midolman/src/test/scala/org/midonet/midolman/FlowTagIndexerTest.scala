@@ -86,5 +86,27 @@ class FlowTagIndexerTest extends MidolmanSpec {
             flowInvalidation.invalidateFlowsFor(tag2)
             removedFlows should be (empty)
         }
+
+        scenario ("Flows with many tags are indexed by all of them") {
+            val flows = (0 until 2048) map { i =>
+                val flow = new ManagedFlow(null)
+                (0 until 32) foreach { t => flow.tags.add(FlowTagger.tagForDpPort(i * 32 + t)) }
+                flowInvalidation.registerFlow(flow)
+                flow
+            }
+
+            flowInvalidation.invalidateFlowsFor(FlowTagger.tagForDpPort(31))
+            removedFlows should contain theSameElementsAs List(flows(0))
+            removedFlows.clear()
+
+            (1 until 2048) foreach { i =>
+                flowInvalidation.invalidateFlowsFor(FlowTagger.tagForDpPort(i * 32 + i % 32))
+            }
+            removedFlows should contain theSameElementsAs flows.drop(1)
+            removedFlows.clear()
+
+            flowInvalidation.invalidateFlowsFor(FlowTagger.tagForDpPort(0))
+            removedFlows should be (empty)
+        }
     }
 }
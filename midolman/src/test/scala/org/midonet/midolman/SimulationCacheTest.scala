@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.flows.FlowExpirationIndexer.FLOW_EXPIRATION
+import org.midonet.midolman.flows.SimulationCache
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows.{FlowActions, FlowKeys}
+import org.midonet.packets.MAC
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class SimulationCacheTest extends MidolmanSpec {
+
+    val inPort = UUID.randomUUID()
+    val tag = FlowTagger.tagForDpPort(1)
+    val cache = new SimulationCache(2)
+
+    def context(srcIp: String, dstMac: String = "02:00:00:00:00:02",
+                srcMac: String = "02:00:00:00:00:01"): PacketContext = {
+        val frame = { eth src srcMac dst dstMac } <<
+                    { ip4 src srcIp dst "10.0.0.2" } <<
+                    { udp src 1000 dst 2000 }
+        packetContextFor(frame, inPort, inPortNumber = 1)
+    }
+
+    /* Simulates a bridge that only looks at the destination MAC. */
+    def simulate(ctx: PacketContext): PacketContext = {
+        ctx.origMatch.getInputPortNumber
+        ctx.wcmatch.getEthDst
+        ctx.origMatch.propagateSeenFieldsFrom(ctx.wcmatch)
+        ctx.addFlowTag(tag)
+        ctx.addFlowAndPacketAction(FlowActions.output(2))
+        ctx
+    }
+
+    feature ("Simulations are cached by the fields they read") {
+        scenario ("A packet differing in fields that were not read hits") {
+            cache.add(simulate(context("10.0.0.1")), FLOW_EXPIRATION, 0L) shouldBe true
+
+            val ctx = context("10.0.0.3")
+            val entry = cache.lookup(ctx.origMatch, 1L)
+            entry should not be null
+            entry.applyTo(ctx)
+
+            ctx.flowActions.asScala shouldBe Seq(FlowActions.output(2))
+            ctx.packetActions.asScala shouldBe Seq(FlowActions.output(2))
+            ctx.flowTags.asScala shouldBe Seq(tag)
+            ctx.origMatch.isSeen(Field.EthDst) shouldBe true
+        }
+
+        scenario ("A packet differing in fields that were read misses") {
+            cache.add(simulate(context("10.0.0.1")), FLOW_EXPIRATION, 0L)
+
+            val ctx = context("10.0.0.1", dstMac = "02:00:00:00:00:03")
+            cache.lookup(ctx.origMatch, 1L) shouldBe null
+        }
+
+        scenario ("Fields copied into set actions are part of the key") {
+            val ctx = simulate(context("10.0.0.1"))
+            ctx.addVirtualAction(FlowActions.setKey(FlowKeys.ethernet(
+                MAC.fromString("02:00:00:00:00:01").getAddress,
+                MAC.fromString("02:00:00:00:00:05").getAddress)))
+            cache.add(ctx, FLOW_EXPIRATION, 0L) shouldBe true
+
+            cache.lookup(context("10.0.0.3").origMatch, 1L) should not be null
+            val other = context("10.0.0.1", srcMac = "02:00:00:00:00:04")
+            cache.lookup(other.origMatch, 1L) shouldBe null
+        }
+
+        scenario ("Simulations with flow removal callbacks are not cached") {
+            val ctx = simulate(context("10.0.0.1"))
+            ctx.addFlowRemovedCallback(new Callback0 {
+                override def call(): Unit = { }
+            })
+            cache.add(ctx, FLOW_EXPIRATION, 0L) shouldBe false
+            cache.size shouldBe 0
+        }
+    }
+
+    feature ("Cached simulations are removed") {
+        scenario ("When one of their tags is invalidated") {
+            cache.add(simulate(context("10.0.0.1")), FLOW_EXPIRATION, 0L)
+            cache.invalidate(FlowTagger.tagForDpPort(2)) shouldBe 0
+            cache.invalidate(tag) shouldBe 1
+
+            cache.size shouldBe 0
+            cache.lookup(context("10.0.0.1").origMatch, 1L) shouldBe null
+        }
+
+        scenario ("When they expire") {
+            cache.add(simulate(context("10.0.0.1")), FLOW_EXPIRATION, 0L)
+            val ctx = context("10.0.0.1")
+            cache.lookup(ctx.origMatch, FLOW_EXPIRATION.value) shouldBe null
+            cache.size shouldBe 0
+
+            cache.add(simulate(context("10.0.0.1")), FLOW_EXPIRATION, 0L)
+            cache.expire(FLOW_EXPIRATION.value - 1)
+            cache.size shouldBe 1
+            cache.expire(FLOW_EXPIRATION.value)
+            cache.size shouldBe 0
+        }
+
+        scenario ("When room is needed for newer ones") {
+            for (mac <- Seq("02:00:00:00:00:02", "02:00:00:00:00:03",
+                            "02:00:00:00:00:04")) {
+                cache.add(simulate(context("10.0.0.1", dstMac = mac)),
+                          FLOW_EXPIRATION, 0L)
+            }
+            cache.size shouldBe 2
+
+            val oldest = context("10.0.0.1", dstMac = "02:00:00:00:00:02")
+            cache.lookup(oldest.origMatch, 1L) shouldBe null
+            val newest = context("10.0.0.1", dstMac = "02:00:00:00:00:04")
+            cache.lookup(newest.origMatch, 1L) should not be null
+        }
+    }
+}
@@ -134,6 +134,37 @@ class DatapathChannelTest extends MidolmanSpec {
                                      FlowActions.reader.deserializeFrom, actions)
         }
 
+        scenario ("Flow creations are written together at the end of a batch") {
+            val factory = new MockNetlinkChannelFactory
+            val channel = factory.channel
+            val flowProcessor = new FlowProcessor(
+                new DatapathStateDriver(datapath), ovsFamilies, 1024, 2048,
+                factory, clock, writeBatchSize = 4)
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.flowActions.addAll(actions)
+            context.flow = new ManagedFlow(null)
+
+            def createFlow(seq: Long, endOfBatch: Boolean): Unit =
+                flowProcessor.onEvent(new PacketContextHolder(null, context),
+                                      seq, endOfBatch)
+
+            createFlow(0, endOfBatch = false)
+            createFlow(1, endOfBatch = false)
+            channel.packetsWritten.get() should be (0)
+            flowProcessor.isCreated(0) should be (false)
+
+            createFlow(2, endOfBatch = true)
+            channel.packetsWritten.get() should be (1)
+            flowProcessor.isCreated(2) should be (true)
+            val bb = channel.written.poll()
+            bb.position() should be (3 * bb.getInt(NetlinkMessage.NLMSG_LEN_OFFSET))
+
+            (3 to 7) foreach { seq => createFlow(seq, endOfBatch = false) }
+            channel.packetsWritten.get() should be (2)
+            flowProcessor.isCreated(6) should be (true)
+            flowProcessor.isCreated(7) should be (false)
+        }
+
         scenario ("Channel is bounded and thread spins when ring buffer is full") {
             var i = 0
             val context = packetContextFor(ethernet, UUID.randomUUID())
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.io
+
+import scala.collection.mutable.ArrayBuffer
+
+import akka.testkit.TestProbe
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.PacketWorkflow.{HandlePackets, PacketsPending}
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.{FlowMatches, Packet}
+
+@RunWith(classOf[JUnitRunner])
+class FairUpcallSchedulerTest extends MidolmanSpec {
+
+    var registry: MetricRegistry = _
+    var worker: TestProbe = _
+    var wakeups = 0
+
+    override def beforeTest(): Unit = {
+        registry = new MetricRegistry
+        worker = TestProbe()(actorSystem)
+        wakeups = 0
+    }
+
+    def scheduler(weights: Map[Int, Int] = Map.empty, queueSize: Int = 1024,
+                  maxBatchSize: Int = 256,
+                  inboxes: IndexedSeq[PacketInbox] = IndexedSeq.empty) =
+        new FairUpcallScheduler(IndexedSeq(worker.ref), inboxes,
+                                port => weights.getOrElse(port, 1),
+                                queueSize, maxBatchSize, registry,
+                                () => wakeups += 1)
+
+    def packet(portNo: Int, srcPort: Int): Packet = {
+        val fmatch = FlowMatches.tcpFlow("02:00:00:00:00:01",
+                                         "02:00:00:00:00:02",
+                                         "10.0.0.1", "10.0.0.2",
+                                         srcPort, 80, 0)
+        fmatch.setInputPortNumber(portNo)
+        new Packet(null, fmatch)
+    }
+
+    def dispatched(): Seq[Packet] = {
+        val packets = ArrayBuffer[Packet]()
+        while (worker.msgAvailable) {
+            val HandlePackets(batch) = worker.expectMsgType[HandlePackets]
+            packets ++= batch.takeWhile(_ ne null)
+        }
+        packets
+    }
+
+    def portsOf(packets: Seq[Packet]): Seq[Int] =
+        packets map (_.getMatch.getInputPortNumber)
+
+    feature ("Upcalls are scheduled fairly among ports") {
+        scenario ("A port can't delay another beyond its quantum") {
+            val sched = scheduler()
+            for (i <- 0 until 40) sched.submit(packet(1, i))
+            for (i <- 0 until 4) sched.submit(packet(2, i))
+            sched.endBatch()
+
+            portsOf(dispatched()) shouldBe
+                Seq.fill(16)(1) ++ Seq.fill(4)(2) ++ Seq.fill(24)(1)
+        }
+
+        scenario ("Ports get shares proportional to their weights") {
+            val sched = scheduler(weights = Map(2 -> 2))
+            for (i <- 0 until 48) {
+                sched.submit(packet(1, i))
+                sched.submit(packet(2, i))
+            }
+            sched.endBatch()
+
+            portsOf(dispatched()) shouldBe
+                Seq.fill(16)(1) ++ Seq.fill(32)(2) ++ Seq.fill(16)(1) ++
+                Seq.fill(16)(2) ++ Seq.fill(16)(1)
+        }
+
+        scenario ("Packets of the same port keep their order") {
+            val sched = scheduler()
+            val packets = (0 until 50) map (packet(1, _))
+            packets foreach sched.submit
+            sched.endBatch()
+
+            dispatched() shouldBe packets
+        }
+    }
+
+    feature ("Upcalls are handed over in adaptive batches") {
+        scenario ("Batches are bounded by the maximum batch size") {
+            val sched = scheduler(maxBatchSize = 16)
+            for (i <- 0 until 36) sched.submit(packet(1, i))
+            sched.endBatch()
+
+            worker.expectMsgType[HandlePackets].packet.length shouldBe 16
+            worker.expectMsgType[HandlePackets].packet.length shouldBe 16
+            worker.expectMsgType[HandlePackets].packet.length shouldBe 4
+            worker.msgAvailable shouldBe false
+        }
+
+        scenario ("Nothing is sent for an empty batch") {
+            scheduler().endBatch()
+            worker.msgAvailable shouldBe false
+        }
+    }
+
+    feature ("Port queues are bounded") {
+        scenario ("Packets beyond the queue size are dropped") {
+            val sched = scheduler(queueSize = 32)
+            for (i <- 0 until 40) sched.submit(packet(1, i))
+            sched.metricsFor(1).queueDepth.getCount shouldBe 32
+            sched.endBatch()
+
+            dispatched() should have size 32
+            sched.metricsFor(1).dropped.getCount shouldBe 8
+            sched.metricsFor(1).queueDepth.getCount shouldBe 0
+        }
+
+        scenario ("A port flooding a busy worker loses its own packets") {
+            val inbox = new PacketInbox(1)
+            inbox.attach(worker.ref)
+            val sched = scheduler(queueSize = 32, maxBatchSize = 16,
+                                  inboxes = IndexedSeq(inbox))
+            for (i <- 0 until 16) sched.submit(packet(1, i))
+            sched.endBatch()
+            for (i <- 0 until 48) sched.submit(packet(1, i))
+            for (i <- 0 until 4) sched.submit(packet(2, i))
+            sched.endBatch()
+
+            sched.metricsFor(1).queueDepth.getCount shouldBe 16
+            sched.metricsFor(1).dropped.getCount shouldBe 16
+            sched.metricsFor(2).queueDepth.getCount shouldBe 4
+            sched.metricsFor(2).dropped.getCount shouldBe 0
+        }
+    }
+
+    feature ("Port queues carry over while the worker is busy") {
+        scenario ("Packets wait for room in the worker's inbox") {
+            val inbox = new PacketInbox(1)
+            inbox.attach(worker.ref)
+            val sched = scheduler(maxBatchSize = 16, inboxes = IndexedSeq(inbox))
+            for (i <- 0 until 40) sched.submit(packet(1, i))
+            for (i <- 0 until 4) sched.submit(packet(2, i))
+            sched.endBatch()
+
+            worker.expectMsg(PacketsPending)
+            worker.msgAvailable shouldBe false
+            sched.metricsFor(1).queueDepth.getCount shouldBe 12
+            wakeups shouldBe 0
+
+            val batches = ArrayBuffer[Array[Packet]]()
+            while (inbox.drain(batches += _, Int.MaxValue) > 0)
+                sched.endBatch()
+
+            wakeups shouldBe 2
+            portsOf(batches.flatten) shouldBe
+                Seq.fill(16)(1) ++ Seq.fill(4)(2) ++ Seq.fill(24)(1)
+            sched.metricsFor(1).queueDepth.getCount shouldBe 0
+        }
+
+        scenario ("A port keeps its turn across a stall") {
+            val inbox = new PacketInbox(1)
+            inbox.attach(worker.ref)
+            val sched = scheduler(maxBatchSize = 8, inboxes = IndexedSeq(inbox))
+            for (i <- 0 until 20) sched.submit(packet(1, i))
+            for (i <- 0 until 20) sched.submit(packet(2, i))
+            sched.endBatch()
+
+            val batches = ArrayBuffer[Array[Packet]]()
+            while (inbox.drain(batches += _, Int.MaxValue) > 0)
+                sched.endBatch()
+
+            portsOf(batches.flatten) shouldBe
+                Seq.fill(16)(1) ++ Seq.fill(16)(2) ++
+                Seq.fill(4)(1) ++ Seq.fill(4)(2)
+        }
+
+        scenario ("Without inboxes, the queues are drained on each batch") {
+            val sched = scheduler()
+            for (i <- 0 until 1000) sched.submit(packet(1, i))
+            sched.endBatch()
+
+            dispatched() should have size 1000
+            sched.metricsFor(1).queueDepth.getCount shouldBe 0
+        }
+    }
+
+    feature ("Upcalls are handed over through the worker's inbox") {
+        scenario ("Batches bypass the mailbox") {
+            val inbox = new PacketInbox(4)
+            inbox.attach(worker.ref)
+            val sched = scheduler(maxBatchSize = 16, inboxes = IndexedSeq(inbox))
+            inbox.numProducers shouldBe 1
+
+            for (i <- 0 until 36) sched.submit(packet(1, i))
+            sched.endBatch()
+
+            worker.expectMsg(PacketsPending)
+            worker.msgAvailable shouldBe false
+            val batches = ArrayBuffer[Array[Packet]]()
+            inbox.drain(batches += _, Int.MaxValue) shouldBe 3
+            batches map (_.length) shouldBe Seq(16, 16, 4)
+        }
+
+        scenario ("Batches that don't fit wait for room in the inbox") {
+            val inbox = new PacketInbox(2)
+            inbox.attach(worker.ref)
+            val sched = scheduler(maxBatchSize = 16, inboxes = IndexedSeq(inbox))
+
+            for (i <- 0 until 36) sched.submit(packet(1, i))
+            sched.endBatch()
+
+            worker.expectMsg(PacketsPending)
+            worker.msgAvailable shouldBe false
+            inbox.drain(_ => { }, Int.MaxValue) shouldBe 2
+            wakeups shouldBe 1
+
+            sched.endBatch()
+            val batches = ArrayBuffer[Array[Packet]]()
+            inbox.drain(batches += _, Int.MaxValue) shouldBe 1
+            batches map (_.length) shouldBe Seq(4)
+            worker.msgAvailable shouldBe false
+        }
+
+        scenario ("Closing the scheduler releases its queues") {
+            val inbox = new PacketInbox(4)
+            inbox.attach(worker.ref)
+            val sched = scheduler(inboxes = IndexedSeq(inbox))
+            sched.submit(packet(1, 0))
+            sched.endBatch()
+            sched.close()
+
+            inbox.numProducers shouldBe 1
+            inbox.drain(_ => { }, Int.MaxValue) shouldBe 1
+            inbox.numProducers shouldBe 0
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.io
+
+import scala.collection.mutable.ArrayBuffer
+
+import akka.testkit.TestProbe
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.PacketWorkflow.PacketsPending
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.Packet
+
+@RunWith(classOf[JUnitRunner])
+class PacketInboxTest extends MidolmanSpec {
+
+    var worker: TestProbe = _
+    var inbox: PacketInbox = _
+
+    override def beforeTest(): Unit = {
+        worker = TestProbe()(actorSystem)
+        inbox = new PacketInbox(4)
+        inbox.attach(worker.ref)
+    }
+
+    def batch() = new Array[Packet](1)
+
+    def drained(): Seq[Array[Packet]] = {
+        val batches = ArrayBuffer[Array[Packet]]()
+        inbox.drain(batches += _, Int.MaxValue)
+        batches
+    }
+
+    feature ("The worker is notified once per burst") {
+        scenario ("Batches queued while the worker polls are not notified") {
+            val producer = inbox.register()
+            val batches = Seq.fill(3)(batch())
+            batches foreach { b => producer.offer(b) shouldBe true }
+
+            worker.expectMsg(PacketsPending)
+            worker.msgAvailable shouldBe false
+            drained() shouldBe batches
+        }
+
+        scenario ("An idle worker is notified again") {
+            val producer = inbox.register()
+            producer.offer(batch())
+            worker.expectMsg(PacketsPending)
+            drained() should have size 1
+            inbox.idle() shouldBe false
+
+            producer.offer(batch())
+            worker.expectMsg(PacketsPending)
+        }
+
+        scenario ("A worker going idle keeps polling for late batches") {
+            val producer = inbox.register()
+            producer.offer(batch())
+            worker.expectMsg(PacketsPending)
+            drained() should have size 1
+
+            producer.offer(batch())
+            inbox.idle() shouldBe true
+            worker.msgAvailable shouldBe false
+            drained() should have size 1
+        }
+
+        scenario ("A worker attached again after a restart is notified") {
+            val producer = inbox.register()
+            producer.offer(batch())
+            worker.expectMsg(PacketsPending)
+
+            // The worker restarts before draining the inbox, losing the
+            // notification.
+            val restarted = TestProbe()(actorSystem)
+            inbox.attach(restarted.ref)
+            restarted.expectMsg(PacketsPending)
+            drained() should have size 1
+            inbox.idle() shouldBe false
+
+            producer.offer(batch())
+            restarted.expectMsg(PacketsPending)
+            worker.msgAvailable shouldBe false
+        }
+
+        scenario ("A worker attached again is notified of later batches") {
+            val producer = inbox.register()
+            producer.offer(batch())
+            worker.expectMsg(PacketsPending)
+            drained() should have size 1
+
+            val restarted = TestProbe()(actorSystem)
+            inbox.attach(restarted.ref)
+            restarted.msgAvailable shouldBe false
+
+            producer.offer(batch())
+            restarted.expectMsg(PacketsPending)
+        }
+    }
+
+    feature ("Producers have their own queues") {
+        scenario ("A full queue doesn't block other producers") {
+            val first = inbox.register()
+            val second = inbox.register()
+            for (i <- 0 until 4) first.offer(batch()) shouldBe true
+            first.offer(batch()) shouldBe false
+            second.offer(batch()) shouldBe true
+
+            drained() should have size 5
+            inbox.isEmpty shouldBe true
+        }
+
+        scenario ("Draining is bounded and rotates among producers") {
+            val first = inbox.register()
+            val second = inbox.register()
+            val a = batch()
+            val b = batch()
+            first.offer(a)
+            second.offer(b)
+
+            val batches = ArrayBuffer[Array[Packet]]()
+            inbox.drain(batches += _, 1) shouldBe 1
+            inbox.drain(batches += _, 1) shouldBe 1
+            batches.toSet shouldBe Set(a, b)
+        }
+
+        scenario ("A producer that found its queue full is woken up") {
+            var wakeups = 0
+            val producer = inbox.register(() => wakeups += 1)
+            for (i <- 0 until 4) producer.offer(batch()) shouldBe true
+            producer.offer(batch()) shouldBe false
+            wakeups shouldBe 0
+
+            inbox.drain(_ => { }, 1) shouldBe 1
+            wakeups shouldBe 1
+            producer.offer(batch()) shouldBe true
+
+            drained() should have size 4
+            wakeups shouldBe 1
+        }
+    }
+}
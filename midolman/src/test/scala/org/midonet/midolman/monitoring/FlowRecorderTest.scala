@@ -17,7 +17,7 @@ package org.midonet.midolman.monitoring
 
 import scala.collection.JavaConverters._
 
-import java.net.{DatagramPacket, DatagramSocket}
+import java.net.{DatagramPacket, DatagramSocket, InetSocketAddress}
 import java.nio.ByteBuffer
 import java.util.{Map => JMap, UUID}
 
@@ -25,9 +25,12 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
 import org.codehaus.jackson.map.ObjectMapper
+import com.codahale.metrics.MetricRegistry
 import com.google.common.io.BaseEncoding
 import com.google.common.net.HostAndPort
 
+import org.midonet.cluster.flowhistory.{BinarySerialization, FlowRecord}
+import org.midonet.cluster.flowhistory.{SimulationResult => FHSimulationResult}
 import org.midonet.midolman.PacketWorkflow
 import org.midonet.midolman.PacketWorkflow.SimulationResult
 import org.midonet.midolman.config.{FlowHistoryConfig, MidolmanConfig}
@@ -99,7 +102,7 @@ class FlowRecorderTest extends MidolmanSpec {
                 """.stripMargin
             val conf = MidolmanConfig.forTests(confStr)
 
-            val factory = new FlowRecorderFactory(conf)
+            val factory = new FlowRecorderFactory(conf, new MetricRegistry)
             val recorder = factory.newFlowRecorder()
 
             val data = new Array[Byte](4096)
@@ -137,6 +140,154 @@ class FlowRecorderTest extends MidolmanSpec {
         }
     }
 
+    feature("Binary flow recorder") {
+        scenario("records are packed in datagrams") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50023"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+
+            val sock = getListeningSocket(conf)
+            val factory = new FlowRecorderFactory(conf, new MetricRegistry)
+            val recorder = factory.newFlowRecorder()
+            recorder.isInstanceOf[BinaryFlowRecorder] should be (true)
+
+            val contexts = for (i <- 0 until 3) yield newContext
+            for (ctx <- contexts)
+                recorder.record(ctx, PacketWorkflow.NoOp)
+
+            try {
+                val serializer = new BinarySerialization
+                val records = new java.util.ArrayList[FlowRecord]
+                val data = new Array[Byte](65536)
+                while (records.size < contexts.size) {
+                    val datagram = new DatagramPacket(data, data.length)
+                    sock.receive(datagram)
+                    records.addAll(serializer.datagramToFlowRecords(
+                        ByteBuffer.wrap(data, 0, datagram.getLength)))
+                }
+
+                records.size should be (contexts.size)
+                for ((ctx, record) <- contexts zip records.asScala) {
+                    val origMatch = ctx.origMatch
+                    record.flowMatch.networkSrc should be (
+                        origMatch.getNetworkSrcIP.toBytes)
+                    record.flowMatch.networkDst should be (
+                        origMatch.getNetworkDstIP.toBytes)
+                    record.flowMatch.ethSrc should be (
+                        origMatch.getEthSrc.getAddress)
+                    record.cookie should be (ctx.cookie)
+                    record.devices should have size 4
+                    record.rules should have size 9
+                    record.outPorts should be (ctx.outPorts)
+                    record.simResult should be (FHSimulationResult.NOOP)
+                }
+            } finally {
+                sock.close()
+            }
+        }
+
+        scenario("records are dropped when the ring is full") {
+            val registry = new MetricRegistry
+            val exporter = new FlowHistoryExporter(null, 8192, registry)
+            val recorder = new BinaryFlowRecorder(UUID.randomUUID, 4, exporter)
+
+            for (i <- 0 until 10)
+                recorder.record(newContext, PacketWorkflow.NoOp)
+            exporter.droppedRecords.getCount should be (6)
+
+            exporter.poll() should be (true)
+            exporter.flush()
+            exporter.exportedRecords.getCount should be (0)
+            recorder.record(newContext, PacketWorkflow.NoOp)
+            exporter.droppedRecords.getCount should be (6)
+        }
+
+        scenario("records that don't fit in a datagram are dropped") {
+            val exporter = new FlowHistoryExporter(null, 256, new MetricRegistry)
+            val recorder = new BinaryFlowRecorder(UUID.randomUUID, 4, exporter)
+
+            recorder.record(newContext, PacketWorkflow.NoOp)
+            exporter.droppedRecords.getCount should be (1)
+        }
+
+        scenario("records are encoded as from their flow records") {
+            val hostId = UUID.randomUUID
+            val serializer = new BinarySerialization
+            for (i <- 0 until 10) {
+                val ctx = newContext
+                ctx.flowActions.clear()
+                ctx.flowActions.add(FlowActions.output(i))
+                ctx.flowActions.add(FlowActions.popVLAN())
+                ctx.flowActions.add(FlowActions.setKey(FlowKeys.ethernet(
+                    MAC.random.getAddress, MAC.random.getAddress)))
+                ctx.flowActions.add(FlowActions.setKey(FlowKeys.tcp(i, 80)))
+                ctx.flowActions.add(FlowActions.userspace(i, i * 7L))
+                ctx.flowActions.add(FlowActions.sample(1, null))
+
+                val buf = ByteBuffer.allocate(4096)
+                BinaryFlowRecorder.encode(buf, hostId, ctx,
+                                          PacketWorkflow.FlowCreated)
+                buf.flip()
+                val expected = ByteBuffer.allocate(4096)
+                BinarySerialization.putRecord(
+                    expected, FlowRecordConversions.flowRecord(
+                        hostId, ctx, PacketWorkflow.FlowCreated))
+                expected.flip()
+
+                val record = serializer.bufferToFlowRecord(buf)
+                buf.remaining should be (0)
+                record should be (serializer.bufferToFlowRecord(expected))
+                record.actions should have size 5
+            }
+        }
+
+        scenario("records larger than a slot are spilled") {
+            val confStr =
+                """
+                |agent.flow_history.enabled=true
+                |agent.flow_history.encoding=binary
+                |agent.flow_history.udp_endpoint="localhost:50024"
+                """.stripMargin
+            val conf = MidolmanConfig.forTests(confStr)
+
+            val sock = getListeningSocket(conf)
+            val exporter = new FlowHistoryExporter(
+                new InetSocketAddress("localhost", 50024),
+                conf.flowHistory.maxDatagramSize, new MetricRegistry)
+            val recorder = new BinaryFlowRecorder(UUID.randomUUID, 4,
+                                                  exporter, slotSize = 64)
+
+            val contexts = for (i <- 0 until 3) yield newContext
+            for (ctx <- contexts)
+                recorder.record(ctx, PacketWorkflow.NoOp)
+            exporter.spilledRecords.getCount should be (3)
+            exporter.droppedRecords.getCount should be (0)
+
+            exporter.poll() should be (true)
+            exporter.flush()
+            try {
+                val data = new Array[Byte](65536)
+                val datagram = new DatagramPacket(data, data.length)
+                sock.receive(datagram)
+                val records = new BinarySerialization().datagramToFlowRecords(
+                    ByteBuffer.wrap(data, 0, datagram.getLength))
+
+                records.size should be (contexts.size)
+                for ((ctx, record) <- contexts zip records.asScala) {
+                    record.cookie should be (ctx.cookie)
+                    record.rules should have size 9
+                    record.outPorts should be (ctx.outPorts)
+                }
+            } finally {
+                sock.close()
+            }
+        }
+    }
+
     private def newContext(): PacketContext = {
         val ethernet = { eth addr MAC.random -> MAC.random } <<
             { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
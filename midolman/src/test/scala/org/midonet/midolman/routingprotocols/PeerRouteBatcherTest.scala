@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.routingprotocols
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.data.Route
+import org.midonet.midolman.layer3.Route.NextHop
+
+@RunWith(classOf[JUnitRunner])
+class PeerRouteBatcherTest extends FeatureSpecLike
+                           with Matchers
+                           with BeforeAndAfter {
+    val routerId = UUID.randomUUID()
+    val portId = UUID.randomUUID()
+    var batcher: PeerRouteBatcher = _
+
+    before {
+        batcher = new PeerRouteBatcher(portId, 4, new MetricRegistry)
+    }
+
+    def route(dst: String, weight: Int = 100): Route = {
+        val route = new Route()
+        route.setRouterId(routerId)
+        route.setDstNetworkAddr(dst)
+        route.setDstNetworkLength(24)
+        route.setNextHopGateway("192.168.0.1")
+        route.setNextHop(NextHop.PORT)
+        route.setNextHopPort(portId)
+        route.setWeight(weight)
+        route.setLearned(true)
+        route
+    }
+
+    feature ("Route updates are batched") {
+        scenario ("Announcements are written in batches of bounded size") {
+            for (i <- 0 until 6) batcher.add(route(s"10.0.$i.0"))
+            batcher.isBatchFull shouldBe true
+
+            val first = batcher.nextBatch()
+            first.created should have size 4
+            first.deleted shouldBe empty
+            batcher.numPending shouldBe 2
+            batcher.isBatchFull shouldBe false
+
+            batcher.nextBatch().created should have size 2
+            batcher.hasPending shouldBe false
+            batcher.numRoutes shouldBe 6
+        }
+
+        scenario ("A withdrawal deletes the stored route") {
+            batcher.add(route("10.0.0.0"))
+            val (id, stored) = batcher.nextBatch().created.asScala.head
+
+            batcher.remove(route("10.0.0.0"))
+            val batch = batcher.nextBatch()
+            batch.created shouldBe empty
+            batch.deleted.asScala shouldBe Map(id -> stored)
+            batcher.numRoutes shouldBe 0
+        }
+
+        scenario ("An announcement with a new weight replaces the route") {
+            batcher.add(route("10.0.0.0"))
+            val id = batcher.nextBatch().created.keySet.asScala.head
+
+            batcher.add(route("10.0.0.0"))
+            batcher.nextBatch().isEmpty shouldBe true
+
+            batcher.add(route("10.0.0.0", weight = 50))
+            val batch = batcher.nextBatch()
+            batch.deleted.keySet.asScala shouldBe Set(id)
+            batch.created.values.asScala.map(_.getWeight).toList shouldBe List(50)
+            batcher.numRoutes shouldBe 1
+        }
+    }
+
+    feature ("Route updates are coalesced") {
+        scenario ("A route withdrawn before it was written is never written") {
+            batcher.add(route("10.0.0.0"))
+            batcher.remove(route("10.0.0.0"))
+            batcher.numPending shouldBe 1
+            batcher.metrics.coalesced.getCount shouldBe 1
+
+            batcher.nextBatch().isEmpty shouldBe true
+            batcher.numRoutes shouldBe 0
+        }
+
+        scenario ("A flapping route is written once") {
+            batcher.add(route("10.0.0.0"))
+            val id = batcher.nextBatch().created.keySet.asScala.head
+
+            for (i <- 0 until 10) {
+                batcher.remove(route("10.0.0.0"))
+                batcher.add(route("10.0.0.0"))
+            }
+            batcher.nextBatch().isEmpty shouldBe true
+
+            batcher.remove(route("10.0.0.0"))
+            batcher.nextBatch().deleted.keySet.asScala shouldBe Set(id)
+        }
+    }
+
+    feature ("Routes are withdrawn when the session ends") {
+        scenario ("All the routes are deleted, and pending ones discarded") {
+            batcher.add(route("10.0.0.0"))
+            batcher.add(route("10.0.1.0"))
+            val ids = batcher.nextBatch().created.keySet.asScala
+            batcher.add(route("10.0.2.0"))
+
+            batcher.removeAll()
+            val batch = batcher.nextBatch()
+            batch.created shouldBe empty
+            batch.deleted.keySet.asScala shouldBe ids
+            batcher.numRoutes shouldBe 0
+        }
+    }
+
+    feature ("Failed writes are reported") {
+        scenario ("A route that could not be created is forgotten") {
+            batcher.add(route("10.0.0.0"))
+            val batch = batcher.nextBatch()
+            batcher.createFailed(batch, batch.created.keySet.asScala.head)
+            batcher.numRoutes shouldBe 0
+
+            batcher.remove(route("10.0.0.0"))
+            batcher.nextBatch().isEmpty shouldBe true
+        }
+    }
+}
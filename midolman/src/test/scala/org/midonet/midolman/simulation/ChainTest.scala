@@ -18,7 +18,8 @@ package org.midonet.midolman.simulation
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{IPAddr, IPv4, IPv6, TCP, Unsigned}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -229,6 +230,62 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testClassifiedChainReturnsFirstMatch() {
+        val ctx = tcpContext(80)
+        val rules = (0 until 10).map(i => tcpRule(1000 + i, Action.REJECT)) ++
+                    List(tcpRule(80, Action.DROP), acceptRule)
+        val c = makeChain(rules.toList)
+        Chain.apply(c, ctx, ownerId, false).action should be (Action.DROP)
+        ctx.traversedRules.size should be (11)
+    }
+
+    def testClassifiedChainJumps() {
+        val ctx = tcpContext(80)
+        val rejectChain = makeChain(List(rejectRule))
+        val rules = (0 until 10).map(i => tcpRule(1000 + i, Action.ACCEPT)) ++
+                    List(makeJumpRule(rejectChain), acceptRule)
+        val c = makeChain(rules.toList, List(rejectChain))
+        Chain.apply(c, ctx, ownerId, false).action should be (Action.REJECT)
+        ctx.traversedRules.size should be (12)
+    }
+
+    def testClassifiedChainSeesSameFields() {
+        def ipv6Rules = (0 until 10).toList map { i =>
+            val cond = new Condition()
+            cond.etherType = Unsigned.unsign(IPv6.ETHERTYPE)
+            new LiteralRule(cond, Action.ACCEPT)
+        }
+
+        // Chains with few rules are not classified
+        val baselineCtx = tcpContext(80)
+        val chunks = ipv6Rules.grouped(5).map(makeChain(_)).toList
+        val baseline = makeChain(chunks.map(makeJumpRule), chunks)
+        Chain.apply(baseline, baselineCtx, ownerId, false).action should be (Action.ACCEPT)
+
+        val ctx = tcpContext(80)
+        Chain.apply(makeChain(ipv6Rules), ctx, ownerId, false).action should be (Action.ACCEPT)
+        ctx.wcmatch.getSeenFields should be (baselineCtx.wcmatch.getSeenFields)
+    }
+
+    private def tcpContext(dstPort: Int): PacketContext = {
+        val fmatch = new FlowMatch()
+        fmatch.setEtherType(IPv4.ETHERTYPE)
+        fmatch.setNetworkSrc(IPAddr.fromString("10.0.0.1"))
+        fmatch.setNetworkDst(IPAddr.fromString("10.0.0.2"))
+        fmatch.setNetworkProto(TCP.PROTOCOL_NUMBER)
+        fmatch.setSrcPort(5000)
+        fmatch.setDstPort(dstPort)
+        new PacketContext(1, null, fmatch)
+    }
+
+    private def tcpRule(dstPort: Int, action: Action): Rule = {
+        val cond = new Condition()
+        cond.etherType = Unsigned.unsign(IPv4.ETHERTYPE)
+        cond.nwProto = TCP.PROTOCOL_NUMBER
+        cond.tpDst = new Range[Integer](dstPort)
+        new LiteralRule(cond, action)
+    }
+
     private def applyChain(c: Chain) =
         Chain.apply(c, pktCtx, ownerId, false)
 
@@ -46,7 +46,7 @@ import org.midonet.midolman.topology.devices.{BridgePort, Port}
 import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.midolman.util.mock.MockDatapathChannel
-import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActions}
+import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowActionSetKey, FlowActions, FlowKeyTunnel}
 import org.midonet.odp.{FlowMatches, Packet}
 import org.midonet.packets._
 import org.midonet.packets.util.PacketBuilder._
@@ -54,6 +54,7 @@ import org.midonet.rpc.FlowStateProto
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.state.FlowStateTransaction
 import org.midonet.util.FixedArrayOutputStream
+import org.midonet.util.concurrent.NanoClock
 import org.midonet.util.functors.Callback0
 
 @RunWith(classOf[JUnitRunner])
@@ -172,13 +173,14 @@ class FlowStateReplicatorTest extends MidolmanSpec {
     }
 
     private def sendState(ingressPort: UUID, egressPort: UUID,
-                          callbacks: ArrayList[Callback0] = new ArrayList[Callback0])
+                          callbacks: ArrayList[Callback0] = new ArrayList[Callback0],
+                          replicator: TestableFlowStateReplicator = sender)
     : (Packet, List[FlowAction]) = {
         val context = packetContextFor(ethernet, ingressPort)
         context.flowActions.add(FlowActions.output(1))
         context.outPorts.add(egressPort)
 
-        sender.accumulateNewKeys(context)
+        replicator.accumulateNewKeys(context)
         natTx.commit()
         connTrackTx.commit()
         traceTx.commit()
@@ -404,6 +406,98 @@ class FlowStateReplicatorTest extends MidolmanSpec {
     def acceptPushedState(packet: Packet): Unit =
         recipient.accept(packet.getEthernet)
 
+    feature("Flow state is batched for peers other than the egress hosts") {
+        val interval = 1000000L
+
+        def batchingSender(compress: Boolean = false) = {
+            val replicator = new TestableFlowStateReplicator(
+                ports, portGroups, senderUnderlay, interval, compress)
+            connTrackTx = new ConnTrackTx(replicator.conntrackTable)
+            natTx = new NatTx(replicator.natTable)
+            traceTx = new TraceTx(replicator.traceTable)
+            replicator
+        }
+
+        def peersOf(actions: Seq[FlowAction]): Set[Int] =
+            actions.collect { case a: FlowActionSetKey =>
+                a.getFlowKey.asInstanceOf[FlowKeyTunnel].ipv4_dst
+            }.toSet
+
+        scenario("The egress host gets the state ahead of the packet") {
+            Given("A replicator that batches flow state")
+            val sender = batchingSender()
+
+            When("A flow with a conntrack key is added to the replicator")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val (packet, actions) = sendState(ingressPort.id, egressPort1.id,
+                                              replicator = sender)
+
+            Then("The state is only pushed with the packet to the egress host")
+            peersOf(actions) shouldBe Set(peers(egressHost1).toInt)
+            acceptPushedState(packet)
+            recipient.conntrackTable.get(connTrackKeys.head) shouldBe
+                ConnTrackState.RETURN_FLOW
+
+            And("It is batched for the other peers")
+            sender.hasPendingBatches shouldBe true
+            sender.pushed shouldBe empty
+        }
+
+        scenario("Batches carry the state of many flows") {
+            Given("A replicator that batches flow state")
+            val sender = batchingSender()
+
+            When("Two flows with conntrack keys are added to the replicator")
+            for (key <- connTrackKeys) {
+                connTrackTx.putAndRef(key, ConnTrackState.RETURN_FLOW)
+                sendState(ingressPort.id, egressPort1.id, replicator = sender)
+            }
+
+            And("The batch interval elapses")
+            sender.pushBatches(NanoClock.DEFAULT.tick - 1)
+            sender.pushed shouldBe empty
+            sender.pushBatches(NanoClock.DEFAULT.tick + interval)
+
+            Then("Each of the other peers gets a single packet")
+            sender.hasPendingBatches shouldBe false
+            sender.pushed should have size 2
+            sender.pushed.flatMap(p => peersOf(p._2)).toSet shouldBe
+                Set(peers(ingressGroupMemberHostId).toInt, peers(egressHost2).toInt)
+
+            And("The packet carries the state of both flows")
+            val msg = FlowStatePackets.parseDatagram(sender.pushed.head._1)
+            msg.getNewStateCount shouldBe 2
+            recipient.accept(sender.pushed.head._1)
+            for (key <- connTrackKeys) {
+                recipient.conntrackTable.get(key) shouldBe ConnTrackState.RETURN_FLOW
+            }
+        }
+
+        scenario("Compressed batches are accepted") {
+            Given("A replicator that batches and compresses flow state")
+            val sender = batchingSender(compress = true)
+
+            When("A flow with nat keys is added and its batches pushed")
+            for ((k, v) <- natMappings) {
+                natTx.putAndRef(k, v)
+            }
+            sendState(ingressPort.id, egressPort1.id, replicator = sender)
+            sender.pushBatches(NanoClock.DEFAULT.tick + interval)
+
+            Then("The pushed packets carry compressed state")
+            sender.pushed should have size 2
+            val msg = FlowStatePackets.parseDatagram(sender.pushed.head._1)
+            msg.hasCompressedState shouldBe true
+            msg.getNewStateCount shouldBe 0
+
+            And("The recipient accepts the state")
+            recipient.accept(sender.pushed.head._1)
+            for ((k, v) <- natMappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+    }
+
     feature("L4 flow state resolves hosts and ports correctly") {
         scenario("All relevant ingress and egress hosts and ports get detected") {
             val tags = new JHashSet[FlowTag]()
@@ -482,7 +576,9 @@ class FlowStateReplicatorTest extends MidolmanSpec {
     class TestableFlowStateReplicator(
             val ports: mutable.Map[UUID, Port],
             val portGroups: mutable.Map[UUID, PortGroup],
-            val underlay: UnderlayResolver) extends {
+            val underlay: UnderlayResolver,
+            batchInterval: Long = 0L,
+            compressBatches: Boolean = false) extends {
         val conntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
         val natTable = new MockFlowStateTable[NatKey, NatBinding]()
         val traceTable = new MockFlowStateTable[TraceKey, TraceContext]()
@@ -490,10 +586,15 @@ class FlowStateReplicatorTest extends MidolmanSpec {
                                    Future.successful(new MockStateStorage),
                                    ingressHostId, underlay,
                                    mockFlowInvalidation,
-                                   0) {
+                                   0, batchInterval, compressBatches) {
 
         override val log = Logger(LoggerFactory.getLogger(this.getClass))
 
+        val pushed = mutable.ArrayBuffer[(Ethernet, List[FlowAction])]()
+
+        override def pushState(packet: Ethernet, actions: ArrayList[FlowAction]) =
+            pushed += ((packet, actions.toList))
+
         override def getPort(id: UUID): Port = ports(id)
 
         override def getPortGroup(id: UUID) = portGroups(id)
@@ -46,6 +46,8 @@ class MockFlowProcessor(val flowsTable: JMap[FlowMatch, Flow] = null)
     private val log = Logger(LoggerFactory.getLogger(
         "org.midonet.datapath.mock-flow-processor"))
 
+    override def isCreated(sequence: Long): Boolean = true
+
     override def tryEject(sequence: Long, datapathId: Int, flowMatch: FlowMatch,
                           obs: Observer[ByteBuffer]): Boolean = {
         if (flowDelCb ne null) {
@@ -21,20 +21,22 @@ import java.util.{Map => JMap}
 import scala.concurrent.{ExecutionContext, Future}
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.PacketsEntryPoint
 import org.midonet.midolman.PacketsEntryPoint.Workers
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io._
-import org.midonet.odp.protos.OvsDatapathConnection
 import org.midonet.odp._
 import org.midonet.util._
+import org.midonet.util.eventloop.MockSelectLoop
 
 class MockUpcallDatapathConnectionManager(config: MidolmanConfig)
         extends UpcallDatapathConnectionManagerBase(config,
             new TokenBucketPolicy(config, new TokenBucketTestRate, 1,
-                                  _ => Bucket.BOTTOMLESS)) {
+                                  _ => Bucket.BOTTOMLESS),
+            new MetricRegistry) {
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
     val conn = new MockManagedDatapathConnection()
@@ -43,7 +45,8 @@ class MockUpcallDatapathConnectionManager(config: MidolmanConfig)
 
     def initialize()(implicit ec: ExecutionContext, as: ActorSystem) {
         if (upcallHandler == null) {
-            upcallHandler = makeUpcallHandler(Workers(IndexedSeq(PacketsEntryPoint)))
+            upcallHandler = makeUpcallHandler(
+                Workers(IndexedSeq(PacketsEntryPoint)), new MockSelectLoop)
             conn.getConnection.datapathsSetNotificationHandler(upcallHandler)
         }
     }
@@ -53,10 +56,10 @@ class MockUpcallDatapathConnectionManager(config: MidolmanConfig)
 
     override def stopConnection(conn: ManagedDatapathConnection) {}
 
-    override protected def setUpcallHandler(conn: OvsDatapathConnection,
+    override protected def setUpcallHandler(conn: ManagedDatapathConnection,
                                             w: Workers)
                                            (implicit as: ActorSystem) {
-        conn.datapathsSetNotificationHandler(upcallHandler)
+        conn.getConnection.datapathsSetNotificationHandler(upcallHandler)
     }
 
     override def createAndHookDpPort(dp: Datapath, port: DpPort, t: ChannelType)(
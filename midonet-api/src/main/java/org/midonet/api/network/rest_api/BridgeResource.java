@@ -35,7 +35,9 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
@@ -52,6 +54,7 @@ import org.midonet.api.network.IP4MacPair;
 import org.midonet.api.network.MacPort;
 import org.midonet.api.network.Port;
 import org.midonet.api.rest_api.AbstractResource;
+import org.midonet.api.rest_api.ResourceCache;
 import org.midonet.api.rest_api.ResourceFactory;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
@@ -87,13 +90,16 @@ public class BridgeResource extends AbstractResource {
 
     private final BridgeEvent bridgeEvent = new BridgeEvent();
     private final ResourceFactory factory;
+    private final ResourceCache cache;
 
     @Inject
     public BridgeResource(RestApiConfig config, UriInfo uriInfo,
                           SecurityContext context, Validator validator,
-                          DataClient dataClient, ResourceFactory factory) {
+                          DataClient dataClient, ResourceFactory factory,
+                          ResourceCache cache) {
         super(config, uriInfo, context, dataClient, validator);
         this.factory = factory;
+        this.cache = cache;
     }
 
     @DELETE
@@ -120,21 +126,27 @@ public class BridgeResource extends AbstractResource {
                 VendorMediaType.APPLICATION_BRIDGE_JSON_V2,
                 VendorMediaType.APPLICATION_BRIDGE_JSON_V3,
                 MediaType.APPLICATION_JSON })
-    public Bridge get(@PathParam("id") UUID id)
+    public Response get(@PathParam("id") UUID id, @Context Request request)
             throws StateAccessException, SerializationException {
 
-        org.midonet.cluster.data.Bridge bridgeData =
-            authoriser.tryAuthoriseBridge(id, "view this bridge");
+        ResourceCache.Entry<org.midonet.cluster.data.Bridge> entry =
+            cache.getBridge(id);
 
-        if (bridgeData == null) {
+        if (entry == null) {
             throw notFoundException(id, "bridge");
         }
+        authoriser.authoriseBridge(entry.getData(), "view this bridge");
 
-        Bridge bridge = BridgeDataConverter.fromData(bridgeData);
+        Response.ResponseBuilder notModified = entry.notModified(request);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        Bridge bridge = BridgeDataConverter.fromData(entry.getData());
         bridge = populateLegacyVxlanPortId(bridge);
         bridge.setBaseUri(getBaseUri());
 
-        return bridge;
+        return entry.ok(bridge).build();
     }
 
     /*
@@ -30,7 +30,9 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
@@ -51,6 +53,7 @@ import org.midonet.api.network.RouterPort;
 import org.midonet.api.rest_api.AbstractResource;
 import org.midonet.cluster.rest_api.BadRequestHttpException;
 import org.midonet.cluster.rest_api.NotFoundHttpException;
+import org.midonet.api.rest_api.ResourceCache;
 import org.midonet.api.rest_api.ResourceFactory;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.api.vtep.VtepClusterClient;
@@ -73,15 +76,17 @@ public class PortResource extends AbstractResource {
 
     private final ResourceFactory factory;
     private final VtepClusterClient vtepClient;
+    private final ResourceCache cache;
 
     @Inject
     public PortResource(RestApiConfig config, UriInfo uriInfo,
                         SecurityContext context, Validator validator,
                         DataClient dataClient, ResourceFactory factory,
-                        VtepClusterClient vtepClient) {
+                        VtepClusterClient vtepClient, ResourceCache cache) {
         super(config, uriInfo, context, dataClient, validator);
         this.vtepClient = vtepClient;
         this.factory = factory;
+        this.cache = cache;
     }
 
     /**
@@ -115,25 +120,29 @@ public class PortResource extends AbstractResource {
         portEvent.delete(id);
     }
 
-    private org.midonet.cluster.data.Port<?, ?> getPortData(UUID id)
+    private ResourceCache.Entry<org.midonet.cluster.data.Port<?, ?>>
+            getPortEntry(UUID id)
             throws StateAccessException, SerializationException {
 
-        org.midonet.cluster.data.Port<?, ?> portData =
-            authoriser.tryAuthorisePort(id, "view this port");
+        ResourceCache.Entry<org.midonet.cluster.data.Port<?, ?>> entry =
+            cache.getPort(id);
 
-        if (portData == null) {
+        if (entry == null) {
             throw notFoundException(id, "port");
         }
+        authoriser.authorisePort(entry.getData(), "view this port");
 
-        return portData;
+        return entry;
     }
 
     /**
      * Handler to getting a v1 port.
      *
      * @param id Port ID from the request.
+     * @param request The request, for its preconditions.
      * @throws StateAccessException Data access error.
-     * @return A Port object.
+     * @return A Port object, or Not Modified if it matches the entity tag of
+     *         the request.
      */
     @GET
     @Deprecated
@@ -141,27 +150,58 @@ public class PortResource extends AbstractResource {
     @Path("{id}")
     @Produces({ VendorMediaType.APPLICATION_PORT_JSON,
                 MediaType.APPLICATION_JSON })
-    public Port getv1(@PathParam("id") UUID id) throws StateAccessException,
-                                                       SerializationException {
-        Port port = PortFactory.convertToApiPortV1(getPortData(id));
+    public Response getv1(@PathParam("id") UUID id, @Context Request request)
+        throws StateAccessException, SerializationException {
+        ResourceCache.Entry<org.midonet.cluster.data.Port<?, ?>> entry =
+            getPortEntry(id);
+        Response.ResponseBuilder notModified = entry.notModified(request);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        Port port = PortFactory.convertToApiPortV1(entry.getData());
         port.setBaseUri(getBaseUri());
-        return port;
+        return entry.ok(port).build();
     }
 
     /**
      * Handler to getting a v2 port.
      *
      * @param id Port ID from the request.
+     * @param request The request, for its preconditions.
      * @throws StateAccessException Data access error.
-     * @return A Port object.
+     * @return A Port object, or Not Modified if it matches the entity tag of
+     *         the request.
      */
     @GET
     @PermitAll
     @Path("{id}")
     @Produces({VendorMediaType.APPLICATION_PORT_V2_JSON})
-    public Port get(@PathParam("id") UUID id) throws StateAccessException,
-            SerializationException {
-        Port port = PortFactory.convertToApiPort(getPortData(id));
+    public Response get(@PathParam("id") UUID id, @Context Request request)
+        throws StateAccessException, SerializationException {
+        ResourceCache.Entry<org.midonet.cluster.data.Port<?, ?>> entry =
+            getPortEntry(id);
+        Response.ResponseBuilder notModified = entry.notModified(request);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        return entry.ok(get(entry)).build();
+    }
+
+    /**
+     * Gets a v2 port, for other resources.
+     *
+     * @param id Port ID.
+     * @throws StateAccessException Data access error.
+     * @return A Port object.
+     */
+    public Port get(UUID id) throws StateAccessException,
+                                    SerializationException {
+        return get(getPortEntry(id));
+    }
+
+    private Port get(
+            ResourceCache.Entry<org.midonet.cluster.data.Port<?, ?>> entry) {
+        Port port = PortFactory.convertToApiPort(entry.getData());
         port.setBaseUri(getBaseUri());
         return port;
     }
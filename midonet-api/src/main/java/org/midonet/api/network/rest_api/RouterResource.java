@@ -31,7 +31,9 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
@@ -43,6 +45,7 @@ import org.midonet.api.ResourceUriBuilder;
 import org.midonet.api.auth.AuthRole;
 import org.midonet.cluster.rest_api.ForbiddenHttpException;
 import org.midonet.api.rest_api.AbstractResource;
+import org.midonet.api.rest_api.ResourceCache;
 import org.midonet.api.rest_api.ResourceFactory;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
@@ -57,14 +60,17 @@ import org.midonet.midolman.state.StateAccessException;
 public class RouterResource extends AbstractResource {
 
     private final ResourceFactory factory;
+    private final ResourceCache cache;
     private final RouterEvent routerEvent = new RouterEvent() ;
 
     @Inject
     public RouterResource(RestApiConfig config, UriInfo uriInfo,
                           SecurityContext context,  Validator validator,
-                          DataClient dataClient, ResourceFactory factory) {
+                          DataClient dataClient, ResourceFactory factory,
+                          ResourceCache cache) {
         super(config, uriInfo, context, dataClient, validator);
         this.factory = factory;
+        this.cache = cache;
     }
 
     /**
@@ -91,8 +97,10 @@ public class RouterResource extends AbstractResource {
      * Handler to getting a router.
      *
      * @param id Router ID from the request.
+     * @param request The request, for its preconditions.
      * @throws StateAccessException Data access error.
-     * @return A Router object.
+     * @return A Router object, or Not Modified if it matches the entity tag
+     *         of the request.
      */
     @GET
     @PermitAll
@@ -100,17 +108,25 @@ public class RouterResource extends AbstractResource {
     @Produces({ VendorMediaType.APPLICATION_ROUTER_JSON,
                 VendorMediaType.APPLICATION_ROUTER_JSON_V2,
                 MediaType.APPLICATION_JSON })
-    public Router get(@PathParam("id") UUID id) throws StateAccessException,
-                                                       SerializationException {
+    public Response get(@PathParam("id") UUID id, @Context Request request)
+        throws StateAccessException, SerializationException {
 
-        org.midonet.cluster.data.Router routerData =
-            authoriser.tryAuthoriseRouter(id, "view this router");
+        ResourceCache.Entry<org.midonet.cluster.data.Router> entry =
+            cache.getRouter(id);
 
-        if (routerData == null) {
+        if (entry == null) {
             throw notFoundException(id, "router");
         }
+        authoriser.authoriseRouter(entry.getData(), "view this router");
+
+        Response.ResponseBuilder notModified = entry.notModified(request);
+        if (notModified != null) {
+            return notModified.build();
+        }
 
-        return RouterDataConverter.fromData(routerData, getBaseUri());
+        Router router =
+            RouterDataConverter.fromData(entry.getData(), getBaseUri());
+        return entry.ok(router).build();
     }
 
     /**
@@ -49,6 +49,22 @@ abstract public class Authoriser {
     abstract public Port tryAuthorisePort(UUID portId, String what)
         throws StateAccessException, SerializationException;
 
+    /**
+     * Authorises access to a router already read, such as a cached one.
+     */
+    abstract public void authoriseRouter(Router router, String what);
+
+    /**
+     * Authorises access to a bridge already read, such as a cached one.
+     */
+    abstract public void authoriseBridge(Bridge bridge, String what);
+
+    /**
+     * Authorises access to a port already read, such as a cached one.
+     */
+    abstract public void authorisePort(Port port, String what)
+        throws StateAccessException, SerializationException;
+
     abstract public PortGroup tryAuthorisePortGroup(UUID pgId, String what)
         throws StateAccessException, SerializationException;
 
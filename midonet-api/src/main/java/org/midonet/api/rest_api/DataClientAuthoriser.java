@@ -68,42 +68,61 @@ public final class DataClientAuthoriser extends Authoriser {
     public Router tryAuthoriseRouter(UUID id, String what)
         throws StateAccessException, SerializationException {
         Router r = dataClient.routersGet(id);
+        if (r != null) {
+            authoriseRouter(r, what);
+        }
+        return r;
+    }
+
+    @Override
+    public void authoriseRouter(Router router, String what) {
         Router.Property tenantProperty = Router.Property.tenant_id;
-        if ((r != null) && !isAdminOrOwner(r.getProperty(tenantProperty))) {
+        if (!isAdminOrOwner(router.getProperty(tenantProperty))) {
             throw new ForbiddenHttpException("Not authorized to " + what);
         }
-        return r;
     }
 
     @Override
     public Bridge tryAuthoriseBridge(UUID id, String what)
         throws StateAccessException, SerializationException {
         Bridge b = dataClient.bridgesGet(id);
+        if (b != null) {
+            authoriseBridge(b, what);
+        }
+        return b;
+    }
+
+    @Override
+    public void authoriseBridge(Bridge bridge, String what) {
         Bridge.Property tenantProperty = Bridge.Property.tenant_id;
-        if ((b != null) && !isAdminOrOwner(b.getProperty(tenantProperty))) {
+        if (!isAdminOrOwner(bridge.getProperty(tenantProperty))) {
             throw new ForbiddenHttpException("Not authorized to " + what);
         }
-        return b;
     }
 
     @Override
     public Port tryAuthorisePort(UUID portId, String what)
         throws StateAccessException, SerializationException {
         Port p = dataClient.portsGet(portId);
-        if (p == null) {
-            return null;
+        if (p != null) {
+            authorisePort(p, what);
         }
+        return p;
+    }
+
+    @Override
+    public void authorisePort(Port port, String what)
+        throws StateAccessException, SerializationException {
         if (isAdmin()) {
-            return p;
+            return;
         }
-        if (p instanceof BridgePort) {
-            tryAuthoriseBridge(p.getDeviceId(), what);
-        } else if (p instanceof RouterPort) {
-            tryAuthoriseRouter(p.getDeviceId(), what);
+        if (port instanceof BridgePort) {
+            tryAuthoriseBridge(port.getDeviceId(), what);
+        } else if (port instanceof RouterPort) {
+            tryAuthoriseRouter(port.getDeviceId(), what);
         } else {
             throw new NotFoundHttpException("Port device not found");
         }
-        return p;
     }
 
     @Override
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.rest_api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.midonet.cluster.DataClient;
+import org.midonet.cluster.data.Bridge;
+import org.midonet.cluster.data.Port;
+import org.midonet.cluster.data.Router;
+import org.midonet.midolman.serialization.SerializationException;
+import org.midonet.midolman.state.NoStatePathException;
+import org.midonet.midolman.state.PathBuilder;
+import org.midonet.midolman.state.StateAccessException;
+import org.midonet.midolman.state.ZkManager;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Read-through cache of the bridges, routers and ports read by the REST API,
+ * so that clients polling them don't translate into ZooKeeper reads.
+ *
+ * An entry is loaded through the DataClient after reading the version of
+ * the ZooKeeper nodes the object is read from, and is removed when one of
+ * these nodes changes. Each node has a single watch, registered when an
+ * entry is loaded and the watch isn't registered already, so that polling
+ * an object doesn't pile up watches on its nodes. Each entry carries an
+ * entity tag derived from the ZooKeeper version of the object, for
+ * conditional requests.
+ *
+ * The watch is delivered asynchronously, so the writes made through this API
+ * server also invalidate the whole cache before their response is sent (see
+ * {@link ResourceCacheFilter}), for a client to read its own writes. The
+ * whole cache is also invalidated when the ZooKeeper session changes, since
+ * the watches are lost with the session, and entries expire after a while.
+ *
+ * When the cache is disabled, objects are read from the DataClient only,
+ * without entity tags.
+ *
+ * The cached objects are shared among requests and must not be modified.
+ */
+@Singleton
+public class ResourceCache {
+
+    /**
+     * A cached object, with the entity tag of its current version.
+     */
+    public static final class Entry<T> {
+        private final T data;
+        private final EntityTag etag;
+
+        private Entry(T data, EntityTag etag) {
+            this.data = data;
+            this.etag = etag;
+        }
+
+        public T getData() {
+            return data;
+        }
+
+        /**
+         * The entity tag of the object, or null if the cache is disabled.
+         */
+        public EntityTag getETag() {
+            return etag;
+        }
+
+        /**
+         * Returns a Not Modified response if the request preconditions
+         * match the entity tag, or null if the object must be sent.
+         */
+        public Response.ResponseBuilder notModified(Request request) {
+            return etag == null ? null : request.evaluatePreconditions(etag);
+        }
+
+        /**
+         * Returns an OK response with the entity and the entity tag.
+         */
+        public Response.ResponseBuilder ok(Object entity) {
+            Response.ResponseBuilder ok = Response.ok(entity);
+            return etag == null ? ok : ok.tag(etag);
+        }
+    }
+
+    private static final long UNREGISTERED = Long.MIN_VALUE;
+    private static final long REGISTERING = Long.MIN_VALUE + 1;
+
+    /* The watch of a ZooKeeper node, shared by the successive entries read
+     * from it. */
+    private final class Watch implements Runnable {
+        private final String key;
+        /* The session in which the watch is registered, or UNREGISTERED or
+         * REGISTERING. */
+        private final AtomicLong session = new AtomicLong(UNREGISTERED);
+        /* Incremented when the watch fires, so that the entries being
+         * loaded at that time are discarded. */
+        private final AtomicLong fires = new AtomicLong();
+
+        private Watch(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            fires.incrementAndGet();
+            session.set(UNREGISTERED);
+            if (cache.asMap().remove(key) != null) {
+                invalidations.inc();
+            }
+        }
+    }
+
+    /* The watches read while loading an entry. The entry is cached only if
+     * all of them were registered when read, and none has fired since. */
+    private final class Load {
+        private final long session;
+        private final List<Watch> watches = new ArrayList<>(2);
+        private final List<Long> fires = new ArrayList<>(2);
+        private boolean watched = true;
+
+        private Load(long session) {
+            this.session = session;
+        }
+
+        /* Reads the version of a node, or null if it doesn't exist. */
+        private Integer version(String path, String key)
+                throws StateAccessException {
+            Watch watch = watch(path, key);
+            boolean register = register(watch);
+            boolean registered = false;
+            try {
+                Integer version = zk.getWithVersion(
+                    path, register ? watch : null).getValue();
+                registered = register;
+                return version;
+            } catch (NoStatePathException e) {
+                watchesByPath.remove(path, watch);
+                return null;
+            } finally {
+                registered(watch, register, registered);
+            }
+        }
+
+        /* Reads the children of a node, or nothing if it doesn't exist. */
+        private void children(String path, String key)
+                throws StateAccessException {
+            Watch watch = watch(path, key);
+            boolean register = register(watch);
+            boolean registered = false;
+            try {
+                zk.getChildren(path, register ? watch : null);
+                registered = register;
+            } catch (NoStatePathException e) {
+                // No watch is set on a missing node.
+                watched = false;
+                watchesByPath.remove(path, watch);
+            } finally {
+                registered(watch, register, registered);
+            }
+        }
+
+        /* Records the watch before reading its node, and returns whether
+         * the read must register it. */
+        private boolean register(Watch watch) {
+            this.watches.add(watch);
+            this.fires.add(watch.fires.get());
+            long current = watch.session.get();
+            if (current == session) {
+                return false;
+            }
+            if (current != REGISTERING
+                && watch.session.compareAndSet(current, REGISTERING)) {
+                return true;
+            }
+            // Another request is registering it.
+            watched = false;
+            return false;
+        }
+
+        private void registered(Watch watch, boolean register,
+                                boolean registered) {
+            if (register) {
+                watch.session.compareAndSet(
+                    REGISTERING, registered ? session : UNREGISTERED);
+            }
+        }
+
+        private boolean isValid() {
+            if (!watched) {
+                return false;
+            }
+            for (int i = 0; i < watches.size(); i++) {
+                if (watches.get(i).fires.get() != fires.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private abstract class Loader<T> {
+        /* Reads the object from the DataClient only. */
+        abstract T read() throws StateAccessException, SerializationException;
+
+        /* Reads the object and the version of its nodes. */
+        abstract Entry<T> load(Load load)
+            throws StateAccessException, SerializationException;
+    }
+
+    private final ZkManager zk;
+    private final PathBuilder paths;
+    private final DataClient dataClient;
+    private final boolean enabled;
+    private final Cache<String, Entry<?>> cache;
+    private final ConcurrentMap<String, Watch> watchesByPath =
+        new ConcurrentHashMap<>();
+    /* Incremented when the whole cache is invalidated, so that the entries
+     * being loaded at that time are discarded. */
+    private final AtomicLong generation = new AtomicLong();
+    private volatile long session;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter invalidations;
+
+    @Inject
+    public ResourceCache(RestApiConfig config, ZkManager zk, PathBuilder paths,
+                         DataClient dataClient, MetricRegistry registry) {
+        this.zk = zk;
+        this.paths = paths;
+        this.dataClient = dataClient;
+        this.enabled = config.getCacheMaxEntries() > 0;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(config.getCacheMaxEntries(), 0))
+            .expireAfterWrite(config.getCacheExpirationSeconds(),
+                              TimeUnit.SECONDS)
+            .build();
+
+        hits = registry.counter(name(ResourceCache.class, "hits"));
+        misses = registry.counter(name(ResourceCache.class, "misses"));
+        invalidations =
+            registry.counter(name(ResourceCache.class, "invalidations"));
+        registry.register(name(ResourceCache.class, "size"),
+                          new Gauge<Long>() {
+                              @Override
+                              public Long getValue() {
+                                  return cache.size();
+                              }
+                          });
+        registry.register(name(ResourceCache.class, "watches"),
+                          new Gauge<Integer>() {
+                              @Override
+                              public Integer getValue() {
+                                  return watchesByPath.size();
+                              }
+                          });
+    }
+
+    /**
+     * Gets a bridge, or null if it doesn't exist.
+     */
+    public Entry<Bridge> getBridge(final UUID id)
+            throws StateAccessException, SerializationException {
+        final String path = paths.getBridgePath(id);
+        return get(path, new Loader<Bridge>() {
+            @Override
+            Bridge read()
+                    throws StateAccessException, SerializationException {
+                return dataClient.bridgesGet(id);
+            }
+
+            @Override
+            Entry<Bridge> load(Load load)
+                    throws StateAccessException, SerializationException {
+                Integer version = load.version(path, path);
+                Bridge bridge = version == null ? null : read();
+                return bridge == null ? null
+                                      : new Entry<>(bridge, etag(version));
+            }
+        });
+    }
+
+    /**
+     * Gets a router, or null if it doesn't exist.
+     */
+    public Entry<Router> getRouter(final UUID id)
+            throws StateAccessException, SerializationException {
+        final String path = paths.getRouterPath(id);
+        return get(path, new Loader<Router>() {
+            @Override
+            Router read()
+                    throws StateAccessException, SerializationException {
+                return dataClient.routersGet(id);
+            }
+
+            @Override
+            Entry<Router> load(Load load)
+                    throws StateAccessException, SerializationException {
+                Integer version = load.version(path, path);
+                Router router = version == null ? null : read();
+                return router == null ? null
+                                      : new Entry<>(router, etag(version));
+            }
+        });
+    }
+
+    /**
+     * Gets a port, or null if it doesn't exist. The entry is also
+     * invalidated when the port becomes active or inactive. Ports created
+     * without an active node are not cached until they become active.
+     */
+    public Entry<Port<?, ?>> getPort(final UUID id)
+            throws StateAccessException, SerializationException {
+        final String path = paths.getPortPath(id);
+        return get(path, new Loader<Port<?, ?>>() {
+            @Override
+            Port<?, ?> read()
+                    throws StateAccessException, SerializationException {
+                return dataClient.portsGet(id);
+            }
+
+            @Override
+            Entry<Port<?, ?>> load(Load load)
+                    throws StateAccessException, SerializationException {
+                Integer version = load.version(path, path);
+                if (version == null) {
+                    return null;
+                }
+                load.children(paths.getPortActivePath(id), path);
+                Port<?, ?> port = read();
+                if (port == null) {
+                    return null;
+                }
+                EntityTag etag = etag(port.isActive() ? version + "-active"
+                                                      : version.toString());
+                return new Entry<Port<?, ?>>(port, etag);
+            }
+        });
+    }
+
+    /**
+     * Removes all the entries, including those being loaded.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Entry<T> get(String key, Loader<T> loader)
+            throws StateAccessException, SerializationException {
+        if (!enabled) {
+            misses.inc();
+            T data = loader.read();
+            return data == null ? null : new Entry<>(data, null);
+        }
+
+        // The watches registered in a previous session are lost.
+        long currentSession = zk.getDirectory().getSessionId();
+        if (currentSession != session) {
+            session = currentSession;
+            invalidateAll();
+        }
+
+        Entry<?> cached = cache.getIfPresent(key);
+        if (cached != null) {
+            hits.inc();
+            return (Entry<T>) cached;
+        }
+        misses.inc();
+
+        long loadGeneration = generation.get();
+        Load load = new Load(currentSession);
+        Entry<T> entry = loader.load(load);
+        if (entry != null && load.isValid()) {
+            // Put the entry before checking whether it was invalidated while
+            // loading: either the watch or the invalidation removes it, or
+            // the check below does.
+            cache.put(key, entry);
+            if (!load.isValid() || generation.get() != loadGeneration) {
+                cache.asMap().remove(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private Watch watch(String path, String key) {
+        Watch watch = watchesByPath.get(path);
+        if (watch == null) {
+            Watch newWatch = new Watch(key);
+            watch = watchesByPath.putIfAbsent(path, newWatch);
+            if (watch == null) {
+                watch = newWatch;
+            }
+        }
+        return watch;
+    }
+
+    private static EntityTag etag(Object version) {
+        return new EntityTag(version.toString());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.rest_api;
+
+import javax.ws.rs.HttpMethod;
+
+import com.google.inject.Inject;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+
+/**
+ * Invalidates the resource cache after every request that may have modified
+ * the topology, before its response is sent, so that the client reads its
+ * own writes without waiting for the ZooKeeper watches.
+ */
+public class ResourceCacheFilter implements ContainerResponseFilter {
+
+    private final ResourceCache cache;
+
+    @Inject
+    public ResourceCacheFilter(ResourceCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request,
+                                    ContainerResponse response) {
+        String method = request.getMethod();
+        if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)
+            && !HttpMethod.OPTIONS.equals(method)) {
+            cache.invalidateAll();
+        }
+        return response;
+    }
+}
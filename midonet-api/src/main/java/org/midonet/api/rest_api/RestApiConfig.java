@@ -16,6 +16,7 @@
 package org.midonet.api.rest_api;
 
 import org.midonet.config.ConfigGroup;
+import org.midonet.config.ConfigInt;
 import org.midonet.config.ConfigString;
 
 /**
@@ -31,4 +32,18 @@ public interface RestApiConfig {
     @ConfigString(key = BASE_URI)
     String getBaseUri();
 
+    /**
+     * The maximum number of bridges, routers and ports cached by the API,
+     * 0 to disable the cache.
+     */
+    @ConfigInt(key = "cache_max_entries", defaultValue = 10000)
+    int getCacheMaxEntries();
+
+    /**
+     * The time after which a cached object is read again, even if it wasn't
+     * modified.
+     */
+    @ConfigInt(key = "cache_expiration_seconds", defaultValue = 300)
+    int getCacheExpirationSeconds();
+
 }
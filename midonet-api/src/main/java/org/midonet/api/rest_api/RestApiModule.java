@@ -15,8 +15,11 @@
  */
 package org.midonet.api.rest_api;
 
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 
 import org.slf4j.Logger;
@@ -49,6 +52,9 @@ public class RestApiModule extends AbstractModule {
         bind(ApplicationResource.class);
         install(new FactoryModuleBuilder().build(ResourceFactory.class));
 
+        bind(ResourceCache.class).asEagerSingleton();
+        bind(ResourceCacheFilter.class);
+
         bind(RestApiService.class).asEagerSingleton();
         bind(VxlanGatewayService.class).asEagerSingleton();
         bind(ConfMinion.class).asEagerSingleton();
@@ -66,4 +72,11 @@ public class RestApiModule extends AbstractModule {
         return provider.getConfig(RestApiConfig.class);
     }
 
+    @Provides @Singleton
+    MetricRegistry provideMetricRegistry() {
+        MetricRegistry registry = new MetricRegistry();
+        JmxReporter.forRegistry(registry).build().start();
+        return registry;
+    }
+
 }
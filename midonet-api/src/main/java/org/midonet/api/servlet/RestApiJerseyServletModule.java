@@ -42,6 +42,7 @@ import org.midonet.api.error.ErrorModule;
 import org.midonet.api.error.ExceptionFilter;
 import org.midonet.api.network.NetworkModule;
 import org.midonet.api.neutron.NeutronRestApiModule;
+import org.midonet.api.rest_api.ResourceCacheFilter;
 import org.midonet.api.rest_api.RestApiModule;
 import org.midonet.cluster.ClusterConfig;
 import org.midonet.cluster.ClusterNode;
@@ -81,6 +82,7 @@ public class RestApiJerseyServletModule extends JerseyServletModule {
 
         String[] responseFilters = new String[] {
             ExceptionFilter.class.getName(),
+            ResourceCacheFilter.class.getName(),
             LoggingFilter.class.getName()
         };
 
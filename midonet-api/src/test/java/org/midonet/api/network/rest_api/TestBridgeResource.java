@@ -15,12 +15,24 @@
  */
 package org.midonet.api.network.rest_api;
 
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.AbstractMap;
 import java.util.UUID;
 
 import javax.validation.Validator;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 
+import com.codahale.metrics.MetricRegistry;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.WebApplication;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -28,11 +40,22 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import org.midonet.api.auth.AuthRole;
+import org.midonet.api.rest_api.ResourceCache;
 import org.midonet.api.rest_api.ResourceFactory;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
-
+import org.midonet.cluster.data.Bridge;
+import org.midonet.midolman.state.PathBuilder;
+import org.midonet.midolman.state.ZkManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
@@ -59,10 +82,18 @@ public class TestBridgeResource {
     @Mock(answer = Answers.RETURNS_SMART_NULLS)
     private DataClient dataClient;
 
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private ResourceCache cache;
+
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private ZkManager zk;
+
+    private final PathBuilder paths = new PathBuilder("/midonet");
+
     @Before
     public void setUp() throws Exception {
         testObject = new BridgeResource(config, uriInfo, context, validator,
-                                        dataClient, factory);
+                                        dataClient, factory, cache);
     }
 
     @Test
@@ -73,4 +104,54 @@ public class TestBridgeResource {
         verify(dataClient, never()).bridgesDelete(id);
     }
 
+    private BridgeResource cachedResource(Bridge bridge) throws Exception {
+        doReturn(100).when(config).getCacheMaxEntries();
+        doReturn(300).when(config).getCacheExpirationSeconds();
+        doReturn("http://localhost:8080/midonet-api/")
+            .when(config).getBaseUri();
+        doReturn(true).when(context).isUserInRole(AuthRole.ADMIN);
+        doReturn(bridge).when(dataClient).bridgesGet(bridge.getId());
+        doReturn(new AbstractMap.SimpleEntry<>(new byte[0], 7))
+            .when(zk).getWithVersion(eq(paths.getBridgePath(bridge.getId())),
+                                     any(Runnable.class));
+        ResourceCache cache = new ResourceCache(config, zk, paths, dataClient,
+                                                new MetricRegistry());
+        return new BridgeResource(config, uriInfo, context, validator,
+                                  dataClient, factory, cache);
+    }
+
+    private Request request(String ifNoneMatch) {
+        InBoundHeaders headers = new InBoundHeaders();
+        headers.putSingle(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        return new ContainerRequest(
+            mock(WebApplication.class), "GET",
+            URI.create("http://localhost:8080/midonet-api/"),
+            URI.create("http://localhost:8080/midonet-api/bridges"),
+            headers, new ByteArrayInputStream(new byte[0]));
+    }
+
+    @Test
+    public void testGetMatchingETagIsNotModified() throws Exception {
+        Bridge bridge = new Bridge(UUID.randomUUID());
+
+        Response response =
+            cachedResource(bridge).get(bridge.getId(), request("\"7\""));
+
+        assertEquals(304, response.getStatus());
+        assertNull(response.getEntity());
+    }
+
+    @Test
+    public void testGetOtherETagReturnsBridge() throws Exception {
+        Bridge bridge = new Bridge(UUID.randomUUID());
+
+        Response response =
+            cachedResource(bridge).get(bridge.getId(), request("\"6\""));
+
+        assertEquals(200, response.getStatus());
+        assertNotNull(response.getEntity());
+        assertEquals(new EntityTag("7"),
+                     response.getMetadata().getFirst(HttpHeaders.ETAG));
+    }
+
 }
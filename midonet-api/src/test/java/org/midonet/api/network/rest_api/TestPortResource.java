@@ -28,6 +28,7 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import org.midonet.api.rest_api.ResourceCache;
 import org.midonet.api.rest_api.ResourceFactory;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
@@ -59,10 +60,13 @@ public class TestPortResource {
     @Mock(answer = Answers.RETURNS_SMART_NULLS)
     private DataClient dataClient;
 
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private ResourceCache cache;
+
     @Before
     public void setUp() throws Exception {
         testObject = new PortResource(config, uriInfo, context, validator,
-                                      dataClient, factory, null);
+                                      dataClient, factory, null, cache);
     }
 
     @Test
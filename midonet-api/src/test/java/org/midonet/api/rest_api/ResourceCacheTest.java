@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.rest_api;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.UUID;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import org.midonet.cluster.DataClient;
+import org.midonet.cluster.data.Bridge;
+import org.midonet.cluster.data.Port;
+import org.midonet.cluster.data.ports.BridgePort;
+import org.midonet.midolman.state.Directory;
+import org.midonet.midolman.state.NoStatePathException;
+import org.midonet.midolman.state.PathBuilder;
+import org.midonet.midolman.state.ZkManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNotNull;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceCacheTest {
+
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private RestApiConfig config;
+
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private ZkManager zk;
+
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private DataClient dataClient;
+
+    private final PathBuilder paths = new PathBuilder("/midonet");
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Bridge bridge = new Bridge(UUID.randomUUID());
+    private final String bridgePath = paths.getBridgePath(bridge.getId());
+
+    @Before
+    public void setUp() throws Exception {
+        doReturn(100).when(config).getCacheMaxEntries();
+        doReturn(300).when(config).getCacheExpirationSeconds();
+        doReturn(bridge).when(dataClient).bridgesGet(bridge.getId());
+        version(bridgePath, 1);
+    }
+
+    private ResourceCache cache() {
+        return new ResourceCache(config, zk, paths, dataClient, registry);
+    }
+
+    private void version(String path, int version) throws Exception {
+        doReturn(new AbstractMap.SimpleEntry<>(new byte[0], version))
+            .when(zk).getWithVersion(eq(path), any(Runnable.class));
+    }
+
+    private Runnable watch(String path) throws Exception {
+        ArgumentCaptor<Runnable> watch =
+            ArgumentCaptor.forClass(Runnable.class);
+        verify(zk, atLeastOnce()).getWithVersion(eq(path), watch.capture());
+        return watch.getAllValues().get(0);
+    }
+
+    private long count(String counter) {
+        return registry.counter(
+            MetricRegistry.name(ResourceCache.class, counter)).getCount();
+    }
+
+    @Test
+    public void testHitAfterMiss() throws Exception {
+        ResourceCache cache = cache();
+
+        ResourceCache.Entry<Bridge> first = cache.getBridge(bridge.getId());
+        ResourceCache.Entry<Bridge> second = cache.getBridge(bridge.getId());
+
+        assertSame(bridge, first.getData());
+        assertSame(first, second);
+        assertEquals(1, count("misses"));
+        assertEquals(1, count("hits"));
+        assertEquals(1, cache.size());
+        verify(dataClient, times(1)).bridgesGet(bridge.getId());
+    }
+
+    @Test
+    public void testWatchInvalidatesEntry() throws Exception {
+        ResourceCache cache = cache();
+        ResourceCache.Entry<Bridge> first = cache.getBridge(bridge.getId());
+
+        watch(bridgePath).run();
+        version(bridgePath, 2);
+
+        assertEquals(0, cache.size());
+        assertEquals(1, count("invalidations"));
+        ResourceCache.Entry<Bridge> second = cache.getBridge(bridge.getId());
+        assertNotEquals(first.getETag(), second.getETag());
+        assertEquals(2, count("misses"));
+        verify(dataClient, times(2)).bridgesGet(bridge.getId());
+    }
+
+    @Test
+    public void testInvalidateAll() throws Exception {
+        ResourceCache cache = cache();
+        cache.getBridge(bridge.getId());
+
+        cache.invalidateAll();
+        cache.getBridge(bridge.getId());
+
+        assertEquals(2, count("misses"));
+        assertEquals(0, count("hits"));
+    }
+
+    @Test
+    public void testWatchIsRegisteredOnce() throws Exception {
+        ResourceCache cache = cache();
+
+        for (int i = 0; i < 10; i++) {
+            cache.invalidateAll();
+            cache.getBridge(bridge.getId());
+        }
+
+        assertEquals(10, count("misses"));
+        assertEquals(1, cache.size());
+        verify(zk, times(1)).getWithVersion(eq(bridgePath),
+                                            (Runnable) isNotNull());
+        verify(zk, times(9)).getWithVersion(eq(bridgePath),
+                                            (Runnable) isNull());
+    }
+
+    @Test
+    public void testWatchIsRegisteredAgainAfterFiring() throws Exception {
+        ResourceCache cache = cache();
+        cache.getBridge(bridge.getId());
+
+        watch(bridgePath).run();
+        cache.getBridge(bridge.getId());
+        cache.getBridge(bridge.getId());
+
+        assertEquals(1, count("hits"));
+        verify(zk, times(2)).getWithVersion(eq(bridgePath),
+                                            (Runnable) isNotNull());
+    }
+
+    @Test
+    public void testWatchIsRegisteredAgainInNewSession() throws Exception {
+        Directory directory = mock(Directory.class);
+        doReturn(directory).when(zk).getDirectory();
+        doReturn(1L).when(directory).getSessionId();
+        ResourceCache cache = cache();
+        cache.getBridge(bridge.getId());
+
+        doReturn(2L).when(directory).getSessionId();
+        cache.getBridge(bridge.getId());
+
+        assertEquals(2, count("misses"));
+        verify(zk, times(2)).getWithVersion(eq(bridgePath),
+                                            (Runnable) isNotNull());
+    }
+
+    @Test
+    public void testMissingBridgeIsNotCached() throws Exception {
+        ResourceCache cache = cache();
+        UUID id = UUID.randomUUID();
+        String path = paths.getBridgePath(id);
+        KeeperException.NoNodeException cause =
+            new KeeperException.NoNodeException(path);
+        doThrow(new NoStatePathException(null, "/midonet", cause))
+            .when(zk).getWithVersion(eq(path), any(Runnable.class));
+
+        assertNull(cache.getBridge(id));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPortETagDependsOnActivity() throws Exception {
+        ResourceCache cache = cache();
+        BridgePort port = new BridgePort();
+        port.setId(UUID.randomUUID());
+        String portPath = paths.getPortPath(port.getId());
+        version(portPath, 1);
+        doReturn(Collections.emptySet())
+            .when(zk).getChildren(anyString(), any(Runnable.class));
+        doReturn(port).when(dataClient).portsGet(port.getId());
+
+        ResourceCache.Entry<Port<?, ?>> inactive = cache.getPort(port.getId());
+        port.setActive(true);
+        watch(portPath).run();
+        ResourceCache.Entry<Port<?, ?>> active = cache.getPort(port.getId());
+
+        assertNotEquals(inactive.getETag(), active.getETag());
+    }
+
+    @Test
+    public void testDisabledCache() throws Exception {
+        doReturn(0).when(config).getCacheMaxEntries();
+        ResourceCache cache = cache();
+
+        cache.getBridge(bridge.getId());
+        ResourceCache.Entry<Bridge> entry = cache.getBridge(bridge.getId());
+
+        assertSame(bridge, entry.getData());
+        assertNull(entry.getETag());
+        assertEquals(0, cache.size());
+        assertEquals(2, count("misses"));
+        verify(dataClient, times(2)).bridgesGet(bridge.getId());
+        verifyZeroInteractions(zk);
+    }
+}
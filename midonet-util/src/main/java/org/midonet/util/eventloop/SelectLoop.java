@@ -38,6 +38,11 @@ import java.nio.channels.SelectableChannel;
 import org.midonet.util.io.SelectorInputQueue;
 
 public interface SelectLoop {
+    /**
+     * Sets a callback to run at the end of each iteration of the loop,
+     * including the iterations in which the loop was woken up without any
+     * ready channel.
+     */
     public void setEndOfLoopCallback(Runnable cb);
 
     /**
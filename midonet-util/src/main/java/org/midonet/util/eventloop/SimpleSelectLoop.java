@@ -349,15 +349,18 @@ public class SimpleSelectLoop implements SelectLoop {
                     }
                 }
             }
-            if (endOfLoopCallback != null) {
-                try {
-                    endOfLoopCallback.run();
-                } catch (Throwable e) {
-                    log.error("end-of-select-loop callback failed", e);
-                }
-            }
             selector.selectedKeys().clear();
         }
+
+        // The callback also runs when the loop is woken up without any
+        // event, so that wakeup() can be used to have it run again.
+        if (endOfLoopCallback != null) {
+            try {
+                endOfLoopCallback.run();
+            } catch (Throwable e) {
+                log.error("end-of-select-loop callback failed", e);
+            }
+        }
     }
 
     /**
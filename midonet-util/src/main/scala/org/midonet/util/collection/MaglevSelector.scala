@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection
+
+/**
+ * Constructs a MaglevSelector for a traversable collection of objects with
+ * weights, each identified by a stable key.
+ *
+ * Throws an IllegalArgumentException if ts has no element with weight > 0.
+ */
+object MaglevSelector {
+
+    /* The default size of the lookup table. It is prime, so that any skip
+     * visits every entry, and large enough to keep the imbalance between the
+     * objects well under 1% for a few hundred units of weight. */
+    final val DefaultTableSize = 65537
+
+    /**
+     * The table size must be prime, and the same on every host that selects
+     * among the same objects.
+     */
+    def apply[T <: HasWeight](ts: Traversable[T],
+                              keyOf: T => Long,
+                              tableSize: Int = DefaultTableSize)
+    : MaglevSelector[T] = {
+        if (tableSize < 2)
+            throw new IllegalArgumentException(
+                s"Invalid table size $tableSize.")
+        // Sort the objects by key, so that the table only depends on the set
+        // of objects and not on their order.
+        val objs = ts.filter(_.weight > 0).toIndexedSeq.sortBy(keyOf)
+        if (objs.isEmpty)
+            throw new IllegalArgumentException(
+                "Ts must have at least one element with weight > 0.")
+
+        // Each object has its own permutation of the entries, derived from
+        // its key only.
+        val numObjs = objs.length
+        val positions = new Array[Int](numObjs)
+        val skips = new Array[Int](numObjs)
+        for (i <- objs.indices) {
+            val hash = mix(keyOf(objs(i)))
+            positions(i) = ((hash >>> 32) % tableSize).toInt
+            skips(i) = ((hash & 0xffffffffL) % (tableSize - 1) + 1).toInt
+        }
+
+        // Let the objects take turns at claiming the next free entries of
+        // their permutations, as many per turn as their weight, until the
+        // table is full.
+        val table = new Array[Int](tableSize)
+        java.util.Arrays.fill(table, -1)
+        var filled = 0
+        while (filled < tableSize) {
+            var i = 0
+            while (i < numObjs && filled < tableSize) {
+                var claims = objs(i).weight
+                while (claims > 0 && filled < tableSize) {
+                    var entry = positions(i)
+                    while (table(entry) >= 0)
+                        entry = (entry + skips(i)) % tableSize
+                    table(entry) = i
+                    positions(i) = (entry + skips(i)) % tableSize
+                    filled += 1
+                    claims -= 1
+                }
+                i += 1
+            }
+        }
+
+        new MaglevSelector[T](objs.map(_.asInstanceOf[AnyRef]).toArray, table)
+    }
+
+    /* The finalizer of the 64-bit MurmurHash3. */
+    private def mix(key: Long): Long = {
+        var h = key
+        h ^= h >>> 33
+        h *= 0xff51afd7ed558ccdL
+        h ^= h >>> 33
+        h *= 0xc4ceb53fe1a85ec9L
+        h ^= h >>> 33
+        h
+    }
+}
+
+/**
+ * Performs weighted selection by consistent hashing, with the lookup table of
+ * Maglev (Eisenbud et al., NSDI 2016).
+ *
+ * Every object fills the table following its own permutation of the entries,
+ * derived from its key, and the objects take turns, in proportion to their
+ * weights, at claiming the next entry of their permutation that is still
+ * free. Selecting an object for a hash is then a single table read. Since
+ * the table only depends on the keys and weights of the objects, selectors
+ * built from the same objects on different hosts select the same object for
+ * the same hash. The size of the table is fixed, and the permutations and
+ * turns of the objects don't depend on each other, so when an object is added
+ * or removed, or its weight changes, most of the entries of the other objects
+ * keep their owner, and few hashes are remapped.
+ *
+ * Constructor is private; use companion object to create instances.
+ */
+class MaglevSelector[T] private (objs: Array[AnyRef], table: Array[Int]) {
+
+    def size: Int = table.length
+
+    /**
+     * Selects the object for the specified hash.
+     */
+    def select(hash: Int): T =
+        objs(table((hash & Int.MaxValue) % table.length)).asInstanceOf[T]
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class MaglevSelectorTest extends FeatureSpec with Matchers {
+
+    private case class WeightedObject(key: Long, weight: Int) extends HasWeight
+
+    private def selector(objs: Seq[WeightedObject]) =
+        MaglevSelector[WeightedObject](objs, _.key)
+
+    private def objects(n: Int, weight: Int = 1) =
+        (1 to n) map { i => WeightedObject(i * 7919L, weight) }
+
+    feature("Table construction") {
+        scenario("Attempt to create a MaglevSelector with no positive weight") {
+            intercept[IllegalArgumentException] {
+                selector(Seq(WeightedObject(1L, 0)))
+            }
+        }
+
+        scenario("Objects with weight 0 are never selected") {
+            val objs = objects(3) :+ WeightedObject(1L, 0)
+            val ms = selector(objs)
+            (0 until ms.size) map ms.select should not contain objs.last
+        }
+
+        scenario("Attempt to create a MaglevSelector with an invalid size") {
+            intercept[IllegalArgumentException] {
+                MaglevSelector[WeightedObject](objects(2), _.key, 1)
+            }
+        }
+
+        scenario("The table doesn't depend on the order of the objects") {
+            val objs = objects(20)
+            val ms1 = selector(objs)
+            val ms2 = selector(Random.shuffle(objs))
+            (0 until ms1.size) foreach { h =>
+                ms1.select(h) shouldBe ms2.select(h)
+            }
+        }
+    }
+
+    feature("Weighted selection") {
+        scenario("Objects get entries in proportion to their weights") {
+            val objs = (1 to 5) map { i => WeightedObject(i * 7919L, i) }
+            val ms = selector(objs)
+
+            val frequencies = mutable.Map[WeightedObject, Int]()
+            objs.foreach(frequencies(_) = 0)
+            (0 until ms.size) foreach { h => frequencies(ms.select(h)) += 1 }
+
+            val totalWeight = objs.map(_.weight).sum
+            frequencies foreach { case (obj, entries) =>
+                val expected = obj.weight.toDouble * ms.size / totalWeight
+                entries.toDouble should (be > 0.95 * expected and
+                                         be < 1.05 * expected)
+            }
+        }
+
+        scenario("Negative hashes select objects") {
+            val ms = selector(objects(3))
+            ms.select(Int.MinValue) should not be null
+            ms.select(-1) should not be null
+        }
+    }
+
+    feature("Minimal disruption") {
+        def removed(objs: Seq[WeightedObject]): Double = {
+            val before = selector(objs)
+            val after = selector(objs.tail)
+            val hashes = (0 until 100000) filter { before.select(_) != objs.head }
+            val moved = hashes count { h => before.select(h) != after.select(h) }
+            moved.toDouble / hashes.size
+        }
+
+        def added(objs: Seq[WeightedObject]): Double = {
+            val before = selector(objs.tail)
+            val after = selector(objs)
+            val moved = (0 until 100000) count { h =>
+                after.select(h) != objs.head &&
+                after.select(h) != before.select(h)
+            }
+            moved.toDouble / 100000
+        }
+
+        scenario("Removing an object remaps few of the other hashes") {
+            for (n <- Seq(3, 6, 10, 11, 40)) {
+                removed(objects(n)) should be < 0.01
+            }
+        }
+
+        scenario("Adding an object only takes entries from the others") {
+            for (n <- Seq(3, 6, 10, 11, 40)) {
+                added(objects(n)) should be < 0.01
+            }
+        }
+
+        scenario("Objects of different weights are added and removed") {
+            val objs = WeightedObject(1L, 1) +:
+                       Seq(WeightedObject(7919L, 2), WeightedObject(15838L, 2))
+            added(objs) should be < 0.01
+            removed(objs) should be < 0.01
+        }
+
+        scenario("The table size doesn't depend on the objects") {
+            selector(objects(2)).size shouldBe MaglevSelector.DefaultTableSize
+            selector(objects(11)).size shouldBe MaglevSelector.DefaultTableSize
+            selector(objects(3, weight = 5)).size shouldBe
+                MaglevSelector.DefaultTableSize
+        }
+    }
+}
@@ -46,6 +46,9 @@ public abstract class AbstractNetlinkConnection {
     private static final int NETLINK_HEADER_LEN = 20;
     private static final int NETLINK_READ_BUFSIZE = 0x10000;
 
+    /* The size of the buffers for requests that overflow a regular one. */
+    protected static final int NETLINK_LARGE_REQUEST_SIZE = 0x10000;
+
     protected static final long DEF_REPLY_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
 
     private int sequenceNumber = 1;
@@ -506,9 +509,22 @@ public abstract class AbstractNetlinkConnection {
         return seq;
     }
 
+    /** Takes a request buffer from the smallest size class of the pool. */
     protected ByteBuffer getBuffer() {
-        ByteBuffer buf = requestPool.take();
+        return getBuffer(0);
+    }
+
+    /** Takes a request buffer of at least the given size, from the smallest
+     *  size class of the pool that fits it. */
+    protected ByteBuffer getBuffer(int size) {
+        ByteBuffer buf = requestPool.take(size);
         buf.clear();
         return buf;
     }
+
+    /** Returns to the pool a request buffer that won't be sent, as when a
+     *  request overflows it and is prepared again in a larger one. */
+    protected void releaseBuffer(ByteBuffer buf) {
+        requestPool.release(buf);
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Midokura SARL
+ * Copyright 2014 Midokura SARL
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,33 +16,49 @@
 package org.midonet.netlink;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import com.google.common.collect.MapMaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A pool of reusable, native I/O ready, byte buffers. All operations are
  * guaranteed to be thread-safe and non-blocking.
+ *
+ * The pool manages one or more size classes, each with its own set of
+ * buffers. take(size) serves the smallest class that fits the requested size,
+ * and take() serves the largest one.
+ *
+ * The available buffers of a class are kept in a lock-free bounded queue,
+ * shared by all threads, and in per-thread magazines: a buffer released by
+ * the thread that took it goes back to that thread's magazine, from which
+ * the thread takes buffers before looking at the shared queue. Threads that
+ * take and release their own buffers thus never contend with each other,
+ * while buffers handed over to another thread for release return to the
+ * shared queue. The magazines of threads that have terminated are returned
+ * to the shared queue when it runs empty.
+ *
+ * The number of times the pool ran out of buffers, and the number of
+ * temporary buffers it had to allocate, are exposed through the
+ * BufferPoolMXBean.
  */
 public class BufferPool {
 
     private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
 
-    /** dummy object used as the unique value in the concurrent buffer "set". */
-    protected static final Object PRESENT = new Object();
+    /* The maximum number of buffers cached by each thread. */
+    private static final int MAX_MAGAZINE_SIZE = 16;
 
-    private final int maxBuffers;
-    private final int bufSize;
+    private final SizeClass[] classes;
 
-    private final ConcurrentMap<ByteBuffer, Object> bufferPool;
-    private final BlockingQueue<ByteBuffer> availPool;
-    private final AtomicInteger numBuffers;
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong temporaryAllocations = new AtomicLong();
 
     /**
      * @param minBuffers Initial number of buffers to allocate in the pool.
@@ -52,58 +68,77 @@ public class BufferPool {
      * @param bufSize
      */
     public BufferPool(int minBuffers, int maxBuffers, int bufSize) {
-        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0))
+        this(minBuffers, maxBuffers, new int[] { bufSize });
+    }
+
+    /**
+     * @param minBuffers Initial number of buffers to allocate in each size
+     *                   class.
+     * @param maxBuffers Maximum number of buffers to manage in each size class.
+     * @param bufSizes The sizes of the buffers of each size class.
+     */
+    public BufferPool(int minBuffers, int maxBuffers, int[] bufSizes) {
+        this(filled(bufSizes.length, minBuffers),
+             filled(bufSizes.length, maxBuffers), bufSizes);
+    }
+
+    /**
+     * @param minBuffers Initial number of buffers to allocate in the size
+     *                   class of the same index.
+     * @param maxBuffers Maximum number of buffers to manage in the size class
+     *                   of the same index.
+     * @param bufSizes The sizes of the buffers of each size class. Large
+     *                 classes that only serve the occasional oversized
+     *                 request can thus be given fewer buffers.
+     */
+    public BufferPool(int[] minBuffers, int[] maxBuffers, int[] bufSizes) {
+        if (bufSizes.length == 0 || minBuffers.length != bufSizes.length
+            || maxBuffers.length != bufSizes.length)
             throw new IllegalArgumentException();
 
-        this.maxBuffers = maxBuffers;
-        this.bufSize = bufSize;
-        this.availPool = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
-
-        /* Use a weak-keys map so that keys behave as in an identity HashMap.
-        /*
-        /* An identity map is needed because a ByteBuffer's hashCode() depends
-        /* on the buffer's contents. A normal IdentityHashMap is not suitable
-        /* because there's no concurrent implementation of it. Thus the use
-        /* of the weak-keys concurrent map. */
-        this.bufferPool =
-            new MapMaker().initialCapacity(maxBuffers).weakKeys().makeMap();
-
-        numBuffers = new AtomicInteger(0);
-        do {
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            availPool.offer(buf);
-            bufferPool.put(buf, PRESENT);
-        } while (numBuffers.incrementAndGet() < minBuffers);
+        Integer[] order = new Integer[bufSizes.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        final int[] sizes = bufSizes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(sizes[a], sizes[b]);
+            }
+        });
+
+        classes = new SizeClass[sizes.length];
+        for (int i = 0; i < order.length; i++) {
+            int min = minBuffers[order[i]];
+            int max = maxBuffers[order[i]];
+            int size = sizes[order[i]];
+            if ((max < min) || (max <= 0) || (min < 0) || (size <= 0)
+                || (i > 0 && size == classes[i - 1].bufSize))
+                throw new IllegalArgumentException();
+            classes[i] = new SizeClass(min, max, size);
+        }
+        BufferPoolMetrics.register(this);
     }
 
-    /** Take a byte buffer from the pool. The caller is responsible of calling
-     *  release() once for the returned buffer to return it to the pool.
+    /** Take a byte buffer of the largest size class from the pool. The caller
+     *  is responsible of calling release() once for the returned buffer to
+     *  return it to the pool.
      */
     public ByteBuffer take() {
-        ByteBuffer buffer = availPool.poll();
-        if (buffer != null)
-            return buffer;
+        return classes[classes.length - 1].take();
+    }
 
-        if (numBuffers.incrementAndGet() <= maxBuffers) {
-            log.debug("increasing buffer pool size to {}", numBuffers.get());
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            bufferPool.put(buf, PRESENT);
-            return buf;
-        } else {
-            numBuffers.decrementAndGet();
-            /* Temporary buffers are non-direct because the NIO library has its
-             * own cache for them, managing this case more cleverly than we
-             * we can from here. The library will get the buffer from its cache
-             * when a write is requested, so it will be able to release it
-             * immediately, whereas we would leave the task up to the garbage
-             * collector.
-             *
-             * The price we pay for allocating a non-direct buffer is one extra
-             * copy at write-time.
-             */
-            log.info("pool is empty, allocating a temporary buffer");
-            return  BytesUtil.instance.allocate(bufSize);
+    /** Take a byte buffer with a capacity of at least the given size from the
+     *  pool. If the size exceeds the largest size class, a temporary buffer is
+     *  returned.
+     */
+    public ByteBuffer take(int size) {
+        for (SizeClass cls : classes) {
+            if (cls.bufSize >= size)
+                return cls.take();
         }
+        misses.incrementAndGet();
+        return allocateTemporary(size);
     }
 
     /** Release a buffer that was previously taken from the pool.
@@ -112,18 +147,242 @@ public class BufferPool {
      *  callers must be careful not to call release() twice on the same buffer.
      */
     public void release(ByteBuffer buf) {
-        if (buf != null && bufferPool.containsKey(buf)) {
-            availPool.offer(buf);
-            log.trace("released buffer ({}/{} free buffers)",
-                     availPool.size(), numBuffers.get());
+        if (buf == null)
+            return;
+        for (SizeClass cls : classes) {
+            if (cls.bufSize == buf.capacity()) {
+                cls.release(buf);
+                return;
+            }
         }
     }
 
     public int available() {
-        return availPool.size();
+        int available = 0;
+        for (SizeClass cls : classes)
+            available += cls.available();
+        return available;
     }
 
     public int allocated() {
-        return bufferPool.size();
+        int allocated = 0;
+        for (SizeClass cls : classes)
+            allocated += cls.owned.size();
+        return allocated;
+    }
+
+    /** The number of times a buffer was requested while none was available. */
+    public long misses() {
+        return misses.get();
+    }
+
+    /** The number of temporary buffers allocated beyond the pool's capacity. */
+    public long temporaryAllocations() {
+        return temporaryAllocations.get();
+    }
+
+    private static int[] filled(int length, int value) {
+        int[] values = new int[length];
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    private ByteBuffer allocateTemporary(int size) {
+        temporaryAllocations.incrementAndGet();
+        /* Temporary buffers are non-direct because the NIO library has its
+         * own cache for them, managing this case more cleverly than we
+         * we can from here. The library will get the buffer from its cache
+         * when a write is requested, so it will be able to release it
+         * immediately, whereas we would leave the task up to the garbage
+         * collector.
+         *
+         * The price we pay for allocating a non-direct buffer is one extra
+         * copy at write-time.
+         */
+        log.debug("pool is empty, allocating a temporary buffer");
+        return BytesUtil.instance.allocate(size);
+    }
+
+    /* The state of a buffer owned by the pool. */
+    private static final class Slot {
+        Thread taker;
+    }
+
+    /* The buffers cached by a thread. */
+    private static final class Magazine {
+        final Thread owner = Thread.currentThread();
+        final ByteBuffer[] buffers;
+        int count;
+
+        Magazine(int size) {
+            buffers = new ByteBuffer[size];
+        }
+    }
+
+    private final class SizeClass {
+        final int bufSize;
+        final int maxBuffers;
+        final int magazineSize;
+        final Depot depot;
+        final ConcurrentLinkedQueue<Magazine> magazines =
+            new ConcurrentLinkedQueue<>();
+        final ThreadLocal<Magazine> magazine = new ThreadLocal<Magazine>() {
+            @Override
+            protected Magazine initialValue() {
+                Magazine mag = new Magazine(magazineSize);
+                magazines.add(mag);
+                return mag;
+            }
+        };
+
+        /* The buffers owned by this size class. The map is copied on write,
+         * which only happens when the pool grows, so that lookups need no
+         * synchronization. */
+        volatile IdentityHashMap<ByteBuffer, Slot> owned = new IdentityHashMap<>();
+
+        SizeClass(int minBuffers, int maxBuffers, int bufSize) {
+            this.bufSize = bufSize;
+            this.maxBuffers = maxBuffers;
+            this.magazineSize = Math.min(MAX_MAGAZINE_SIZE, maxBuffers / 8);
+            this.depot = new Depot(maxBuffers);
+            do {
+                depot.offer(allocate());
+            } while (owned.size() < minBuffers);
+        }
+
+        ByteBuffer take() {
+            Magazine mag = magazineSize > 0 ? magazine.get() : null;
+            ByteBuffer buf = null;
+            if (mag != null && mag.count > 0) {
+                buf = mag.buffers[--mag.count];
+                mag.buffers[mag.count] = null;
+            } else {
+                buf = depot.poll();
+            }
+
+            if (buf == null) {
+                misses.incrementAndGet();
+                buf = reclaimMagazines() ? depot.poll() : null;
+                if (buf == null)
+                    buf = allocate();
+                if (buf == null)
+                    return allocateTemporary(bufSize);
+            }
+            owned.get(buf).taker = Thread.currentThread();
+            return buf;
+        }
+
+        void release(ByteBuffer buf) {
+            Slot slot = owned.get(buf);
+            if (slot == null)
+                return;
+            Thread taker = slot.taker;
+            slot.taker = null;
+            if (magazineSize > 0 && taker == Thread.currentThread()) {
+                Magazine mag = magazine.get();
+                if (mag.count < magazineSize) {
+                    mag.buffers[mag.count++] = buf;
+                    return;
+                }
+            }
+            depot.offer(buf);
+        }
+
+        int available() {
+            int available = depot.size();
+            for (Magazine mag : magazines)
+                available += mag.count;
+            return available;
+        }
+
+        /* Allocates a new buffer, unless the class is at its capacity. */
+        private synchronized ByteBuffer allocate() {
+            if (owned.size() >= maxBuffers)
+                return null;
+            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
+            IdentityHashMap<ByteBuffer, Slot> copy = new IdentityHashMap<>(owned);
+            copy.put(buf, new Slot());
+            owned = copy;
+            log.debug("increasing buffer pool size to {}", copy.size());
+            return buf;
+        }
+
+        /* Returns the buffers cached by terminated threads to the depot. */
+        private boolean reclaimMagazines() {
+            boolean reclaimed = false;
+            for (Magazine mag : magazines) {
+                if (!mag.owner.isAlive() && magazines.remove(mag)) {
+                    for (int i = 0; i < mag.count; i++)
+                        depot.offer(mag.buffers[i]);
+                    reclaimed |= mag.count > 0;
+                    mag.count = 0;
+                }
+            }
+            return reclaimed;
+        }
+    }
+
+    /**
+     * A lock-free bounded multi-producer multi-consumer queue of buffers, in
+     * which each slot carries a sequence number that tells producers and
+     * consumers whether it is free for them to use in the current lap.
+     */
+    private static final class Depot {
+        private final AtomicReferenceArray<ByteBuffer> buffers;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Depot(int minCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(1, minCapacity - 1)) << 1;
+            buffers = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++)
+                sequences.set(i, i);
+        }
+
+        boolean offer(ByteBuffer buf) {
+            long pos = tail.get();
+            while (true) {
+                int index = (int) pos & mask;
+                long diff = sequences.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        buffers.set(index, buf);
+                        sequences.set(index, pos + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    return false;
+                }
+                pos = tail.get();
+            }
+        }
+
+        ByteBuffer poll() {
+            long pos = head.get();
+            while (true) {
+                int index = (int) pos & mask;
+                long diff = sequences.get(index) - (pos + 1);
+                if (diff == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        ByteBuffer buf = buffers.get(index);
+                        buffers.set(index, null);
+                        sequences.set(index, pos + mask + 1);
+                        return buf;
+                    }
+                } else if (diff < 0) {
+                    return null;
+                }
+                pos = head.get();
+            }
+        }
+
+        int size() {
+            long size = tail.get() - head.get();
+            return (int) Math.max(0, Math.min(size, mask + 1));
+        }
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregates the counters of the buffer pools created in this process, and
+ * registers them as a JMX bean when the first pool is created.
+ */
+final class BufferPoolMetrics implements BufferPoolMXBean {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(BufferPoolMetrics.class);
+
+    private static final BufferPoolMetrics instance = new BufferPoolMetrics();
+
+    private final List<WeakReference<BufferPool>> pools = new ArrayList<>();
+
+    private boolean registered = false;
+
+    private BufferPoolMetrics() { }
+
+    static void register(BufferPool pool) {
+        synchronized (instance) {
+            if (!instance.registered) {
+                instance.registered = true;
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        instance, new ObjectName(BufferPoolMXBean.NAME));
+                } catch (Exception e) {
+                    log.error("Failed to register buffer pool JMX bean", e);
+                }
+            }
+            instance.livePools();
+            instance.pools.add(new WeakReference<>(pool));
+        }
+    }
+
+    /* Returns the pools that are still reachable, forgetting the others. */
+    private synchronized List<BufferPool> livePools() {
+        List<BufferPool> live = new ArrayList<>(pools.size());
+        for (int i = pools.size() - 1; i >= 0; i--) {
+            BufferPool pool = pools.get(i).get();
+            if (pool == null)
+                pools.remove(i);
+            else
+                live.add(pool);
+        }
+        return live;
+    }
+
+    @Override
+    public int getPools() {
+        return livePools().size();
+    }
+
+    @Override
+    public int getAllocatedBuffers() {
+        int allocated = 0;
+        for (BufferPool pool : livePools())
+            allocated += pool.allocated();
+        return allocated;
+    }
+
+    @Override
+    public int getAvailableBuffers() {
+        int available = 0;
+        for (BufferPool pool : livePools())
+            available += pool.available();
+        return available;
+    }
+
+    @Override
+    public long getMisses() {
+        long misses = 0;
+        for (BufferPool pool : livePools())
+            misses += pool.misses();
+        return misses;
+    }
+
+    @Override
+    public long getTemporaryAllocations() {
+        long allocations = 0;
+        for (BufferPool pool : livePools())
+            allocations += pool.temporaryAllocations();
+        return allocations;
+    }
+}
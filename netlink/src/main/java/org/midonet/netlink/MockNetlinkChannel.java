@@ -88,6 +88,20 @@ public class MockNetlinkChannel extends NetlinkChannel {
         return size;
     }
 
+    @Override
+    public long write(ByteBuffer[] buffers) throws IOException {
+        int size = 0;
+        for (ByteBuffer src : buffers)
+            size += src.remaining();
+        final ByteBuffer clone = ByteBuffer.allocateDirect(size);
+        clone.order(buffers[0].order());
+        for (ByteBuffer src : buffers)
+            clone.put(src);
+        written.add(clone);
+        packetsWritten.incrementAndGet();
+        return size;
+    }
+
     @Override
     protected void implCloseSelectableChannel() {
 
@@ -69,14 +69,18 @@ object NetlinkRequestBroker {
  *
  * The writer thread, starting at writtenSequence, writes all the subsequent
  * requests that have been published. After it's done, it updates that sequence
- * so that waiting publisher threads can progress.
+ * so that waiting publisher threads can progress. Consecutive published
+ * requests are coalesced into a single gathering write of up to writeBatchSize
+ * messages, which the kernel processes one after the other and to which it
+ * replies individually.
  *
  * The reader thread reads the replies from the kernel. We optimize for the case
  * where the requests are received in the order they are written. A publisher
  * trying to claim a sequence has thus to wait for the reply to the oldest
- * request. When a reply is received, we clear the corresponding observer. At
- * the end of handleReply() we advance the readSequence by skipping over the
- * continuous completed requests, those that have gotten a reply or timed out.
+ * request. When a reply is received, we clear the corresponding observer. After
+ * reading one reply, or draining several of them from a non-blocking channel,
+ * we advance the readSequence by skipping over the continuous completed
+ * requests, those that have gotten a reply or timed out.
  *
  * Timeouts:
  *
@@ -95,7 +99,8 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
                                  maxRequestSize: Int,
                                  readBuf: ByteBuffer,
                                  clock: NanoClock,
-                                 timeout: Duration = 10 seconds) {
+                                 timeout: Duration = 10 seconds,
+                                 writeBatchSize: Int = 1) {
     import NetlinkRequestBroker._
 
     val capacity = Util.findNextPositivePowerOfTwo(maxPendingRequests)
@@ -168,6 +173,12 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
     private val expirations = Array.fill(capacity)(Long.MaxValue)
     private val timeoutNanos = timeout.toNanos
 
+    /**
+     * The buffers of the requests being written in the current batch.
+     * Confined to the writer thread.
+     */
+    private val batch = new Array[ByteBuffer](Math.max(1, writeBatchSize))
+
     def hasRequestsToWrite: Boolean =
         isAvailable(writtenSequence)
 
@@ -216,42 +227,104 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
     }
 
     /**
-     * Writes all the new published requests. Returns the number of
-     * bytes written.
+     * Writes all the new published requests, coalescing up to writeBatchSize
+     * consecutive requests into each write. Returns the number of bytes
+     * written.
      */
     def writePublishedRequests(): Int = {
         var seq = writtenSequence
         var nbytes = 0
         while (isAvailable(seq)) {
-            val pos = position(seq)
-            val buf = buffers(pos)
-            try {
+            val start = seq
+            var size = 0
+            do {
+                val pos = position(seq)
+                val buf = buffers(pos)
                 buf.putInt(buf.position() + NetlinkMessage.NLMSG_SEQ_OFFSET, pos)
-                nbytes += writer.write(buf)
-                expirations(pos) = clock.tick + timeoutNanos
-            } catch { case e: Throwable =>
+                batch(size) = buf
+                size += 1
+                seq += 1
+            } while (size < batch.length && isAligned(batch(size - 1)) &&
+                     isAvailable(seq))
+            nbytes += writeBatch(start, size)
+        }
+        writtenSequence = seq
+        nbytes
+    }
+
+    /* The kernel expects each message of a multi-message write to start at
+     * an aligned offset, so a request whose length is not aligned ends the
+     * batch in which it is written. */
+    private def isAligned(buf: ByteBuffer): Boolean =
+        NetlinkMessage.align(buf.remaining()) == buf.remaining()
+
+    private def writeBatch(start: Long, size: Int): Int = {
+        var nbytes = 0
+        try {
+            nbytes = if (size == 1) writer.write(batch(0))
+                     else writer.write(batch, 0, size).toInt
+            val expiration = clock.tick + timeoutNanos
+            var i = 0
+            while (i < size) {
+                expirations(position(start + i)) = expiration
+                i += 1
+            }
+        } catch { case e: Throwable =>
+            var i = 0
+            while (i < size) {
+                val pos = position(start + i)
                 val obs = observers(pos)
                 freeObserver(pos)
-                obs.onError(e)
-            } finally {
-                // IOUtil modifies the buffer's position after the write has
-                // been performed, so this method is the best place to clear it.
-                buf.clear()
+                if (obs ne null)
+                    obs.onError(e)
+                i += 1
+            }
+        } finally {
+            // IOUtil modifies the buffer's position after the write has
+            // been performed, so this method is the best place to clear it.
+            var i = 0
+            while (i < size) {
+                batch(i).clear()
+                batch(i) = null
+                i += 1
             }
-            seq += 1
         }
-        writtenSequence = seq
         nbytes
     }
 
-
     /**
      * Processes a reply - a stream of ByteBuffers - if one is available.
      * Any reply that doesn't match a valid sequence number is passed on to
      * the optional unhandled Observer. Returns the number of bytes read.
      */
     @throws(classOf[IOException])
-    def readReply(unhandled: Observer[ByteBuffer] = NOOP): Int = {
+    def readReply(unhandled: Observer[ByteBuffer] = NOOP): Int =
+        readReplies(unhandled, 1)
+
+    /**
+     * Processes up to maxReplies replies. When the underlying channel is non
+     * blocking, the replies already queued in the socket are drained, stopping
+     * when there are no more; the read sequence is advanced, and expired
+     * requests are timed out, once for all of them. A blocking channel reads a
+     * single reply. Returns the number of bytes read.
+     */
+    @throws(classOf[IOException])
+    def readReplies(unhandled: Observer[ByteBuffer] = NOOP,
+                    maxReplies: Int): Int = {
+        val drain = !reader.channel.isBlocking
+        var nbytes = 0
+        var replies = 0
+        var read = 0
+        do {
+            read = readDatagram(unhandled)
+            nbytes += read
+            replies += 1
+        } while (drain && read > 0 && replies < maxReplies)
+        advanceReadSeqAndCheckTimeouts()
+        nbytes
+    }
+
+    private def readDatagram(unhandled: Observer[ByteBuffer]): Int =
         try {
             val nbytes = reader.read(readBuf)
             readBuf.flip()
@@ -262,7 +335,6 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
                 start += size
                 readBuf.position(start)
             }
-            advanceReadSeqAndCheckTimeouts()
             nbytes
         } catch { case e: NetlinkException =>
             val pos = readBuf.getInt(NetlinkMessage.NLMSG_SEQ_OFFSET)
@@ -273,7 +345,6 @@ final class NetlinkRequestBroker(writer: NetlinkBlockingWriter,
         } finally {
             readBuf.clear()
         }
-    }
 
     private def handleReply(reply: ByteBuffer, unhandled: Observer[ByteBuffer],
                             start: Int, size: Int): Unit = {
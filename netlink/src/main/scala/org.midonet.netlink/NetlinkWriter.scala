@@ -35,6 +35,15 @@ class NetlinkWriter(val channel: NetlinkChannel) {
     @throws(classOf[IOException])
     def write(src: ByteBuffer): Int =
         channel.write(src)
+
+    /**
+     * Writes the specified source buffers into the channel through a single
+     * gathering write, so that all the Netlink messages they contain are
+     * sent in one datagram. Returns the amount of bytes written.
+     */
+    @throws(classOf[IOException])
+    def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long =
+        channel.write(srcs, offset, length)
 }
 
 class NetlinkBlockingWriter(channel: NetlinkChannel) extends NetlinkWriter(channel) {
@@ -60,4 +69,19 @@ class NetlinkBlockingWriter(channel: NetlinkChannel) extends NetlinkWriter(chann
                  { selector.select(timeout); true })
         nbytes
     }
+
+    /**
+     * Writes the source buffers into the underlying channel, blocking
+     * regardless of the channel mode while the write doesn't succeed.
+     */
+    @throws(classOf[IOException])
+    override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+        val last = srcs(offset + length - 1)
+        var nbytes = 0L
+        do {
+            nbytes = super.write(srcs, offset, length)
+        } while (nbytes == 0 && last.remaining() > 0 && channel.isOpen &&
+                 { selector.select(timeout); true })
+        nbytes
+    }
 }
@@ -110,6 +110,97 @@ class BufferPoolTest extends FunSpec with Matchers {
             }
         }
 
+        describe("with several size classes") {
+            it("should serve the smallest class that fits") {
+                val pool = new BufferPool(2, 4, Array(1024, 128, 512))
+                pool.allocated shouldBe 6
+                pool.take(1).capacity shouldBe 128
+                pool.take(128).capacity shouldBe 128
+                pool.take(129).capacity shouldBe 512
+                pool.take(1024).capacity shouldBe 1024
+                pool.take.capacity shouldBe 1024
+                pool.available shouldBe 1
+            }
+
+            it("should return buffers to their class") {
+                val pool = new BufferPool(2, 4, Array(128, 512))
+                val bufs = List(pool.take(100), pool.take(500), pool.take(100))
+                pool.available shouldBe 1
+                bufs foreach refAndReleaseFrom(pool)
+                pool.available shouldBe 4
+                pool.allocated shouldBe 4
+            }
+
+            it("should allocate temporary buffers beyond the largest class") {
+                val pool = new BufferPool(1, 2, Array(128, 512))
+                val buf = pool.take(2048)
+                buf.capacity shouldBe 2048
+                buf.isDirect shouldBe false
+                pool.temporaryAllocations shouldBe 1
+                pool release buf
+                pool.available shouldBe 2
+            }
+
+            it("should give each class its own number of buffers") {
+                val pool = new BufferPool(Array(4, 1), Array(8, 2),
+                                          Array(1024, 128))
+                pool.allocated shouldBe 5
+                val small = (1 to 4) map { _ => pool.take(100) }
+                small foreach { _.capacity shouldBe 128 }
+                pool.misses shouldBe 3
+                pool.temporaryAllocations shouldBe 2
+                val large = (1 to 8) map { _ => pool.take(1000) }
+                large foreach { _.capacity shouldBe 1024 }
+                pool.temporaryAllocations shouldBe 2
+                pool.allocated shouldBe 10
+                small ++ large foreach refAndReleaseFrom(pool)
+                pool.available shouldBe 10
+            }
+
+            it("can't be created with invalid counts") {
+                List((Array(1), Array(2, 2)), (Array(1, 1), Array(2)),
+                     (Array(3, 1), Array(2, 2)), (Array(1, 0), Array(2, 0)),
+                     (Array(1, -1), Array(2, 2))).foreach {
+                    case (mins, maxs) =>
+                        intercept[IllegalArgumentException] {
+                            new BufferPool(mins, maxs, Array(128, 512))
+                        }
+                }
+            }
+
+            it("can't be created with invalid sizes") {
+                List(Array[Int](), Array(128, -1), Array(128, 128)).foreach {
+                    sizes =>
+                        intercept[IllegalArgumentException] {
+                            new BufferPool(1, 2, sizes)
+                        }
+                }
+            }
+        }
+
+        describe("when counting misses") {
+            it("should count misses and temporary allocations") {
+                val pool = new BufferPool(1, 2, 128)
+                buffers += pool.take
+                pool.misses shouldBe 0
+                buffers += pool.take
+                pool.misses shouldBe 1
+                pool.temporaryAllocations shouldBe 0
+                buffers += pool.take
+                pool.misses shouldBe 2
+                pool.temporaryAllocations shouldBe 1
+            }
+
+            it("should not count recycled buffers") {
+                val pool = new BufferPool(4, 4, 128)
+                (1 to 10) foreach { _ =>
+                    List.fill(4) { pool.take } foreach refAndReleaseFrom(pool)
+                }
+                pool.misses shouldBe 0
+                pool.temporaryAllocations shouldBe 0
+            }
+        }
+
         describe("when serving multiple clients") {
             it("should stay in a consistent state") {
                 val pool = new BufferPool(10,40,128)
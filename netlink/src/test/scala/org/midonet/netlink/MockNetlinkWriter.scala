@@ -31,4 +31,17 @@ class MockNetlinkWriter extends NetlinkBlockingWriter(
         } else {
             src.remaining()
         }
+
+    override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long =
+        if (shouldThrow) {
+            throw ERROR
+        } else {
+            var nbytes = 0L
+            var i = offset
+            while (i < offset + length) {
+                nbytes += srcs(i).remaining()
+                i += 1
+            }
+            nbytes
+        }
 }
@@ -249,6 +249,108 @@ class NetlinkRequestBrokerTest extends FeatureSpec
 
     }
 
+    feature ("Published requests are written in batches") {
+        var writes = 0
+        val batchWriter = new MockNetlinkWriter {
+            override def write(src: ByteBuffer): Int = {
+                writes += 1
+                super.write(src)
+            }
+            override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+                writes += 1
+                super.write(srcs, offset, length)
+            }
+        }
+        val broker = new NetlinkRequestBroker(batchWriter, reader, maxRequests,
+                                              512, ByteBuffer.allocate(1024),
+                                              clock, writeBatchSize = 4)
+
+        scenario ("Consecutive requests are coalesced into one write") {
+            (0 until 6) foreach { i =>
+                val seq = broker.nextSequence()
+                NetlinkMessage.writeHeader(broker.get(seq), 16, 1, 2, 3, 4, 5, 6)
+                broker.get(seq).position(16)
+                broker.get(seq).flip()
+                broker.publishRequest(seq, null)
+            }
+            broker.writePublishedRequests() should be (6 * 16)
+            writes should be (2)
+            (0 until 6) foreach { i =>
+                broker.get(i).getInt(NetlinkMessage.NLMSG_SEQ_OFFSET) should be (i)
+            }
+        }
+
+        scenario ("A request that is not aligned ends a batch") {
+            (0 until 3) foreach { i =>
+                val seq = broker.nextSequence()
+                NetlinkMessage.writeHeader(broker.get(seq), 18, 1, 2, 3, 4, 5, 6)
+                broker.get(seq).position(18)
+                broker.get(seq).flip()
+                broker.publishRequest(seq, null)
+            }
+            broker.writePublishedRequests() should be (3 * 18)
+            writes should be (3)
+        }
+
+        scenario ("Errors are communicated to every request of a batch") {
+            batchWriter.shouldThrow = true
+            val obs = new CountingObserver
+            broker.publishRequest(broker.nextSequence(), obs)
+            broker.publishRequest(broker.nextSequence(), obs)
+            broker.publishRequest(broker.nextSequence(), obs)
+            broker.writePublishedRequests() should be (0)
+            obs.onErrorCalls should be (3)
+            writes should be (1)
+        }
+    }
+
+    feature ("Replies are drained from non-blocking channels") {
+        val drainChannel = new MockNetlinkChannel(Netlink.selectorProvider,
+                                                  NetlinkProtocol.NETLINK_GENERIC)
+
+        {
+            drainChannel.connect(new Address(0))
+            drainChannel.configureBlocking(false)
+        }
+
+        val broker = new NetlinkRequestBroker(writer,
+                                              new NetlinkReader(drainChannel),
+                                              maxRequests, 512,
+                                              ByteBuffer.allocate(1024), clock)
+        val size = NetlinkMessage.GENL_HEADER_SIZE + 16
+
+        def publishWithReply(obs: CountingObserver): Unit = {
+            val seq = broker.nextSequence()
+            broker.publishRequest(seq, obs)
+            val reply = ByteBuffer.allocate(size)
+            NetlinkMessage.writeHeader(reply, size, 160, 0, seq.toInt, 0, 0, 0)
+            drainChannel.toRead.add(reply)
+        }
+
+        scenario ("Queued replies are read by a single call") {
+            val obs = new CountingObserver
+            (0 until 3) foreach { _ => publishWithReply(obs) }
+            broker.writePublishedRequests()
+
+            broker.readReplies(obs, maxRequests) should be (3 * size)
+            obs.onNextCalls should be (3)
+            obs.onCompletedCalls should be (3)
+            drainChannel.toRead shouldBe empty
+        }
+
+        scenario ("The number of replies read by a call is bounded") {
+            val obs = new CountingObserver
+            (0 until 3) foreach { _ => publishWithReply(obs) }
+            broker.writePublishedRequests()
+
+            broker.readReplies(obs, 2) should be (2 * size)
+            obs.onCompletedCalls should be (2)
+            broker.readReply(obs) should be (size)
+            obs.onCompletedCalls should be (3)
+            broker.readReply(obs) should be (0)
+        }
+    }
+
     feature("Test single element broker") {
         val broker = new NetlinkRequestBroker(
                 writer, reader, 1, 512, ByteBuffer.allocate(1024), clock)
@@ -16,7 +16,7 @@
 
 package org.midonet.cluster.data.neutron
 
-import java.sql.{Connection, ResultSet}
+import java.sql.ResultSet
 import java.util.UUID
 
 import javax.sql.DataSource
@@ -113,8 +113,18 @@ trait NeutronImporter {
       * grouped into Transactions according to transaction ID. */
     def getTasksSince(taskId: Int): List[importer.Transaction]
 
+    /** Gets the tasks with task ID greater than taskId, ordered by task ID
+      * and grouped into Transactions according to transaction ID, reading
+      * maxTasks tasks and then the remaining tasks of the last transaction,
+      * so that no transaction is split across pages. */
+    def getTasksSince(taskId: Int, maxTasks: Int): List[importer.Transaction]
+
     /** Deletes the specified task. */
     def deleteTask(taskId: Int)
+
+    /** Deletes the tasks with IDs from firstTaskId to lastTaskId, both
+      * included. */
+    def deleteTasks(firstTaskId: Int, lastTaskId: Int)
 }
 
 /** Implementation of NeutronService that obtains data from a remote
@@ -128,6 +138,13 @@ class SqlNeutronImporter(dataSrc: DataSource) extends NeutronImporter {
                                    "from midonet_tasks where id > ? or " +
                                    s"(id = 1 and type = '${TaskType.Flush.id}') " +
                                    "order by id"
+    private val NEW_TASKS_PAGE_QUERY = NEW_TASKS_QUERY + " limit ?"
+    private val TXN_TASKS_QUERY = "select id, type, data_type, " +
+                                  "resource_id, transaction_id, data " +
+                                  "from midonet_tasks where id > ? and " +
+                                  "transaction_id = ? order by id"
+    private val DELETE_TASKS = "delete from midonet_tasks where id >= ? and " +
+                               "id <= ?"
 
     private val idCol = 1
     private val typeCol = 2
@@ -138,13 +155,46 @@ class SqlNeutronImporter(dataSrc: DataSource) extends NeutronImporter {
 
     override def getTasksSince(taskId: Int): List[Transaction] = {
         val con = dataSrc.getConnection
-        try getTasksSince(taskId, con) finally con.close()
+        try {
+            log.debug("Querying Neutron DB for tasks with ID > {}", taskId)
+            val stmt = con.prepareStatement(NEW_TASKS_QUERY)
+            stmt.setInt(1, taskId)
+            try readTransactions(stmt.executeQuery()) finally stmt.close()
+        } finally con.close()
+    }
+
+    override def getTasksSince(taskId: Int, maxTasks: Int)
+    : List[Transaction] = {
+        val con = dataSrc.getConnection
+        try {
+            log.debug("Querying Neutron DB for at most {} tasks with ID > {}",
+                      maxTasks, taskId)
+            val stmt = con.prepareStatement(NEW_TASKS_PAGE_QUERY)
+            stmt.setInt(1, taskId)
+            stmt.setInt(2, maxTasks)
+            stmt.setFetchSize(maxTasks)
+            val txns =
+                try readTransactions(stmt.executeQuery()) finally stmt.close()
+
+            // The limit may have cut the last transaction: read the rest of
+            // it, so that it is imported as a whole.
+            if (txns.isEmpty || txns.map(_.tasks.size).sum < maxTasks) {
+                txns
+            } else {
+                val last = txns.last
+                val txnStmt = con.prepareStatement(TXN_TASKS_QUERY)
+                txnStmt.setInt(1, last.lastTaskId)
+                txnStmt.setString(2, last.id)
+                val rest = try readTransactions(txnStmt.executeQuery())
+                           finally txnStmt.close()
+                if (rest.isEmpty) txns
+                else txns.init :+ new Transaction(last.id,
+                                                  last.tasks ++ rest.head.tasks)
+            }
+        } finally con.close()
     }
 
-    private def getTasksSince(taskId: Int,
-                              con: Connection): List[Transaction] = {
-        log.debug("Querying Neutron DB for tasks with ID > {}", taskId)
-        val rslt = queryTasksSince(taskId, con)
+    private def readTransactions(rslt: ResultSet): List[Transaction] = {
         val txns = ListBuffer[Transaction]()
         var lastTxnId: String = null
         val txnTasks = ListBuffer[importer.Task]()
@@ -182,20 +232,17 @@ class SqlNeutronImporter(dataSrc: DataSource) extends NeutronImporter {
         txns.toList
     }
 
-    private def queryTasksSince(lastTaskId: Int, con: Connection): ResultSet = {
-        val stmt = con.prepareStatement(NEW_TASKS_QUERY)
-        stmt.setInt(1, lastTaskId)
-        val rslt = stmt.executeQuery()
-        rslt
-    }
+    override def deleteTask(taskId: Int): Unit = deleteTasks(taskId, taskId)
 
-    override def deleteTask(taskId: Int): Unit = {
+    override def deleteTasks(firstTaskId: Int, lastTaskId: Int): Unit = {
         val con = dataSrc.getConnection
         try {
-            val stmt =
-                con.prepareStatement("delete from midonet_tasks where id = ?")
-            stmt.setInt(1, taskId)
-            stmt.executeUpdate()
+            log.debug("Deleting tasks with ID from {} to {}", firstTaskId,
+                      lastTaskId)
+            val stmt = con.prepareStatement(DELETE_TASKS)
+            stmt.setInt(1, firstTaskId)
+            stmt.setInt(2, lastTaskId)
+            try stmt.executeUpdate() finally stmt.close()
         } finally con.close()
     }
 
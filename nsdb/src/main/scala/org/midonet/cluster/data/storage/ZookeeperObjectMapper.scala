@@ -30,7 +30,7 @@ import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.util.{Failure, Success, Try}
 
 import com.google.common.annotations.VisibleForTesting
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
@@ -110,9 +110,19 @@ import org.midonet.util.reactivex._
  * off. In addition, upon initialization a ZOOM sets a watcher to the version
  * number node and it'd be notified if another ZOOM instances bumps the version
  * number to switch to the new version.
+ *
+ * DATA ENCODING:
+ * Protocol buffer messages are stored in the text format, or, if
+ * binaryEncoding is set, in their binary wire format preceded by a short
+ * header identifying the encoding and its version. Both encodings are read
+ * transparently, but previous versions only read the text format, so the
+ * binary encoding must only be enabled once all the readers have been
+ * upgraded. The nodes written in the text format can then be rewritten with
+ * migrateToBinaryEncoding(). Plain Java objects are stored as JSON.
  */
 class ZookeeperObjectMapper(protected override val rootPath: String,
-                            protected override val curator: CuratorFramework)
+                            protected override val curator: CuratorFramework,
+                            binaryEncoding: Boolean = false)
     extends ZookeeperObjectState with StorageWithOwnership {
 
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
@@ -228,10 +238,12 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
 
             for ((Key(clazz, id), txOp) <- ops) txn = txOp match {
                 case TxCreate(obj, _) =>
-                    txn.create.forPath(getPath(clazz, id), serialize(obj)).and
+                    txn.create.forPath(getPath(clazz, id),
+                                       serialize(obj, binaryEncoding)).and
                 case TxUpdate(obj, ver, ownerOps) =>
                     txn.setData().withVersion(ver)
-                        .forPath(getPath(clazz, id), serialize(obj)).and
+                        .forPath(getPath(clazz, id),
+                                 serialize(obj, binaryEncoding)).and
                 case TxDelete(ver, ownerOps) =>
                     txn.delete.withVersion(ver).forPath(getPath(clazz, id)).and
                 case TxCreateOwner(owner) =>
@@ -738,6 +750,42 @@ class ZookeeperObjectMapper(protected override val rootPath: String,
         }).observable
     }
 
+    /**
+     * Rewrites in the binary encoding the objects of all registered message
+     * classes that are stored in the text format, and returns the number of
+     * objects rewritten. An object modified concurrently is left as is, since
+     * it has already been written in the binary encoding by its writer. This
+     * requires the binary encoding to be enabled.
+     */
+    def migrateToBinaryEncoding(): Int = {
+        assertBuilt()
+        if (!binaryEncoding)
+            throw new IllegalStateException("The binary encoding is disabled")
+        var migrated = 0
+        for (clazz <- classInfo.keys
+             if classOf[Message].isAssignableFrom(clazz)) {
+            val classPath = getClassPath(clazz)
+            for (id <- curator.getChildren.forPath(classPath).asScala) {
+                val path = s"$classPath/$id"
+                val stat = new Stat
+                try {
+                    val data = curator.getData.storingStatIn(stat).forPath(path)
+                    if ((data ne null) && !isBinaryMessage(data)) {
+                        val obj = deserialize(data, clazz).asInstanceOf[Obj]
+                        curator.setData().withVersion(stat.getVersion)
+                               .forPath(path, serialize(obj, binaryEncoding))
+                        migrated += 1
+                    }
+                } catch {
+                    case e @ (_: BadVersionException | _: NoNodeException) =>
+                        log.debug(s"Object $path modified during migration", e)
+                }
+            }
+        }
+        log.info(s"Migrated $migrated objects to the binary encoding")
+        migrated
+    }
+
     // We should have public subscription methods, but we don't currently
     // need them, and this is easier to implement for testing.
     @VisibleForTesting
@@ -814,15 +862,45 @@ object ZookeeperObjectMapper {
         }
     }
 
-    private[storage] def serialize(obj: Obj): Array[Byte] = {
+    private[storage] def serialize(obj: Obj, binaryEncoding: Boolean)
+            : Array[Byte] = {
         obj match {
-            case msg: Message => serializeMessage(msg)
+            case msg: Message => serializeMessage(msg, binaryEncoding)
             case pojo => serializePojo(pojo)
         }
     }
 
-    private def serializeMessage(msg: Message): Array[Byte] = {
-        msg.toString.getBytes
+    /* In the binary encoding, protocol buffer messages are stored in the
+     * wire format, after a header made of a zero byte, which cannot start a
+     * message in the text format, and the version of the encoding. */
+    private final val BinaryMessageMagic: Byte = 0
+    private final val BinaryMessageVersion: Byte = 1
+    private final val BinaryMessageHeaderSize = 2
+
+    private def serializeMessage(msg: Message, binaryEncoding: Boolean)
+            : Array[Byte] = {
+        if (binaryEncoding) {
+            val data = new Array[Byte](BinaryMessageHeaderSize +
+                                       msg.getSerializedSize)
+            data(0) = BinaryMessageMagic
+            data(1) = BinaryMessageVersion
+            val output = CodedOutputStream.newInstance(
+                data, BinaryMessageHeaderSize, msg.getSerializedSize)
+            msg.writeTo(output)
+            output.checkNoSpaceLeft()
+            data
+        } else {
+            msg.toString.getBytes
+        }
+    }
+
+    /**
+     * Returns whether the data of a node holds a message in the binary
+     * encoding, rather than in the text format written by older versions.
+     */
+    private[storage] def isBinaryMessage(data: Array[Byte]): Boolean = {
+        data.length >= BinaryMessageHeaderSize &&
+        data(0) == BinaryMessageMagic
     }
 
     private def serializePojo(obj: Obj): Array[Byte] = {
@@ -859,7 +937,15 @@ object ZookeeperObjectMapper {
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
         val builderObj = clazz.getMethod("newBuilder").invoke(null)
         val builder = builderObj.asInstanceOf[Message.Builder]
-        TextFormat.merge(new String(data), builder)
+        if (isBinaryMessage(data)) {
+            if (data(1) != BinaryMessageVersion)
+                throw new IllegalArgumentException(
+                    s"Unsupported message encoding version ${data(1)}")
+            builder.mergeFrom(data, BinaryMessageHeaderSize,
+                              data.length - BinaryMessageHeaderSize)
+        } else {
+            TextFormat.merge(new String(data), builder)
+        }
         builder.build().asInstanceOf[T]
     }
 
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.flowhistory
+
+import java.nio.ByteBuffer
+import java.util.{ArrayList, HashSet, List => JList, Set => JSet, UUID}
+
+import Actions._
+
+/**
+ * A compact binary encoding of flow records, which packs many records per
+ * datagram.
+ *
+ * A datagram starts with a header made of a magic number, the version of the
+ * encoding and the number of records, followed by the records, each
+ * preceded by its length as an unsigned short. A record contains, in order:
+ *  - the host and the ingress port,
+ *  - the flow match,
+ *  - the cookie, as an int,
+ *  - the traversed devices,
+ *  - the traversed rules, each one a UUID and the id of its result,
+ *  - the id of the simulation result, as a byte,
+ *  - the egress ports,
+ *  - the flow actions, each one prefixed by a type tag.
+ * UUIDs are prefixed by a byte telling whether they are present. Lists and
+ * byte arrays are prefixed by their length as a short, -1 standing for null.
+ */
+object BinarySerialization {
+
+    final val Magic = 0x4d4e4648 // "MNFH"
+    final val Version: Byte = 1
+    final val HeaderSize = 7
+    private final val RecordCountOffset = 5
+
+    // The type tags of the flow actions.
+    final val OutputTag: Byte = 1
+    final val PopVlanTag: Byte = 2
+    final val PushVlanTag: Byte = 3
+    final val UserspaceTag: Byte = 4
+    final val ArpTag: Byte = 5
+    final val EthernetTag: Byte = 6
+    final val EtherTypeTag: Byte = 7
+    final val IcmpEchoTag: Byte = 8
+    final val IcmpErrorTag: Byte = 9
+    final val IcmpTag: Byte = 10
+    final val IPv4Tag: Byte = 11
+    final val TcpTag: Byte = 12
+    final val TunnelTag: Byte = 13
+    final val UdpTag: Byte = 14
+    final val VlanTag: Byte = 15
+
+    /** Starts a datagram at the beginning of the buffer, with no records. */
+    def putHeader(buf: ByteBuffer): Unit = {
+        buf.putInt(Magic)
+        buf.put(Version)
+        buf.putShort(0)
+    }
+
+    /** Sets the number of records of a datagram started with putHeader. */
+    def putRecordCount(buf: ByteBuffer, count: Int): Unit =
+        buf.putShort(RecordCountOffset, count.toShort)
+
+    def putRecord(buf: ByteBuffer, record: FlowRecord): Unit = {
+        putUUID(buf, record.host)
+        putUUID(buf, record.inPort)
+        putMatch(buf, record.flowMatch)
+        buf.putInt(record.cookie)
+        putUUIDs(buf, record.devices)
+        if (record.rules eq null) {
+            putSize(buf, -1)
+        } else {
+            putSize(buf, record.rules.size)
+            var i = 0
+            while (i < record.rules.size) {
+                putRule(buf, record.rules.get(i).rule,
+                        record.rules.get(i).result)
+                i += 1
+            }
+        }
+        putSimulationResult(buf, record.simResult)
+        putUUIDs(buf, record.outPorts)
+        if (record.actions eq null) {
+            putSize(buf, -1)
+        } else {
+            putSize(buf, record.actions.size)
+            val it = record.actions.iterator()
+            while (it.hasNext)
+                putAction(buf, it.next())
+        }
+    }
+
+    def putUUID(buf: ByteBuffer, id: UUID): Unit =
+        if (id eq null) {
+            buf.put(0.toByte)
+        } else {
+            buf.put(1.toByte)
+            buf.putLong(id.getMostSignificantBits)
+            buf.putLong(id.getLeastSignificantBits)
+        }
+
+    def putUUIDs(buf: ByteBuffer, ids: JList[UUID]): Unit =
+        if (ids eq null) {
+            putSize(buf, -1)
+        } else {
+            putSize(buf, ids.size)
+            var i = 0
+            while (i < ids.size) {
+                putUUID(buf, ids.get(i))
+                i += 1
+            }
+        }
+
+    /** Writes the size of a list, or -1 if it is null. */
+    def putSize(buf: ByteBuffer, size: Int): Unit = {
+        if (size > Short.MaxValue)
+            throw new IllegalArgumentException(s"List too long: $size")
+        buf.putShort(size.toShort)
+    }
+
+    /**
+     * Writes the size of a list at the given offset, for lists whose size is
+     * only known once their elements have been written.
+     */
+    def putSize(buf: ByteBuffer, offset: Int, size: Int): Unit = {
+        if (size > Short.MaxValue)
+            throw new IllegalArgumentException(s"List too long: $size")
+        buf.putShort(offset, size.toShort)
+    }
+
+    def putBytes(buf: ByteBuffer, bytes: Array[Byte]): Unit =
+        if (bytes eq null) {
+            putSize(buf, -1)
+        } else {
+            putSize(buf, bytes.length)
+            buf.put(bytes)
+        }
+
+    private def putMatch(buf: ByteBuffer, m: FlowRecordMatch): Unit = {
+        buf.putInt(m.inputPortNo)
+        buf.putLong(m.tunnelKey)
+        buf.putInt(m.tunnelSrc)
+        buf.putInt(m.tunnelDst)
+        putBytes(buf, m.ethSrc)
+        putBytes(buf, m.ethDst)
+        buf.putShort(m.etherType)
+        putBytes(buf, m.networkSrc)
+        putBytes(buf, m.networkDst)
+        buf.put(m.networkProto)
+        buf.put(m.networkTTL)
+        buf.put(m.networkTOS)
+        buf.put(m.ipFragType)
+        buf.putInt(m.srcPort)
+        buf.putInt(m.dstPort)
+        buf.putShort(m.icmpId)
+        putBytes(buf, m.icmpData)
+        if (m.vlanIds eq null) {
+            putSize(buf, -1)
+        } else {
+            putSize(buf, m.vlanIds.size)
+            var i = 0
+            while (i < m.vlanIds.size) {
+                buf.putShort(m.vlanIds.get(i))
+                i += 1
+            }
+        }
+    }
+
+    def putRule(buf: ByteBuffer, rule: UUID,
+                        result: RuleResult.RuleResult): Unit = {
+        putUUID(buf, rule)
+        buf.put(result.id.toByte)
+    }
+
+    def putSimulationResult(
+            buf: ByteBuffer, result: SimulationResult.SimulationResult): Unit =
+        buf.put(result.id.toByte)
+
+    private def putAction(buf: ByteBuffer, action: FlowAction): Unit =
+        action match {
+            case Output(portNo) =>
+                buf.put(OutputTag).putInt(portNo)
+            case PopVlan() =>
+                buf.put(PopVlanTag)
+            case PushVlan(tpid, tci) =>
+                buf.put(PushVlanTag).putShort(tpid).putShort(tci)
+            case Userspace(uplinkId, userData) =>
+                buf.put(UserspaceTag).putInt(uplinkId).putLong(userData)
+            case Arp(sip, tip, op, sha, tha) =>
+                buf.put(ArpTag).putInt(sip).putInt(tip).putShort(op)
+                putBytes(buf, sha)
+                putBytes(buf, tha)
+            case Ethernet(src, dst) =>
+                buf.put(EthernetTag)
+                putBytes(buf, src)
+                putBytes(buf, dst)
+            case EtherType(etherType) =>
+                buf.put(EtherTypeTag).putShort(etherType)
+            case IcmpEcho(icmpType, code, id) =>
+                buf.put(IcmpEchoTag).put(icmpType).put(code).putShort(id)
+            case IcmpError(icmpType, code, data) =>
+                buf.put(IcmpErrorTag).put(icmpType).put(code)
+                putBytes(buf, data)
+            case Icmp(icmpType, code) =>
+                buf.put(IcmpTag).put(icmpType).put(code)
+            case IPv4(src, dst, proto, tos, ttl, frag) =>
+                buf.put(IPv4Tag).putInt(src).putInt(dst).put(proto).put(tos)
+                   .put(ttl).put(frag)
+            case TCP(src, dst) =>
+                buf.put(TcpTag).putShort(src).putShort(dst)
+            case Tunnel(id, src, dst, flags, tos, ttl) =>
+                buf.put(TunnelTag).putInt(id).putInt(src).putInt(dst)
+                   .putShort(flags).put(tos).put(ttl)
+            case UDP(src, dst) =>
+                buf.put(UdpTag).putShort(src).putShort(dst)
+            case VLan(id) =>
+                buf.put(VlanTag).putShort(id)
+        }
+}
+
+class BinarySerialization {
+    import BinarySerialization._
+
+    /**
+     * Decodes the records of a datagram, from the position of the buffer to
+     * its limit.
+     */
+    def datagramToFlowRecords(buf: ByteBuffer): JList[FlowRecord] = {
+        if (buf.remaining < HeaderSize || buf.getInt != Magic)
+            throw new IllegalArgumentException("Not a flow history datagram")
+        val version = buf.get
+        if (version != Version)
+            throw new IllegalArgumentException(
+                s"Unsupported flow history encoding version $version")
+        val count = buf.getShort & 0xffff
+        val records = new ArrayList[FlowRecord](count)
+        for (i <- 0 until count) {
+            val length = buf.getShort & 0xffff
+            val record = buf.slice()
+            record.limit(length)
+            records.add(bufferToFlowRecord(record))
+            buf.position(buf.position + length)
+        }
+        records
+    }
+
+    def flowRecordToBuffer(record: FlowRecord, buf: ByteBuffer): Unit =
+        putRecord(buf, record)
+
+    def bufferToFlowRecord(buf: ByteBuffer): FlowRecord = {
+        val host = getUUID(buf)
+        val inPort = getUUID(buf)
+        val flowMatch = getMatch(buf)
+        val cookie = buf.getInt
+        val devices = getUUIDs(buf)
+        val rules = getList(buf) {
+            TraversedRule(getUUID(buf), RuleResult(buf.get))
+        }
+        val simResult = SimulationResult(buf.get)
+        val outPorts = getUUIDs(buf)
+        val actionList = getList(buf) { getAction(buf) }
+        val actions: JSet[FlowAction] =
+            if (actionList eq null) null else new HashSet[FlowAction](actionList)
+        FlowRecord(host, inPort, flowMatch, cookie, devices, rules, simResult,
+                   outPorts, actions)
+    }
+
+    private def getUUID(buf: ByteBuffer): UUID =
+        if (buf.get == 0) null else new UUID(buf.getLong, buf.getLong)
+
+    private def getUUIDs(buf: ByteBuffer): JList[UUID] =
+        getList(buf) { getUUID(buf) }
+
+    private def getList[T](buf: ByteBuffer)(element: => T): JList[T] = {
+        val size = buf.getShort
+        if (size < 0) {
+            null
+        } else {
+            val list = new ArrayList[T](size)
+            for (i <- 0 until size)
+                list.add(element)
+            list
+        }
+    }
+
+    private def getBytes(buf: ByteBuffer): Array[Byte] = {
+        val size = buf.getShort
+        if (size < 0) {
+            null
+        } else {
+            val bytes = new Array[Byte](size)
+            buf.get(bytes)
+            bytes
+        }
+    }
+
+    private def getMatch(buf: ByteBuffer): FlowRecordMatch =
+        FlowRecordMatch(buf.getInt, buf.getLong, buf.getInt, buf.getInt,
+                        getBytes(buf), getBytes(buf), buf.getShort,
+                        getBytes(buf), getBytes(buf), buf.get, buf.get,
+                        buf.get, buf.get, buf.getInt, buf.getInt,
+                        buf.getShort, getBytes(buf),
+                        getList(buf) { java.lang.Short.valueOf(buf.getShort) })
+
+    private def getAction(buf: ByteBuffer): FlowAction = buf.get match {
+        case OutputTag => Output(buf.getInt)
+        case PopVlanTag => PopVlan()
+        case PushVlanTag => PushVlan(buf.getShort, buf.getShort)
+        case UserspaceTag => Userspace(buf.getInt, buf.getLong)
+        case ArpTag => Arp(buf.getInt, buf.getInt, buf.getShort,
+                           getBytes(buf), getBytes(buf))
+        case EthernetTag => Ethernet(getBytes(buf), getBytes(buf))
+        case EtherTypeTag => EtherType(buf.getShort)
+        case IcmpEchoTag => IcmpEcho(buf.get, buf.get, buf.getShort)
+        case IcmpErrorTag => IcmpError(buf.get, buf.get, getBytes(buf))
+        case IcmpTag => Icmp(buf.get, buf.get)
+        case IPv4Tag => IPv4(buf.getInt, buf.getInt, buf.get, buf.get,
+                             buf.get, buf.get)
+        case TcpTag => TCP(buf.getShort, buf.getShort)
+        case TunnelTag => Tunnel(buf.getInt, buf.getInt, buf.getInt,
+                                 buf.getShort, buf.get, buf.get)
+        case UdpTag => UDP(buf.getShort, buf.getShort)
+        case VlanTag => VLan(buf.getShort)
+        case tag => throw new IllegalArgumentException(
+            s"Unknown flow action type $tag")
+    }
+}
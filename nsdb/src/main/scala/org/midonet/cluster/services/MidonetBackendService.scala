@@ -154,7 +154,8 @@ class MidonetBackendService @Inject() (cfg: MidonetBackendConfig,
     private val log = getLogger("org.midonet.nsdb")
 
     private val zoom =
-        new ZookeeperObjectMapper(cfg.rootKey + "/zoom", curator)
+        new ZookeeperObjectMapper(cfg.rootKey + "/zoom", curator,
+                                  cfg.binaryEncoding)
 
     override def store: Storage = zoom
     override def ownershipStore: StorageWithOwnership = zoom
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.neutron
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, _}
+
+/**
+ * Measures the time to read and delete a backlog of Neutron tasks from an
+ * embedded SQL database, either reading all the tasks at once and deleting
+ * them one at a time, or reading them in pages and deleting each page with
+ * a single statement.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class NeutronImporterBenchmark {
+
+    @Param(Array("single", "paged"))
+    var mode: String = _
+
+    @Param(Array("5000"))
+    var tasks: Int = _
+
+    @Param(Array("1000"))
+    var pageSize: Int = _
+
+    var table: SqliteTaskTable = _
+    var sqlImporter: SqlNeutronImporter = _
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        table = new SqliteTaskTable("importer-benchmark")
+        sqlImporter = new SqlNeutronImporter(table.dataSource)
+    }
+
+    @JmhSetup(Level.Invocation)
+    def insertTasks(): Unit = {
+        table.clear()
+        // Bulk operations create several tasks in the same transaction.
+        table.insertDeleteTasks(for (id <- 1 to tasks) yield (id, s"txn-${id / 4}"))
+    }
+
+    @JmhTearDown(Level.Trial)
+    def teardown(): Unit = {
+        table.close()
+    }
+
+    @Benchmark
+    def importTasks(): Int = mode match {
+        case "single" =>
+            val txns = sqlImporter.getTasksSince(0)
+            for (txn <- txns; task <- txn.tasks)
+                sqlImporter.deleteTask(task.taskId)
+            txns.size
+        case "paged" =>
+            var count = 0
+            var lastTaskId = 0
+            var page = sqlImporter.getTasksSince(lastTaskId, pageSize)
+            while (page.nonEmpty) {
+                count += page.size
+                sqlImporter.deleteTasks(lastTaskId + 1, page.last.lastTaskId)
+                lastTaskId = page.last.lastTaskId
+                page = sqlImporter.getTasksSince(lastTaskId, pageSize)
+            }
+            count
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryNTimes
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, _}
+
+import rx.Observable
+import rx.functions.Func1
+
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.util.UUIDUtil._
+
+/**
+ * Measures the cost of loading a large topology from ZOOM, with the objects
+ * stored either in the legacy text format or in the binary encoding: reading
+ * all of them through getAll(), and subscribing to all of them from a newly
+ * built ZOOM instance, as an agent does when it starts.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZoomEncodingBenchmark {
+
+    private final val ZkRoot = "/zoom"
+    private final val Timeout = 60 seconds
+
+    @Param(Array("text", "binary"))
+    var encoding: String = _
+
+    @Param(Array("10000"))
+    var objects: Int = _
+
+    var server: TestingServer = _
+    var curator: CuratorFramework = _
+    var zoom: ZookeeperObjectMapper = _
+    var network: Network = _
+    var networkData: Array[Byte] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer
+        server.start()
+        curator = CuratorFrameworkFactory.newClient(server.getConnectString,
+                                                    new RetryNTimes(2, 1000))
+        curator.start()
+        curator.blockUntilConnected()
+
+        zoom = newZoom()
+        for (i <- 0 until objects) {
+            network = createNetwork(i)
+            zoom.create(network)
+        }
+        networkData =
+            ZookeeperObjectMapper.serialize(network, encoding == "binary")
+    }
+
+    @JmhTearDown
+    def teardown(): Unit = {
+        curator.close()
+        server.close()
+    }
+
+    private def newZoom(): ZookeeperObjectMapper = {
+        val zoom = new ZookeeperObjectMapper(ZkRoot, curator,
+                                             encoding == "binary")
+        zoom.registerClass(classOf[Network])
+        zoom.build()
+        zoom
+    }
+
+    private def createNetwork(i: Int): Network = {
+        val builder = Network.newBuilder()
+            .setId(UUID.randomUUID().asProto)
+            .setTenantId(s"tenant-${i % 100}")
+            .setName(s"network-$i")
+            .setAdminStateUp(true)
+            .setTunnelKey(i)
+            .setInboundFilterId(UUID.randomUUID().asProto)
+            .setOutboundFilterId(UUID.randomUUID().asProto)
+        for (j <- 0 until 8)
+            builder.addPortIds(UUID.randomUUID().asProto)
+        builder.build()
+    }
+
+    @Benchmark
+    def deserialize(): Network =
+        ZookeeperObjectMapper.deserialize(networkData, classOf[Network])
+
+    @Benchmark
+    def getAll(): Seq[Network] =
+        Await.result(zoom.getAll(classOf[Network]), Timeout)
+
+    @Benchmark
+    def startup(): Network = {
+        val zoom = newZoom()
+        zoom.observable(classOf[Network])
+            .take(objects)
+            .flatMap(new Func1[Observable[Network], Observable[Network]] {
+                override def call(o: Observable[Network]) = o.take(1)
+            })
+            .timeout(Timeout.toSeconds, TimeUnit.SECONDS)
+            .toBlocking
+            .last()
+    }
+}
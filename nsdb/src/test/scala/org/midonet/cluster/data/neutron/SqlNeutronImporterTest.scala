@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.neutron
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class SqlNeutronImporterTest extends FeatureSpec with Matchers
+                                                 with BeforeAndAfter {
+
+    private var table: SqliteTaskTable = _
+    private var sqlImporter: SqlNeutronImporter = _
+
+    before {
+        table = new SqliteTaskTable("importer-test")
+        sqlImporter = new SqlNeutronImporter(table.dataSource)
+    }
+
+    after {
+        table.close()
+    }
+
+    feature("Tasks are read in pages") {
+        scenario("Pages contain at most the requested tasks") {
+            table.insertDeleteTasks(for (id <- 1 to 10) yield (id, s"txn-$id"))
+
+            val page1 = sqlImporter.getTasksSince(0, 4)
+            page1.map(_.id) shouldBe (1 to 4).map(id => s"txn-$id")
+            page1.last.lastTaskId shouldBe 4
+
+            val page2 = sqlImporter.getTasksSince(page1.last.lastTaskId, 4)
+            page2.map(_.lastTaskId) shouldBe Seq(5, 6, 7, 8)
+
+            val page3 = sqlImporter.getTasksSince(page2.last.lastTaskId, 4)
+            page3.map(_.lastTaskId) shouldBe Seq(9, 10)
+
+            sqlImporter.getTasksSince(10, 4) shouldBe empty
+        }
+
+        scenario("A page is extended to the end of its last transaction") {
+            table.insertDeleteTasks(Seq(1 -> "txn-a", 2 -> "txn-b",
+                                        3 -> "txn-b", 4 -> "txn-b",
+                                        5 -> "txn-c"))
+
+            val page1 = sqlImporter.getTasksSince(0, 3)
+            page1.map(_.id) shouldBe Seq("txn-a", "txn-b")
+            page1.last.tasks.map(_.taskId) shouldBe Seq(2, 3, 4)
+
+            val page2 = sqlImporter.getTasksSince(page1.last.lastTaskId, 3)
+            page2.map(_.id) shouldBe Seq("txn-c")
+        }
+
+        scenario("A transaction larger than a page is read whole") {
+            table.insertDeleteTasks(for (id <- 1 to 10) yield (id, "txn-a"))
+
+            val page = sqlImporter.getTasksSince(0, 4)
+            page.map(_.id) shouldBe Seq("txn-a")
+            page.head.tasks.map(_.taskId) shouldBe (1 to 10)
+        }
+
+        scenario("Pages return the same tasks as a full read") {
+            table.insertDeleteTasks(for (id <- 1 to 10)
+                                        yield (id, s"txn-${id / 3}"))
+
+            val all = sqlImporter.getTasksSince(0).flatMap(_.tasks)
+            var paged = List.empty[importer.Task]
+            var last = 0
+            var page = sqlImporter.getTasksSince(last, 4)
+            while (page.nonEmpty) {
+                paged ++= page.flatMap(_.tasks)
+                last = page.last.lastTaskId
+                page = sqlImporter.getTasksSince(last, 4)
+            }
+            paged shouldBe all
+        }
+    }
+
+    feature("Tasks are deleted in ranges") {
+        scenario("Deleting a range of tasks") {
+            table.insertDeleteTasks(for (id <- 1 to 10) yield (id, s"txn-$id"))
+
+            sqlImporter.deleteTasks(3, 7)
+            table.taskIds shouldBe Seq(1, 2, 8, 9, 10)
+
+            sqlImporter.deleteTask(9)
+            table.taskIds shouldBe Seq(1, 2, 8, 10)
+        }
+    }
+}
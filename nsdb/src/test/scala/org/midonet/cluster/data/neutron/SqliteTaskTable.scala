@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.neutron
+
+import java.io.PrintWriter
+import java.sql.{Connection, DriverManager}
+import java.util.UUID
+import javax.sql.DataSource
+
+/** An in-memory SQLite database with a Neutron midonet_tasks table. */
+class SqliteTaskTable(name: String) {
+
+    private val connectionString =
+        s"jdbc:sqlite:file:$name?mode=memory&cache=shared"
+
+    Class.forName("org.sqlite.JDBC")
+
+    // SQLite doesn't provide the JDBC 2.0 API.
+    val dataSource = new DataSource() {
+        override def getConnection() =
+            DriverManager.getConnection(connectionString)
+        override def getConnection(username: String, password: String) = null
+        override def getLoginTimeout = -1
+        override def getLogWriter = null
+        override def setLoginTimeout(seconds: Int) {}
+        override def setLogWriter(out: PrintWriter) {}
+        override def getParentLogger = null
+        override def isWrapperFor(clazz: Class[_]) = false
+        override def unwrap[T](x: Class[T]): T = null.asInstanceOf[T]
+    }
+
+    // Keeps the shared in-memory database alive.
+    private val connection = dataSource.getConnection
+
+    execute("DROP TABLE IF EXISTS midonet_tasks")
+    execute("CREATE TABLE midonet_tasks (" +
+            "    id int(11) NOT NULL," +
+            "    type varchar(36) NOT NULL," +
+            "    data_type varchar(36) DEFAULT NULL," +
+            "    data longtext," +
+            "    resource_id varchar(36) DEFAULT NULL," +
+            "    transaction_id varchar(40) NOT NULL," +
+            "    created_at datetime NOT NULL," +
+            "    PRIMARY KEY (id)" +
+            ")")
+
+    /** Inserts tasks deleting the given resources, in a single transaction
+      * of the database. */
+    def insertDeleteTasks(tasks: Seq[(Int, String)]): Unit = {
+        val stmt = connection.prepareStatement(
+            "INSERT INTO midonet_tasks values(?, 'DELETE', 'NETWORK', '', " +
+            "?, ?, datetime('now'))")
+        connection.setAutoCommit(false)
+        try {
+            for ((id, txnId) <- tasks) {
+                stmt.setInt(1, id)
+                stmt.setString(2, UUID.randomUUID().toString)
+                stmt.setString(3, txnId)
+                stmt.addBatch()
+            }
+            stmt.executeBatch()
+            connection.commit()
+        } finally {
+            connection.setAutoCommit(true)
+            stmt.close()
+        }
+    }
+
+    def taskIds: Seq[Int] = {
+        val stmt = connection.createStatement()
+        try {
+            val rs = stmt.executeQuery("SELECT id FROM midonet_tasks ORDER BY id")
+            var ids = Vector.empty[Int]
+            while (rs.next()) ids :+= rs.getInt(1)
+            ids
+        } finally stmt.close()
+    }
+
+    def clear(): Unit = execute("DELETE FROM midonet_tasks")
+
+    def close(): Unit = connection.close()
+
+    private def execute(sql: String): Unit = {
+        val stmt = connection.createStatement()
+        try stmt.executeUpdate(sql) finally stmt.close()
+    }
+}
@@ -21,6 +21,7 @@ import org.scalatest.junit.JUnitRunner
 import rx.observers.TestObserver
 
 import org.midonet.cluster.data.storage.StorageTestClasses._
+import org.midonet.cluster.models.Topology.Network
 import org.midonet.cluster.util.{ClassAwaitableObserver, CuratorTestFramework, PathCacheDisconnectedException}
 
 @RunWith(classOf[JUnitRunner])
@@ -77,4 +78,75 @@ class ZookeeperObjectMapperTest extends StorageTest with CuratorTestFramework {
         }
     }
 
+    feature("Test message encoding") {
+        def binaryStorage: ZookeeperObjectMapper = {
+            val zoom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                                 binaryEncoding = true)
+            initAndBuildStorage(zoom)
+            zoom
+        }
+
+        scenario("Messages are stored in the text format by default") {
+            val zoom = storage.asInstanceOf[ZookeeperObjectMapper]
+            val network = createProtoNetwork(name = "network")
+            storage.create(network)
+
+            val path = zoom.getObjectPath(classOf[Network], network.getId)
+            val data = curator.getData.forPath(path)
+            ZookeeperObjectMapper.isBinaryMessage(data) shouldBe false
+            new String(data) shouldBe network.toString
+            await(storage.get(classOf[Network], network.getId)) shouldBe network
+        }
+
+        scenario("Messages are stored in the binary encoding if enabled") {
+            val zoom = binaryStorage
+            val network = createProtoNetwork(name = "network")
+            zoom.create(network)
+
+            val path = zoom.getObjectPath(classOf[Network], network.getId)
+            val data = curator.getData.forPath(path)
+            ZookeeperObjectMapper.isBinaryMessage(data) shouldBe true
+            await(zoom.get(classOf[Network], network.getId)) shouldBe network
+            await(storage.get(classOf[Network], network.getId)) shouldBe network
+        }
+
+        scenario("Messages stored in the text format are read") {
+            val zoom = binaryStorage
+            val network = createProtoNetwork(name = "network")
+            storage.create(network)
+
+            await(zoom.get(classOf[Network], network.getId)) shouldBe network
+            await(zoom.getAll(classOf[Network])) shouldBe Seq(network)
+        }
+
+        scenario("Messages stored in the text format are migrated") {
+            val zoom = binaryStorage
+            val networks = for (i <- 0 until 3)
+                yield createProtoNetwork(name = s"network$i")
+            val bridge = createPojoBridge()
+            networks.take(2) foreach storage.create
+            zoom.create(networks(2))
+            storage.create(bridge)
+            val paths = networks map { n =>
+                zoom.getObjectPath(classOf[Network], n.getId)
+            }
+
+            zoom.migrateToBinaryEncoding() shouldBe 2
+            for ((network, path) <- networks.zip(paths)) {
+                val data = curator.getData.forPath(path)
+                ZookeeperObjectMapper.isBinaryMessage(data) shouldBe true
+                await(zoom.get(classOf[Network], network.getId)) shouldBe network
+            }
+            await(zoom.get(classOf[PojoBridge], bridge.id)).id shouldBe bridge.id
+            zoom.migrateToBinaryEncoding() shouldBe 0
+        }
+
+        scenario("Messages are not migrated if the binary encoding is disabled") {
+            val zoom = storage.asInstanceOf[ZookeeperObjectMapper]
+            intercept[IllegalStateException] {
+                zoom.migrateToBinaryEncoding()
+            }
+        }
+    }
+
 }
@@ -16,6 +16,7 @@
 
 package org.midonet.cluster.flowhistory
 
+import java.nio.ByteBuffer
 import java.util.UUID
 import org.junit.runner.RunWith
 import org.scalatest.{FeatureSpec, Matchers}
@@ -38,4 +39,53 @@ class TestSerialization extends FeatureSpec with Matchers {
             }
         }
     }
+
+    feature("Binary serialization/deserialization")
+    {
+        scenario("serializing & serialized objects are the same") {
+            val serializer = new BinarySerialization
+            val buf = ByteBuffer.allocate(65536)
+            for (i <- 0 until 100) {
+                val flowRecord = FlowRecord.random
+
+                buf.clear()
+                serializer.flowRecordToBuffer(flowRecord, buf)
+                buf.flip()
+
+                val flowRecord2 = serializer.bufferToFlowRecord(buf)
+
+                flowRecord2 should be (flowRecord)
+                buf.remaining should be (0)
+            }
+        }
+
+        scenario("datagrams contain many records") {
+            val serializer = new BinarySerialization
+            val records = (0 until 10) map { _ => FlowRecord.random }
+            val buf = ByteBuffer.allocate(65536)
+            BinarySerialization.putHeader(buf)
+            for (record <- records) {
+                val start = buf.position
+                buf.putShort(0)
+                BinarySerialization.putRecord(buf, record)
+                buf.putShort(start, (buf.position - start - 2).toShort)
+            }
+            BinarySerialization.putRecordCount(buf, records.size)
+            buf.flip()
+
+            val decoded = serializer.datagramToFlowRecords(buf)
+            decoded.size should be (records.size)
+            for (i <- records.indices)
+                decoded.get(i) should be (records(i))
+        }
+
+        scenario("other datagrams are rejected") {
+            val serializer = new BinarySerialization
+            val json = new JsonSerialization().flowRecordToBuffer(
+                FlowRecord.random)
+            intercept[IllegalArgumentException] {
+                serializer.datagramToFlowRecords(ByteBuffer.wrap(json))
+            }
+        }
+    }
 }
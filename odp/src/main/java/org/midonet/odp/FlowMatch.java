@@ -341,9 +341,42 @@ public class FlowMatch {
     protected long seenFields = 0;
 
     private final ArrayList<FlowKey> keys = new ArrayList<>();
-    private int hashCode = 0;
     private int connectionHash = 0;
 
+    /*
+     * The values of the used fields, packed in words of a fixed layout, from
+     * which the 64-bit hash is computed and over which matches are compared.
+     * The words are computed from the fields on demand, so that hashing and
+     * comparing matches allocates nothing. Unused fields are packed as zero.
+     *
+     *  0: input port number (32) | tunnel src (32)
+     *  1: tunnel key
+     *  2: tunnel dst (32) | ether type (16) | network proto (8) | TTL (8)
+     *  3: fragment type (8) | TOS (8) | eth src (48)
+     *  4: ICMP id (16) | eth dst (48)
+     *  5: src port (32) | dst port (32)
+     *  6-7: network src
+     *  8-9: network dst
+     * 10: number of VLAN ids (16) | first three VLAN ids (16 each)
+     * 11: ICMP data hash (32) | flags
+     */
+    private static final int PACKED_WORDS = 12;
+    private static final long FLAG_ETH_SRC_NULL = 1L;
+    private static final long FLAG_ETH_DST_NULL = 1L << 1;
+    private static final long FLAG_ICMP_DATA_NULL = 1L << 2;
+    private static final int FLAG_NW_SRC_SHIFT = 4;
+    private static final int FLAG_NW_DST_SHIFT = 6;
+    private static final long ADDR_NULL = 0L;
+    private static final long ADDR_IPV4 = 1L;
+    private static final long ADDR_IPV6 = 2L;
+    private static final long ADDR_OTHER = 3L;
+    private static final int PACKED_VLAN_IDS = 3;
+
+    /* The 64-bit hash of the packed words, or 0 until it is computed. Being
+     * a single volatile word, it is published safely to the threads that
+     * share a match, which at worst compute it again. */
+    private volatile long longHashCode = 0L;
+
     public FlowMatch() { }
 
     public FlowMatch(@Nonnull Iterable<FlowKey> keys) {
@@ -499,6 +532,20 @@ public class FlowMatch {
         invalidateHashCode();
     }
 
+    /**
+     * Resets the contents of this FlowMatch to those of <pre>that</pre>,
+     * keeping only the used fields that are also in the specified set of
+     * fields, which are marked as seen. Userspace fields and flow keys are
+     * not copied.
+     */
+    public void resetMasked(FlowMatch that, long fields) {
+        resetWithoutUserspaceFields(that);
+        usedFields &= fields & ~userspaceFieldsMask;
+        seenFields = usedFields;
+        keys.clear();
+        invalidateHashCode();
+    }
+
     /**
      * Clears the contents of the fields. It will also empty the collection of
      * used fields.
@@ -771,6 +818,7 @@ public class FlowMatch {
             vlanIds.remove(index);
         if (vlanIds.isEmpty())
             fieldUnused(Field.VlanId);
+        invalidateHashCode();
         return this;
     }
 
@@ -815,6 +863,16 @@ public class FlowMatch {
         if (o == null || !(o instanceof FlowMatch)) return false;
 
         FlowMatch that = (FlowMatch) o;
+        if (usedFields == that.usedFields) {
+            if (longHashCode() != that.longHashCode())
+                return false;
+            for (int i = 0; i < PACKED_WORDS; ++i) {
+                if (packedWord(i) != that.packedWord(i))
+                    return false;
+            }
+            return packedEquals(that);
+        }
+
         for (Field f : fields) {
             if (isUsed(f) && (!that.isUsed(f) || !f.equals(this, that)))
                 return false;
@@ -824,15 +882,156 @@ public class FlowMatch {
 
     @Override
     public int hashCode() {
-        if (hashCode == 0) {
-            int result = Longs.hashCode(usedFields);
-            for (Field f : fields) {
-                if (isUsed(f))
-                    result = 31 * result + f.hashCode(this);
-            }
-            hashCode = result;
+        long hash = longHashCode();
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Returns a 64-bit hash of the used fields, computed over their packed
+     * representation without allocating.
+     */
+    public long longHashCode() {
+        long hash = longHashCode;
+        if (hash == 0L) {
+            hash = usedFields * 0x9E3779B97F4A7C15L;
+            for (int i = 0; i < PACKED_WORDS; ++i) {
+                hash = (hash ^ packedWord(i)) * 0xC2B2AE3D27D4EB4FL;
+                hash ^= hash >>> 29;
+            }
+            if (hash == 0L)
+                hash = 1L;
+            longHashCode = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the packed word at the given index of the layout.
+     */
+    private long packedWord(int index) {
+        long word = 0L;
+        switch (index) {
+            case 0:
+                if (isUsed(Field.InputPortNumber))
+                    word |= (long) inputPortNumber << 32;
+                if (isUsed(Field.TunnelSrc))
+                    word |= tunnelSrc & 0xFFFFFFFFL;
+                break;
+            case 1:
+                if (isUsed(Field.TunnelKey))
+                    word = tunnelKey;
+                break;
+            case 2:
+                if (isUsed(Field.TunnelDst))
+                    word |= (long) tunnelDst << 32;
+                if (isUsed(Field.EtherType))
+                    word |= (etherType & 0xFFFFL) << 16;
+                if (isUsed(Field.NetworkProto))
+                    word |= (networkProto & 0xFFL) << 8;
+                if (isUsed(Field.NetworkTTL))
+                    word |= networkTTL & 0xFFL;
+                break;
+            case 3:
+                if (isUsed(Field.FragmentType))
+                    word |= (long) ipFragmentType.ordinal() << 56;
+                if (isUsed(Field.NetworkTOS))
+                    word |= (networkTOS & 0xFFL) << 48;
+                if (isUsed(Field.EthSrc) && ethSrc != null)
+                    word |= ethSrc.asLong();
+                break;
+            case 4:
+                if (isUsed(Field.IcmpId))
+                    word |= (icmpId & 0xFFFFL) << 48;
+                if (isUsed(Field.EthDst) && ethDst != null)
+                    word |= ethDst.asLong();
+                break;
+            case 5:
+                if (isUsed(Field.SrcPort))
+                    word |= (long) srcPort << 32;
+                if (isUsed(Field.DstPort))
+                    word |= dstPort & 0xFFFFFFFFL;
+                break;
+            case 6:
+            case 7:
+                if (isUsed(Field.NetworkSrc))
+                    word = addressWord(networkSrc, index - 6);
+                break;
+            case 8:
+            case 9:
+                if (isUsed(Field.NetworkDst))
+                    word = addressWord(networkDst, index - 8);
+                break;
+            case 10:
+                if (isUsed(Field.VlanId)) {
+                    int count = vlanIds.size();
+                    word = (long) count << 48;
+                    for (int i = 0; i < count && i < PACKED_VLAN_IDS; ++i)
+                        word |= (vlanIds.get(i) & 0xFFFFL) << (i * 16);
+                }
+                break;
+            case 11:
+                if (isUsed(Field.EthSrc) && ethSrc == null)
+                    word |= FLAG_ETH_SRC_NULL;
+                if (isUsed(Field.EthDst) && ethDst == null)
+                    word |= FLAG_ETH_DST_NULL;
+                if (isUsed(Field.NetworkSrc))
+                    word |= addressKind(networkSrc) << FLAG_NW_SRC_SHIFT;
+                if (isUsed(Field.NetworkDst))
+                    word |= addressKind(networkDst) << FLAG_NW_DST_SHIFT;
+                if (isUsed(Field.IcmpData)) {
+                    if (icmpData == null) word |= FLAG_ICMP_DATA_NULL;
+                    else word |= (long) Arrays.hashCode(icmpData) << 32;
+                }
+                break;
         }
-        return hashCode;
+        return word;
+    }
+
+    /**
+     * Returns the kind of an address, as packed in the flags.
+     */
+    private static long addressKind(IPAddr addr) {
+        if (addr == null)
+            return ADDR_NULL;
+        else if (addr instanceof IPv4Addr)
+            return ADDR_IPV4;
+        else if (addr instanceof IPv6Addr)
+            return ADDR_IPV6;
+        else
+            return ADDR_OTHER;
+    }
+
+    /**
+     * Returns the first or second packed word of an address.
+     */
+    private static long addressWord(IPAddr addr, int half) {
+        if (addr instanceof IPv4Addr)
+            return half == 0 ? ((IPv4Addr) addr).toInt() & 0xFFFFFFFFL : 0L;
+        else if (addr instanceof IPv6Addr)
+            return half == 0 ? ((IPv6Addr) addr).upperWord()
+                             : ((IPv6Addr) addr).lowerWord();
+        else if (addr != null && half == 0)
+            return addr.hashCode();
+        else
+            return 0L;
+    }
+
+    /**
+     * Compares the fields that do not fit in the packed words of two matches
+     * using the same fields and whose packed words are equal.
+     */
+    private boolean packedEquals(FlowMatch that) {
+        if (isUsed(Field.NetworkSrc) && addressKind(networkSrc) == ADDR_OTHER &&
+            !Objects.equals(networkSrc, that.networkSrc))
+            return false;
+        if (isUsed(Field.NetworkDst) && addressKind(networkDst) == ADDR_OTHER &&
+            !Objects.equals(networkDst, that.networkDst))
+            return false;
+        if (isUsed(Field.VlanId) && vlanIds.size() > PACKED_VLAN_IDS &&
+            !vlanIds.equals(that.vlanIds))
+            return false;
+        return !isUsed(Field.IcmpData) ||
+               Arrays.equals(icmpData, that.icmpData);
     }
 
     /** Returns a hash code which only uses for its calculation fields that are
@@ -862,7 +1061,9 @@ public class FlowMatch {
     }
 
     private void invalidateHashCode() {
-        hashCode = 0;
+        // Avoids a volatile write on each setter when there is no hash.
+        if (longHashCode != 0L)
+            longHashCode = 0L;
         connectionHash = 0;
     }
 
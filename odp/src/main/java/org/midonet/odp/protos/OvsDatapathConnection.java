@@ -79,7 +79,11 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
     }
 
     public static OvsDatapathConnection create(Netlink.Address address) throws Exception {
-        return create(address, new BufferPool(128, 512, 0x1000));
+        // A few large buffers serve the requests, such as the execution of
+        // jumbo frames, that don't fit in a regular one.
+        return create(address, new BufferPool(new int[] { 128, 1 },
+                                              new int[] { 512, 8 },
+                                              new int[] { 0x1000, 0x10000 }));
     }
 
     public static OvsDatapathConnection createMock() {
@@ -15,6 +15,7 @@
  */
 package org.midonet.odp.protos;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -352,8 +353,15 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         ByteBuffer buf = getBuffer();
         FlowMask mask = datapath.supportsMegaflow() ? flow.getMask() : null;
         short echo = callback == null ? 0 : NLFlag.ECHO;
-        protocol.prepareFlowCreate(datapathId, flow.getMatch().getKeys(),
-                                   flow.getActions(), mask, buf, echo);
+        try {
+            protocol.prepareFlowCreate(datapathId, flow.getMatch().getKeys(),
+                                       flow.getActions(), mask, buf, echo);
+        } catch (BufferOverflowException e) {
+            releaseBuffer(buf);
+            buf = getBuffer(NETLINK_LARGE_REQUEST_SIZE);
+            protocol.prepareFlowCreate(datapathId, flow.getMatch().getKeys(),
+                                       flow.getActions(), mask, buf, echo);
+        }
         sendNetlinkMessage(buf, callback, Flow.deserializer, timeoutMillis);
     }
 
@@ -437,7 +445,15 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         }
 
         ByteBuffer buf = getBuffer();
-        protocol.prepareFlowSet(datapathId, datapath.supportsMegaflow(), flow, buf);
+        try {
+            protocol.prepareFlowSet(datapathId, datapath.supportsMegaflow(),
+                                    flow, buf);
+        } catch (BufferOverflowException e) {
+            releaseBuffer(buf);
+            buf = getBuffer(NETLINK_LARGE_REQUEST_SIZE);
+            protocol.prepareFlowSet(datapathId, datapath.supportsMegaflow(),
+                                    flow, buf);
+        }
         sendNetlinkMessage(buf, callback, Flow.deserializer, timeoutMillis);
     }
 
@@ -479,8 +495,16 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
             return;
         }
 
+        // Packets larger than a regular buffer, such as jumbo frames, are
+        // prepared again in a buffer of the pool's large size class.
         ByteBuffer buf = getBuffer();
-        protocol.preparePacketExecute(datapathId, packet, actions, buf);
+        try {
+            protocol.preparePacketExecute(datapathId, packet, actions, buf);
+        } catch (BufferOverflowException e) {
+            releaseBuffer(buf);
+            buf = getBuffer(NETLINK_LARGE_REQUEST_SIZE);
+            protocol.preparePacketExecute(datapathId, packet, actions, buf);
+        }
         sendNetlinkMessage(buf, callback, alwaysTrueReader, timeoutMillis);
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp
+
+import java.util.{List => JList, Random}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.odp.flows.FlowKey
+
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+class FlowMatchBenchmark {
+
+    @Param(Array("1024"))
+    var size: Int = _
+
+    var keys: Array[JList[FlowKey]] = _
+    var matches: Array[FlowMatch] = _
+    var copies: Array[FlowMatch] = _
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val rand = new Random(42)
+        keys = Array.fill(size)(FlowMatches.generateFlowMatch(rand).getKeys)
+        matches = keys map (new FlowMatch(_))
+        copies = keys map (new FlowMatch(_))
+    }
+
+    private def next(): Int = {
+        index = (index + 1) % size
+        index
+    }
+
+    @Benchmark
+    def hashFreshMatch(): Int =
+        new FlowMatch(keys(next())).hashCode()
+
+    @Benchmark
+    def equalsFreshMatches(): Boolean = {
+        val i = next()
+        new FlowMatch(keys(i)) == new FlowMatch(keys(i))
+    }
+
+    @Benchmark
+    def equalsCachedMatches(): Boolean = {
+        val i = next()
+        matches(i) == copies(i)
+    }
+
+    @Benchmark
+    def hashAfterChange(): Int = {
+        val m = matches(next())
+        m.setSrcPort(m.getSrcPort)
+        m.hashCode()
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.midonet.odp
 
+import java.nio.ByteBuffer
 import java.{util => ju}
 import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
 
@@ -141,6 +142,60 @@ class FlowCreate extends OvsBenchmark {
         holder.writer.write(holder.flowBuf)
 }
 
+/**
+ * Measures the rate of flow creations when consecutive flows are coalesced
+ * into a single gathering write, as the FlowProcessor does, of up to
+ * batchSize messages.
+ */
+class BatchedFlowCreate extends OvsBenchmark {
+    final val FlowsPerInvocation = 64
+
+    @Param(Array("1", "8", "64"))
+    var batchSize: Int = _
+
+    val rand = ThreadLocalRandom.current()
+    val ethKey = new FlowKeyEthernet(new Array[Byte](6), new Array[Byte](6))
+    val keys: ju.List[FlowKey] = List(
+            new FlowKeyInPort(0),
+            ethKey,
+            new FlowKeyIPv4(rand.nextInt(), rand.nextInt(), TCP.PROTOCOL_NUMBER,
+                            0, -1, 0),
+            new FlowKeyTCP(rand.nextInt() & 0xffff, rand.nextInt() & 0xffff))
+    val actions: ju.List[FlowAction] = List(FlowActions.output(1))
+    val flowBufs = Array.fill[ByteBuffer](FlowsPerInvocation) {
+        BytesUtil.instance.allocateDirect(2 * 1024)
+    }
+
+    @Setup(Level.Invocation)
+    def prepareFlows(channel: ChannelHolder): Unit = {
+        var i = 0
+        while (i < FlowsPerInvocation) {
+            rand.nextBytes(ethKey.eth_src)
+            rand.nextBytes(ethKey.eth_dst)
+            flowBufs(i).clear()
+            channel.protocol.prepareFlowCreate(datapath.getIndex, keys, actions,
+                                               null, flowBufs(i))
+            i += 1
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.Throughput))
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(64)
+    def createFlows(channel: ChannelHolder): Long = {
+        var nbytes = 0L
+        var i = 0
+        while (i < FlowsPerInvocation) {
+            val size = Math.min(batchSize, FlowsPerInvocation - i)
+            nbytes += (if (size == 1) channel.writer.write(flowBufs(i))
+                       else channel.writer.write(flowBufs, i, size))
+            i += size
+        }
+        nbytes
+    }
+}
+
 @Threads(2)
 class ConcurrentFlowCreate2 extends FlowCreate
 
@@ -18,6 +18,8 @@ package org.midonet.odp.flows;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -29,11 +31,13 @@ import org.midonet.packets.Ethernet;
 import org.midonet.packets.ICMP;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv6Addr;
 import org.midonet.packets.MAC;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -414,4 +418,119 @@ public class FlowMatchTest {
         m.getNetworkTTL();
         assertEquals(m.highestLayerSeen(), 4);
     }
+
+    @Test
+    public void testEqualMatchesHaveEqualHashes() {
+        Random rand = new Random(0);
+        for (int i = 0; i < 1000; ++i) {
+            FlowMatch m1 = FlowMatches.generateFlowMatch(rand);
+            FlowMatch m2 = new FlowMatch(m1.getKeys());
+            assertThat(m2, equalTo(m1));
+            assertThat(m2.hashCode(), is(m1.hashCode()));
+            assertThat(m2.longHashCode(), is(m1.longHashCode()));
+            assertThat(m1.clone(), equalTo(m1));
+        }
+    }
+
+    @Test
+    public void testMatchesDifferingInAFieldAreNotEqual() {
+        FlowMatch m = FlowMatches.tcpFlow("aa:bb:cc:dd:ee:ff",
+                                          "ff:ee:dd:cc:bb:aa",
+                                          "10.0.0.1", "10.0.0.2",
+                                          1000, 80, 0);
+        FlowMatch m1 = m.clone();
+        m1.setSrcPort(1001);
+        assertThat(m1, not(equalTo(m)));
+        FlowMatch m2 = m.clone();
+        m2.setNetworkDst(IPv4Addr.fromString("10.0.0.3"));
+        assertThat(m2, not(equalTo(m)));
+        FlowMatch m3 = m.clone();
+        m3.setEthSrc("aa:bb:cc:dd:ee:fe");
+        assertThat(m3, not(equalTo(m)));
+        FlowMatch m4 = m.clone();
+        m4.setNetworkTTL((byte) 1);
+        assertThat(m4, not(equalTo(m)));
+
+        // Changing a field back restores the equality.
+        m1.setSrcPort(1000);
+        assertThat(m1, equalTo(m));
+        assertThat(m1.longHashCode(), is(m.longHashCode()));
+    }
+
+    @Test
+    public void testUnusedFieldsAreIgnored() {
+        FlowMatch m1 = new FlowMatch().setSrcPort(1000).setDstPort(80);
+        FlowMatch m2 = new FlowMatch().setSrcPort(1000).setDstPort(81);
+        m2.fieldUnused(FlowMatch.Field.DstPort);
+        m1.fieldUnused(FlowMatch.Field.DstPort);
+        assertThat(m1, equalTo(m2));
+        assertThat(m1.longHashCode(), is(m2.longHashCode()));
+    }
+
+    @Test
+    public void testIPv6AndVlanFields() {
+        IPv6Addr src = IPv6Addr.fromString("fe80::1");
+        IPv6Addr dst = IPv6Addr.fromString("fe80::2");
+        FlowMatch m1 = new FlowMatch().setNetworkSrc(src).setNetworkDst(dst);
+        FlowMatch m2 = new FlowMatch().setNetworkSrc(src).setNetworkDst(dst);
+        for (short vlan = 1; vlan <= 5; ++vlan) {
+            m1.addVlanId(vlan);
+            m2.addVlanId(vlan);
+        }
+        assertThat(m1, equalTo(m2));
+
+        // VLAN ids beyond the packed ones are also compared.
+        m2.removeVlanId((short) 5);
+        m2.addVlanId((short) 6);
+        assertThat(m1, not(equalTo(m2)));
+
+        FlowMatch m3 = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString("0.0.0.0"))
+            .setNetworkDst(dst);
+        FlowMatch m4 = new FlowMatch()
+            .setNetworkSrc(IPv6Addr.fromString("::"))
+            .setNetworkDst(dst);
+        assertThat(m3, not(equalTo(m4)));
+    }
+
+    @Test
+    public void testIcmpDataIsCompared() {
+        FlowMatch m1 = new FlowMatch().setIcmpData(new byte[] { 1, 2, 3 });
+        FlowMatch m2 = new FlowMatch().setIcmpData(new byte[] { 1, 2, 3 });
+        FlowMatch m3 = new FlowMatch().setIcmpData(new byte[] { 1, 2, 4 });
+        assertThat(m1, equalTo(m2));
+        assertThat(m1.hashCode(), is(m2.hashCode()));
+        assertThat(m1, not(equalTo(m3)));
+    }
+
+    @Test
+    public void testSharedMatchIsHashedConsistently() throws Exception {
+        Random rand = new Random(0);
+        final FlowMatch[] matches = new FlowMatch[256];
+        final FlowMatch[] copies = new FlowMatch[matches.length];
+        for (int i = 0; i < matches.length; ++i) {
+            matches[i] = FlowMatches.generateFlowMatch(rand);
+            copies[i] = new FlowMatch(matches[i].getKeys());
+        }
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < matches.length; ++i) {
+                        FlowMatch m = matches[i];
+                        if (m.longHashCode() != copies[i].longHashCode() ||
+                            !m.equals(copies[i]))
+                            failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        assertThat(failures.get(), is(0));
+    }
 }